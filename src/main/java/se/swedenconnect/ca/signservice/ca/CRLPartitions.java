@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.cert.X509CertificateHolder;
+
+/**
+ * Utility functions for partitioned CRLs.
+ *
+ * <p>
+ * With partitioned CRLs, each issued certificate is assigned to one of a fixed number of CRL partitions, and is issued
+ * with a CRL distribution point pointing to the CRL of its partition. The CRL of a partition is named as the complete
+ * CRL with the suffix {@code -p<partition>.crl}, e.g. {@code ca01-p3.crl}, and only lists the revoked certificates of
+ * the partition. It is identified by an issuing distribution point extension holding the partition URLs.
+ * </p>
+ *
+ * <p>
+ * The serial number of a certificate is assigned by the certificate issuer after the certificate model has been built,
+ * so certificates are assigned to partitions by a hash of the subject public key. The partition of a revoked
+ * certificate is obtained from the CRL distribution point of the issued certificate.
+ * </p>
+ */
+public final class CRLPartitions {
+
+  /** Partition of certificates that are not assigned to a CRL partition */
+  public static final int NO_PARTITION = -1;
+
+  /** Pattern matching the partition suffix of a CRL file name or URL */
+  private static final Pattern PARTITION_SUFFIX = Pattern.compile("-p(\\d+)\\.crl$");
+
+  private CRLPartitions() {
+  }
+
+  /**
+   * Gets the name of a partition CRL file or URL from the name of the complete CRL.
+   *
+   * @param crlName file name or URL of the complete CRL
+   * @param partition the CRL partition
+   * @return file name or URL of the partition CRL
+   */
+  @Nonnull
+  public static String getPartitionName(@Nonnull final String crlName, final int partition) {
+    return StringUtils.removeEnd(crlName, ".crl") + "-p" + partition + ".crl";
+  }
+
+  /**
+   * Assigns a certificate to a CRL partition based on its public key.
+   *
+   * @param publicKey the public key of the certificate
+   * @param partitions the number of CRL partitions
+   * @return CRL partition
+   */
+  public static int getPartition(@Nonnull final PublicKey publicKey, final int partitions) {
+    return Math.floorMod(Arrays.hashCode(publicKey.getEncoded()), partitions);
+  }
+
+  /**
+   * Gets the CRL partition of an issued certificate from its CRL distribution points.
+   *
+   * @param certificate the issued certificate
+   * @return CRL partition or {@link #NO_PARTITION} if the certificate is not assigned to a CRL partition
+   */
+  public static int getPartition(@Nonnull final X509CertificateHolder certificate) {
+    final CRLDistPoint crlDistPoint = CRLDistPoint.fromExtensions(certificate.getExtensions());
+    if (crlDistPoint == null) {
+      return NO_PARTITION;
+    }
+    for (final DistributionPoint distributionPoint : crlDistPoint.getDistributionPoints()) {
+      final DistributionPointName name = distributionPoint.getDistributionPoint();
+      if (name == null || name.getType() != DistributionPointName.FULL_NAME) {
+        continue;
+      }
+      for (final GeneralName generalName : GeneralNames.getInstance(name.getName()).getNames()) {
+        if (generalName.getTagNo() == GeneralName.uniformResourceIdentifier) {
+          final Matcher matcher = PARTITION_SUFFIX.matcher(generalName.getName().toString());
+          if (matcher.find()) {
+            return Integer.parseInt(matcher.group(1));
+          }
+        }
+      }
+    }
+    return NO_PARTITION;
+  }
+
+  /**
+   * Gets the issuing distribution point extension of a partition CRL.
+   *
+   * @param crlDistributionPoints the URLs of the complete CRL
+   * @param partition the CRL partition
+   * @return issuing distribution point extension or null if no CRL distribution points are provided
+   */
+  @Nullable
+  public static Extension getIssuingDistributionPointExtension(@Nonnull final List<String> crlDistributionPoints,
+      final int partition) {
+    if (crlDistributionPoints.isEmpty()) {
+      return null;
+    }
+    final GeneralName[] partitionUrls = crlDistributionPoints.stream()
+        .map(url -> new GeneralName(GeneralName.uniformResourceIdentifier, getPartitionName(url, partition)))
+        .toArray(GeneralName[]::new);
+    return IncrementalCRLBuilder.getExtension(Extension.issuingDistributionPoint, true,
+        new IssuingDistributionPoint(new DistributionPointName(new GeneralNames(partitionUrls)), false, false, null,
+            false, false));
+  }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.cert.X509CRLHolder;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A CRL file where the parsed CRL is held in memory.
+ *
+ * <p>
+ * The CRL is parsed when the file is first read, and is then reused until a new CRL is written through this class or
+ * the modification time or size of the file changes, e.g. when the file is replaced by another service instance. The
+ * CRL number and the serial numbers of the revoked certificates are extracted once for each parsed CRL.
+ * </p>
+ */
+@Slf4j
+class CachedCRLFile {
+
+  /** The CRL file */
+  @Getter
+  private final File file;
+
+  /** The current snapshot of the CRL file */
+  private Snapshot snapshot;
+
+  /**
+   * Constructor.
+   *
+   * @param file the CRL file
+   */
+  CachedCRLFile(@Nonnull final File file) {
+    this.file = file;
+  }
+
+  /**
+   * Gets the current CRL of the file. The file is only read if it has been modified since it was last read or written.
+   *
+   * @return the current CRL snapshot or null if the file does not exist
+   * @throws IOException error reading or parsing the CRL file
+   */
+  @Nullable
+  synchronized Snapshot get() throws IOException {
+    final long lastModified = this.file.lastModified();
+    if (lastModified == 0L && !this.file.exists()) {
+      this.snapshot = null;
+      return null;
+    }
+    final long length = this.file.length();
+    if (this.snapshot == null || this.snapshot.lastModified() != lastModified || this.snapshot.length() != length) {
+      try (InputStream in = new FileInputStream(this.file)) {
+        this.snapshot = Snapshot.of(new X509CRLHolder(in), lastModified, length);
+      }
+      log.debug("Loaded CRL number {} from {}", this.snapshot.crlNumber(), this.file);
+    }
+    return this.snapshot;
+  }
+
+  /**
+   * Writes a new CRL to the file. The CRL is written to a temporary file in the same directory, which then replaces the
+   * CRL file, so that a reader of the CRL file never sees a partially written CRL.
+   *
+   * @param crl the new CRL
+   * @return the snapshot of the new CRL
+   * @throws IOException error writing the CRL file
+   */
+  @Nonnull
+  synchronized Snapshot write(@Nonnull final X509CRLHolder crl) throws IOException {
+    final File directory = this.file.getAbsoluteFile().getParentFile();
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create CRL directory " + directory);
+    }
+    final File tempFile = new File(directory, this.file.getName() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        final ByteBuffer buffer = ByteBuffer.wrap(crl.getEncoded());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      Files.move(tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+    this.snapshot = Snapshot.of(crl, this.file.lastModified(), this.file.length());
+    return this.snapshot;
+  }
+
+  /**
+   * A parsed CRL with data extracted from the CRL.
+   *
+   * @param crl the CRL
+   * @param crlNumber the CRL number of the CRL
+   * @param revokedSerials the serial numbers of the certificates listed in the CRL
+   * @param lastModified the modification time of the file holding the CRL
+   * @param length the size of the file holding the CRL
+   */
+  record Snapshot(X509CRLHolder crl, BigInteger crlNumber, Set<BigInteger> revokedSerials, long lastModified,
+      long length) {
+
+    private static Snapshot of(final X509CRLHolder crl, final long lastModified, final long length) {
+      final Extension crlNumberExtension = crl.getExtension(Extension.cRLNumber);
+      final BigInteger crlNumber = crlNumberExtension == null
+          ? BigInteger.ZERO
+          : CRLNumber.getInstance(crlNumberExtension.getParsedValue()).getCRLNumber();
+      final Set<BigInteger> serials = new HashSet<>();
+      final Enumeration<?> entries = crl.toASN1Structure().getTBSCertList().getRevokedCertificateEnumeration();
+      while (entries.hasMoreElements()) {
+        serials.add(((TBSCertList.CRLEntry) entries.nextElement()).getUserCertificate().getValue());
+      }
+      return new Snapshot(crl, crlNumber, Collections.unmodifiableSet(serials), lastModified, length);
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.Time;
+
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+
+/**
+ * Cache of DER encoded CRL entries of revoked certificates.
+ *
+ * <p>
+ * Each revoked certificate is encoded as a CRL entry once, when it is revoked or when it is first included in a CRL.
+ * The encoded entries of all revoked certificates are provided as one byte array in serial number order, which can be
+ * included in a CRL as is. Entries are re-encoded only if the revocation data of a certificate changes, and entries of
+ * certificates that are no longer revoked are dropped.
+ * </p>
+ */
+public class EncodedCRLEntryCache {
+
+  /** Encoded CRL entries by serial number */
+  private Map<BigInteger, EncodedEntry> entries = new HashMap<>();
+
+  /**
+   * Encodes and caches the CRL entry of a revoked certificate.
+   *
+   * @param revokedCertificate the revoked certificate
+   */
+  public synchronized void update(@Nonnull final RevokedCertificate revokedCertificate) {
+    this.entries.put(revokedCertificate.getCertificateSerialNumber(), this.getEntry(revokedCertificate));
+  }
+
+  /**
+   * Gets the concatenated DER encoded CRL entries of a list of revoked certificates. Cached entries are used for
+   * certificates with unchanged revocation data, and the cache is updated to hold the provided certificates only.
+   *
+   * @param revokedCertificates revoked certificates sorted in the order they are to appear in the CRL
+   * @return concatenated DER encoded CRL entries
+   */
+  @Nonnull
+  public synchronized byte[] getEncodedEntries(@Nonnull final List<RevokedCertificate> revokedCertificates) {
+    final Map<BigInteger, EncodedEntry> current = new HashMap<>(revokedCertificates.size() * 4 / 3 + 1);
+    int length = 0;
+    for (final RevokedCertificate revokedCertificate : revokedCertificates) {
+      final EncodedEntry entry = this.getEntry(revokedCertificate);
+      current.put(revokedCertificate.getCertificateSerialNumber(), entry);
+      length += entry.encoded().length;
+    }
+    this.entries = current;
+    final ByteArrayOutputStream encodedEntries = new ByteArrayOutputStream(length);
+    for (final RevokedCertificate revokedCertificate : revokedCertificates) {
+      encodedEntries.writeBytes(current.get(revokedCertificate.getCertificateSerialNumber()).encoded());
+    }
+    return encodedEntries.toByteArray();
+  }
+
+  /**
+   * Gets the number of cached entries.
+   *
+   * @return number of cached entries
+   */
+  public synchronized int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Encodes the CRL entry of a revoked certificate. The reason code extension is included for all reasons other than
+   * unspecified.
+   *
+   * @param revokedCertificate the revoked certificate
+   * @return DER encoded CRL entry
+   */
+  @Nonnull
+  public static byte[] encodeEntry(@Nonnull final RevokedCertificate revokedCertificate) {
+    try {
+      final ASN1EncodableVector entry = new ASN1EncodableVector();
+      entry.add(new ASN1Integer(revokedCertificate.getCertificateSerialNumber()));
+      entry.add(new Time(revokedCertificate.getRevocationTime()));
+      if (revokedCertificate.getReason() != CRLReason.unspecified) {
+        entry.add(new Extensions(new Extension(Extension.reasonCode, false,
+            new DEROctetString(CRLReason.lookup(revokedCertificate.getReason())))));
+      }
+      return new DERSequence(entry).getEncoded(ASN1Encoding.DER);
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private EncodedEntry getEntry(final RevokedCertificate revokedCertificate) {
+    final EncodedEntry cached = this.entries.get(revokedCertificate.getCertificateSerialNumber());
+    if (cached != null && cached.reason() == revokedCertificate.getReason()
+        && cached.revocationTime() == revokedCertificate.getRevocationTime().getTime()) {
+      return cached;
+    }
+    return new EncodedEntry(revokedCertificate.getRevocationTime().getTime(), revokedCertificate.getReason(),
+        encodeEntry(revokedCertificate));
+  }
+
+  /**
+   * An encoded CRL entry.
+   *
+   * @param revocationTime the revocation time in milliseconds of the encoded entry
+   * @param reason the reason code of the encoded entry
+   * @param encoded the DER encoded CRL entry
+   */
+  private record EncodedEntry(long revocationTime, int reason, byte[] encoded) {
+  }
+
+}
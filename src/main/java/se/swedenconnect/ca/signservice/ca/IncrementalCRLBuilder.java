@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.operator.ContentSigner;
+
+/**
+ * Builder of CRLs from pre-encoded CRL entries.
+ *
+ * <p>
+ * A new CRL is built using the current CRL as template. The issuer, the validity period and the CRL extensions other
+ * than the CRL number are taken from the template, and the revoked certificates are provided as concatenated DER
+ * encoded CRL entries, see {@link EncodedCRLEntryCache}. The encoded entries are copied into the CRL as is, so building
+ * a CRL with a large number of revoked certificates does not require the revocation data to be parsed or encoded.
+ * </p>
+ */
+public class IncrementalCRLBuilder {
+
+  /** DER tag of a sequence */
+  private static final int SEQUENCE_TAG = 0x30;
+
+  /**
+   * Builds and signs a new CRL with the validity period of the template.
+   *
+   * @param template the current CRL providing the issuer, validity period and extensions of the new CRL
+   * @param crlNumber the CRL number of the new CRL
+   * @param encodedEntries concatenated DER encoded CRL entries of the revoked certificates
+   * @param thisUpdate the issue time of the new CRL
+   * @param signer the signer of the CRL
+   * @return the new CRL
+   * @throws IOException error encoding or signing the CRL
+   */
+  @Nonnull
+  public X509CRLHolder build(@Nonnull final X509CRLHolder template, @Nonnull final BigInteger crlNumber,
+      @Nonnull final byte[] encodedEntries, @Nonnull final Date thisUpdate, @Nonnull final ContentSigner signer)
+      throws IOException {
+    Objects.requireNonNull(template, "template must not be null");
+    return this.build(template, encodedEntries, thisUpdate, getNextUpdate(template, thisUpdate), signer,
+        Map.of(Extension.cRLNumber, getCrlNumberExtension(crlNumber)));
+  }
+
+  /**
+   * Builds and signs a new CRL with updated extensions. The extensions of the template are kept in the same order,
+   * except that an extension present in the extension updates replaces the template extension with the same OID, or
+   * removes it if mapped to null. Updated extensions not present in the template are appended.
+   *
+   * @param template the current CRL providing the issuer and extensions of the new CRL
+   * @param encodedEntries concatenated DER encoded CRL entries of the revoked certificates
+   * @param thisUpdate the issue time of the new CRL
+   * @param nextUpdate the next update time of the new CRL, or null to omit next update
+   * @param signer the signer of the CRL
+   * @param extensionUpdates extensions to replace, remove or add by extension OID
+   * @return the new CRL
+   * @throws IOException error encoding or signing the CRL
+   */
+  @Nonnull
+  public X509CRLHolder build(@Nonnull final X509CRLHolder template, @Nonnull final byte[] encodedEntries,
+      @Nonnull final Date thisUpdate, @Nullable final Date nextUpdate, @Nonnull final ContentSigner signer,
+      @Nonnull final Map<ASN1ObjectIdentifier, Extension> extensionUpdates) throws IOException {
+    Objects.requireNonNull(template, "template must not be null");
+
+    final ByteArrayOutputStream tbsContent = new ByteArrayOutputStream(encodedEntries.length + 1024);
+    tbsContent.write(new ASN1Integer(1).getEncoded(ASN1Encoding.DER));
+    tbsContent.write(signer.getAlgorithmIdentifier().getEncoded(ASN1Encoding.DER));
+    tbsContent.write(template.getIssuer().getEncoded(ASN1Encoding.DER));
+    tbsContent.write(new Time(thisUpdate).getEncoded(ASN1Encoding.DER));
+    if (nextUpdate != null) {
+      tbsContent.write(new Time(nextUpdate).getEncoded(ASN1Encoding.DER));
+    }
+    if (encodedEntries.length > 0) {
+      writeHeader(tbsContent, encodedEntries.length);
+      tbsContent.write(encodedEntries);
+    }
+    tbsContent.write(
+        new DERTaggedObject(true, 0, this.getExtensions(template, extensionUpdates)).getEncoded(ASN1Encoding.DER));
+
+    final ByteArrayOutputStream tbsCertList = new ByteArrayOutputStream(tbsContent.size() + 6);
+    writeHeader(tbsCertList, tbsContent.size());
+    tbsContent.writeTo(tbsCertList);
+
+    final byte[] tbsBytes = tbsCertList.toByteArray();
+    try (OutputStream signerOut = signer.getOutputStream()) {
+      signerOut.write(tbsBytes);
+    }
+    final byte[] signatureAlgorithm = signer.getAlgorithmIdentifier().getEncoded(ASN1Encoding.DER);
+    final byte[] signature = new DERBitString(signer.getSignature()).getEncoded(ASN1Encoding.DER);
+
+    final int crlLength = tbsBytes.length + signatureAlgorithm.length + signature.length;
+    final ByteArrayOutputStream crl = new ByteArrayOutputStream(crlLength + 6);
+    writeHeader(crl, crlLength);
+    crl.write(tbsBytes);
+    crl.write(signatureAlgorithm);
+    crl.write(signature);
+    return new X509CRLHolder(crl.toByteArray());
+  }
+
+  /**
+   * Gets the extensions of the template CRL in the same order with the extension updates applied.
+   */
+  private Extensions getExtensions(final X509CRLHolder template,
+      final Map<ASN1ObjectIdentifier, Extension> extensionUpdates) {
+    final List<Extension> extensions = new ArrayList<>();
+    final Extensions templateExtensions = template.getExtensions();
+    if (templateExtensions != null) {
+      for (final ASN1ObjectIdentifier oid : templateExtensions.getExtensionOIDs()) {
+        if (!extensionUpdates.containsKey(oid)) {
+          extensions.add(templateExtensions.getExtension(oid));
+        }
+        else if (extensionUpdates.get(oid) != null) {
+          extensions.add(extensionUpdates.get(oid));
+        }
+      }
+    }
+    extensionUpdates.forEach((oid, extension) -> {
+      if (extension != null && (templateExtensions == null || templateExtensions.getExtension(oid) == null)) {
+        extensions.add(extension);
+      }
+    });
+    return new Extensions(extensions.toArray(new Extension[0]));
+  }
+
+  /**
+   * Gets the next update time of a CRL issued at a given time with the same validity period as a template CRL.
+   *
+   * @param template the template CRL
+   * @param thisUpdate the issue time of the new CRL
+   * @return next update time or null if the template has no next update time
+   */
+  @Nullable
+  public static Date getNextUpdate(@Nonnull final X509CRLHolder template, @Nonnull final Date thisUpdate) {
+    return template.getNextUpdate() == null
+        ? null
+        : new Date(thisUpdate.getTime() + template.getNextUpdate().getTime() - template.getThisUpdate().getTime());
+  }
+
+  /**
+   * Gets a CRL number extension.
+   *
+   * @param crlNumber the CRL number
+   * @return CRL number extension
+   */
+  @Nonnull
+  public static Extension getCrlNumberExtension(@Nonnull final BigInteger crlNumber) {
+    return getExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+  }
+
+  /**
+   * Gets a CRL extension.
+   *
+   * @param oid the extension OID
+   * @param critical true if the extension is critical
+   * @param value the extension value
+   * @return CRL extension
+   */
+  @Nonnull
+  public static Extension getExtension(@Nonnull final ASN1ObjectIdentifier oid, final boolean critical,
+      @Nonnull final ASN1Encodable value) {
+    try {
+      return new Extension(oid, critical, value.toASN1Primitive().getEncoded(ASN1Encoding.DER));
+    }
+    catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Writes the DER header of a sequence with the provided content length.
+   */
+  private static void writeHeader(final ByteArrayOutputStream out, final int length) {
+    out.write(SEQUENCE_TAG);
+    if (length < 0x80) {
+      out.write(length);
+      return;
+    }
+    int lengthBytes = 1;
+    while (lengthBytes < 4 && length >>> (8 * lengthBytes) != 0) {
+      lengthBytes++;
+    }
+    out.write(0x80 | lengthBytes);
+    for (int i = lengthBytes - 1; i >= 0; i--) {
+      out.write(length >>> (8 * i));
+    }
+  }
+
+}
@@ -15,15 +15,32 @@
  */
 package se.swedenconnect.ca.signservice.ca;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.CertificateEncodingException;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultAlgorithmNameFinder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.ca.engine.ca.issuer.CertificateIssuanceException;
@@ -42,11 +59,18 @@ import se.swedenconnect.security.credential.container.ManagedPkiCredential;
 @Slf4j
 public class SignServiceCA extends AbstractBasicCA {
 
+  /** The issuer credential used to sign incrementally built CRLs */
+  private final ManagedPkiCredential issuerCredential;
+
+  /** Builder of CRLs from the encoded CRL entries cached by the repository */
+  private final IncrementalCRLBuilder incrementalCRLBuilder = new IncrementalCRLBuilder();
+
   public SignServiceCA(final ManagedPkiCredential issuerCredential,
       final CARepository caRepository, final CertificateIssuerModel certIssuerModel,
       final CRLIssuerModel crlIssuerModel, final List<String> crlDistributionPoints)
       throws NoSuchAlgorithmException, CertificateEncodingException {
     super(issuerCredential, caRepository, certIssuerModel, crlIssuerModel, crlDistributionPoints);
+    this.issuerCredential = issuerCredential;
     log.info("Instantiated Headless CA service instance");
   }
 
@@ -60,11 +84,32 @@ public class SignServiceCA extends AbstractBasicCA {
     certModelBuilder
         .subject(subject)
         .includeAki(true)
-        .crlDistributionPoints(this.crlDistributionPoints.isEmpty() ? null : this.crlDistributionPoints)
+        .crlDistributionPoints(this.getCrlDistributionPoints(publicKey))
         .ocspServiceUrl(StringUtils.isBlank(this.ocspResponderUrl) ? null : this.ocspResponderUrl);
     return certModelBuilder;
   }
 
+  /**
+   * Gets the CRL distribution points of a new certificate. If CRLs are partitioned, the distribution points point to
+   * the CRL of the partition of the certificate.
+   *
+   * @param publicKey the public key of the certificate
+   * @return CRL distribution points or null if no CRL distribution points are configured
+   */
+  private List<String> getCrlDistributionPoints(final PublicKey publicKey) {
+    if (this.crlDistributionPoints.isEmpty()) {
+      return null;
+    }
+    if (this.getCaRepository() instanceof final StorageOnlyCARepository repository
+        && repository.getCrlPartitions() > 0) {
+      final int partition = CRLPartitions.getPartition(publicKey, repository.getCrlPartitions());
+      return this.crlDistributionPoints.stream()
+          .map(url -> CRLPartitions.getPartitionName(url, partition))
+          .toList();
+    }
+    return this.crlDistributionPoints;
+  }
+
   @Override
   public void revokeCertificate(final BigInteger serialNumber, final int reason, Date revocationDate)
       throws CertificateRevocationException {
@@ -74,4 +119,265 @@ public class SignServiceCA extends AbstractBasicCA {
     this.getCaRepository().revokeCertificate(serialNumber, reason, revocationDate);
   }
 
+  /**
+   * Publishes a new CRL. If the repository is configured for incremental CRLs or delta CRLs and a current CRL exists,
+   * the new CRL is built from the encoded CRL entries cached by the repository using the current CRL as template.
+   * Otherwise the CRL is issued by the CRL issuer of the CA.
+   *
+   * <p>
+   * With delta CRLs, a delta CRL listing the revocations since the current base CRL is published instead of a new base
+   * CRL, until the base CRL has passed half of its validity period or the number of revocations since the base CRL
+   * reaches the configured maximum. Each new base CRL is followed by an empty delta CRL, and advertises the delta CRL
+   * by a Freshest CRL extension. If no current CRL exists, the CRL issued by the CRL issuer of the CA is used as
+   * template for a new base CRL, so that the first base CRL also advertises the delta CRL.
+   * </p>
+   *
+   * <p>
+   * With partitioned CRLs, the CRL of each partition is published together with each new CRL or delta CRL.
+   * </p>
+   *
+   * <p>
+   * If the repository is configured to state which expired certificates are kept in the CRL, each new CRL and partition
+   * CRL holds an ExpiredCertsOnCRL extension with the time of the last removal of expired revocation data.
+   * </p>
+   *
+   * <p>
+   * If signing a CRL built from the cached entries fails before any CRL has been published, the CRL is issued by the
+   * CRL issuer of the CA instead. If signing the delta CRL that follows a published base CRL fails, the base CRL is
+   * kept and the delta CRL is published with the next CRL.
+   * </p>
+   *
+   * @return the published CRL, being a delta CRL if only a delta CRL was published
+   * @throws IOException error issuing or publishing the CRL
+   */
+  @Override
+  public X509CRLHolder publishNewCrl() throws IOException {
+    if (!(this.getCaRepository() instanceof final StorageOnlyCARepository repository)
+        || !(repository.isIncrementalCrl() || repository.isDeltaCrl() || repository.getCrlPartitions() > 0
+            || repository.isExpiredCertsOnCrl())) {
+      return super.publishNewCrl();
+    }
+    final X509CRLHolder crl = this.publishCrl(repository);
+    if (crl != null && repository.getCrlPartitions() > 0) {
+      this.publishPartitionCrls(repository, crl);
+    }
+    return crl;
+  }
+
+  /**
+   * Publishes a new CRL or delta CRL built from the encoded CRL entries cached by the repository.
+   */
+  private X509CRLHolder publishCrl(final StorageOnlyCARepository repository) throws IOException {
+    final X509CRLHolder template = repository.getCurrentCrl();
+    final ContentSigner signer = template == null ? null : this.getCrlSigner(repository, template);
+    if (signer == null) {
+      log.debug("No current CRL available as template - Issuing CRL using the CRL issuer");
+      final X509CRLHolder issuedCrl = super.publishNewCrl();
+      if (template != null || !repository.isDeltaCrl() || issuedCrl == null) {
+        return issuedCrl;
+      }
+      // The CRL issuer does not add a Freshest CRL extension, so the first base CRL is built again from its CRL
+      final ContentSigner issuedCrlSigner = this.getCrlSigner(repository, issuedCrl);
+      final X509CRLHolder baseCrl = issuedCrlSigner == null
+          ? null
+          : this.publishBaseCrl(repository, issuedCrl, new Date(), issuedCrlSigner);
+      return baseCrl != null ? baseCrl : issuedCrl;
+    }
+    final Date thisUpdate = new Date();
+    if (repository.isDeltaCrl() && !this.isBaseCrlDue(repository, template, thisUpdate)) {
+      final X509CRLHolder deltaCrl = this.publishDeltaCrl(repository, template, thisUpdate, signer);
+      return deltaCrl != null ? deltaCrl : super.publishNewCrl();
+    }
+    final X509CRLHolder crl = this.publishBaseCrl(repository, template, thisUpdate, signer);
+    return crl != null ? crl : super.publishNewCrl();
+  }
+
+  /**
+   * Publishes a new CRL built from the encoded CRL entries cached by the repository, followed by an empty delta CRL if
+   * delta CRLs are enabled.
+   *
+   * @return the published CRL or null if the CRL could not be signed
+   */
+  private X509CRLHolder publishBaseCrl(final StorageOnlyCARepository repository, final X509CRLHolder template,
+      final Date thisUpdate, final ContentSigner signer) throws IOException {
+    final Map<ASN1ObjectIdentifier, Extension> extensionUpdates = new LinkedHashMap<>();
+    extensionUpdates.put(Extension.cRLNumber,
+        IncrementalCRLBuilder.getCrlNumberExtension(repository.getNextCrlNumber()));
+    if (repository.isDeltaCrl()) {
+      extensionUpdates.put(Extension.freshestCRL, this.getFreshestCrlExtension());
+    }
+    this.putExpiredCertsOnCrlExtension(repository, extensionUpdates);
+    final X509CRLHolder crl = this.buildCrl(template, repository.getEncodedRevokedEntries(), thisUpdate,
+        IncrementalCRLBuilder.getNextUpdate(template, thisUpdate), signer, extensionUpdates);
+    if (crl == null) {
+      return null;
+    }
+    repository.publishNewCrl(crl);
+    log.debug("Published incrementally built CRL");
+    if (repository.isDeltaCrl()) {
+      // Supersede the delta CRL of the previous base CRL
+      this.publishDeltaCrl(repository, crl, thisUpdate, signer);
+    }
+    return crl;
+  }
+
+  /**
+   * Builds and signs a CRL from encoded CRL entries. A failure to sign the CRL is logged and reported as no CRL, so
+   * that the caller can fall back to the CRL issuer before anything has been published.
+   *
+   * @return the CRL or null if the CRL could not be signed
+   * @throws IOException error encoding the CRL
+   */
+  private X509CRLHolder buildCrl(final X509CRLHolder template, final byte[] encodedEntries, final Date thisUpdate,
+      final Date nextUpdate, final ContentSigner signer, final Map<ASN1ObjectIdentifier, Extension> extensionUpdates)
+      throws IOException {
+    try {
+      return this.incrementalCRLBuilder.build(template, encodedEntries, thisUpdate, nextUpdate, signer,
+          extensionUpdates);
+    }
+    catch (final RuntimeException e) {
+      log.warn("Failed to sign CRL built from cached CRL entries", e);
+      return null;
+    }
+  }
+
+  /**
+   * Publishes the CRL of each CRL partition. The partition CRLs are built using the current CRL as template, and have
+   * the CRL number and issue time of the published CRL.
+   *
+   * @param repository the repository
+   * @param publishedCrl the published CRL or delta CRL
+   * @throws IOException error building or publishing partition CRLs
+   */
+  private void publishPartitionCrls(final StorageOnlyCARepository repository, final X509CRLHolder publishedCrl)
+      throws IOException {
+    final X509CRLHolder template = repository.getCurrentCrl();
+    final ContentSigner signer = template == null ? null : this.getCrlSigner(repository, template);
+    if (signer == null) {
+      log.warn("Unable to sign partition CRLs - Partition CRLs are not updated");
+      return;
+    }
+    final Date thisUpdate = publishedCrl.getThisUpdate();
+    final Date nextUpdate = IncrementalCRLBuilder.getNextUpdate(template, thisUpdate);
+    for (int partition = 0; partition < repository.getCrlPartitions(); partition++) {
+      final Map<ASN1ObjectIdentifier, Extension> extensionUpdates = new LinkedHashMap<>();
+      extensionUpdates.put(Extension.cRLNumber, publishedCrl.getExtension(Extension.cRLNumber));
+      extensionUpdates.put(Extension.issuingDistributionPoint,
+          CRLPartitions.getIssuingDistributionPointExtension(this.crlDistributionPoints, partition));
+      extensionUpdates.put(Extension.deltaCRLIndicator, null);
+      extensionUpdates.put(Extension.freshestCRL, null);
+      this.putExpiredCertsOnCrlExtension(repository, extensionUpdates);
+      try {
+        repository.publishNewPartitionCrl(partition, this.incrementalCRLBuilder.build(template,
+            repository.getEncodedRevokedEntries(partition), thisUpdate, nextUpdate, signer, extensionUpdates));
+      }
+      catch (final RuntimeException e) {
+        log.warn("Failed to sign partition CRLs - Partition CRLs are not updated", e);
+        return;
+      }
+    }
+    log.debug("Published {} partition CRLs", repository.getCrlPartitions());
+  }
+
+  /**
+   * Gets a signer for CRLs using the signature algorithm of the current CRL and the CRL signer provider of the
+   * repository, if set.
+   *
+   * @param repository the repository
+   * @param template the current CRL
+   * @return signer or null if no signer could be created for the signature algorithm and provider
+   */
+  private ContentSigner getCrlSigner(final StorageOnlyCARepository repository, final X509CRLHolder template) {
+    final String algorithm =
+        new DefaultAlgorithmNameFinder().getAlgorithmName(template.toASN1Structure().getSignatureAlgorithm());
+    final JcaContentSignerBuilder signerBuilder = new JcaContentSignerBuilder(algorithm);
+    if (StringUtils.isNotBlank(repository.getCrlSignerProvider())) {
+      signerBuilder.setProvider(repository.getCrlSignerProvider());
+    }
+    try {
+      return signerBuilder.build(this.issuerCredential.getPrivateKey());
+    }
+    catch (final OperatorCreationException | RuntimeException e) {
+      log.warn("Unable to sign CRL using algorithm {} of the current CRL and provider {}", algorithm,
+          StringUtils.defaultIfBlank(repository.getCrlSignerProvider(), "default"), e);
+      return null;
+    }
+  }
+
+  /**
+   * Tests if a new base CRL should be issued rather than a delta CRL. A delta CRL can not remove certificates listed by
+   * the base CRL, so a new base CRL is always issued if the base CRL lists certificates that are no longer revoked.
+   */
+  private boolean isBaseCrlDue(final StorageOnlyCARepository repository, final X509CRLHolder baseCrl,
+      final Date now) {
+    if (repository.isBaseCrlOutdated()
+        || repository.getDeltaRevokedCertificates().size() >= repository.getDeltaCrlMaxEntries()) {
+      return true;
+    }
+    if (baseCrl.getNextUpdate() == null) {
+      return false;
+    }
+    final long validity = baseCrl.getNextUpdate().getTime() - baseCrl.getThisUpdate().getTime();
+    return baseCrl.getNextUpdate().getTime() - now.getTime() < validity / 2;
+  }
+
+  /**
+   * Builds and publishes a delta CRL listing the revocations since a base CRL.
+   *
+   * @return the published delta CRL or null if the delta CRL could not be signed
+   */
+  private X509CRLHolder publishDeltaCrl(final StorageOnlyCARepository repository, final X509CRLHolder baseCrl,
+      final Date thisUpdate, final ContentSigner signer) throws IOException {
+    Date nextUpdate = new Date(thisUpdate.getTime() + repository.getDeltaCrlValidity().toMillis());
+    if (baseCrl.getNextUpdate() != null && baseCrl.getNextUpdate().before(nextUpdate)) {
+      nextUpdate = baseCrl.getNextUpdate();
+    }
+    final Map<ASN1ObjectIdentifier, Extension> extensionUpdates = new LinkedHashMap<>();
+    extensionUpdates.put(Extension.cRLNumber,
+        IncrementalCRLBuilder.getCrlNumberExtension(repository.getNextCrlNumber()));
+    extensionUpdates.put(Extension.deltaCRLIndicator, IncrementalCRLBuilder.getExtension(Extension.deltaCRLIndicator,
+        true, new CRLNumber(repository.getBaseCrlNumber())));
+    extensionUpdates.put(Extension.freshestCRL, null);
+    final X509CRLHolder deltaCrl = this.buildCrl(baseCrl, repository.getEncodedDeltaRevokedEntries(), thisUpdate,
+        nextUpdate, signer, extensionUpdates);
+    if (deltaCrl == null) {
+      return null;
+    }
+    repository.publishNewDeltaCrl(deltaCrl);
+    log.debug("Published delta CRL for base CRL number {}", repository.getBaseCrlNumber());
+    return deltaCrl;
+  }
+
+  /**
+   * Adds the ExpiredCertsOnCRL extension to the extension updates of a new CRL. The extension of the template CRL is
+   * kept if the repository has never removed any expired revocation data.
+   *
+   * @param repository the repository
+   * @param extensionUpdates the extension updates of the new CRL
+   */
+  private void putExpiredCertsOnCrlExtension(final StorageOnlyCARepository repository,
+      final Map<ASN1ObjectIdentifier, Extension> extensionUpdates) {
+    final Date expiredCertsOnCrl = repository.getExpiredCertsOnCrlDate();
+    if (expiredCertsOnCrl != null) {
+      extensionUpdates.put(Extension.expiredCertsOnCRL, IncrementalCRLBuilder.getExtension(Extension.expiredCertsOnCRL,
+          false, new ASN1GeneralizedTime(expiredCertsOnCrl)));
+    }
+  }
+
+  /**
+   * Gets the Freshest CRL extension pointing to the delta CRL at each CRL distribution point.
+   *
+   * @return Freshest CRL extension or null if no CRL distribution points are configured
+   */
+  private Extension getFreshestCrlExtension() {
+    final DistributionPoint[] deltaDistributionPoints = this.crlDistributionPoints.stream()
+        .map(url -> StringUtils.removeEnd(url, ".crl") + StorageOnlyCARepository.DELTA_CRL_SUFFIX)
+        .map(url -> new DistributionPoint(new DistributionPointName(
+            new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url))), null, null))
+        .toArray(DistributionPoint[]::new);
+    return deltaDistributionPoints.length == 0
+        ? null
+        : IncrementalCRLBuilder.getExtension(Extension.freshestCRL, false, new CRLDistPoint(deltaDistributionPoints));
+  }
+
 }
@@ -16,79 +16,249 @@
 package se.swedenconnect.ca.signservice.ca;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import org.apache.commons.io.FileUtils;
-import org.bouncycastle.asn1.x509.CRLNumber;
-import org.bouncycastle.asn1.x509.Extension;
+import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
 import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.ca.repository.impl.CertificateRecordImpl;
 import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
 import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
 import se.swedenconnect.ca.engine.revocation.crl.CRLRevocationDataProvider;
 import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.signservice.ca.ocsp.OCSPResponseCache;
 import se.swedenconnect.ca.signservice.ca.storage.CARepoStorage;
 import se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException;
 
 /**
- * CA repository for high volume setups where no access to previously issued certificates is provided through this API.
- * Access to issued certificates must be handled by direct access to the repository data
+ * CA repository for high volume setups where issued certificates are written to an append only storage. Previously
+ * issued certificates can be retrieved by serial number through the certificate index of the storage, but searching
+ * issued certificates must be handled by direct access to the repository data.
  */
 @Slf4j
 public class StorageOnlyCARepository implements CARepository, CRLRevocationDataProvider {
 
+  /** The file name suffix of delta CRL files */
+  public static final String DELTA_CRL_SUFFIX = "-delta.crl";
+
+  /** The default maximum number of revocations since the base CRL to be included in a delta CRL */
+  public static final int DEFAULT_DELTA_CRL_MAX_ENTRIES = 1000;
+
   private final CARepoStorage storage;
-  private final File crlFile;
+  private final CachedCRLFile crlFile;
+  private final CachedCRLFile deltaCrlFile;
   private BigInteger crlNumber;
 
+  /**
+   * Optional cache of signed OCSP responses used by the OCSP responder of this repository. Cached responses for a
+   * certificate are invalidated when the certificate is revoked through this repository.
+   */
+  @Getter
+  @Setter
+  private OCSPResponseCache ocspResponseCache;
+
+  /** Cache of DER encoded CRL entries of the revoked certificates */
+  private final EncodedCRLEntryCache crlEntryCache = new EncodedCRLEntryCache();
+
+  /**
+   * Set to true to issue CRLs from the cached encoded CRL entries, using the current CRL as template, instead of having
+   * the CRL issuer encode every revoked certificate. See {@link IncrementalCRLBuilder}.
+   */
+  @Getter
+  @Setter
+  private boolean incrementalCrl;
+
+  /**
+   * The name of the JCA provider used to sign CRLs built from the cached encoded CRL entries, or null to use the first
+   * provider supporting the CA key.
+   */
+  @Getter
+  @Setter
+  private String crlSignerProvider;
+
+  /**
+   * Set to true to issue delta CRLs listing the revocations since the current base CRL. The delta CRL is published in a
+   * file next to the CRL file, named as the CRL file with the suffix {@value #DELTA_CRL_SUFFIX}.
+   */
+  @Getter
+  @Setter
+  private boolean deltaCrl;
+
+  /** The maximum number of revocations since the base CRL before a new base CRL is issued */
+  @Getter
+  @Setter
+  private int deltaCrlMaxEntries = DEFAULT_DELTA_CRL_MAX_ENTRIES;
+
+  /** The validity period of delta CRLs. A delta CRL is never valid beyond the next update of the base CRL */
+  @Getter
+  @Setter
+  private Duration deltaCrlValidity = Duration.ofHours(1);
+
+  /** Cache of DER encoded CRL entries of certificates revoked since the base CRL */
+  private final EncodedCRLEntryCache deltaCrlEntryCache = new EncodedCRLEntryCache();
+
+  /** The number of CRL partitions, or 0 if CRLs are not partitioned. See {@link CRLPartitions} */
+  @Getter
+  private int crlPartitions;
+
+  /** The CRL files of the CRL partitions */
+  private CachedCRLFile[] partitionCrlFiles = new CachedCRLFile[0];
+
+  /** Caches of DER encoded CRL entries of the revoked certificates of each CRL partition */
+  private EncodedCRLEntryCache[] partitionCrlEntryCaches = new EncodedCRLEntryCache[0];
+
+  /** The revoked certificates grouped by CRL partition, or null if not grouped since the partitions were set */
+  private PartitionGrouping partitionGrouping;
+
+  /** The number of revocation data updates made through this repository */
+  private final AtomicLong revocationUpdates = new AtomicLong();
+
+  /** The CRL partition of revoked certificates by serial number */
+  private final Map<BigInteger, Integer> crlPartitionMap = new ConcurrentHashMap<>();
+
+  /**
+   * Set to true to include an ExpiredCertsOnCRL extension in CRLs built from the cached encoded CRL entries, stating
+   * that revoked certificates that expired after the time of the last removal of expired revocation data are kept in
+   * the CRL. See {@link #removeExpiredCerts(int)}.
+   */
+  @Getter
+  @Setter
+  private boolean expiredCertsOnCrl;
+
+  /**
+   * Set to true to have the OCSP responder answer status unknown for certificates that are not stored in this
+   * repository, instead of status good. See {@link #isCertificateIssued(BigInteger)}.
+   */
+  @Getter
+  @Setter
+  private boolean ocspUnknownForUnissued;
+
+  /** The generation of the revocation data of the storage that the cached OCSP responses are based on */
+  private volatile long ocspCacheRevocationGeneration;
+
   public StorageOnlyCARepository(final CARepoStorage storage, final File crlFile) throws IOException {
     this.storage = storage;
-    this.crlFile = crlFile;
+    this.ocspCacheRevocationGeneration = storage.getRevocationDataGeneration();
+    this.crlFile = new CachedCRLFile(crlFile);
+    this.deltaCrlFile = new CachedCRLFile(new File(crlFile.getParentFile(),
+        StringUtils.removeEnd(crlFile.getName(), ".crl") + DELTA_CRL_SUFFIX));
 
     // Get crlNumber
-    if (!crlFile.exists()) {
+    final CachedCRLFile.Snapshot baseCrl = this.crlFile.get();
+    if (baseCrl == null) {
       this.crlNumber = BigInteger.ZERO;
       log.info("Starting new CRL sequence with CRL number 0");
     }
     else {
-      this.crlNumber = this.getCRLNumberFromCRL();
+      // Base and delta CRLs share the same CRL number sequence
+      final CachedCRLFile.Snapshot deltaCrl = this.deltaCrlFile.get();
+      this.crlNumber = deltaCrl == null ? baseCrl.crlNumber() : baseCrl.crlNumber().max(deltaCrl.crlNumber());
       log.info("CRL number counter initialized with CRL number {}", this.crlNumber.toString());
     }
   }
 
-  private BigInteger getCRLNumberFromCRL() throws IOException {
-    final X509CRLHolder crlHolder = new X509CRLHolder(new FileInputStream(this.crlFile));
-    final Extension crlNumberExtension = crlHolder.getExtension(Extension.cRLNumber);
-    final CRLNumber crlNumberFromCrl = CRLNumber.getInstance(crlNumberExtension.getParsedValue());
-    return crlNumberFromCrl.getCRLNumber();
+  /**
+   * Gets the current snapshot of a CRL file.
+   *
+   * @param file the CRL file
+   * @return the current CRL snapshot or null if no CRL is available
+   */
+  @Nullable
+  private CachedCRLFile.Snapshot getSnapshot(final CachedCRLFile file) {
+    try {
+      return file.get();
+    }
+    catch (final Exception e) {
+      log.debug("Unable to read CRL file {}", file.getFile(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Sets the number of CRL partitions. Partition CRLs are published in files next to the CRL file, named as described
+   * in {@link CRLPartitions}. The number of partitions must not be reduced once certificates have been issued with
+   * partitioned CRL distribution points.
+   *
+   * @param crlPartitions the number of CRL partitions, or 0 to not partition CRLs
+   */
+  public void setCrlPartitions(final int crlPartitions) {
+    final File file = this.crlFile.getFile();
+    this.partitionCrlFiles = IntStream.range(0, crlPartitions)
+        .mapToObj(partition -> new CachedCRLFile(new File(file.getParentFile(),
+            CRLPartitions.getPartitionName(file.getName(), partition))))
+        .toArray(CachedCRLFile[]::new);
+    this.partitionCrlEntryCaches = IntStream.range(0, crlPartitions)
+        .mapToObj(partition -> new EncodedCRLEntryCache())
+        .toArray(EncodedCRLEntryCache[]::new);
+    this.partitionGrouping = null;
+    this.crlPartitions = crlPartitions;
+  }
+
+  /**
+   * Gets the CRL number of the current base CRL.
+   *
+   * @return CRL number of the current base CRL, or 0 if no CRL is available
+   */
+  public BigInteger getBaseCrlNumber() {
+    final CachedCRLFile.Snapshot baseCrl = this.getSnapshot(this.crlFile);
+    return baseCrl == null ? BigInteger.ZERO : baseCrl.crlNumber();
   }
 
   /** {@inheritDoc} */
   @Override
   public List<BigInteger> getAllCertificates() {
-    return Collections.emptyList();
+    return this.storage.getCertificateSerials();
   }
 
   /** {@inheritDoc} */
   @Override
-  public CertificateRecord getCertificate(final BigInteger bigInteger) {
-    return null;
+  public CertificateRecord getCertificate(final BigInteger serialNumber) {
+    try {
+      final byte[] certificateBytes = this.storage.getCertificate(serialNumber);
+      if (certificateBytes == null) {
+        return null;
+      }
+      final X509CertificateHolder certificate = new X509CertificateHolder(certificateBytes);
+      final CertificateRecordImpl certificateRecord = new CertificateRecordImpl();
+      certificateRecord.setCertificate(certificateBytes);
+      certificateRecord.setSerialNumber(certificate.getSerialNumber());
+      certificateRecord.setIssueDate(certificate.getNotBefore());
+      certificateRecord.setExpiryDate(certificate.getNotAfter());
+      final RevokedCertificate revokedCertificate = this.storage.getRevokedCertificate(serialNumber);
+      if (revokedCertificate != null) {
+        certificateRecord.setRevoked(true);
+        certificateRecord.setReason(revokedCertificate.getReason());
+        certificateRecord.setRevocationTime(revokedCertificate.getRevocationTime());
+      }
+      return certificateRecord;
+    }
+    catch (final IOException e) {
+      log.error("Failed to read stored certificate {}", serialNumber.toString(16), e);
+      return null;
+    }
   }
 
   /** {@inheritDoc} */
@@ -100,14 +270,30 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
   /** {@inheritDoc} */
   @Override
   public int getCertificateCount(final boolean notRevoked) {
-    return 0;
+    return this.storage.getCertificateCount(notRevoked);
   }
 
-  /** {@inheritDoc} */
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The page is selected using the certificate index of the storage. Only the certificates on the requested page are
+   * read from the storage files.
+   * </p>
+   */
   @Override
   public List<CertificateRecord> getCertificateRange(final int page, final int pageSize, final boolean notRevoked,
       final SortBy sortBy, final boolean descending) {
-    return Collections.emptyList();
+    final List<BigInteger> serials =
+        this.storage.getCertificateSerials(page, pageSize, notRevoked, sortBy, descending);
+    final List<CertificateRecord> certificateRecords = new ArrayList<>(serials.size());
+    for (final BigInteger serial : serials) {
+      final CertificateRecord certificateRecord = this.getCertificate(serial);
+      if (certificateRecord != null) {
+        certificateRecords.add(certificateRecord);
+      }
+    }
+    return certificateRecords;
   }
 
   @Override
@@ -115,6 +301,154 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
     return this.storage.getRevokedCertificates();
   }
 
+  /**
+   * Gets the DER encoded CRL entries of all revoked certificates, concatenated in the order of the revocation data of
+   * the storage. Entries are encoded when a certificate is revoked through this repository, or when the revocation
+   * data first appears in the storage, and are then reused for every CRL.
+   *
+   * @return concatenated DER encoded CRL entries
+   */
+  public byte[] getEncodedRevokedEntries() {
+    return this.crlEntryCache.getEncodedEntries(this.storage.getRevokedCertificates());
+  }
+
+  /**
+   * Gets the DER encoded CRL entries of the revoked certificates of a CRL partition, concatenated in the order of the
+   * revocation data of the storage. The revoked certificates are grouped by CRL partition in one pass over the
+   * revocation data, and the grouping is reused for all partitions until the revocation data changes.
+   *
+   * @param partition the CRL partition
+   * @return concatenated DER encoded CRL entries
+   * @throws IOException error reading an issued certificate to obtain its CRL partition
+   */
+  public byte[] getEncodedRevokedEntries(final int partition) throws IOException {
+    return this.partitionCrlEntryCaches[partition].getEncodedEntries(this.getPartitionGrouping().get(partition));
+  }
+
+  /**
+   * Gets the revoked certificates grouped by CRL partition. The grouping is done again if the revocation data of the
+   * storage has been reloaded or updated through this repository since it was last grouped.
+   *
+   * @return lists of revoked certificates indexed by CRL partition
+   * @throws IOException error reading an issued certificate to obtain its CRL partition
+   */
+  private synchronized List<List<RevokedCertificate>> getPartitionGrouping() throws IOException {
+    final long generation = this.storage.getRevocationDataGeneration();
+    final long updates = this.revocationUpdates.get();
+    final PartitionGrouping grouping = this.partitionGrouping;
+    if (grouping != null && grouping.generation() == generation && grouping.updates() == updates) {
+      return grouping.partitions();
+    }
+    final List<List<RevokedCertificate>> partitions = new ArrayList<>(this.crlPartitions);
+    for (int partition = 0; partition < this.crlPartitions; partition++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (final RevokedCertificate revokedCertificate : this.storage.getRevokedCertificates()) {
+      final int partition = this.getCrlPartition(revokedCertificate.getCertificateSerialNumber());
+      if (partition >= 0 && partition < this.crlPartitions) {
+        partitions.get(partition).add(revokedCertificate);
+      }
+    }
+    this.partitionGrouping = new PartitionGrouping(generation, updates, partitions);
+    return partitions;
+  }
+
+  /**
+   * Gets the CRL partition of an issued certificate. The partition is obtained from the CRL distribution point of the
+   * stored certificate once, and is then held in memory.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return the CRL partition or {@link CRLPartitions#NO_PARTITION} if the certificate is not assigned to a partition
+   * @throws IOException error reading the certificate from storage
+   */
+  public int getCrlPartition(@Nonnull final BigInteger serialNumber) throws IOException {
+    final Integer cached = this.crlPartitionMap.get(serialNumber);
+    if (cached != null) {
+      return cached;
+    }
+    final byte[] certificate = this.storage.getCertificate(serialNumber);
+    final int partition = certificate == null
+        ? CRLPartitions.NO_PARTITION
+        : CRLPartitions.getPartition(new X509CertificateHolder(certificate));
+    this.crlPartitionMap.put(serialNumber, partition);
+    return partition;
+  }
+
+  /**
+   * Gets the revocation data of a single certificate from memory without reading any revocation data from file.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return revocation data for the certificate or null if the certificate is not revoked
+   */
+  @Nullable
+  public RevokedCertificate getRevokedCertificate(@Nonnull final BigInteger serialNumber) {
+    return this.storage.getRevokedCertificate(serialNumber);
+  }
+
+  /**
+   * Invalidates all cached OCSP responses if the revocation data of the storage has been reloaded since the cached
+   * responses were produced, e.g. after a manual update of the revocation file. The storage limits how often the
+   * revocation file is checked for modifications, so this check can be made on each status request.
+   */
+  public void refreshOcspResponseCache() {
+    final long generation = this.storage.getRevocationDataGeneration();
+    if (generation != this.ocspCacheRevocationGeneration) {
+      this.ocspCacheRevocationGeneration = generation;
+      if (this.ocspResponseCache != null) {
+        log.info("Revocation data has been reloaded. Invalidating all cached OCSP responses");
+        this.ocspResponseCache.invalidateAll();
+      }
+    }
+  }
+
+  /**
+   * Tests if a certificate has been issued by the CA of this repository, by looking up the certificate in the
+   * certificate storage without reading any stored certificate. All certificates issued by the CA are stored before
+   * they are released, so a certificate that is not stored has not been issued by the CA.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return true if a certificate with this serial number is stored in this repository
+   */
+  public boolean isCertificateIssued(@Nonnull final BigInteger serialNumber) {
+    return this.storage.isCertificateStored(serialNumber);
+  }
+
+  /**
+   * Tests if the revocation data of a certificate has been removed after the certificate expired. Only certificates
+   * that were revoked when expired revocation data was removed are reported, so an expired certificate that was never
+   * revoked is not affected by the removal.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return true if the revocation data of the certificate has been removed
+   */
+  public boolean isRevocationDataRemoved(@Nonnull final BigInteger serialNumber) {
+    return this.storage.isRevocationDataRemoved(serialNumber);
+  }
+
+  /**
+   * Gets the time to be stated by the ExpiredCertsOnCRL extension of new CRLs.
+   *
+   * @return the time before which expired certificates were removed from the revocation data, or null if the extension
+   *     is not enabled or no revocation data has been removed
+   */
+  @Nullable
+  public Date getExpiredCertsOnCrlDate() {
+    final Instant removedBefore = this.storage.getExpiredRevocationsRemovedBefore();
+    return this.expiredCertsOnCrl && removedBefore != null ? Date.from(removedBefore) : null;
+  }
+
+  /**
+   * Tests if the current base CRL lists certificates that are no longer revoked, e.g. after removal of expired
+   * revocation data or removal from certificate hold. Such changes can only be published in a new base CRL.
+   *
+   * @return true if the current base CRL lists certificates that are no longer revoked
+   */
+  public boolean isBaseCrlOutdated() {
+    final CachedCRLFile.Snapshot baseCrl = this.getSnapshot(this.crlFile);
+    return baseCrl != null
+        && baseCrl.revokedSerials().stream().anyMatch(serial -> this.storage.getRevokedCertificate(serial) == null);
+  }
+
   @Override
   public BigInteger getNextCrlNumber() {
     this.crlNumber = this.crlNumber.add(BigInteger.ONE);
@@ -124,22 +458,96 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
   @SneakyThrows
   @Override
   public void publishNewCrl(final X509CRLHolder crl) {
-    FileUtils.writeByteArrayToFile(this.crlFile, crl.getEncoded());
+    this.crlFile.write(crl);
+  }
+
+  /**
+   * Publishes a new delta CRL.
+   *
+   * @param deltaCrl the delta CRL
+   * @throws IOException error writing the delta CRL file
+   */
+  public void publishNewDeltaCrl(@Nonnull final X509CRLHolder deltaCrl) throws IOException {
+    this.deltaCrlFile.write(deltaCrl);
   }
 
+  /**
+   * Publishes a new CRL of a CRL partition.
+   *
+   * @param partition the CRL partition
+   * @param crl the partition CRL
+   * @throws IOException error writing the partition CRL file
+   */
+  public void publishNewPartitionCrl(final int partition, @Nonnull final X509CRLHolder crl) throws IOException {
+    this.partitionCrlFiles[partition].write(crl);
+  }
+
+  /**
+   * Gets the current CRL of a CRL partition.
+   *
+   * @param partition the CRL partition
+   * @return the current partition CRL or null if no CRL is available for the partition
+   */
+  @Nullable
+  public X509CRLHolder getCurrentPartitionCrl(final int partition) {
+    if (partition < 0 || partition >= this.partitionCrlFiles.length) {
+      return null;
+    }
+    final CachedCRLFile.Snapshot partitionCrl = this.getSnapshot(this.partitionCrlFiles[partition]);
+    return partitionCrl == null ? null : partitionCrl.crl();
+  }
+
+  /**
+   * Gets the current delta CRL.
+   *
+   * @return the current delta CRL or null if no delta CRL is available
+   */
+  @Nullable
+  public X509CRLHolder getCurrentDeltaCrl() {
+    final CachedCRLFile.Snapshot deltaCrl = this.getSnapshot(this.deltaCrlFile);
+    return deltaCrl == null ? null : deltaCrl.crl();
+  }
+
+  /**
+   * Gets the revocation data of the certificates revoked since the current base CRL.
+   *
+   * @return revoked certificates not listed in the current base CRL
+   */
+  public List<RevokedCertificate> getDeltaRevokedCertificates() {
+    final CachedCRLFile.Snapshot baseCrl = this.getSnapshot(this.crlFile);
+    final Set<BigInteger> baseSerials = baseCrl == null ? Set.of() : baseCrl.revokedSerials();
+    return this.storage.getRevokedCertificates().stream()
+        .filter(revokedCertificate -> !baseSerials.contains(revokedCertificate.getCertificateSerialNumber()))
+        .toList();
+  }
+
+  /**
+   * Gets the DER encoded CRL entries of the certificates revoked since the current base CRL.
+   *
+   * @return concatenated DER encoded CRL entries
+   */
+  public byte[] getEncodedDeltaRevokedEntries() {
+    return this.deltaCrlEntryCache.getEncodedEntries(this.getDeltaRevokedCertificates());
+  }
+
+  /**
+   * Gets the current CRL. The parsed CRL is held in memory and the CRL file is only read again if it has been modified
+   * by another process.
+   *
+   * @return the current CRL or null if no CRL is available
+   */
   @Override
   public X509CRLHolder getCurrentCrl() {
-    try {
-      return new X509CRLHolder(new FileInputStream(this.crlFile));
-    }
-    catch (final Exception e) {
+    final CachedCRLFile.Snapshot currentCrl = this.getSnapshot(this.crlFile);
+    if (currentCrl == null) {
       log.debug("No current CRL is available. Returning null");
       return null;
     }
+    return currentCrl.crl();
   }
 
   @Override public CRLMetadata getCurrentCRLMetadata() {
-    final X509CRLHolder currentCrl = getCurrentCrl();
+    final CachedCRLFile.Snapshot currentCrl = this.getSnapshot(this.crlFile);
     if (currentCrl == null) {
       log.debug("No CRL file is available - Resetting CRL metadata to support initial CRL creation");
       // No CRL is available. Return empty metadata to allow initial CRL creation;
@@ -151,12 +559,24 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
         .build();
     }
 
+    // With delta CRLs, revoked certificates are listed by the base CRL together with a delta CRL issued after it
+    final CachedCRLFile.Snapshot currentDeltaCrl = this.deltaCrl ? this.getSnapshot(this.deltaCrlFile) : null;
+    final CachedCRLFile.Snapshot latestCrl =
+        currentDeltaCrl != null && currentDeltaCrl.crlNumber().compareTo(currentCrl.crlNumber()) > 0
+            ? currentDeltaCrl
+            : currentCrl;
+    final int listedRevokedCerts = latestCrl == currentCrl
+        ? currentCrl.revokedSerials().size()
+        : currentCrl.revokedSerials().size() + currentDeltaCrl.revokedSerials().size();
+
     /**
      * We have a current CRL. Now we must compare the number of revoked CRL:s with the number of listed revoked CRL:s
-     * in the file system. This may have been updated and such update will go unnoticed unless we check it here.
+     * in the file system. This may have been updated and such update will go unnoticed unless we check it here. The
+     * number of revoked certificates is held in memory by the storage, and the parsed CRLs are only read again from
+     * file if modified.
      */
-    int actualNumberOfRevokedCerts = getRevokedCertificates().size();
-    if (currentCrl.getRevokedCertificates().size() != actualNumberOfRevokedCerts) {
+    int actualNumberOfRevokedCerts = this.storage.getRevokedCertificateCount();
+    if (listedRevokedCerts != actualNumberOfRevokedCerts) {
       log.debug("There is a difference between recorded revoked certificates in the CA repository and the latest CRL "
         + "- Update metadata to enforce CRL renewal");
       return CRLMetadata.builder()
@@ -171,9 +591,9 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
     log.debug("Returning CRL metadata from current CRL");
     return CRLMetadata.builder()
       .crlNumber(crlNumber)
-      .issueTime(currentCrl.getThisUpdate().toInstant())
-      .nextUpdate(currentCrl.getNextUpdate().toInstant())
-      .revokedCertCount(currentCrl.getRevokedCertificates().size())
+      .issueTime(latestCrl.crl().getThisUpdate().toInstant())
+      .nextUpdate(latestCrl.crl().getNextUpdate().toInstant())
+      .revokedCertCount(listedRevokedCerts)
       .build();
   }
 
@@ -186,7 +606,7 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
   public void addCertificate(final @Nonnull X509CertificateHolder certificate) throws IOException {
     try {
       Objects.requireNonNull(certificate, "Certificate must no be null");
-      this.storage.storeCertificate(certificate.getEncoded());
+      this.storage.storeCertificate(certificate);
     }
     catch (final CertificateStorageException e) {
       // This is a critical error that should require the system to stop
@@ -202,14 +622,64 @@ public class StorageOnlyCARepository implements CARepository, CRLRevocationDataP
       final @Nullable Date revocationTime) throws CertificateRevocationException {
     Objects.requireNonNull(serialNumber, "Serial number must not be null");
     final RevokedCertificate revokedCertificate = new RevokedCertificate(serialNumber, revocationTime, reason);
-    this.storage.revokeCertificate(revokedCertificate);
+    try {
+      this.storage.revokeCertificate(revokedCertificate);
+      this.revocationUpdates.incrementAndGet();
+      final RevokedCertificate storedRevocation = this.storage.getRevokedCertificate(serialNumber);
+      if (storedRevocation != null) {
+        this.crlEntryCache.update(storedRevocation);
+      }
+      if (this.crlPartitions > 0) {
+        this.getCrlPartition(serialNumber);
+      }
+    }
+    catch (final IOException e) {
+      // The CRL partition is obtained again when the partition CRLs are issued
+      log.warn("Unable to read certificate {} to obtain its CRL partition", serialNumber.toString(16), e);
+    }
+    finally {
+      if (this.ocspResponseCache != null) {
+        this.ocspResponseCache.invalidate(serialNumber);
+      }
+    }
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Removes the revocation data of revoked certificates that expired more than the grace period ago. The expiry time of
+   * each revoked certificate is obtained from the certificate index of the storage, and the removed certificates are
+   * left out of the next CRL. Issued certificates are never removed from the append only storage.
+   *
+   * <p>
+   * The removal and its time are persisted by the storage. The OCSP responder answers unknown for the certificates
+   * whose revocation data was removed, while expired certificates that were never revoked are still reported as good.
+   * </p>
+   *
+   * @param gracePeriodSeconds the time in seconds a revoked certificate is kept in the revocation data after expiry
+   * @return the serial numbers of the certificates whose revocation data was removed
+   */
   @Override
   public List<BigInteger> removeExpiredCerts(final int gracePeriodSeconds) {
-    // This function has no meaning in this repository.
-    return Collections.emptyList();
+    final Instant expiredBefore = Instant.now().minusSeconds(gracePeriodSeconds);
+    final List<BigInteger> removed = this.storage.removeExpiredRevocations(expiredBefore);
+    if (!removed.isEmpty()) {
+      this.revocationUpdates.incrementAndGet();
+      removed.forEach(this.crlPartitionMap::remove);
+      if (this.ocspResponseCache != null) {
+        removed.forEach(this.ocspResponseCache::invalidate);
+      }
+      log.info("Removed revocation data of {} certificates expired before {}", removed.size(), expiredBefore);
+    }
+    return removed;
+  }
+
+  /**
+   * Revoked certificates grouped by CRL partition.
+   *
+   * @param generation the generation of the revocation data of the storage that was grouped
+   * @param updates the number of revocation data updates through this repository when the data was grouped
+   * @param partitions lists of revoked certificates indexed by CRL partition
+   */
+  private record PartitionGrouping(long generation, long updates, List<List<RevokedCertificate>> partitions) {
   }
 
 }
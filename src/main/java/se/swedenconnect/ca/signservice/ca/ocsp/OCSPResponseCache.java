@@ -0,0 +1,192 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.ocsp;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.Req;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cache of signed OCSP responses.
+ *
+ * <p>
+ * Responses are cached per requested certificate ID (issuer name hash, issuer key hash and serial number) for a
+ * configured time. Only requests for a single certificate can be served from the cache. Requests that include a nonce
+ * are not served from the cache unless the cache is configured to ignore nonces, in which case such requests are
+ * answered with a response without nonce.
+ * </p>
+ *
+ * <p>
+ * Cached responses for a certificate are invalidated when the certificate is revoked. Each invalidation increments a
+ * generation counter, which prevents a response produced before a revocation from being added to the cache after the
+ * revocation took place.
+ * </p>
+ */
+@Slf4j
+public class OCSPResponseCache {
+
+  /** The default maximum number of cached responses */
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  /** The time a cached response is valid */
+  @Getter
+  private final Duration validity;
+
+  /** Indicates if requests with a nonce are answered with a cached response without nonce */
+  @Getter
+  private final boolean ignoreNonce;
+
+  /** The maximum number of cached responses */
+  private final int maxEntries;
+
+  /** Cached responses */
+  private final Map<CertificateID, CachedResponse> cache = new ConcurrentHashMap<>();
+
+  /** Generation counter incremented on each invalidation */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param validity the time a cached response is valid
+   * @param ignoreNonce true to answer requests with a nonce with a cached response without nonce
+   * @param maxEntries the maximum number of cached responses
+   */
+  public OCSPResponseCache(@Nonnull final Duration validity, final boolean ignoreNonce, final int maxEntries) {
+    this.validity = Objects.requireNonNull(validity, "validity must not be null");
+    this.ignoreNonce = ignoreNonce;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Gets the ID of the certificate the request is for, provided that the request can be served from this cache.
+   *
+   * @param ocspRequest OCSP request
+   * @return the certificate ID or null if the response to this request must not be cached
+   */
+  @Nullable
+  public CertificateID getCacheableCertificateId(@Nonnull final OCSPReq ocspRequest) {
+    final Req[] requests = ocspRequest.getRequestList();
+    if (requests.length != 1) {
+      return null;
+    }
+    if (!this.ignoreNonce && ocspRequest.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce) != null) {
+      return null;
+    }
+    return requests[0].getCertID();
+  }
+
+  /**
+   * Gets a cached response.
+   *
+   * @param certificateID the ID of the requested certificate
+   * @return cached response or null if no valid response is cached
+   */
+  @Nullable
+  public OCSPResp get(@Nonnull final CertificateID certificateID) {
+    final CachedResponse cachedResponse = this.cache.get(certificateID);
+    if (cachedResponse == null) {
+      return null;
+    }
+    if (cachedResponse.expiry().isBefore(Instant.now())) {
+      this.cache.remove(certificateID, cachedResponse);
+      return null;
+    }
+    return cachedResponse.response();
+  }
+
+  /**
+   * Gets the current generation of this cache. This value must be obtained before a response is produced and passed to
+   * {@link #put(CertificateID, OCSPResp, long)} when the response is added to the cache.
+   *
+   * @return current generation
+   */
+  public long getGeneration() {
+    return this.generation.get();
+  }
+
+  /**
+   * Adds a response to the cache. Only successful responses are cached, and only if no invalidation has occurred since
+   * the provided generation was obtained.
+   *
+   * @param certificateID the ID of the requested certificate
+   * @param response the signed OCSP response
+   * @param generation the generation of this cache obtained before the response was produced
+   */
+  public void put(@Nonnull final CertificateID certificateID, @Nonnull final OCSPResp response,
+      final long generation) {
+    if (response.getStatus() != OCSPResp.SUCCESSFUL) {
+      return;
+    }
+    if (this.cache.size() >= this.maxEntries) {
+      final Instant now = Instant.now();
+      this.cache.values().removeIf(cachedResponse -> cachedResponse.expiry().isBefore(now));
+      if (this.cache.size() >= this.maxEntries) {
+        log.debug("OCSP response cache is full. Response is not cached");
+        return;
+      }
+    }
+    this.cache.put(certificateID, new CachedResponse(response, Instant.now().plus(this.validity)));
+    if (this.generation.get() != generation) {
+      // An invalidation took place while the response was produced
+      this.cache.remove(certificateID);
+    }
+  }
+
+  /**
+   * Removes all cached responses for a certificate serial number.
+   *
+   * @param serialNumber certificate serial number
+   */
+  public void invalidate(@Nonnull final BigInteger serialNumber) {
+    this.generation.incrementAndGet();
+    this.cache.keySet().removeIf(certificateID -> serialNumber.equals(certificateID.getSerialNumber()));
+  }
+
+  /**
+   * Removes all cached responses.
+   */
+  public void invalidateAll() {
+    this.generation.incrementAndGet();
+    this.cache.clear();
+  }
+
+  /**
+   * A cached response and the time it expires.
+   *
+   * @param response the signed OCSP response
+   * @param expiry the time when this cached response expires
+   */
+  private record CachedResponse(OCSPResp response, Instant expiry) {
+  }
+
+}
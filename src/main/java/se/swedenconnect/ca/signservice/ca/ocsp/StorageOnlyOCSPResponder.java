@@ -17,8 +17,15 @@
 package se.swedenconnect.ca.signservice.ca.ocsp;
 
 import org.bouncycastle.asn1.ocsp.TBSRequest;
+import org.bouncycastle.cert.ocsp.CertificateID;
 import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
 import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
 import se.swedenconnect.ca.engine.revocation.ocsp.OCSPModel;
 import se.swedenconnect.ca.engine.revocation.ocsp.OCSPStatusCheckingException;
@@ -28,45 +35,100 @@ import se.swedenconnect.security.credential.PkiCredential;
 
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 
 /**
  * This OCSP responder works of a CA repository that only stores certificates in a sequential list and
  * therefore does not allow retrieval of certificates by serial number.
  *
  * <p>
- *   This responder retrieves revoked certificates from an in memory list. This does onl work if the number
- *   of revoked certificate is manageable in size. This is the typical case for a sign service where
- *   revocation is extremely rare.
+ *   This responder looks up the status of each requested certificate in the in memory index of revoked
+ *   certificates held by the repository storage. This index is updated on each revocation, which means that
+ *   answering a status request does not require any file access.
+ * </p>
+ *
+ * <p>
+ *   If the repository provides an {@link OCSPResponseCache}, signed responses to single certificate requests are
+ *   served from this cache so that the OCSP signing key is only used on cache misses. All cached responses are
+ *   invalidated when the repository storage reloads revocation data that has been modified outside of the service.
+ * </p>
+ *
+ * <p>
+ *   Certificates that expired before the revocation data of expired certificates was last removed from the repository
+ *   are reported with status unknown, since they may have been revoked.
+ * </p>
+ *
+ * <p>
+ *   If enabled by the repository, certificates that are not found in the certificate index of the repository storage
+ *   are reported with status unknown, since they have not been issued by this CA. This lookup is also served from
+ *   memory.
  * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  * @author Stefan Santesson (stefan@idsec.se)
  */
+@Slf4j
 public class StorageOnlyOCSPResponder extends AbstractOCSPResponder {
 
   private final StorageOnlyCARepository caRepository;
-  private Map<BigInteger, RevokedCertificate> revocationMap;
+
+  /** Optional cache of signed responses */
+  private final OCSPResponseCache responseCache;
 
   public StorageOnlyOCSPResponder(final PkiCredential ocspIssuerCredential, final OCSPModel ocspModel, final StorageOnlyCARepository caRepository) throws NoSuchAlgorithmException {
     super(ocspIssuerCredential, ocspModel);
     this.caRepository = caRepository;
+    this.responseCache = caRepository.getOcspResponseCache();
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public OCSPResp handleRequest(final OCSPReq ocspRequest) {
+    if (this.responseCache == null) {
+      return super.handleRequest(ocspRequest);
+    }
+    final CertificateID certificateID = this.responseCache.getCacheableCertificateId(ocspRequest);
+    if (certificateID == null) {
+      return super.handleRequest(ocspRequest);
+    }
+    this.caRepository.refreshOcspResponseCache();
+    final OCSPResp cachedResponse = this.responseCache.get(certificateID);
+    if (cachedResponse != null) {
+      log.trace("Returning cached OCSP response for serial {}", certificateID.getSerialNumber().toString(16));
+      return cachedResponse;
+    }
+
+    OCSPReq cacheableRequest = ocspRequest;
+    if (this.responseCache.isIgnoreNonce()) {
+      // Produce the response for a request without nonce so that the response can be reused for any request
+      try {
+        cacheableRequest = new OCSPReqBuilder().addRequest(certificateID).build();
+      }
+      catch (final OCSPException e) {
+        log.debug("Unable to create cacheable OCSP request - Response is not cached", e);
+        return super.handleRequest(ocspRequest);
+      }
+    }
+    final long generation = this.responseCache.getGeneration();
+    final OCSPResp response = super.handleRequest(cacheableRequest);
+    this.responseCache.put(certificateID, response, generation);
+    return response;
+  }
 
-  protected CertificateStatus getCertStatus(BigInteger certificateSerial) throws OCSPStatusCheckingException {
-    List<RevokedCertificate> revokedCertificates = this.caRepository.getRevokedCertificates();
-    Optional<RevokedCertificate> revokedCertificateOptional = revokedCertificates.stream()
-      .filter(revokedCertificate -> revokedCertificate.getCertificateSerialNumber().equals(certificateSerial))
-      .findFirst();
 
-    if (revokedCertificateOptional.isPresent()){
-      RevokedCertificate revokedCertificate = revokedCertificateOptional.get();
+  protected CertificateStatus getCertStatus(BigInteger certificateSerial) throws OCSPStatusCheckingException {
+    RevokedCertificate revokedCertificate = this.caRepository.getRevokedCertificate(certificateSerial);
+    if (revokedCertificate != null){
       int reason = revokedCertificate.getReason();
       return new RevokedStatus(revokedCertificate.getRevocationTime(), reason);
     }
+    if (this.caRepository.isRevocationDataRemoved(certificateSerial)) {
+      // The certificate was revoked, but its revocation data was removed after it expired
+      return new UnknownStatus();
+    }
+    if (this.caRepository.isOcspUnknownForUnissued() && !this.caRepository.isCertificateIssued(certificateSerial)) {
+      // The certificate has not been issued by this CA
+      return new UnknownStatus();
+    }
     return CertificateStatus.GOOD;
   }
 
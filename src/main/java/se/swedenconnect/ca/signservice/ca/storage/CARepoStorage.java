@@ -16,8 +16,16 @@
 package se.swedenconnect.ca.signservice.ca.storage;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Instant;
 import java.util.List;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
 import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
 import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
 
@@ -35,6 +43,64 @@ public interface CARepoStorage {
    */
   void storeCertificate(final byte[] certificateBytes) throws IOException, CertificateStorageException;
 
+  /**
+   * Store a certificate that has already been parsed, without parsing its encoding again.
+   *
+   * @param certificate the certificate
+   * @throws IOException error processing the data
+   * @throws CertificateStorageException critical error attempting to write the certificate to the storage
+   */
+  void storeCertificate(@Nonnull final X509CertificateHolder certificate)
+      throws IOException, CertificateStorageException;
+
+  /**
+   * Gets a stored certificate. Encrypted certificates are decrypted before they are returned.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return the certificate bytes or null if no certificate with this serial number is stored
+   * @throws IOException error reading or decrypting the stored certificate
+   */
+  @Nullable
+  byte[] getCertificate(@Nonnull final BigInteger serialNumber) throws IOException;
+
+  /**
+   * Tests if a certificate is stored. This lookup must not require reading any storage file, making it suitable for use
+   * when answering certificate status requests.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return true if a certificate with this serial number is stored
+   */
+  boolean isCertificateStored(@Nonnull final BigInteger serialNumber);
+
+  /**
+   * Gets the serial numbers of all stored certificates.
+   *
+   * @return list of serial numbers of stored certificates
+   */
+  List<BigInteger> getCertificateSerials();
+
+  /**
+   * Gets the number of stored certificates.
+   *
+   * @param notRevoked true to only count certificates that are not revoked
+   * @return number of stored certificates
+   */
+  int getCertificateCount(final boolean notRevoked);
+
+  /**
+   * Gets the serial numbers of a page of stored certificates. The certificates are read in the requested order up to
+   * the end of the page, and only the serial numbers of the requested page are collected.
+   *
+   * @param page the index of the page, starting with 0
+   * @param pageSize the number of serial numbers on each page
+   * @param notRevoked true to only include certificates that are not revoked
+   * @param sortBy the order of certificates, by serial number if null
+   * @param descending true to sort in descending order
+   * @return list of serial numbers of the certificates on the requested page
+   */
+  List<BigInteger> getCertificateSerials(final int page, final int pageSize, final boolean notRevoked,
+      @Nullable final SortBy sortBy, final boolean descending);
+
   /**
    * Revoke a certificate by updating the certificate revocation file.
    *
@@ -50,6 +116,74 @@ public interface CARepoStorage {
 
   List<RevokedCertificate> getRevokedCertificates();
 
+  /**
+   * Gets the number of revoked certificates. The count must be served from memory, without assembling the list of
+   * revoked certificates, but must reflect modifications of the revocation data made outside of this storage.
+   *
+   * @return number of revoked certificates
+   */
+  int getRevokedCertificateCount();
+
+  /**
+   * Gets the revocation data of a single certificate. This lookup must not require reading the revocation data from
+   * file, making it suitable for use when answering certificate status requests.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return revocation data for the certificate or null if the certificate is not revoked
+   */
+  @Nullable
+  RevokedCertificate getRevokedCertificate(@Nonnull final BigInteger serialNumber);
+
+  /**
+   * Gets the generation of the revocation data, which is incremented each time the revocation data is reloaded because
+   * it has been modified outside of this storage, e.g. by a manual update of the revocation file. The check for
+   * modifications must be limited in frequency, making this method suitable for use when answering certificate status
+   * requests.
+   *
+   * @return the generation of the revocation data
+   */
+  long getRevocationDataGeneration();
+
+  /**
+   * Gets the end of the validity period of a stored certificate. This lookup must not require reading the stored
+   * certificate.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return the end of the validity period of the certificate or null if no certificate with this serial number is
+   *     stored
+   */
+  @Nullable
+  Instant getCertificateNotAfter(@Nonnull final BigInteger serialNumber);
+
+  /**
+   * Removes the revocation data of revoked certificates that expired before a given time. The revocation data of
+   * certificates that are not stored is kept, since their validity period is not known. The removal, and the time
+   * before which expired certificates were removed, is persisted before the revocation data is removed. If the removal
+   * can not be persisted, no revocation data is removed.
+   *
+   * @param expiredBefore the time before which a certificate must have expired for its revocation data to be removed
+   * @return the serial numbers of the certificates whose revocation data was removed
+   */
+  @Nonnull
+  List<BigInteger> removeExpiredRevocations(@Nonnull final Instant expiredBefore);
+
+  /**
+   * Gets the time before which expired certificates were removed from the revocation data by the last removal.
+   *
+   * @return the time before which expired certificates were removed, or null if no removal has been made
+   */
+  @Nullable
+  Instant getExpiredRevocationsRemovedBefore();
+
+  /**
+   * Tests if the revocation data of a certificate has been removed after the certificate expired. This is only the case
+   * for certificates that were revoked when their revocation data was removed.
+   *
+   * @param serialNumber the serial number of the certificate
+   * @return true if the revocation data of the certificate has been removed
+   */
+  boolean isRevocationDataRemoved(@Nonnull final BigInteger serialNumber);
+
   boolean isCriticalStorageError();
 
 }
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.data.SegmentRecord;
+
+/**
+ * Binary format of segment storage files.
+ *
+ * <p>
+ * A segment file is a sequence of frames. Each frame holds a type, the length of its payload, the payload and a CRC32C
+ * checksum over the type, length and payload:
+ * </p>
+ *
+ * <pre>
+ * frame:   type (1 byte) | payload length (4 bytes) | payload | CRC32C (4 bytes)
+ * record:  flags (1 byte) | serial length (2 bytes) | serial | notBefore (8 bytes) | notAfter (8 bytes)
+ *          | id length (4 bytes) | id | certificate length (4 bytes) | certificate
+ * footer:  record count (4 bytes) | for each record: serial length (2 bytes) | serial | offset (8 bytes)
+ *          | frame length (4 bytes) | notBefore (8 bytes) | notAfter (8 bytes)
+ * trailer: footer frame offset (8 bytes) | magic "CSEG" (4 bytes)
+ * </pre>
+ *
+ * <p>
+ * Certificate records hold the serial number, the validity period in epoch seconds, the subject id and the DER encoded
+ * certificate. If the encrypted flag is set, the id and the certificate are encrypted. When a segment file is sealed, a
+ * footer frame followed by a fixed size trailer is appended. The footer lists the location of all records in the
+ * segment file, so that a sealed segment file can be indexed by reading its footer only. When records are appended to
+ * a sealed segment file, e.g. after a restart, the footer and trailer at the end of the file are removed first and
+ * replaced by a new footer when the segment file is sealed again, so a segment file holds at most one footer. Segment
+ * files holding footers followed by records are still read by scanning the frames following each footer. Scanning
+ * stops at the first frame that is incomplete or fails its checksum, which is the result of an interrupted write.
+ * </p>
+ */
+@Slf4j
+public final class SegmentFile {
+
+  /** The name prefix of segment storage files */
+  public static final String SEGMENT_FILE_PREFIX = "certSegment-";
+
+  /** Frame type of a certificate record */
+  public static final int RECORD_FRAME = 1;
+
+  /** Frame type of a footer */
+  public static final int FOOTER_FRAME = 2;
+
+  private static final int ENCRYPTED_FLAG = 0x01;
+
+  private static final int FRAME_HEADER_LENGTH = 5;
+  private static final int CRC_LENGTH = 4;
+  private static final int TRAILER_LENGTH = 12;
+  private static final int MAGIC = 0x43534547;
+
+  private SegmentFile() {
+  }
+
+  /**
+   * Encodes a certificate record as a frame.
+   *
+   * @param record the certificate record
+   * @return the record frame
+   */
+  @Nonnull
+  public static byte[] encodeRecord(@Nonnull final SegmentRecord record) {
+    final byte[] serial = record.getSerial().toByteArray();
+    final byte[] id = record.getId() == null ? new byte[0] : record.getId();
+    final byte[] cert = record.getCert();
+    final ByteBuffer payload = ByteBuffer.allocate(1 + 2 + serial.length + 8 + 8 + 4 + id.length + 4 + cert.length);
+    payload.put((byte) (record.isEncrypted() ? ENCRYPTED_FLAG : 0));
+    payload.putShort((short) serial.length);
+    payload.put(serial);
+    payload.putLong(record.getNotBefore());
+    payload.putLong(record.getNotAfter());
+    payload.putInt(id.length);
+    payload.put(id);
+    payload.putInt(cert.length);
+    payload.put(cert);
+    return encodeFrame(RECORD_FRAME, payload.array());
+  }
+
+  /**
+   * Decodes a certificate record frame.
+   *
+   * @param frame the record frame
+   * @return the certificate record
+   * @throws IOException if the frame is not a valid certificate record frame
+   */
+  @Nonnull
+  public static SegmentRecord decodeRecord(@Nonnull final byte[] frame) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(frame);
+    try {
+      final int type = buffer.get() & 0xff;
+      final int length = buffer.getInt();
+      if (type != RECORD_FRAME || length != frame.length - FRAME_HEADER_LENGTH - CRC_LENGTH) {
+        throw new IOException("Invalid segment record frame");
+      }
+      if (getCrc(frame, FRAME_HEADER_LENGTH + length) != ByteBuffer.wrap(frame, FRAME_HEADER_LENGTH + length,
+          CRC_LENGTH).getInt()) {
+        throw new IOException("Segment record checksum mismatch");
+      }
+      return decodeRecordPayload(buffer);
+    }
+    catch (final BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Invalid segment record frame", e);
+    }
+  }
+
+  /**
+   * Encodes the footer frame and trailer sealing a segment file.
+   *
+   * @param locations the locations of all records in the segment file
+   * @param footerOffset the offset in the segment file where the footer is written
+   * @return the footer frame followed by the trailer
+   */
+  @Nonnull
+  public static byte[] encodeFooter(@Nonnull final List<RecordLocation> locations, final long footerOffset) {
+    int payloadLength = 4;
+    for (final RecordLocation location : locations) {
+      payloadLength += 2 + location.serial().toByteArray().length + 8 + 4 + 8 + 8;
+    }
+    final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+    payload.putInt(locations.size());
+    for (final RecordLocation location : locations) {
+      final byte[] serial = location.serial().toByteArray();
+      payload.putShort((short) serial.length);
+      payload.put(serial);
+      payload.putLong(location.offset());
+      payload.putInt(location.length());
+      payload.putLong(location.notBefore());
+      payload.putLong(location.notAfter());
+    }
+    final byte[] frame = encodeFrame(FOOTER_FRAME, payload.array());
+    return ByteBuffer.allocate(frame.length + TRAILER_LENGTH)
+        .put(frame)
+        .putLong(footerOffset)
+        .putInt(MAGIC)
+        .array();
+  }
+
+  /**
+   * Gets the locations of the certificate records in a segment file starting at the provided offset. If the whole
+   * segment file is requested and the file ends with a valid footer, the locations are read from the footer.
+   * Otherwise, the frames of the file are scanned.
+   *
+   * @param segmentFile the segment file
+   * @param start the offset of the first frame to read
+   * @return the record locations and the end of the valid data in the segment file
+   * @throws IOException error reading the segment file
+   */
+  @Nonnull
+  public static ScanResult scan(@Nonnull final File segmentFile, final long start) throws IOException {
+    if (start == 0) {
+      final List<RecordLocation> footerLocations = readFooter(segmentFile);
+      if (footerLocations != null) {
+        return new ScanResult(footerLocations, segmentFile.length());
+      }
+    }
+    final List<RecordLocation> locations = new ArrayList<>();
+    final long validLength = scanFrames(segmentFile, start, (type, payload, offset, frameLength) -> {
+      if (type == RECORD_FRAME) {
+        final ByteBuffer buffer = ByteBuffer.wrap(payload, 1, payload.length - 1);
+        final BigInteger serial = new BigInteger(getBytes(buffer, buffer.getShort() & 0xffff));
+        locations.add(new RecordLocation(serial, offset, frameLength, buffer.getLong(), buffer.getLong()));
+      }
+    });
+    return new ScanResult(locations, validLength);
+  }
+
+  /**
+   * Reads all certificate records of a segment file in file order.
+   *
+   * @param segmentFile the segment file
+   * @param handler handler of each certificate record and its offset in the segment file
+   * @return the end of the valid data in the segment file
+   * @throws IOException error reading the segment file or error reported by the handler
+   */
+  public static long readRecords(@Nonnull final File segmentFile, @Nonnull final RecordHandler handler)
+      throws IOException {
+    return scanFrames(segmentFile, 0L, (type, payload, offset, frameLength) -> {
+      if (type == RECORD_FRAME) {
+        handler.handle(decodeRecordPayload(ByteBuffer.wrap(payload)), offset);
+      }
+    });
+  }
+
+  /**
+   * Reads the footer of a sealed segment file.
+   *
+   * @param segmentFile the segment file
+   * @return the record locations listed in the footer, or null if the file does not end with a valid footer
+   * @throws IOException error reading the segment file
+   */
+  @Nullable
+  public static List<RecordLocation> readFooter(@Nonnull final File segmentFile) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile, "r")) {
+      final Footer footer = findFooter(file);
+      if (footer == null) {
+        return null;
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(footer.payload());
+      final int count = buffer.getInt();
+      final List<RecordLocation> locations = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        final BigInteger serial = new BigInteger(getBytes(buffer, buffer.getShort() & 0xffff));
+        locations.add(new RecordLocation(serial, buffer.getLong(), buffer.getInt(), buffer.getLong(),
+            buffer.getLong()));
+      }
+      return locations;
+    }
+    catch (final BufferUnderflowException | IllegalArgumentException e) {
+      log.warn("Invalid footer in segment file {}", segmentFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Gets the offset of the footer frame at the end of a sealed segment file.
+   *
+   * @param segmentFile the segment file
+   * @return the offset of the footer frame, or null if the file does not end with a valid footer
+   * @throws IOException error reading the segment file
+   */
+  @Nullable
+  public static Long getFooterOffset(@Nonnull final File segmentFile) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile, "r")) {
+      final Footer footer = findFooter(file);
+      return footer == null ? null : footer.offset();
+    }
+  }
+
+  /**
+   * Locates the footer frame at the end of a segment file using the trailer, and verifies the checksum of the footer.
+   *
+   * @return the footer or null if the file does not end with a valid footer
+   */
+  private static Footer findFooter(final RandomAccessFile file) throws IOException {
+    final long fileLength = file.length();
+    if (fileLength < FRAME_HEADER_LENGTH + 4 + CRC_LENGTH + TRAILER_LENGTH) {
+      return null;
+    }
+    file.seek(fileLength - TRAILER_LENGTH);
+    final long footerOffset = file.readLong();
+    if (file.readInt() != MAGIC || footerOffset < 0 || footerOffset > fileLength - TRAILER_LENGTH) {
+      return null;
+    }
+    file.seek(footerOffset);
+    if (file.readUnsignedByte() != FOOTER_FRAME) {
+      return null;
+    }
+    final byte[] payload = readFramePayload(file, FOOTER_FRAME, fileLength - TRAILER_LENGTH - footerOffset);
+    if (payload == null
+        || footerOffset + FRAME_HEADER_LENGTH + payload.length + CRC_LENGTH + TRAILER_LENGTH != fileLength) {
+      return null;
+    }
+    return new Footer(footerOffset, payload);
+  }
+
+  /**
+   * Scans the frames of a segment file starting at the provided offset.
+   *
+   * @return the end of the valid data in the segment file
+   */
+  private static long scanFrames(final File segmentFile, final long start, final FrameHandler handler)
+      throws IOException {
+    final long fileLength = segmentFile.length();
+    long position = start;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 64 * 1024))) {
+      in.skipNBytes(start);
+      while (position < fileLength) {
+        final long remaining = fileLength - position;
+        final int type = in.readUnsignedByte();
+        final byte[] payload = readFramePayload(in, type, remaining);
+        if (payload == null || type != RECORD_FRAME && type != FOOTER_FRAME) {
+          break;
+        }
+        int frameLength = FRAME_HEADER_LENGTH + payload.length + CRC_LENGTH;
+        if (type == FOOTER_FRAME) {
+          if (remaining < frameLength + TRAILER_LENGTH) {
+            break;
+          }
+          in.skipNBytes(TRAILER_LENGTH);
+          frameLength += TRAILER_LENGTH;
+        }
+        handler.handle(type, payload, position, frameLength);
+        position += frameLength;
+      }
+    }
+    catch (final EOFException e) {
+      // The file was truncated while being read
+    }
+    catch (final BufferUnderflowException | IllegalArgumentException e) {
+      log.warn("Invalid record at offset {} in segment file {}", position, segmentFile, e);
+    }
+    if (position < fileLength) {
+      log.warn("Ignoring {} bytes of invalid or incomplete data at offset {} in segment file {}",
+          fileLength - position, position, segmentFile);
+    }
+    return position;
+  }
+
+  /**
+   * Reads the remainder of a frame after its type and verifies its checksum.
+   *
+   * @return the frame payload or null if the frame is incomplete or fails its checksum
+   */
+  private static byte[] readFramePayload(final DataInput in, final int type, final long remaining)
+      throws IOException {
+    if (remaining < FRAME_HEADER_LENGTH + CRC_LENGTH) {
+      return null;
+    }
+    final int length = in.readInt();
+    if (length < 0 || length > remaining - FRAME_HEADER_LENGTH - CRC_LENGTH) {
+      return null;
+    }
+    final byte[] payload = new byte[length];
+    in.readFully(payload);
+    final int crc = in.readInt();
+    final byte[] frame = encodeFrame(type, payload);
+    return getCrc(frame, FRAME_HEADER_LENGTH + length) == crc ? payload : null;
+  }
+
+  private static SegmentRecord decodeRecordPayload(final ByteBuffer buffer) {
+    final boolean encrypted = (buffer.get() & ENCRYPTED_FLAG) != 0;
+    final BigInteger serial = new BigInteger(getBytes(buffer, buffer.getShort() & 0xffff));
+    final long notBefore = buffer.getLong();
+    final long notAfter = buffer.getLong();
+    final byte[] id = getBytes(buffer, buffer.getInt());
+    final byte[] cert = getBytes(buffer, buffer.getInt());
+    return new SegmentRecord(serial, notBefore, notAfter, encrypted, id, cert);
+  }
+
+  private static byte[] encodeFrame(final int type, final byte[] payload) {
+    final byte[] frame = new byte[FRAME_HEADER_LENGTH + payload.length + CRC_LENGTH];
+    final ByteBuffer buffer = ByteBuffer.wrap(frame);
+    buffer.put((byte) type);
+    buffer.putInt(payload.length);
+    buffer.put(payload);
+    buffer.putInt(getCrc(frame, FRAME_HEADER_LENGTH + payload.length));
+    return frame;
+  }
+
+  private static int getCrc(final byte[] frame, final int length) {
+    final CRC32C crc = new CRC32C();
+    crc.update(frame, 0, length);
+    return (int) crc.getValue();
+  }
+
+  private static byte[] getBytes(final ByteBuffer buffer, final int length) {
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    final byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Handler of certificate records read from a segment file.
+   */
+  @FunctionalInterface
+  public interface RecordHandler {
+
+    /**
+     * Handles a certificate record.
+     *
+     * @param record the certificate record
+     * @param offset the offset of the record frame in the segment file
+     * @throws IOException error handling the record
+     */
+    void handle(SegmentRecord record, long offset) throws IOException;
+  }
+
+  /**
+   * Handler of frames read from a segment file.
+   */
+  @FunctionalInterface
+  private interface FrameHandler {
+    void handle(int type, byte[] payload, long offset, int frameLength) throws IOException;
+  }
+
+  /**
+   * The footer frame at the end of a sealed segment file.
+   *
+   * @param offset the offset of the footer frame
+   * @param payload the payload of the footer frame
+   */
+  private record Footer(long offset, byte[] payload) {
+  }
+
+  /**
+   * The location of a certificate record in a segment file.
+   *
+   * @param serial certificate serial number
+   * @param offset the offset of the record frame in the segment file
+   * @param length the length of the record frame
+   * @param notBefore the start of the certificate validity period in epoch seconds
+   * @param notAfter the end of the certificate validity period in epoch seconds
+   */
+  public record RecordLocation(BigInteger serial, long offset, int length, long notBefore, long notAfter) {
+  }
+
+  /**
+   * The result of scanning a segment file.
+   *
+   * @param locations the locations of the certificate records found
+   * @param validLength the end of the valid data in the segment file
+   */
+  public record ScanResult(List<RecordLocation> locations, long validLength) {
+  }
+
+}
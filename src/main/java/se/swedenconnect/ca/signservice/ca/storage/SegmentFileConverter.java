@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.data.SegmentRecord;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+
+/**
+ * Converter of JSON lines storage files to segment storage files.
+ *
+ * <p>
+ * Each storage record is converted to a segment record holding the same data in binary form. Encrypted ids and
+ * certificates are copied in their encrypted form, so no decryption keys are needed for the conversion. The converted
+ * segment file is sealed with a footer.
+ * </p>
+ */
+@Slf4j
+public final class SegmentFileConverter {
+
+  /** The name prefix of JSON lines storage files */
+  private static final String STORAGE_FILE_PREFIX = "certStore-";
+
+  private static final DateTimeFormatter CERT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+  private SegmentFileConverter() {
+  }
+
+  /**
+   * Converts all JSON lines storage files in a storage directory to segment files in a segment storage directory. The
+   * segment file of a storage file is named after the date of the storage file. Storage files for which a segment file
+   * already exists are not converted.
+   *
+   * @param storageDirectory the directory holding JSON lines storage files
+   * @param segmentDirectory the directory where segment files are written
+   * @return the number of converted records
+   * @throws IOException error reading a storage file or writing a segment file
+   */
+  public static int convertDirectory(@Nonnull final File storageDirectory, @Nonnull final File segmentDirectory)
+      throws IOException {
+    // Compressed storage files and temporary files are not converted
+    final File[] storageFiles = storageDirectory.listFiles((dir, name) -> name.startsWith(STORAGE_FILE_PREFIX)
+        && !name.endsWith(".gz") && !name.endsWith(".tmp"));
+    if (storageFiles == null) {
+      throw new IOException("Storage directory " + storageDirectory.getAbsolutePath() + " does not exist");
+    }
+    Arrays.sort(storageFiles);
+    int converted = 0;
+    for (final File storageFile : storageFiles) {
+      final File segmentFile = new File(segmentDirectory,
+          SegmentFile.SEGMENT_FILE_PREFIX + storageFile.getName().substring(STORAGE_FILE_PREFIX.length()));
+      if (segmentFile.exists()) {
+        log.info("Segment file {} exists. Skipping conversion of {}", segmentFile, storageFile);
+        continue;
+      }
+      converted += convert(storageFile, segmentFile);
+    }
+    return converted;
+  }
+
+  /**
+   * Converts a JSON lines storage file to a segment file.
+   *
+   * @param storageFile the JSON lines storage file
+   * @param segmentFile the segment file to create
+   * @return the number of converted records
+   * @throws IOException error reading the storage file, writing the segment file, or if the segment file exists
+   */
+  public static int convert(@Nonnull final File storageFile, @Nonnull final File segmentFile) throws IOException {
+    if (segmentFile.exists()) {
+      throw new IOException("Segment file " + segmentFile + " already exists");
+    }
+    final List<SegmentFile.RecordLocation> locations = new ArrayList<>();
+    try (StorageFileReader reader = new StorageFileReader(storageFile);
+        FileOutputStream fileOut = new FileOutputStream(segmentFile);
+        BufferedOutputStream out = new BufferedOutputStream(fileOut, 64 * 1024)) {
+      final Iterator<StorageRecord> storageRecords = reader.records(false).iterator();
+      long offset = 0;
+      while (storageRecords.hasNext()) {
+        final SegmentRecord record = toSegmentRecord(storageRecords.next());
+        final byte[] frame = SegmentFile.encodeRecord(record);
+        out.write(frame);
+        locations.add(new SegmentFile.RecordLocation(record.getSerial(), offset, frame.length, record.getNotBefore(),
+            record.getNotAfter()));
+        offset += frame.length;
+      }
+      out.write(SegmentFile.encodeFooter(locations, offset));
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    catch (final IOException e) {
+      Files.deleteIfExists(segmentFile.toPath());
+      throw e;
+    }
+    catch (final RuntimeException e) {
+      Files.deleteIfExists(segmentFile.toPath());
+      throw new IOException("Failed to convert storage file " + storageFile, e);
+    }
+    log.info("Converted {} records from {} to {}", locations.size(), storageFile, segmentFile);
+    return locations.size();
+  }
+
+  /**
+   * Converts a JSON storage record to a segment record.
+   *
+   * @param storageRecord the storage record
+   * @return the segment record
+   */
+  @Nonnull
+  public static SegmentRecord toSegmentRecord(@Nonnull final StorageRecord storageRecord) {
+    final SegmentRecord.SegmentRecordBuilder recordBuilder = SegmentRecord.builder()
+        .serial(new BigInteger(storageRecord.getSerial(), 16))
+        .notBefore(toEpochSecond(storageRecord.getIt()))
+        .notAfter(toEpochSecond(storageRecord.getEt()));
+    if (storageRecord.getECert() != null) {
+      recordBuilder.encrypted(true)
+          .id(storageRecord.getEId() == null ? null : Base64.decode(storageRecord.getEId()))
+          .cert(Base64.decode(storageRecord.getECert()));
+    }
+    else {
+      recordBuilder.id(storageRecord.getId() == null
+              ? null
+              : URLDecoder.decode(storageRecord.getId(), StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8))
+          .cert(Base64.decode(storageRecord.getCert()));
+    }
+    return recordBuilder.build();
+  }
+
+  private static long toEpochSecond(final String time) {
+    return LocalDateTime.parse(time, CERT_TIME_FORMAT).atZone(ZoneId.systemDefault()).toEpochSecond();
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage;
+
+import java.io.IOException;
+
+/**
+ * Compression applied to data before it is encrypted for storage.
+ *
+ * <p>
+ * Compressed data must identify how it was compressed, so that data compressed with a previous configuration of the
+ * compression can still be decompressed.
+ * </p>
+ */
+public interface StorageCompression {
+
+  /**
+   * Compress data.
+   *
+   * @param data data to compress
+   * @return compressed data
+   * @throws IOException on error compressing data
+   */
+  byte[] compress(final byte[] data) throws IOException;
+
+  /**
+   * Decompress data compressed by this compression.
+   *
+   * @param compressedData compressed data
+   * @return decompressed data
+   * @throws IOException on error decompressing data or if the data was not compressed by this compression
+   */
+  byte[] decompress(final byte[] compressedData) throws IOException;
+
+}
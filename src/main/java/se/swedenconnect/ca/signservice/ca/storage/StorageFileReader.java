@@ -0,0 +1,309 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.Nonnull;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Reader of storage records in a storage file supporting parallel processing.
+ *
+ * <p>
+ * The storage file is read through memory mapped windows of the file. The records of the file are provided by a
+ * {@link Spliterator} which splits the file at record boundaries, so that the records of a large storage file can be
+ * parsed in parallel using a parallel stream:
+ * </p>
+ *
+ * <pre>
+ * try (StorageFileReader reader = new StorageFileReader(storageFile)) {
+ *   long count = reader.records(true).filter(r -> r.getCert() != null).count();
+ * }
+ * </pre>
+ *
+ * <p>
+ * An incomplete record at the end of the storage file, which may be the result of an interrupted write, is ignored.
+ * Streams obtained from this reader must be consumed before the reader is closed.
+ * </p>
+ */
+@Slf4j
+public class StorageFileReader implements Closeable {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** The maximum size of a memory mapped window of the storage file */
+  private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+  /** Ranges smaller than this size are not split */
+  private static final long MIN_SPLIT_SIZE = 256L * 1024;
+
+  /** Approximate size of a storage record used to estimate the number of records */
+  private static final long ESTIMATED_RECORD_SIZE = 3000L;
+
+  /** The storage file */
+  private final File storageFile;
+
+  /** The channel of the storage file */
+  private final FileChannel channel;
+
+  /** The offset of the first record to read */
+  private final long start;
+
+  /** The size of the storage file when this reader was created */
+  private final long end;
+
+  /**
+   * Constructor for a reader of all records in a storage file.
+   *
+   * @param storageFile the storage file
+   * @throws IOException error opening the storage file
+   */
+  public StorageFileReader(@Nonnull final File storageFile) throws IOException {
+    this(storageFile, 0L);
+  }
+
+  /**
+   * Constructor for a reader of the records in a storage file starting at a given offset. Records appended to the
+   * storage file after this reader was created are not read.
+   *
+   * @param storageFile the storage file
+   * @param start the offset of the first record to read, which must be the start of a record
+   * @throws IOException error opening the storage file
+   */
+  public StorageFileReader(@Nonnull final File storageFile, final long start) throws IOException {
+    this.storageFile = Objects.requireNonNull(storageFile, "storageFile must not be null");
+    this.channel = FileChannel.open(storageFile.toPath(), StandardOpenOption.READ);
+    this.end = this.channel.size();
+    this.start = Math.min(start, this.end);
+  }
+
+  /**
+   * Gets a spliterator over the storage records of the storage file.
+   *
+   * @return spliterator over storage records
+   */
+  @Nonnull
+  public Spliterator<StorageRecord> spliterator() {
+    return new RecordSpliterator<>(this.start, this.end,
+        (record, offset) -> OBJECT_MAPPER.readValue(record, StorageRecord.class));
+  }
+
+  /**
+   * Gets a stream of the storage records of the storage file.
+   *
+   * @param parallel true to process the records in parallel
+   * @return stream of storage records
+   */
+  @Nonnull
+  public Stream<StorageRecord> records(final boolean parallel) {
+    return StreamSupport.stream(this.spliterator(), parallel);
+  }
+
+  /**
+   * Gets a stream of values obtained from the storage records of the storage file by a record mapper. Used when the
+   * location of a record in the storage file is needed, or when the record data is processed without being parsed
+   * into a {@link StorageRecord}.
+   *
+   * @param mapper the mapper creating a value from the data of a record and its location
+   * @param parallel true to process the records in parallel
+   * @param <T> the type of values created by the mapper
+   * @return stream of values
+   */
+  @Nonnull
+  public <T> Stream<T> records(@Nonnull final RecordMapper<T> mapper, final boolean parallel) {
+    return StreamSupport.stream(new RecordSpliterator<>(this.start, this.end, mapper), parallel);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+
+  /**
+   * Maps the data of a storage record to a value.
+   *
+   * @param <T> the type of the value
+   */
+  @FunctionalInterface
+  public interface RecordMapper<T> {
+
+    /**
+     * Creates a value from a storage record.
+     *
+     * @param record the bytes of the storage record excluding the terminating newline
+     * @param offset the offset of the storage record in the storage file
+     * @return the value
+     */
+    T map(final byte[] record, final long offset);
+  }
+
+  /**
+   * Spliterator over the records in a range of the storage file. The range is split at record boundaries.
+   */
+  private class RecordSpliterator<T> implements Spliterator<T> {
+
+    private final RecordMapper<T> mapper;
+
+    /** The offset of the next record */
+    private long position;
+
+    /** The end of the range */
+    private final long rangeEnd;
+
+    /** The mapped window of the range holding the next record */
+    private MappedByteBuffer window;
+
+    /** The file offset of the mapped window */
+    private long windowStart;
+
+    RecordSpliterator(final long position, final long rangeEnd, final RecordMapper<T> mapper) {
+      this.position = position;
+      this.rangeEnd = rangeEnd;
+      this.mapper = mapper;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+      if (this.position >= this.rangeEnd) {
+        return false;
+      }
+      try {
+        int recordEnd = this.findRecordEnd();
+        if (recordEnd < 0 && this.windowStart != this.position) {
+          // The record continues after the mapped window. Map a new window starting with this record.
+          this.mapWindow(this.position);
+          recordEnd = this.findRecordEnd();
+        }
+        if (recordEnd < 0 && this.windowStart + this.window.limit() < this.rangeEnd) {
+          throw new IOException("Storage record at offset " + this.position + " in " + storageFile
+              + " exceeds the maximum record size");
+        }
+        if (recordEnd < 0) {
+          log.warn("Ignoring incomplete storage record at offset {} in {}", this.position, storageFile);
+          this.position = this.rangeEnd;
+          return false;
+        }
+        final int recordStart = (int) (this.position - this.windowStart);
+        final byte[] record = new byte[recordEnd - recordStart];
+        this.window.get(recordStart, record);
+        final long offset = this.position;
+        this.position += record.length + 1;
+        action.accept(this.mapper.map(record, offset));
+        return true;
+      }
+      catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Finds the end of the record at the current position in the mapped window, mapping the first window if needed.
+     *
+     * @return the index of the terminating newline in the window or -1 if it is not present in the window
+     */
+    private int findRecordEnd() throws IOException {
+      if (this.window == null || this.position >= this.windowStart + this.window.limit()) {
+        this.mapWindow(this.position);
+      }
+      for (int i = (int) (this.position - this.windowStart); i < this.window.limit(); i++) {
+        if (this.window.get(i) == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void mapWindow(final long windowStart) throws IOException {
+      final long size = Math.min(WINDOW_SIZE, this.rangeEnd - windowStart);
+      this.window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+      this.windowStart = windowStart;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      final long size = this.rangeEnd - this.position;
+      if (size < MIN_SPLIT_SIZE) {
+        return null;
+      }
+      try {
+        final long splitPoint = this.findNextRecordStart(this.position + size / 2);
+        if (splitPoint <= this.position || splitPoint >= this.rangeEnd) {
+          return null;
+        }
+        final RecordSpliterator<T> prefix = new RecordSpliterator<>(this.position, splitPoint, this.mapper);
+        this.position = splitPoint;
+        this.window = null;
+        return prefix;
+      }
+      catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Finds the start of the first record following the provided offset.
+     *
+     * @return the offset of the record start or the end of the range if no record start was found
+     */
+    private long findNextRecordStart(final long from) throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(8192);
+      long offset = from;
+      while (offset < this.rangeEnd) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), this.rangeEnd - offset));
+        final int read = channel.read(buffer, offset);
+        if (read <= 0) {
+          break;
+        }
+        for (int i = 0; i < read; i++) {
+          if (buffer.get(i) == '\n') {
+            return offset + i + 1;
+          }
+        }
+        offset += read;
+      }
+      return this.rangeEnd;
+    }
+
+    @Override
+    public long estimateSize() {
+      return Math.max(1L, (this.rangeEnd - this.position) / ESTIMATED_RECORD_SIZE);
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+    }
+  }
+
+}
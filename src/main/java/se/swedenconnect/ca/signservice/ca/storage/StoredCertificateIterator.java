@@ -18,23 +18,88 @@ package se.swedenconnect.ca.signservice.ca.storage;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.util.encoders.Base64;
 
 import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
 import tools.jackson.databind.ObjectMapper;
 
 /**
  * Iterator to read certificate records from a storage file.
+ *
+ * <p>
+ * When storage is divided into storage shards, the records of a day are stored in one storage file for each shard,
+ * named as the daily storage file with the shard number as suffix. Each of these may further be divided into segments
+ * named with a sequence number as suffix, and sealed segments may be compressed. An iterator for a daily storage file
+ * reads the records of the daily storage file, if present, followed by the records of each of its shard and segment
+ * files in shard and sequence order.
+ * </p>
+ *
+ * <p>
+ * An iterator created with a {@link StorageEncryption} decrypts encrypted records. The returned records then hold the
+ * decrypted subject id and certificate in the {@code id} and {@code cert} fields, in the same form as records stored
+ * without encryption, while the encrypted fields are cleared. Decryption may be done by an executor provided by the
+ * caller, in which case records are read ahead of the consumer and decrypted in parallel while records are still
+ * returned in file order. The executor is owned by the caller and may be shared by any number of iterators.
+ * </p>
  */
 public class StoredCertificateIterator implements Iterator<StorageRecord>, Closeable {
 
   private final static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
-  /** The reader for file information */
-  private final BufferedReader storageReader;
+  /** The number of records read ahead of the consumer when records are decrypted by an executor */
+  private static final int READ_AHEAD = 16 * Runtime.getRuntime().availableProcessors();
+
+  /** The storage files not yet read */
+  private final Iterator<File> storageFiles;
+
+  /** The reader of the storage file currently read */
+  private BufferedReader storageReader;
+
+  /** Optional encryption capability used to decrypt encrypted records */
+  private final StorageEncryption encryption;
+
+  /** Optional map of key passwords under their kid for records encrypted with non default keys */
+  private final Map<String, String> keyMap;
+
+  /** Executor decrypting records, or null if records are processed by the calling thread */
+  private final ExecutorService executor;
+
+  /** The maximum number of records read ahead of the consumer */
+  private final int readAhead;
+
+  /** Records read from the file in file order, waiting to be returned */
+  private final Deque<Future<StorageRecord>> pending = new ArrayDeque<>();
+
+  /** Set when the end of the last storage file has been reached */
+  private boolean endOfFile = false;
 
   /**
    * Get an instance of the stored certificate iterator.
@@ -43,7 +108,36 @@ public class StoredCertificateIterator implements Iterator<StorageRecord>, Close
    * @return instance of {@link StoredCertificateIterator}
    */
   public static StoredCertificateIterator getInstance(final File storageFile) throws FileNotFoundException {
-    return new StoredCertificateIterator(storageFile, null);
+    return new StoredCertificateIterator(storageFile, null, null, null);
+  }
+
+  /**
+   * Get an instance of the stored certificate iterator decrypting encrypted records in the calling thread.
+   *
+   * @param storageFile storage file
+   * @param encryption encryption capability used to decrypt encrypted records
+   * @param keyMap optional map of key passwords under their kid for records encrypted with non default keys
+   * @return instance of {@link StoredCertificateIterator}
+   */
+  public static StoredCertificateIterator getInstance(final File storageFile, final StorageEncryption encryption,
+      @Nullable final Map<String, String> keyMap) throws FileNotFoundException {
+    return new StoredCertificateIterator(storageFile, encryption, keyMap, null);
+  }
+
+  /**
+   * Get an instance of the stored certificate iterator decrypting encrypted records in parallel using an executor. The
+   * executor is not shut down by the iterator.
+   *
+   * @param storageFile storage file
+   * @param encryption encryption capability used to decrypt encrypted records
+   * @param keyMap optional map of key passwords under their kid for records encrypted with non default keys
+   * @param executor executor decrypting records, or null to decrypt records in the calling thread
+   * @return instance of {@link StoredCertificateIterator}
+   */
+  public static StoredCertificateIterator getInstance(final File storageFile, final StorageEncryption encryption,
+      @Nullable final Map<String, String> keyMap, @Nullable final ExecutorService executor)
+      throws FileNotFoundException {
+    return new StoredCertificateIterator(storageFile, encryption, keyMap, executor);
   }
 
   /**
@@ -51,33 +145,136 @@ public class StoredCertificateIterator implements Iterator<StorageRecord>, Close
    *
    * @param storageFile storage file where stored certificates are located
    * @param encryption optional encryption capability to decrypt encrypted data
+   * @param keyMap optional map of key passwords under their kid for records encrypted with non default keys
+   * @param executor optional executor decrypting records, where null decrypts records in the calling thread
    */
-  private StoredCertificateIterator(final File storageFile, final StorageEncryption encryption)
-      throws FileNotFoundException {
-    this.storageReader = new BufferedReader(new FileReader(storageFile));
+  private StoredCertificateIterator(final File storageFile, final StorageEncryption encryption,
+      final Map<String, String> keyMap, final ExecutorService executor) throws FileNotFoundException {
+    this.storageFiles = getStorageFiles(storageFile).iterator();
+    this.storageReader = openReader(this.storageFiles.next());
+    this.encryption = encryption;
+    this.keyMap = keyMap;
+    this.executor = encryption != null ? executor : null;
+    this.readAhead = this.executor != null ? READ_AHEAD : 1;
   }
 
   @Override
   public boolean hasNext() {
+    this.readAhead();
+    return !this.pending.isEmpty();
+  }
+
+  @Override
+  public StorageRecord next() throws RuntimeException {
+    this.readAhead();
+    final Future<StorageRecord> next = this.pending.poll();
+    if (next == null) {
+      throw new NoSuchElementException("No more records in storage file");
+    }
     try {
-      return this.storageReader.ready();
+      if (this.executor == null) {
+        ((FutureTask<StorageRecord>) next).run();
+      }
+      return next.get();
     }
-    catch (final IOException e) {
-      return false;
+    catch (final ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException
+          ? (RuntimeException) e.getCause()
+          : new RuntimeException(e.getCause());
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     }
   }
 
-  @Override
-  public StorageRecord next() throws RuntimeException {
+  /**
+   * Gets the storage files holding the records of a daily storage file, being the daily storage file itself if present
+   * followed by its shard and segment files in shard and sequence order. A compressed storage file is only included if
+   * the uncompressed storage file is not present.
+   *
+   * @param storageFile the daily storage file
+   * @return list of storage files
+   * @throws FileNotFoundException if neither the daily storage file nor any shard or segment file exists
+   */
+  public static List<File> getStorageFiles(final File storageFile) throws FileNotFoundException {
+    final Pattern segmentFileName =
+        Pattern.compile(Pattern.quote(storageFile.getName()) + "(-(\\d+))?(\\.(\\d+))?(\\.gz)?");
+    final File[] segmentFiles = storageFile.getAbsoluteFile().getParentFile().listFiles(
+        (dir, name) -> segmentFileName.matcher(name).matches()
+            && !(name.endsWith(".gz") && new File(dir, name.substring(0, name.length() - 3)).exists()));
+    if (segmentFiles == null || segmentFiles.length == 0) {
+      throw new FileNotFoundException(storageFile + " (No such file or directory)");
+    }
+    final Comparator<File> order = Comparator.comparingInt(file -> getSuffixNumber(segmentFileName, file, 2));
+    return Arrays.stream(segmentFiles)
+        .sorted(order.thenComparingInt(file -> getSuffixNumber(segmentFileName, file, 4)))
+        .toList();
+  }
+
+  private static int getSuffixNumber(final Pattern segmentFileName, final File file, final int group) {
+    final Matcher matcher = segmentFileName.matcher(file.getName());
+    return matcher.matches() && matcher.group(group) != null ? Integer.parseInt(matcher.group(group)) : -1;
+  }
+
+  private static BufferedReader openReader(final File storageFile) throws FileNotFoundException {
+    InputStream in = new FileInputStream(storageFile);
+    if (storageFile.getName().endsWith(".gz")) {
+      try {
+        in = new GZIPInputStream(in);
+      }
+      catch (final IOException e) {
+        IOUtils.closeQuietly(in);
+        throw new UncheckedIOException("Failed to read compressed storage file " + storageFile, e);
+      }
+    }
+    return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads records from the storage files until the read ahead limit is reached. Records are submitted for decryption
+   * to the executor if present, or processed by the calling thread when returned.
+   */
+  private void readAhead() {
     try {
-      final String recordStr = this.storageReader.readLine();
-      return OBJECT_MAPPER.readValue(recordStr, StorageRecord.class);
+      while (!this.endOfFile && this.pending.size() < this.readAhead) {
+        final String recordStr = this.storageReader.readLine();
+        if (recordStr == null && this.storageFiles.hasNext()) {
+          this.storageReader.close();
+          this.storageReader = openReader(this.storageFiles.next());
+        }
+        else if (recordStr == null) {
+          this.endOfFile = true;
+        }
+        else if (!recordStr.isBlank()) {
+          final Callable<StorageRecord> task = () -> this.getStorageRecord(recordStr);
+          this.pending.add(this.executor != null ? this.executor.submit(task) : new FutureTask<>(task));
+        }
+      }
     }
     catch (final IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  private StorageRecord getStorageRecord(final String recordStr) throws IOException {
+    final StorageRecord storageRecord = OBJECT_MAPPER.readValue(recordStr, StorageRecord.class);
+    if (this.encryption == null) {
+      return storageRecord;
+    }
+    if (storageRecord.getEId() != null) {
+      final byte[] id = this.encryption.decryptData(Base64.decode(storageRecord.getEId()), false, this.keyMap);
+      storageRecord.setId(URLEncoder.encode(new String(id, StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+      storageRecord.setEId(null);
+    }
+    if (storageRecord.getECert() != null) {
+      final byte[] cert = this.encryption.decryptData(Base64.decode(storageRecord.getECert()), true, this.keyMap);
+      storageRecord.setCert(Base64.toBase64String(cert));
+      storageRecord.setECert(null);
+    }
+    return storageRecord;
+  }
+
   @Override
   public void remove() throws UnsupportedOperationException {
     throw new UnsupportedOperationException("This operation is not supported");
@@ -85,6 +282,8 @@ public class StoredCertificateIterator implements Iterator<StorageRecord>, Close
 
   @Override
   public void close() throws IOException {
+    this.pending.forEach(future -> future.cancel(false));
+    this.pending.clear();
     this.storageReader.close();
   }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.data;
+
+import java.math.BigInteger;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Binary storage data record used to store certificate data in segment storage files.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class SegmentRecord {
+
+  /** Certificate serial number */
+  private BigInteger serial;
+
+  /** Issue time in epoch seconds */
+  private long notBefore;
+
+  /** Expiry time in epoch seconds */
+  private long notAfter;
+
+  /** True if the id and the certificate are encrypted */
+  private boolean encrypted;
+
+  /** Subject primary id as UTF-8 bytes, or the encrypted id */
+  private byte[] id;
+
+  /** The DER encoded certificate, or the encrypted certificate */
+  private byte[] cert;
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * JSON serializable description of a sealed storage segment listed in the storage manifest.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class StorageSegment {
+
+  /** The name of the storage file of the segment, excluding any compression extension */
+  private String fileName;
+
+  /** The number of certificates stored in the segment */
+  private int records;
+
+  /** The size of the uncompressed storage file */
+  private long size;
+
+  /** True if the storage file is compressed */
+  private boolean compressed;
+
+  /** The lowest certificate serial number in the segment as hex string */
+  private String minSerial;
+
+  /** The highest certificate serial number in the segment as hex string */
+  private String maxSerial;
+
+  /** The earliest issue time of a certificate in the segment in epoch seconds */
+  private long minNotBefore;
+
+  /** The latest issue time of a certificate in the segment in epoch seconds */
+  private long maxNotBefore;
+
+  /** The latest expiry time of a certificate in the segment in epoch seconds */
+  private long maxNotAfter;
+
+}
@@ -0,0 +1,892 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.engine.ca.attribute.CertAttributes;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.signservice.ca.storage.CARepoStorage;
+import se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException;
+import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageSegment;
+import se.swedenconnect.ca.signservice.utils.CertNameUtils;
+
+/**
+ * Abstract base class of CA repository storage services storing certificates in daily storage files.
+ *
+ * <p>
+ * This class implements revocation through a {@link RevocationRegistry}, the {@link CertificateIndex} of stored
+ * certificates and the {@link GroupCommitStorageWriter} appending storage records to the storage files. Subclasses
+ * provide the format of the storage records and of the storage files.
+ * </p>
+ *
+ * <p>
+ * Storage may be divided into a number of shards, each with its own storage writer appending to its own daily storage
+ * file named with the shard number as suffix, e.g. {@code certStore-2024-01-01-3}. The shard of a certificate is
+ * chosen by its serial number, so that certificates are written and forced to disk by several writers in parallel.
+ * The certificate index covers the storage files of all shards, so certificates are retrieved regardless of the shard
+ * they are stored in. Without sharding, each daily storage file is named without suffix.
+ * </p>
+ *
+ * <p>
+ * A storage file may be divided into segments according to a {@link StorageRollover} policy. Storage then moves on to a
+ * new segment of the same day when the current segment reaches its maximum size, number of records or age. Segments
+ * following the first segment of a day are named with a sequence number as suffix, e.g.
+ * {@code certStore-2024-01-01.2}. When storage moves on to the next segment or day, the previous segment is sealed. A
+ * sealed segment is listed in the {@link StorageManifest} with the range of serial numbers and issue times of its
+ * certificates, and may be compressed. Certificates in compressed segments are still retrieved through the certificate
+ * index.
+ * </p>
+ */
+@Slf4j
+public abstract class AbstractCARepoStorage implements CARepoStorage, Closeable {
+
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+  /** The file name extension of the storage manifest, replacing the extension of the index file */
+  private static final String MANIFEST_FILE_EXTENSION = ".manifest";
+
+  /** The maximum time to wait for a storage writer to write a certificate and force it to disk */
+  private static final Duration STORE_TIMEOUT = Duration.ofMinutes(1);
+
+  /** optional encryption handler to encrypt and decrypt data */
+  protected final StorageEncryption encryption;
+
+  /** The directory of the storage files */
+  protected final File storageDirectory;
+
+  /** The name prefix of the daily storage files */
+  private final String storageFilePrefix;
+
+  /** In memory registry of revoked certificates backed by the revocation file */
+  private final RevocationRegistry revocationRegistry;
+
+  /** Index of stored certificates */
+  protected final CertificateIndex certificateIndex;
+
+  /** Writers appending storage records to the storage files, one for each storage shard */
+  private final GroupCommitStorageWriter[] storageWriters;
+
+  /** The policy for moving on to a new storage segment */
+  private final StorageRollover rollover;
+
+  /** The current storage segment of each storage shard */
+  private final SegmentState[] segments;
+
+  /** Manifest of sealed storage segments */
+  @Getter
+  private final StorageManifest manifest;
+
+  /** Executor compressing sealed storage segments, or null if sealed storage segments are not compressed */
+  private final ExecutorService compressionExecutor;
+
+  /**
+   * This is a second line defense preventing this CA from keep issuing certificates if there has been a critical error
+   * writing issued certificates to the file storage. The primary defence is to throw the
+   * {@link se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException} that should allow the application to
+   * shut down gracefully. However, in case this is not properly implemented, this boolean ensures that this storage
+   * module will re-throw the exception instead of allowing any more certificate to be stored.
+   */
+  @Getter
+  private volatile boolean criticalStorageError = false;
+
+  /** The attribute used to extract the id of the certificate subject */
+  @Setter
+  private ASN1ObjectIdentifier idAttribute = CertAttributes.SERIALNUMBER;
+
+  /** Optional map of key passwords under their kid for decrypting certificates encrypted with non default keys */
+  @Setter
+  protected Map<String, String> decryptionKeyMap;
+
+  /**
+   * Constructor.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @param indexFileName the name of the certificate index file
+   * @param storageFilePrefix the name prefix of the daily storage files
+   * @param recordScanner scanner locating the records of a storage file
+   * @throws IOException error instantiating this storage service
+   */
+  protected AbstractCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay, @Nonnull final String indexFileName,
+      @Nonnull final String storageFilePrefix, @Nonnull final CertificateIndex.RecordScanner recordScanner)
+      throws IOException {
+    this(storageDirectory, revocationFile, encryption, durability, maxForceDelay, 1, null, indexFileName,
+        storageFilePrefix, recordScanner);
+  }
+
+  /**
+   * Constructor for storage divided into storage shards and storage segments.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @param storageShards the number of storage shards, where 1 stores all certificates in one daily storage file
+   * @param rollover the policy for moving on to a new storage segment, or null to store all certificates of a day
+   *          in one storage file
+   * @param indexFileName the name of the certificate index file
+   * @param storageFilePrefix the name prefix of the daily storage files
+   * @param recordScanner scanner locating the records of a storage file
+   * @throws IOException error instantiating this storage service
+   */
+  protected AbstractCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay, final int storageShards, @Nullable final StorageRollover rollover,
+      @Nonnull final String indexFileName, @Nonnull final String storageFilePrefix,
+      @Nonnull final CertificateIndex.RecordScanner recordScanner) throws IOException {
+    if (storageShards < 1) {
+      throw new IllegalArgumentException("The number of storage shards must be at least 1");
+    }
+    this.encryption = encryption;
+    this.storageDirectory = Objects.requireNonNull(storageDirectory, "storageDirectory must not be null");
+    this.storageFilePrefix = Objects.requireNonNull(storageFilePrefix, "storageFilePrefix must not be null");
+    if (!storageDirectory.exists()) {
+      throw new IOException("Storage directory " + storageDirectory.getAbsolutePath() + " does not exist");
+    }
+    log.info("Initiated certificate storage at: {}", storageDirectory);
+    log.info("Revocation info file: {}", revocationFile);
+    this.revocationRegistry = new RevocationRegistry(revocationFile);
+    log.info("Initiated storage with {} revoked certificates", this.revocationRegistry.size());
+    this.certificateIndex = new CertificateIndex(storageDirectory, indexFileName, storageFilePrefix, recordScanner);
+    this.storageWriters = new GroupCommitStorageWriter[storageShards];
+    for (int shard = 0; shard < storageShards; shard++) {
+      this.storageWriters[shard] = new GroupCommitStorageWriter(storageDirectory,
+          GroupCommitStorageWriter.DEFAULT_MAX_BATCH_SIZE, durability, maxForceDelay, this.certificateIndex,
+          new GroupCommitStorageWriter.StorageFileSealer() {
+            @Override
+            public byte[] getSealingData(final String fileName, final long offset) throws IOException {
+              return AbstractCARepoStorage.this.getSealingData(fileName, offset);
+            }
+
+            @Override
+            public long getSealingDataOffset(final File storageFile) throws IOException {
+              return AbstractCARepoStorage.this.getSealingDataOffset(storageFile);
+            }
+          });
+    }
+    log.info("Certificate storage durability: {}", durability == StorageDurability.BATCH
+        ? durability + " (max force delay " + maxForceDelay.toMillis() + " ms)"
+        : durability);
+    if (storageShards > 1) {
+      log.info("Certificate storage divided into {} storage shards", storageShards);
+    }
+    this.rollover = rollover != null ? rollover : new StorageRollover();
+    this.manifest = new StorageManifest(
+        new File(storageDirectory, StringUtils.removeEnd(indexFileName, ".idx") + MANIFEST_FILE_EXTENSION));
+    this.compressionExecutor = this.rollover.isCompressSealedSegments()
+        ? Executors.newSingleThreadExecutor(runnable -> {
+          final Thread thread = new Thread(runnable, "certStore-compress-" + storageDirectory.getName());
+          thread.setDaemon(true);
+          return thread;
+        })
+        : null;
+    this.segments = new SegmentState[storageShards];
+    final long now = System.currentTimeMillis();
+    for (int shard = 0; shard < storageShards; shard++) {
+      this.segments[shard] = new SegmentState(shard);
+      this.openDay(this.segments[shard], now);
+    }
+    this.sealUnlistedSegments();
+  }
+
+  /**
+   * Creates the storage record of a certificate.
+   *
+   * @param certificate the certificate
+   * @param certificateBytes the DER encoded certificate
+   * @return the storage record bytes appended to the storage file
+   * @throws IOException error creating the storage record
+   */
+  protected abstract byte[] getStorageRecordData(@Nonnull final X509CertificateHolder certificate,
+      @Nonnull final byte[] certificateBytes) throws IOException;
+
+  /**
+   * Gets the certificate held by a storage record.
+   *
+   * @param recordData the storage record bytes read from the storage file
+   * @param serialNumber the serial number of the certificate
+   * @return the certificate bytes
+   * @throws IOException error reading the certificate from the storage record
+   */
+  protected abstract byte[] getCertificate(@Nonnull final byte[] recordData, @Nonnull final BigInteger serialNumber)
+      throws IOException;
+
+  /**
+   * Gets data to append to a storage file when the storage writer closes it. The default implementation appends no
+   * data.
+   *
+   * @param fileName the name of the storage file
+   * @param offset the offset in the storage file where the data is appended
+   * @return the data to append or null if no data is to be appended
+   * @throws IOException error creating the data
+   */
+  @Nullable
+  protected byte[] getSealingData(@Nonnull final String fileName, final long offset) throws IOException {
+    return null;
+  }
+
+  /**
+   * Gets the offset of the sealing data at the end of a storage file that is opened for appending records. The sealing
+   * data is removed before records are appended and replaced when the storage file is sealed again. The default
+   * implementation reports no sealing data.
+   *
+   * @param storageFile the storage file
+   * @return the offset of the sealing data, or the length of the storage file if it does not end with sealing data
+   * @throws IOException error reading the storage file
+   */
+  protected long getSealingDataOffset(@Nonnull final File storageFile) throws IOException {
+    return storageFile.length();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void storeCertificate(@Nonnull final byte[] certificateBytes)
+      throws IOException, CertificateStorageException {
+    Objects.requireNonNull(certificateBytes, "Certificate bytes must not be null");
+    this.storeCertificate(new X509CertificateHolder(certificateBytes), certificateBytes);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The serial number, validity period and subject id are obtained from the parsed structures of the certificate, so
+   * the certificate is encoded once and never parsed again.
+   * </p>
+   */
+  @Override
+  public void storeCertificate(@Nonnull final X509CertificateHolder certificate)
+      throws IOException, CertificateStorageException {
+    Objects.requireNonNull(certificate, "Certificate must not be null");
+    this.storeCertificate(certificate, certificate.getEncoded());
+  }
+
+  /**
+   * Stores a certificate.
+   *
+   * @param certificate the certificate
+   * @param certificateBytes the DER encoded certificate
+   * @throws IOException error processing the data
+   * @throws CertificateStorageException critical error attempting to write the certificate to the storage
+   */
+  private void storeCertificate(final X509CertificateHolder certificate, final byte[] certificateBytes)
+      throws IOException, CertificateStorageException {
+
+    if (this.criticalStorageError) {
+      // There has been a critical storage error on previous storage attempts. This must be fixed
+      // and system must be restarted
+      throw new CertificateStorageException(
+          "Storage rejected due to previous storage failure. System must be restarted");
+    }
+
+    final BigInteger serialNumber = certificate.getSerialNumber();
+    final int shard = Math.floorMod(serialNumber.hashCode(), this.storageWriters.length);
+    final byte[] storageRecordData = this.getStorageRecordData(certificate, certificateBytes);
+
+    // Records are submitted in the order their segment is selected, so that a writer never returns to a sealed segment
+    final Map<String, SegmentRange> sealedSegments = new LinkedHashMap<>(2);
+    final long notBefore = certificate.getNotBefore().toInstant().getEpochSecond();
+    final long notAfter = certificate.getNotAfter().toInstant().getEpochSecond();
+    final CompletableFuture<Void> stored;
+    final SegmentState segment = this.segments[shard];
+    synchronized (segment) {
+      this.selectSegment(segment, storageRecordData.length, sealedSegments);
+      segment.range.add(serialNumber, notBefore, notAfter);
+      stored = this.storageWriters[shard].submit(segment.fileName, storageRecordData, serialNumber, notBefore,
+          notAfter);
+    }
+
+    // Append file and wait until the record has been forced to disk
+    try {
+      stored.get(STORE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    catch (final ExecutionException e) {
+      // In case of file write error, this is considered an irrecoverable error as it would lead to a certificate being
+      // issued without being stored.
+      this.criticalStorageError = true;
+      throw new CertificateStorageException(e.getCause());
+    }
+    catch (final InterruptedException e) {
+      // The record may or may not be stored. The certificate must not be issued, but storage can still be trusted.
+      Thread.currentThread().interrupt();
+      throw new CertificateStorageException("Interrupted while waiting for certificate to be stored", e);
+    }
+    catch (final TimeoutException e) {
+      // The storage writer is not making progress, so no further certificate can be trusted to be stored
+      this.criticalStorageError = true;
+      throw new CertificateStorageException("Timeout waiting for certificate to be stored", e);
+    }
+
+    // The writer has sealed the previous segment before writing the first record of the next segment
+    sealedSegments.forEach(this::sealSegment);
+  }
+
+  /**
+   * Selects the storage segment of the next record of a storage shard, moving on to a new segment if the date has
+   * changed or the rollover policy requires it.
+   *
+   * @param segment the current segment of the storage shard
+   * @param recordLength the length of the next record
+   * @param sealedSegments map receiving the storage file names and the record ranges of segments that are left
+   */
+  private void selectSegment(final SegmentState segment, final int recordLength,
+      final Map<String, SegmentRange> sealedSegments) {
+    final long now = System.currentTimeMillis();
+    if (now >= segment.dayEnd) {
+      sealedSegments.put(segment.fileName, segment.range);
+      this.openDay(segment, now);
+    }
+    if (segment.range.records > 0 && this.isRolloverDue(segment, recordLength, now)) {
+      sealedSegments.put(segment.fileName, segment.range);
+      segment.open(segment.sequence + 1, 0L, now);
+    }
+    segment.size += recordLength;
+  }
+
+  private boolean isRolloverDue(final SegmentState segment, final int recordLength, final long now) {
+    final Duration maxSegmentAge = this.rollover.getMaxSegmentAge();
+    return this.rollover.getMaxSegmentSize() > 0 && segment.size + recordLength > this.rollover.getMaxSegmentSize()
+        || this.rollover.getMaxSegmentRecords() > 0 && segment.range.records >= this.rollover.getMaxSegmentRecords()
+        || maxSegmentAge != null && now - segment.openedAt >= maxSegmentAge.toMillis();
+  }
+
+  /**
+   * Sets the segment of a storage shard to the last segment of the current day, or to the segment following it if the
+   * last segment has been sealed. The day is formatted once, so that storing a certificate only compares the time
+   * with the end of the day. The record range of a segment that already holds records is set from the index entries
+   * of its storage file.
+   *
+   * @param segment the segment of the storage shard
+   * @param now the current time in epoch milliseconds
+   */
+  private void openDay(final SegmentState segment, final long now) {
+    final ZoneId zoneId = ZoneId.systemDefault();
+    final LocalDate date = Instant.ofEpochMilli(now).atZone(zoneId).toLocalDate();
+    segment.baseName = this.storageFilePrefix + date.format(DATE_FORMAT)
+        + (this.segments.length == 1 ? "" : "-" + segment.shard);
+    segment.dayEnd = date.plusDays(1).atStartOfDay(zoneId).toInstant().toEpochMilli();
+
+    final Pattern segmentName = Pattern.compile(Pattern.quote(segment.baseName) + "(\\.(\\d+))?("
+        + Pattern.quote(StorageManifest.COMPRESSED_FILE_EXTENSION) + ")?");
+    int sequence = 0;
+    final String[] fileNames = this.storageDirectory.list();
+    for (final String fileName : fileNames != null ? fileNames : new String[0]) {
+      final Matcher matcher = segmentName.matcher(fileName);
+      if (matcher.matches() && matcher.group(2) != null) {
+        sequence = Math.max(sequence, Integer.parseInt(matcher.group(2)));
+      }
+    }
+    final String fileName = SegmentState.getFileName(segment.baseName, sequence);
+    final File storageFile = new File(this.storageDirectory, fileName);
+    if (this.manifest.get(fileName) != null || !storageFile.exists()
+        && new File(this.storageDirectory, fileName + StorageManifest.COMPRESSED_FILE_EXTENSION).exists()) {
+      segment.open(sequence + 1, 0L, now);
+    }
+    else {
+      segment.open(sequence, storageFile.length(), now);
+      for (final CertificateIndex.IndexEntry entry : this.certificateIndex.getEntries(fileName)) {
+        segment.range.add(entry.serial(), entry.notBefore(), entry.notAfter());
+      }
+    }
+  }
+
+  /**
+   * Seals the indexed storage files that are neither listed in the manifest nor the current segment of a storage
+   * shard, e.g. storage files of previous days when storage was stopped. All such segments are added to the manifest
+   * with one write of the manifest file.
+   */
+  private void sealUnlistedSegments() {
+    if (this.rollover.isDefault()) {
+      return;
+    }
+    final Set<String> currentFileNames = new HashSet<>();
+    for (final SegmentState segment : this.segments) {
+      currentFileNames.add(segment.fileName);
+    }
+    final Map<String, SegmentRange> unlisted = new TreeMap<>();
+    for (final CertificateIndex.IndexEntry entry : this.certificateIndex.getEntries()) {
+      if (!currentFileNames.contains(entry.fileName()) && this.manifest.get(entry.fileName()) == null) {
+        unlisted.computeIfAbsent(entry.fileName(), fileName -> new SegmentRange())
+            .add(entry.serial(), entry.notBefore(), entry.notAfter());
+      }
+    }
+    final List<StorageSegment> sealed = new ArrayList<>(unlisted.size());
+    unlisted.forEach((fileName, range) -> sealed.add(this.getSealedSegment(fileName, range)));
+    this.sealSegments(sealed);
+  }
+
+  /**
+   * Lists a sealed segment in the manifest and compresses it if sealed segments are to be compressed.
+   *
+   * @param fileName the name of the storage file of the segment
+   * @param range the range of the records written to the segment
+   */
+  private void sealSegment(final String fileName, final SegmentRange range) {
+    if (this.rollover.isDefault() || range.records == 0) {
+      return;
+    }
+    this.sealSegments(List.of(this.getSealedSegment(fileName, range)));
+  }
+
+  /**
+   * Lists sealed segments in the manifest and compresses them if sealed segments are to be compressed.
+   *
+   * @param sealed the sealed segments
+   */
+  private void sealSegments(final List<StorageSegment> sealed) {
+    if (sealed.isEmpty()) {
+      return;
+    }
+    try {
+      this.manifest.putAll(sealed);
+      log.debug("Sealed {} storage segments", sealed.size());
+    }
+    catch (final IOException e) {
+      // The manifest is recreated from the certificate index, so this is not considered a storage error
+      log.error("Failed to add {} storage segments to storage manifest", sealed.size(), e);
+    }
+    if (this.compressionExecutor != null) {
+      for (final StorageSegment segment : sealed) {
+        if (!segment.isCompressed()) {
+          this.compressionExecutor.execute(() -> this.compressSegment(segment));
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the manifest listing of a sealed segment from the range of its records.
+   *
+   * @param fileName the name of the storage file of the segment
+   * @param range the range of the records of the segment, holding at least one record
+   * @return the sealed segment
+   */
+  private StorageSegment getSealedSegment(final String fileName, final SegmentRange range) {
+    final File storageFile = new File(this.storageDirectory, fileName);
+    return StorageSegment.builder()
+        .fileName(fileName)
+        .records(range.records)
+        .size(storageFile.exists() ? storageFile.length() : this.certificateIndex.getIndexedEnd(fileName))
+        .compressed(!storageFile.exists())
+        .minSerial(range.minSerial.toString(16))
+        .maxSerial(range.maxSerial.toString(16))
+        .minNotBefore(range.minNotBefore)
+        .maxNotBefore(range.maxNotBefore)
+        .maxNotAfter(range.maxNotAfter)
+        .build();
+  }
+
+  /**
+   * Replaces the storage file of a sealed segment with a compressed storage file. The compressed storage file is
+   * forced to disk before the storage file is removed.
+   *
+   * @param segment the sealed segment
+   */
+  private void compressSegment(final StorageSegment segment) {
+    final File storageFile = new File(this.storageDirectory, segment.getFileName());
+    final File compressedFile =
+        new File(this.storageDirectory, segment.getFileName() + StorageManifest.COMPRESSED_FILE_EXTENSION);
+    final File tempFile = new File(this.storageDirectory, compressedFile.getName() + ".tmp");
+    try {
+      try (InputStream in = new FileInputStream(storageFile);
+          FileOutputStream fileOut = new FileOutputStream(tempFile);
+          GZIPOutputStream out = new GZIPOutputStream(fileOut, 65536)) {
+        in.transferTo(out);
+        out.finish();
+        fileOut.getChannel().force(true);
+      }
+      Files.move(tempFile.toPath(), compressedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      segment.setCompressed(true);
+      this.manifest.put(segment);
+      Files.delete(storageFile.toPath());
+      log.info("Compressed sealed storage segment {} from {} to {} bytes", segment.getFileName(), segment.getSize(),
+          compressedFile.length());
+    }
+    catch (final IOException e) {
+      log.error("Failed to compress storage segment {}", segment.getFileName(), e);
+      tempFile.delete();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] getCertificate(@Nonnull final BigInteger serialNumber) throws IOException {
+    final CertificateIndex.IndexEntry indexEntry = this.certificateIndex.get(serialNumber);
+    if (indexEntry == null) {
+      return null;
+    }
+    return this.getCertificate(this.certificateIndex.readRecordBytes(indexEntry), serialNumber);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The certificate is looked up in the certificate index, which holds every stored certificate before the storage
+   * request returns.
+   * </p>
+   */
+  @Override
+  public boolean isCertificateStored(@Nonnull final BigInteger serialNumber) {
+    return this.certificateIndex.get(serialNumber) != null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<BigInteger> getCertificateSerials() {
+    final List<BigInteger> serials = new ArrayList<>(this.certificateIndex.size());
+    this.certificateIndex.getEntries().forEach(indexEntry -> serials.add(indexEntry.serial()));
+    return serials;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getCertificateCount(final boolean notRevoked) {
+    return notRevoked
+        ? this.certificateIndex.count(this.getFilter(true))
+        : this.certificateIndex.size();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<BigInteger> getCertificateSerials(final int page, final int pageSize, final boolean notRevoked,
+      @Nullable final SortBy sortBy, final boolean descending) {
+    if (page < 0 || pageSize <= 0) {
+      return new ArrayList<>();
+    }
+    final CertificateIndex.Order order = sortBy == SortBy.issueDate
+        ? CertificateIndex.Order.ISSUE_DATE
+        : CertificateIndex.Order.SERIAL_NUMBER;
+    final long offset = (long) page * pageSize;
+    if (offset >= Integer.MAX_VALUE) {
+      return new ArrayList<>();
+    }
+    final List<BigInteger> serials = new ArrayList<>(pageSize);
+    this.certificateIndex.getRange((int) offset, pageSize, order, descending, this.getFilter(notRevoked))
+        .forEach(indexEntry -> serials.add(indexEntry.serial()));
+    return serials;
+  }
+
+  private Predicate<CertificateIndex.IndexEntry> getFilter(final boolean notRevoked) {
+    return notRevoked
+        ? indexEntry -> this.revocationRegistry.getRevokedCertificate(indexEntry.serial()) == null
+        : indexEntry -> true;
+  }
+
+  /**
+   * Discards the certificate index and rebuilds it from the storage files.
+   *
+   * @throws IOException error reading the storage files or writing the index
+   */
+  public void rebuildCertificateIndex() throws IOException {
+    this.certificateIndex.rebuild();
+  }
+
+  /**
+   * Gets statistics about certificate storage writes and the latency of forcing written data to disk. With storage
+   * shards, the statistics of all shards are combined.
+   *
+   * @return storage write statistics
+   */
+  public StorageWriteStatistics getWriteStatistics() {
+    if (this.storageWriters.length == 1) {
+      return this.storageWriters[0].getStatistics();
+    }
+    return StorageWriteStatistics.combine(
+        Arrays.stream(this.storageWriters).map(GroupCommitStorageWriter::getStatistics).toList());
+  }
+
+  /**
+   * Closes this storage after all pending storage records have been written.
+   */
+  @Override
+  public void close() throws IOException {
+    for (final GroupCommitStorageWriter storageWriter : this.storageWriters) {
+      storageWriter.close();
+    }
+    if (this.compressionExecutor != null) {
+      this.compressionExecutor.shutdown();
+      try {
+        this.compressionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.certificateIndex.close();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void revokeCertificate(final RevokedCertificate revokedCertificate)
+      throws CertificateRevocationException {
+    this.revocationRegistry.revoke(revokedCertificate);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<RevokedCertificate> getRevokedCertificates() {
+    return this.revocationRegistry.getRevokedCertificates();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getRevokedCertificateCount() {
+    this.revocationRegistry.refreshIfModified();
+    return this.revocationRegistry.size();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public RevokedCertificate getRevokedCertificate(@Nonnull final BigInteger serialNumber) {
+    return this.revocationRegistry.getRevokedCertificate(serialNumber);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The revocation file is checked for modifications at most once per modification check interval of the
+   * {@link RevocationRegistry}.
+   * </p>
+   */
+  @Override
+  public long getRevocationDataGeneration() {
+    this.revocationRegistry.refreshIfCheckDue();
+    return this.revocationRegistry.getGeneration();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The validity period is obtained from the certificate index.
+   * </p>
+   */
+  @Override
+  public Instant getCertificateNotAfter(@Nonnull final BigInteger serialNumber) {
+    final CertificateIndex.IndexEntry indexEntry = this.certificateIndex.get(serialNumber);
+    return indexEntry == null ? null : Instant.ofEpochSecond(indexEntry.notAfter());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The expiry time of each revoked certificate is obtained from the certificate index, so no stored certificate is
+   * read. The removal is recorded in the removal file next to the revocation file, and the remaining revocation data is
+   * then written to the revocation file once.
+   * </p>
+   */
+  @Override
+  public List<BigInteger> removeExpiredRevocations(@Nonnull final Instant expiredBefore) {
+    final long expiredBeforeSeconds = expiredBefore.getEpochSecond();
+    final List<BigInteger> expired = new ArrayList<>();
+    this.revocationRegistry.refreshIfModified();
+    for (final BigInteger revokedSerial : this.revocationRegistry.getRevokedSerials()) {
+      final CertificateIndex.IndexEntry indexEntry = this.certificateIndex.get(revokedSerial);
+      if (indexEntry != null && indexEntry.notAfter() < expiredBeforeSeconds) {
+        expired.add(revokedSerial);
+      }
+    }
+    try {
+      return this.revocationRegistry.remove(expired, expiredBefore);
+    }
+    catch (final IOException e) {
+      log.error("Failed to record removal of expired revocation data - No revocation data was removed", e);
+      return new ArrayList<>();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Instant getExpiredRevocationsRemovedBefore() {
+    return this.revocationRegistry.getRemovedBefore();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isRevocationDataRemoved(@Nonnull final BigInteger serialNumber) {
+    return this.revocationRegistry.isRemoved(serialNumber);
+  }
+
+  /**
+   * Gets the id of the certificate subject from the configured id attribute.
+   *
+   * @param certificate the certificate
+   * @return the subject id
+   * @throws IOException if the certificate holds no subject id
+   */
+  protected String getSubjectId(@Nonnull final X509CertificateHolder certificate) throws IOException {
+    return getSubjectId(certificate, this.idAttribute);
+  }
+
+  /**
+   * Gets the id of the certificate subject from an id attribute.
+   *
+   * @param certificate the certificate
+   * @param idAttribute the attribute holding the id of the certificate subject
+   * @return the subject id
+   * @throws IOException if the certificate holds no subject id
+   */
+  static String getSubjectId(@Nonnull final X509CertificateHolder certificate,
+      @Nonnull final ASN1ObjectIdentifier idAttribute) throws IOException {
+    final Map<ASN1ObjectIdentifier, String> subjectAttributes = CertNameUtils.getSubjectAttributes(certificate);
+    if (!subjectAttributes.containsKey(idAttribute)) {
+      throw new IOException("Required subject ID attribute is not present in the certificate");
+    }
+    final String idString = subjectAttributes.get(idAttribute);
+    if (StringUtils.isBlank(idString)) {
+      throw new IOException("Required subject ID attribute must not be empty");
+    }
+    return idString;
+  }
+
+  /**
+   * The current storage segment of a storage shard.
+   */
+  private static class SegmentState {
+
+    /** The storage shard */
+    private final int shard;
+
+    /** The name of the storage files of the current day and shard, excluding the segment sequence number */
+    private String baseName;
+
+    /** The end of the current day in epoch milliseconds */
+    private long dayEnd;
+
+    /** The sequence number of the segment within the current day */
+    private int sequence;
+
+    /** The name of the storage file of the segment */
+    private String fileName;
+
+    /** The size of the storage file of the segment */
+    private long size;
+
+    /** The range of the records in the segment */
+    private SegmentRange range = new SegmentRange();
+
+    /** The time the segment was opened in epoch milliseconds */
+    private long openedAt;
+
+    private SegmentState(final int shard) {
+      this.shard = shard;
+    }
+
+    private void open(final int sequence, final long size, final long openedAt) {
+      this.sequence = sequence;
+      this.fileName = getFileName(this.baseName, sequence);
+      this.size = size;
+      this.range = new SegmentRange();
+      this.openedAt = openedAt;
+    }
+
+    private static String getFileName(final String baseName, final int sequence) {
+      return sequence == 0 ? baseName : baseName + "." + sequence;
+    }
+  }
+
+  /**
+   * The number of records of a storage segment and the range of their serial numbers and validity periods, updated as
+   * records are written so that a segment is sealed without reading the certificate index.
+   */
+  private static class SegmentRange {
+
+    /** The number of records in the segment */
+    private int records;
+
+    /** The lowest serial number in the segment, or null if the segment holds no records */
+    private BigInteger minSerial;
+
+    /** The highest serial number in the segment, or null if the segment holds no records */
+    private BigInteger maxSerial;
+
+    /** The earliest issue time in the segment in epoch seconds */
+    private long minNotBefore = Long.MAX_VALUE;
+
+    /** The latest issue time in the segment in epoch seconds */
+    private long maxNotBefore = Long.MIN_VALUE;
+
+    /** The latest expiry time in the segment in epoch seconds */
+    private long maxNotAfter = Long.MIN_VALUE;
+
+    private void add(final BigInteger serial, final long notBefore, final long notAfter) {
+      this.records++;
+      this.minSerial = this.minSerial == null || serial.compareTo(this.minSerial) < 0 ? serial : this.minSerial;
+      this.maxSerial = this.maxSerial == null || serial.compareTo(this.maxSerial) > 0 ? serial : this.maxSerial;
+      this.minNotBefore = Math.min(this.minNotBefore, notBefore);
+      this.maxNotBefore = Math.max(this.maxNotBefore, notBefore);
+      this.maxNotAfter = Math.max(this.maxNotAfter, notAfter);
+    }
+  }
+
+}
@@ -0,0 +1,640 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.StorageFileReader;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Index of stored certificates mapping certificate serial numbers to the location of their storage record.
+ *
+ * <p>
+ * The index is persisted in the index file {@value #INDEX_FILE_NAME} in the storage directory as a sequence of binary
+ * entries, each holding the serial number, the name of the storage file, the offset and length of the storage record
+ * in that file and the validity period of the certificate. New entries are appended to the index file as certificates
+ * are stored. The full index is also held in memory, which makes retrieval of a stored certificate a single seek in its
+ * storage file. In memory, the entries are kept sorted by serial number and by issue date, so a range of entries in
+ * either order is read without sorting the index.
+ * </p>
+ *
+ * <p>
+ * When the index is loaded, every storage file is compared with the indexed data. Storage records located after the
+ * last indexed record of a storage file, e.g. because the server stopped before the index file was updated, are read
+ * from the storage file and added to the index. Storage files that have been compressed once sealed are read through
+ * decompression, and are indexed under the name of the uncompressed storage file. A lost or corrupt index file can be
+ * recreated from the storage files using {@link #rebuild()}.
+ * </p>
+ *
+ * <p>
+ * By default, the index covers JSON lines storage files. Other storage formats are indexed by providing the name of
+ * the index file, the name prefix of the storage files and a {@link RecordScanner} locating the records of a storage
+ * file.
+ * </p>
+ */
+@Slf4j
+public class CertificateIndex implements Closeable {
+
+  /** The name of the index file */
+  public static final String INDEX_FILE_NAME = "certStore.idx";
+
+  /** The name prefix of certificate storage files */
+  public static final String STORAGE_FILE_PREFIX = "certStore-";
+
+  private static final DateTimeFormatter CERT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** Name of a storage file split into the name of its daily storage file and its segment sequence number */
+  private static final Pattern SEGMENT_NAME = Pattern.compile("(.*?)(\\.(\\d+))?("
+      + Pattern.quote(StorageManifest.COMPRESSED_FILE_EXTENSION) + ")?");
+
+  /** Orders storage files by daily storage file and then by segment sequence number */
+  static final Comparator<File> STORAGE_ORDER = Comparator.comparing((File file) -> {
+    final Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+    return matcher.matches() ? matcher.group(1) : file.getName();
+  }).thenComparingInt(file -> {
+    final Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+    return matcher.matches() && matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 0;
+  });
+
+  /** The storage directory */
+  private final File storageDirectory;
+
+  /** The index file */
+  private final File indexFile;
+
+  /** The name prefix of the indexed storage files */
+  private final String storageFilePrefix;
+
+  /** Scanner locating the records of a storage file */
+  private final RecordScanner recordScanner;
+
+  /** The index data in memory, replaced as a whole when the index is rebuilt */
+  private volatile IndexData data = new IndexData();
+
+  /** Output for appending entries to the index file */
+  private DataOutputStream indexOut;
+
+  /**
+   * Constructor loading the index file and indexing any storage records not yet present in the index file.
+   *
+   * @param storageDirectory the storage directory
+   * @throws IOException error reading or writing index data
+   */
+  public CertificateIndex(@Nonnull final File storageDirectory) throws IOException {
+    this(storageDirectory, INDEX_FILE_NAME, STORAGE_FILE_PREFIX, CertificateIndex::scanStorageFile);
+  }
+
+  /**
+   * Constructor for indexing storage files of any storage format, loading the index file and indexing any storage
+   * records not yet present in the index file.
+   *
+   * @param storageDirectory the storage directory
+   * @param indexFileName the name of the index file
+   * @param storageFilePrefix the name prefix of the indexed storage files
+   * @param recordScanner scanner locating the records of a storage file
+   * @throws IOException error reading or writing index data
+   */
+  public CertificateIndex(@Nonnull final File storageDirectory, @Nonnull final String indexFileName,
+      @Nonnull final String storageFilePrefix, @Nonnull final RecordScanner recordScanner) throws IOException {
+    this.storageDirectory = Objects.requireNonNull(storageDirectory, "storageDirectory must not be null");
+    this.indexFile =
+        new File(storageDirectory, Objects.requireNonNull(indexFileName, "indexFileName must not be null"));
+    this.storageFilePrefix = Objects.requireNonNull(storageFilePrefix, "storageFilePrefix must not be null");
+    this.recordScanner = Objects.requireNonNull(recordScanner, "recordScanner must not be null");
+    this.load();
+    this.openIndexOutput();
+    this.indexUnindexedRecords(this.data, this.indexOut);
+    log.info("Loaded certificate index with {} certificates from {}", this.data.entries.size(), this.indexFile);
+  }
+
+  /**
+   * Gets the index entry of a certificate.
+   *
+   * @param serialNumber certificate serial number
+   * @return index entry or null if no certificate with this serial number is indexed
+   */
+  @Nullable
+  public IndexEntry get(@Nonnull final BigInteger serialNumber) {
+    return this.data.entries.get(serialNumber);
+  }
+
+  /**
+   * Gets all index entries.
+   *
+   * @return unmodifiable view of all index entries
+   */
+  @Nonnull
+  public Collection<IndexEntry> getEntries() {
+    return Collections.unmodifiableCollection(this.data.entries.values());
+  }
+
+  /**
+   * Gets the index entries of the records in a storage file in file order. The entries of each storage file are held
+   * in a list of their own, so only the entries of the storage file are visited.
+   *
+   * @param fileName the name of the storage file
+   * @return list of index entries
+   */
+  @Nonnull
+  public synchronized List<IndexEntry> getEntries(@Nonnull final String fileName) {
+    final List<IndexEntry> indexed = this.data.fileEntries.get(fileName);
+    if (indexed == null) {
+      return new ArrayList<>();
+    }
+    final List<IndexEntry> sorted = new ArrayList<>(indexed);
+    sorted.sort(Comparator.comparingLong(IndexEntry::offset));
+    return sorted;
+  }
+
+  /**
+   * Gets the end offset of the last indexed record of a storage file.
+   *
+   * @param fileName the name of the storage file
+   * @return the end offset of the last indexed record, or 0 if no record of the storage file is indexed
+   */
+  public long getIndexedEnd(@Nonnull final String fileName) {
+    return this.data.indexedEnd.getOrDefault(fileName, 0L);
+  }
+
+  /**
+   * Gets the number of indexed certificates.
+   *
+   * @return number of indexed certificates
+   */
+  public int size() {
+    return this.data.entries.size();
+  }
+
+  /**
+   * Counts the index entries matching a filter.
+   *
+   * @param filter the filter
+   * @return number of matching index entries
+   */
+  public int count(@Nonnull final Predicate<IndexEntry> filter) {
+    int count = 0;
+    for (final IndexEntry entry : this.data.entries.values()) {
+      if (filter.test(entry)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Gets a range of the index entries matching a filter in the specified order. The entries are read from the sorted
+   * entries in memory, so only the entries up to the end of the range are visited and only the returned entries are
+   * held.
+   *
+   * @param offset the number of matching entries to skip
+   * @param limit the maximum number of entries to return
+   * @param order the order of the entries
+   * @param descending true to get the entries in descending order
+   * @param filter the filter
+   * @return list of at most {@code limit} matching index entries in the specified order
+   */
+  @Nonnull
+  public List<IndexEntry> getRange(final int offset, final int limit, @Nonnull final Order order,
+      final boolean descending, @Nonnull final Predicate<IndexEntry> filter) {
+    if (offset < 0 || limit <= 0) {
+      return Collections.emptyList();
+    }
+    final IndexData indexData = this.data;
+    final Iterable<IndexEntry> sorted = order == Order.ISSUE_DATE
+        ? descending ? indexData.issueDateOrder.descendingSet() : indexData.issueDateOrder
+        : descending ? indexData.entries.descendingMap().values() : indexData.entries.values();
+    final List<IndexEntry> range = new ArrayList<>(Math.min(limit, 1024));
+    int skipped = 0;
+    for (final IndexEntry entry : sorted) {
+      if (!filter.test(entry)) {
+        continue;
+      }
+      if (skipped < offset) {
+        skipped++;
+        continue;
+      }
+      range.add(entry);
+      if (range.size() == limit) {
+        break;
+      }
+    }
+    return range;
+  }
+
+  /**
+   * Adds an entry to the index. The entry is available for lookup immediately, but is only guaranteed to be written
+   * to the index file after {@link #flush()}.
+   *
+   * @param entry index entry
+   * @throws IOException error writing to the index file
+   */
+  public synchronized void add(@Nonnull final IndexEntry entry) throws IOException {
+    addToMemory(this.data, entry);
+    writeEntry(this.indexOut, entry);
+  }
+
+  /**
+   * Flushes added entries to the index file.
+   *
+   * @throws IOException error writing to the index file
+   */
+  public synchronized void flush() throws IOException {
+    this.indexOut.flush();
+  }
+
+  /**
+   * Reads the storage record of an indexed certificate from its storage file.
+   *
+   * @param entry index entry
+   * @return the storage record
+   * @throws IOException error reading the storage record
+   */
+  @Nonnull
+  public StorageRecord readRecord(@Nonnull final IndexEntry entry) throws IOException {
+    return OBJECT_MAPPER.readValue(this.readRecordBytes(entry), StorageRecord.class);
+  }
+
+  /**
+   * Reads the bytes of the storage record of an indexed certificate from its storage file.
+   *
+   * <p>
+   * A storage file that has been replaced by a compressed storage file after it was sealed is read through
+   * decompression, skipping the decompressed bytes up to the storage record. Only the storage record is held in
+   * memory.
+   * </p>
+   *
+   * @param entry index entry
+   * @return the storage record bytes
+   * @throws IOException error reading the storage record
+   */
+  @Nonnull
+  public byte[] readRecordBytes(@Nonnull final IndexEntry entry) throws IOException {
+    final byte[] recordBytes = new byte[entry.length()];
+    try (RandomAccessFile storageFile = new RandomAccessFile(new File(this.storageDirectory, entry.fileName()), "r")) {
+      storageFile.seek(entry.offset());
+      storageFile.readFully(recordBytes);
+    }
+    catch (final FileNotFoundException e) {
+      // The storage file may have been replaced by a compressed storage file after it was sealed
+      final File compressedFile =
+          new File(this.storageDirectory, entry.fileName() + StorageManifest.COMPRESSED_FILE_EXTENSION);
+      if (!compressedFile.exists()) {
+        throw e;
+      }
+      try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(compressedFile), 65536))) {
+        in.skipNBytes(entry.offset());
+        in.readFully(recordBytes);
+      }
+      catch (final EOFException eof) {
+        throw new EOFException("Storage record of " + entry.serial().toString(16) + " beyond end of compressed "
+            + "storage file " + entry.fileName());
+      }
+    }
+    return recordBytes;
+  }
+
+  /**
+   * Discards the index file and recreates the index from the storage files. The new index is built aside and written
+   * to a temporary index file, which then atomically replaces the index file. The index in memory is replaced as a
+   * whole once the new index is complete, so lookups made while the index is rebuilt use the previous index.
+   *
+   * @throws IOException error reading storage files or writing the index file
+   */
+  public synchronized void rebuild() throws IOException {
+    log.info("Rebuilding certificate index {}", this.indexFile);
+    final File tempFile = new File(this.indexFile.getParentFile(), this.indexFile.getName() + ".tmp");
+    final IndexData rebuilt = new IndexData();
+    try (FileOutputStream tempOut = new FileOutputStream(tempFile)) {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempOut));
+      this.indexUnindexedRecords(rebuilt, out);
+      tempOut.getChannel().force(true);
+    }
+    catch (final IOException e) {
+      Files.deleteIfExists(tempFile.toPath());
+      throw e;
+    }
+    this.indexOut.close();
+    Files.move(tempFile.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    this.data = rebuilt;
+    this.openIndexOutput();
+    log.info("Rebuilt certificate index with {} certificates", rebuilt.entries.size());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void close() throws IOException {
+    this.indexOut.close();
+  }
+
+  private static void addToMemory(final IndexData data, final IndexEntry entry) {
+    final IndexEntry replaced = data.entries.put(entry.serial(), entry);
+    if (replaced != null) {
+      data.issueDateOrder.remove(replaced);
+      data.fileEntries.getOrDefault(replaced.fileName(), new ArrayList<>()).remove(replaced);
+    }
+    data.fileEntries.computeIfAbsent(entry.fileName(), fileName -> new ArrayList<>()).add(entry);
+    data.issueDateOrder.add(entry);
+    data.indexedEnd.merge(entry.fileName(), entry.offset() + entry.length(), Math::max);
+  }
+
+  /**
+   * Loads the index file. An incomplete entry at the end of the file is removed. The entries of a storage file share
+   * one instance of the storage file name, since the full index is held in memory.
+   */
+  private void load() throws IOException {
+    if (!this.indexFile.exists()) {
+      return;
+    }
+    long validLength = 0;
+    final Map<String, String> fileNames = new HashMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)))) {
+      while (true) {
+        final IndexEntry entry = readEntry(in, fileNames);
+        if (entry == null) {
+          break;
+        }
+        addToMemory(this.data, entry);
+        validLength += entryLength(entry);
+      }
+    }
+    catch (final EOFException e) {
+      log.warn("Removing incomplete entry at the end of certificate index {}", this.indexFile);
+      try (FileChannel channel = FileChannel.open(this.indexFile.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(validLength);
+      }
+    }
+  }
+
+  private void openIndexOutput() throws IOException {
+    this.indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.indexFile, true)));
+  }
+
+  /**
+   * Reads storage records located after the last indexed record of each storage file and adds them to the index.
+   *
+   * @param data the index data receiving the entries
+   * @param out output for appending the entries to the index file
+   */
+  private void indexUnindexedRecords(final IndexData data, final DataOutputStream out) throws IOException {
+    final File[] storageFiles = this.storageDirectory.listFiles(
+        (dir, name) -> name.startsWith(this.storageFilePrefix) && !name.equals(this.indexFile.getName())
+            && !name.endsWith(".tmp"));
+    if (storageFiles == null) {
+      return;
+    }
+    // Storage files are indexed in storage order, so that segments are indexed in sequence whether compressed or not
+    Arrays.sort(storageFiles, STORAGE_ORDER);
+    int added = 0;
+    for (final File storageFile : storageFiles) {
+      if (storageFile.getName().endsWith(StorageManifest.COMPRESSED_FILE_EXTENSION)) {
+        added += this.indexCompressedStorageFile(storageFile, data, out);
+        continue;
+      }
+      final long start = data.indexedEnd.getOrDefault(storageFile.getName(), 0L);
+      if (storageFile.length() > start) {
+        added += this.indexStorageFile(storageFile, start, data, out);
+      }
+    }
+    out.flush();
+    if (added > 0) {
+      log.info("Added {} storage records not present in certificate index {}", added, this.indexFile);
+    }
+  }
+
+  /**
+   * Indexes the records of a storage file starting at the provided offset. Records are added to the index in file
+   * order.
+   */
+  private int indexStorageFile(final File storageFile, final long start, final IndexData data,
+      final DataOutputStream out) throws IOException {
+    final List<IndexEntry> unindexed = this.recordScanner.scan(storageFile, start);
+    for (final IndexEntry entry : unindexed) {
+      addToMemory(data, entry);
+      writeEntry(out, entry);
+    }
+    return unindexed.size();
+  }
+
+  /**
+   * Indexes the records of a compressed storage file if it is not already indexed. A storage file is only compressed
+   * once it is sealed, so a compressed storage file is either fully indexed or not indexed at all. The storage file is
+   * decompressed to a temporary file in the storage directory, and the records are indexed under the name of the
+   * storage file.
+   */
+  private int indexCompressedStorageFile(final File compressedFile, final IndexData data,
+      final DataOutputStream out) throws IOException {
+    final String fileName = compressedFile.getName().substring(0,
+        compressedFile.getName().length() - StorageManifest.COMPRESSED_FILE_EXTENSION.length());
+    if (data.indexedEnd.containsKey(fileName) || new File(this.storageDirectory, fileName).exists()) {
+      return 0;
+    }
+    final File tempFile = new File(this.storageDirectory, fileName + ".tmp");
+    try {
+      try (InputStream in = new GZIPInputStream(new FileInputStream(compressedFile), 65536)) {
+        Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      final List<IndexEntry> unindexed = this.recordScanner.scan(tempFile, 0L);
+      for (final IndexEntry entry : unindexed) {
+        final IndexEntry renamed = new IndexEntry(entry.serial(), fileName, entry.offset(), entry.length(),
+            entry.notBefore(), entry.notAfter());
+        addToMemory(data, renamed);
+        writeEntry(out, renamed);
+      }
+      return unindexed.size();
+    }
+    finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  /**
+   * Locates the records of a JSON lines storage file starting at the provided offset. Records are parsed in parallel.
+   *
+   * @param storageFile the storage file
+   * @param start the offset of the first record to read
+   * @return index entries of the records in file order
+   * @throws IOException error reading the storage file
+   */
+  static List<IndexEntry> scanStorageFile(final File storageFile, final long start) throws IOException {
+    try (StorageFileReader reader = new StorageFileReader(storageFile, start)) {
+      return reader.records((record, offset) -> toIndexEntry(record, storageFile.getName(), offset), true)
+          .toList();
+    }
+  }
+
+  /**
+   * Creates an index entry from the bytes of a storage record.
+   *
+   * @param record the storage record bytes excluding the terminating newline
+   * @param fileName the name of the storage file
+   * @param offset the offset of the storage record in the storage file
+   * @return index entry
+   */
+  static IndexEntry toIndexEntry(final byte[] record, final String fileName, final long offset) {
+    final StorageRecord storageRecord = OBJECT_MAPPER.readValue(record, StorageRecord.class);
+    return new IndexEntry(new BigInteger(storageRecord.getSerial(), 16), fileName, offset, record.length + 1,
+        toEpochSecond(storageRecord.getIt()), toEpochSecond(storageRecord.getEt()));
+  }
+
+  private static long toEpochSecond(final String time) {
+    return LocalDateTime.parse(time, CERT_TIME_FORMAT).atZone(ZoneId.systemDefault()).toEpochSecond();
+  }
+
+  private static void writeEntry(final DataOutputStream out, final IndexEntry entry) throws IOException {
+    final byte[] serial = entry.serial().toByteArray();
+    out.writeShort(serial.length);
+    out.write(serial);
+    out.writeUTF(entry.fileName());
+    out.writeLong(entry.offset());
+    out.writeInt(entry.length());
+    out.writeLong(entry.notBefore());
+    out.writeLong(entry.notAfter());
+  }
+
+  /**
+   * Reads an index entry. The end of the index file is only accepted before the first byte of an entry, so that any
+   * incomplete entry results in an {@link EOFException}.
+   *
+   * @return index entry or null if the end of the index was reached before the entry
+   * @throws EOFException if the end of the index was reached within the entry
+   */
+  private static IndexEntry readEntry(final DataInputStream in, final Map<String, String> fileNames)
+      throws IOException {
+    final int first = in.read();
+    if (first < 0) {
+      return null;
+    }
+    final byte[] serial = new byte[first << 8 | in.readUnsignedByte()];
+    in.readFully(serial);
+    final String fileName = fileNames.computeIfAbsent(in.readUTF(), Function.identity());
+    return new IndexEntry(new BigInteger(serial), fileName, in.readLong(), in.readInt(), in.readLong(), in.readLong());
+  }
+
+  private static long entryLength(final IndexEntry entry) {
+    return 2 + entry.serial().toByteArray().length + 2 + entry.fileName().getBytes(StandardCharsets.UTF_8).length
+        + 8 + 4 + 8 + 8;
+  }
+
+  /**
+   * The index data held in memory.
+   */
+  private static class IndexData {
+
+    /** Index entries sorted by serial number */
+    private final ConcurrentSkipListMap<BigInteger, IndexEntry> entries = new ConcurrentSkipListMap<>();
+
+    /** Index entries sorted by issue date and serial number */
+    private final ConcurrentSkipListSet<IndexEntry> issueDateOrder = new ConcurrentSkipListSet<>(
+        Comparator.comparingLong(IndexEntry::notBefore).thenComparing(IndexEntry::serial));
+
+    /** The end offset of the last indexed record for each storage file */
+    private final Map<String, Long> indexedEnd = new ConcurrentHashMap<>();
+
+    /** Index entries of each storage file in file order */
+    private final Map<String, List<IndexEntry>> fileEntries = new HashMap<>();
+  }
+
+  /**
+   * Orders of index entries.
+   */
+  public enum Order {
+
+    /** Ordered by serial number */
+    SERIAL_NUMBER,
+
+    /** Ordered by issue date, and by serial number for certificates issued at the same time */
+    ISSUE_DATE
+  }
+
+  /**
+   * Scanner locating the records of a storage file.
+   */
+  @FunctionalInterface
+  public interface RecordScanner {
+
+    /**
+     * Locates the records of a storage file starting at the provided offset.
+     *
+     * @param storageFile the storage file
+     * @param start the offset of the first record to read
+     * @return index entries of the records in file order
+     * @throws IOException error reading the storage file
+     */
+    List<IndexEntry> scan(File storageFile, long start) throws IOException;
+  }
+
+  /**
+   * An index entry.
+   *
+   * @param serial certificate serial number
+   * @param fileName the name of the storage file holding the storage record
+   * @param offset the offset of the storage record in the storage file
+   * @param length the length of the storage record, including the terminating newline of a JSON lines record
+   * @param notBefore the start of the certificate validity period in epoch seconds
+   * @param notAfter the end of the certificate validity period in epoch seconds
+   */
+  public record IndexEntry(BigInteger serial, String fileName, long offset, int length, long notBefore,
+      long notAfter) {
+  }
+
+}
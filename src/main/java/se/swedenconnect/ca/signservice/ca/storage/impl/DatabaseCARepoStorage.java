@@ -0,0 +1,903 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.engine.ca.attribute.CertAttributes;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.signservice.ca.storage.CARepoStorage;
+import se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException;
+import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.data.SegmentRecord;
+
+/**
+ * CA repository storage service storing certificates and revocation data in an embedded H2 database.
+ *
+ * <p>
+ * Certificates are stored in the table {@code certificates}, keyed by serial number and indexed by issue time and
+ * serial number, so that certificates are looked up, counted and paged by the database without holding an index of
+ * all stored certificates in memory. Each row holds the same data as a {@link SegmentRecord}: the validity period,
+ * the subject id and the DER encoded certificate, where the subject id and the certificate are encrypted if an
+ * encryption is provided.
+ * </p>
+ *
+ * <p>
+ * Threads storing certificates submit their certificate to a queue and wait for the result. A single writer thread
+ * takes all queued certificates as one batch, inserts them with one batched statement and commits them in one
+ * transaction. Unless the durability policy is {@link StorageDurability#NONE}, the database is forced to disk before
+ * the waiting threads are released. With the durability policy {@link StorageDurability#RECORD}, each certificate is
+ * committed and forced on its own.
+ * </p>
+ *
+ * <p>
+ * Revocation data is stored in the table {@code revocations}, and the serial numbers of certificates whose revocation
+ * data was removed after they expired in the table {@code removed_revocations}. The revocation data is loaded into
+ * memory when this storage is created, and each change is committed to the database before memory is updated, so the
+ * status of a certificate is looked up without querying the database. The embedded database is only opened by this
+ * storage, so the revocation data is never modified outside of this storage and its generation is always 0.
+ * </p>
+ *
+ * <p>
+ * Certificates and revocation data held by file storage are copied to the database by
+ * {@link DatabaseStorageMigration}.
+ * </p>
+ */
+@Slf4j
+public class DatabaseCARepoStorage implements CARepoStorage, Closeable {
+
+  /** The name of the database in the storage directory, excluding the file extension added by the database */
+  public static final String DATABASE_NAME = "certStore";
+
+  /** The maximum number of certificates inserted in one batch */
+  public static final int MAX_BATCH_SIZE = 512;
+
+  /** The maximum time to wait for the writer thread to insert a certificate and force it to disk */
+  private static final Duration STORE_TIMEOUT = Duration.ofMinutes(1);
+
+  /** The database user */
+  private static final String DATABASE_USER = "sa";
+
+  /** The name of the storage property holding the time before which expired revocation data was removed */
+  private static final String REMOVED_BEFORE_PROPERTY = "removed-before";
+
+  /** Statements creating the tables and indexes of the database */
+  private static final String[] SCHEMA = {
+      "CREATE TABLE IF NOT EXISTS certificates (serial NUMERIC(50) PRIMARY KEY, not_before BIGINT NOT NULL, "
+          + "not_after BIGINT NOT NULL, encrypted BOOLEAN NOT NULL, subject_id VARBINARY, "
+          + "certificate VARBINARY NOT NULL)",
+      "CREATE INDEX IF NOT EXISTS certificates_issue_date ON certificates (not_before, serial)",
+      "CREATE TABLE IF NOT EXISTS revocations (serial NUMERIC(50) PRIMARY KEY, revocation_time BIGINT NOT NULL, "
+          + "reason INT NOT NULL)",
+      "CREATE TABLE IF NOT EXISTS removed_revocations (serial NUMERIC(50) PRIMARY KEY)",
+      "CREATE TABLE IF NOT EXISTS storage_properties (property_name VARCHAR(64) PRIMARY KEY, "
+          + "property_value VARCHAR(255) NOT NULL)" };
+
+  private static final String MERGE_CERTIFICATE = "MERGE INTO certificates "
+      + "(serial, not_before, not_after, encrypted, subject_id, certificate) KEY (serial) VALUES (?, ?, ?, ?, ?, ?)";
+
+  private static final String MERGE_REVOCATION =
+      "MERGE INTO revocations (serial, revocation_time, reason) KEY (serial) VALUES (?, ?, ?)";
+
+  private static final String MERGE_REMOVED_REVOCATION =
+      "MERGE INTO removed_revocations (serial) KEY (serial) VALUES (?)";
+
+  private static final String MERGE_PROPERTY =
+      "MERGE INTO storage_properties (property_name, property_value) KEY (property_name) VALUES (?, ?)";
+
+  /** Condition excluding revoked certificates from a query of the certificates table with the alias c */
+  private static final String NOT_REVOKED =
+      " WHERE NOT EXISTS (SELECT 1 FROM revocations r WHERE r.serial = c.serial)";
+
+  /** The database file, excluding the file extension added by the database */
+  @Getter
+  private final File databaseFile;
+
+  /** The JDBC URL of the database */
+  private final String url;
+
+  /** optional encryption handler to encrypt and decrypt data */
+  private final StorageEncryption encryption;
+
+  /** The policy for forcing stored certificates and revocation data to disk */
+  private final StorageDurability durability;
+
+  /** The maximum number of certificates inserted in one batch */
+  private final int maxBatchSize;
+
+  /** The connection used by the writer thread */
+  private final Connection writerConnection;
+
+  /** Certificates waiting to be inserted */
+  private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+
+  /** Lock making the closed check and queueing of a certificate atomic with respect to the final draining */
+  private final Object submitLock = new Object();
+
+  /** The writer thread */
+  private final Thread writerThread;
+
+  /** Set when this storage is closed */
+  private volatile boolean closed = false;
+
+  /** Revoked certificates indexed by serial number */
+  private final Map<BigInteger, RevokedCertificate> revokedBySerial = new ConcurrentHashMap<>();
+
+  /** Revoked certificates sorted by serial number */
+  private final NavigableMap<BigInteger, RevokedCertificate> sortedRevoked = new ConcurrentSkipListMap<>();
+
+  /** The serial numbers of the certificates whose revocation data was removed after they expired */
+  private volatile Set<BigInteger> removedSerials = Collections.emptySet();
+
+  /** The time before which expired certificates were removed from the revocation data, or null if never removed */
+  private volatile Instant removedBefore;
+
+  /**
+   * Second line defense preventing this CA from issuing more certificates after a critical error storing an issued
+   * certificate, in case the {@link CertificateStorageException} thrown on the error is not handled by shutting down.
+   */
+  @Getter
+  private volatile boolean criticalStorageError = false;
+
+  /** The attribute used to extract the id of the certificate subject */
+  @Setter
+  private ASN1ObjectIdentifier idAttribute = CertAttributes.SERIALNUMBER;
+
+  /** Optional map of key passwords under their kid for decrypting certificates encrypted with non default keys */
+  @Setter
+  private Map<String, String> decryptionKeyMap;
+
+  /**
+   * Constructor where each batch of stored certificates is forced to disk.
+   *
+   * @param databaseFile the database file, excluding the file extension added by the database
+   * @param encryption optional encrypter for encrypting data
+   * @throws IOException error opening the database
+   */
+  public DatabaseCARepoStorage(@Nonnull final File databaseFile, @Nullable final StorageEncryption encryption)
+      throws IOException {
+    this(databaseFile, encryption, StorageDurability.BATCH);
+  }
+
+  /**
+   * Constructor opening the database, creating its tables if they do not exist, and loading the revocation data.
+   *
+   * @param databaseFile the database file, excluding the file extension added by the database
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates and revocation data to disk
+   * @throws IOException error opening the database
+   */
+  public DatabaseCARepoStorage(@Nonnull final File databaseFile, @Nullable final StorageEncryption encryption,
+      @Nonnull final StorageDurability durability) throws IOException {
+    this.databaseFile = Objects.requireNonNull(databaseFile, "databaseFile must not be null");
+    this.url = "jdbc:h2:file:" + databaseFile.getAbsolutePath();
+    this.encryption = encryption;
+    this.durability = Objects.requireNonNull(durability, "durability must not be null");
+    this.maxBatchSize = durability == StorageDurability.RECORD ? 1 : MAX_BATCH_SIZE;
+    Connection connection = null;
+    try {
+      connection = this.getConnection();
+      try (Statement statement = connection.createStatement()) {
+        for (final String sql : SCHEMA) {
+          statement.execute(sql);
+        }
+      }
+      connection.setAutoCommit(false);
+      this.loadRevocationData(connection);
+    }
+    catch (final SQLException e) {
+      closeQuietly(connection);
+      throw new IOException("Failed to open certificate database " + databaseFile.getAbsolutePath(), e);
+    }
+    this.writerConnection = connection;
+    log.info("Initiated certificate storage in database {} with {} revoked certificates", databaseFile,
+        this.revokedBySerial.size());
+    log.info("Certificate storage durability: {}", durability);
+    this.writerThread = new Thread(this::processQueue, "certStore-db-writer-" + databaseFile.getName());
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void storeCertificate(@Nonnull final byte[] certificateBytes)
+      throws IOException, CertificateStorageException {
+    Objects.requireNonNull(certificateBytes, "Certificate bytes must not be null");
+    this.storeCertificate(new X509CertificateHolder(certificateBytes), certificateBytes);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void storeCertificate(@Nonnull final X509CertificateHolder certificate)
+      throws IOException, CertificateStorageException {
+    Objects.requireNonNull(certificate, "Certificate must not be null");
+    this.storeCertificate(certificate, certificate.getEncoded());
+  }
+
+  /**
+   * Stores a certificate.
+   *
+   * @param certificate the certificate
+   * @param certificateBytes the DER encoded certificate
+   * @throws IOException error processing the data
+   * @throws CertificateStorageException critical error attempting to write the certificate to the storage
+   */
+  private void storeCertificate(final X509CertificateHolder certificate, final byte[] certificateBytes)
+      throws IOException, CertificateStorageException {
+
+    if (this.criticalStorageError) {
+      // There has been a critical storage error on previous storage attempts. This must be fixed
+      // and system must be restarted
+      throw new CertificateStorageException(
+          "Storage rejected due to previous storage failure. System must be restarted");
+    }
+
+    final byte[] id = AbstractCARepoStorage.getSubjectId(certificate, this.idAttribute)
+        .getBytes(StandardCharsets.UTF_8);
+    final SegmentRecord record = SegmentRecord.builder()
+        .serial(certificate.getSerialNumber())
+        .notBefore(certificate.getNotBefore().toInstant().getEpochSecond())
+        .notAfter(certificate.getNotAfter().toInstant().getEpochSecond())
+        .encrypted(this.encryption != null)
+        .id(this.encryption != null ? this.encryption.encryptData(id, false) : id)
+        .cert(this.encryption != null ? this.encryption.encryptData(certificateBytes, true) : certificateBytes)
+        .build();
+
+    // Wait until the certificate has been committed and forced to disk
+    try {
+      this.submit(record).get(STORE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    catch (final ExecutionException e) {
+      // In case of database write error, this is considered an irrecoverable error as it would lead to a certificate
+      // being issued without being stored.
+      this.criticalStorageError = true;
+      throw new CertificateStorageException(e.getCause());
+    }
+    catch (final InterruptedException e) {
+      // The certificate may or may not be stored. The certificate must not be issued, but storage can still be trusted.
+      Thread.currentThread().interrupt();
+      throw new CertificateStorageException("Interrupted while waiting for certificate to be stored", e);
+    }
+    catch (final TimeoutException e) {
+      // The writer thread is not making progress, so no further certificate can be trusted to be stored
+      this.criticalStorageError = true;
+      throw new CertificateStorageException("Timeout waiting for certificate to be stored", e);
+    }
+  }
+
+  /**
+   * Submits a certificate record to be inserted by the writer thread.
+   *
+   * @param record the certificate record
+   * @return future completed when the record has been committed and forced to disk
+   */
+  private CompletableFuture<Void> submit(final SegmentRecord record) {
+    final PendingInsert pendingInsert = new PendingInsert(record, new CompletableFuture<>());
+    synchronized (this.submitLock) {
+      if (this.closed) {
+        pendingInsert.result().completeExceptionally(new IOException("Certificate storage is closed"));
+        return pendingInsert.result();
+      }
+      this.queue.add(pendingInsert);
+    }
+    return pendingInsert.result();
+  }
+
+  /**
+   * Inserts batches of queued certificate records until this storage is closed. If a batch can not be inserted, its
+   * transaction is rolled back and the futures of all records in the batch are completed exceptionally.
+   */
+  private void processQueue() {
+    final List<PendingInsert> batch = new ArrayList<>();
+    boolean interrupted = false;
+    while (!this.closed || !this.queue.isEmpty()) {
+      try {
+        final PendingInsert first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        this.queue.drainTo(batch, this.maxBatchSize - 1);
+        this.insert(this.writerConnection, batch.stream().map(PendingInsert::record).toList());
+        batch.forEach(pendingInsert -> pendingInsert.result().complete(null));
+      }
+      catch (final InterruptedException e) {
+        // Interrupted while waiting for a record, so no record of the batch has been taken from the queue
+        log.warn("Database writer thread interrupted - Closing certificate storage {}", this.databaseFile);
+        this.closed = true;
+        interrupted = true;
+        break;
+      }
+      catch (final SQLException | RuntimeException e) {
+        log.error("Failed to store {} certificates in database {}", batch.size(), this.databaseFile, e);
+        rollbackQuietly(this.writerConnection);
+        final IOException error = new IOException("Failed to store certificates in database", e);
+        batch.forEach(pendingInsert -> pendingInsert.result().completeExceptionally(error));
+      }
+      finally {
+        batch.clear();
+      }
+    }
+    // Fail records submitted concurrently with closing this storage. Records submitted after this are failed by submit
+    synchronized (this.submitLock) {
+      this.closed = true;
+      PendingInsert pendingInsert;
+      while ((pendingInsert = this.queue.poll()) != null) {
+        pendingInsert.result().completeExceptionally(new IOException("Certificate storage is closed"));
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Inserts certificate records with one batched statement and commits them in one transaction. A stored certificate
+   * with the same serial number as an inserted record is replaced.
+   *
+   * @param connection the connection, not in auto commit mode
+   * @param records the certificate records
+   * @throws SQLException error inserting or committing the records
+   */
+  private void insert(final Connection connection, final List<SegmentRecord> records) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(MERGE_CERTIFICATE)) {
+      for (final SegmentRecord record : records) {
+        statement.setBigDecimal(1, new BigDecimal(record.getSerial()));
+        statement.setLong(2, record.getNotBefore());
+        statement.setLong(3, record.getNotAfter());
+        statement.setBoolean(4, record.isEncrypted());
+        if (record.getId() == null) {
+          statement.setNull(5, Types.VARBINARY);
+        }
+        else {
+          statement.setBytes(5, record.getId());
+        }
+        statement.setBytes(6, record.getCert());
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    }
+    this.commit(connection);
+  }
+
+  /**
+   * Stores certificate records with one batched statement, without passing them to the writer thread. Records are
+   * stored as they are, so encrypted records are stored without being decrypted.
+   *
+   * @param records the certificate records
+   * @throws IOException error storing the records
+   */
+  void storeRecords(@Nonnull final List<SegmentRecord> records) throws IOException {
+    if (records.isEmpty()) {
+      return;
+    }
+    try (Connection connection = this.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        this.insert(connection, records);
+      }
+      catch (final SQLException e) {
+        rollbackQuietly(connection);
+        throw e;
+      }
+    }
+    catch (final SQLException e) {
+      throw new IOException("Failed to store " + records.size() + " certificates in database", e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] getCertificate(@Nonnull final BigInteger serialNumber) throws IOException {
+    final boolean encrypted;
+    final byte[] certificate;
+    try (Connection connection = this.getConnection();
+        PreparedStatement statement =
+            connection.prepareStatement("SELECT encrypted, certificate FROM certificates WHERE serial = ?")) {
+      statement.setBigDecimal(1, new BigDecimal(serialNumber));
+      try (ResultSet resultSet = statement.executeQuery()) {
+        if (!resultSet.next()) {
+          return null;
+        }
+        encrypted = resultSet.getBoolean(1);
+        certificate = resultSet.getBytes(2);
+      }
+    }
+    catch (final SQLException e) {
+      throw new IOException("Failed to read certificate " + serialNumber.toString(16) + " from database", e);
+    }
+    if (!encrypted) {
+      return certificate;
+    }
+    if (this.encryption == null) {
+      throw new IOException("Certificate " + serialNumber.toString(16) + " is encrypted but no decryption is available");
+    }
+    return this.encryption.decryptData(certificate, true, this.decryptionKeyMap);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The certificate is looked up by the primary key of the certificates table, without reading the certificate.
+   * </p>
+   */
+  @Override
+  public boolean isCertificateStored(@Nonnull final BigInteger serialNumber) {
+    return this.getCertificateNotAfter(serialNumber) != null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<BigInteger> getCertificateSerials() {
+    return this.query("SELECT c.serial FROM certificates c ORDER BY c.serial", statement -> {});
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getCertificateCount(final boolean notRevoked) {
+    final String sql = "SELECT COUNT(*) FROM certificates c" + (notRevoked ? NOT_REVOKED : "");
+    try (Connection connection = this.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+    catch (final SQLException e) {
+      throw new RuntimeException("Failed to count certificates in database " + this.databaseFile, e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The page is selected by the database, using the primary key of the certificates table for the order by serial
+   * number and the index on issue time and serial number for the order by issue date.
+   * </p>
+   */
+  @Override
+  public List<BigInteger> getCertificateSerials(final int page, final int pageSize, final boolean notRevoked,
+      @Nullable final SortBy sortBy, final boolean descending) {
+    if (page < 0 || pageSize <= 0) {
+      return new ArrayList<>();
+    }
+    final String direction = descending ? " DESC" : "";
+    final String order = sortBy == SortBy.issueDate
+        ? "c.not_before" + direction + ", c.serial" + direction
+        : "c.serial" + direction;
+    return this.query("SELECT c.serial FROM certificates c" + (notRevoked ? NOT_REVOKED : "") + " ORDER BY " + order
+        + " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY", statement -> {
+          statement.setLong(1, (long) page * pageSize);
+          statement.setInt(2, pageSize);
+        });
+  }
+
+  /**
+   * Queries the serial numbers of certificates.
+   *
+   * @param sql the query selecting serial numbers
+   * @param parameters setter of the query parameters
+   * @return list of serial numbers in query order
+   */
+  private List<BigInteger> query(final String sql, final QueryParameters parameters) {
+    try (Connection connection = this.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql)) {
+      parameters.set(statement);
+      final List<BigInteger> serials = new ArrayList<>();
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          serials.add(resultSet.getBigDecimal(1).toBigIntegerExact());
+        }
+      }
+      return serials;
+    }
+    catch (final SQLException e) {
+      throw new RuntimeException("Failed to read certificate serial numbers from database " + this.databaseFile, e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The revocation is committed to the database before it is applied to the revocation data held in memory.
+   * </p>
+   */
+  @Override
+  public synchronized void revokeCertificate(final RevokedCertificate revokedCertificate)
+      throws CertificateRevocationException {
+    final BigInteger serial = revokedCertificate.getCertificateSerialNumber();
+    final RevokedCertificate updated = RevocationRegistry.getUpdatedRevocation(this.revokedBySerial.get(serial),
+        this.removedSerials.contains(serial), revokedCertificate);
+    try (Connection connection = this.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        if (updated == null) {
+          try (PreparedStatement statement =
+              connection.prepareStatement("DELETE FROM revocations WHERE serial = ?")) {
+            statement.setBigDecimal(1, new BigDecimal(serial));
+            statement.executeUpdate();
+          }
+        }
+        else {
+          this.mergeRevocations(connection, List.of(updated));
+        }
+        this.commit(connection);
+      }
+      catch (final SQLException e) {
+        rollbackQuietly(connection);
+        throw e;
+      }
+    }
+    catch (final SQLException e) {
+      throw new RuntimeException("Failed to store revocation of certificate " + serial.toString(16), e);
+    }
+    if (updated == null) {
+      this.revokedBySerial.remove(serial);
+      this.sortedRevoked.remove(serial);
+    }
+    else {
+      this.revokedBySerial.put(serial, updated);
+      this.sortedRevoked.put(serial, updated);
+    }
+  }
+
+  /**
+   * Stores revocation data, without applying the rules for revoking certificates. Revocation data of certificates that
+   * is already stored is replaced, and the time before which expired certificates were removed is only moved forward.
+   *
+   * @param revokedCertificates the revoked certificates
+   * @param removedSerials the serial numbers of certificates whose revocation data was removed after they expired
+   * @param removedBefore the time before which expired certificates were removed, or null if none were removed
+   * @throws IOException error storing the revocation data, in which case no revocation data was stored
+   */
+  synchronized void storeRevocationData(@Nonnull final Collection<RevokedCertificate> revokedCertificates,
+      @Nonnull final Collection<BigInteger> removedSerials, @Nullable final Instant removedBefore) throws IOException {
+    try (Connection connection = this.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        this.mergeRevocations(connection, revokedCertificates);
+        this.mergeRemoved(connection, removedSerials, removedBefore);
+        this.commit(connection);
+      }
+      catch (final SQLException e) {
+        rollbackQuietly(connection);
+        throw e;
+      }
+      this.loadRevocationData(connection);
+    }
+    catch (final SQLException e) {
+      throw new IOException("Failed to store revocation data in database " + this.databaseFile, e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<RevokedCertificate> getRevokedCertificates() {
+    return new ArrayList<>(this.sortedRevoked.values());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getRevokedCertificateCount() {
+    return this.revokedBySerial.size();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public RevokedCertificate getRevokedCertificate(@Nonnull final BigInteger serialNumber) {
+    return this.revokedBySerial.get(serialNumber);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The revocation data of the database is only modified by this storage, so this is always 0.
+   * </p>
+   */
+  @Override
+  public long getRevocationDataGeneration() {
+    return 0L;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The validity period is looked up by the primary key of the certificates table.
+   * </p>
+   */
+  @Override
+  public Instant getCertificateNotAfter(@Nonnull final BigInteger serialNumber) {
+    try (Connection connection = this.getConnection();
+        PreparedStatement statement =
+            connection.prepareStatement("SELECT not_after FROM certificates WHERE serial = ?")) {
+      statement.setBigDecimal(1, new BigDecimal(serialNumber));
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return resultSet.next() ? Instant.ofEpochSecond(resultSet.getLong(1)) : null;
+      }
+    }
+    catch (final SQLException e) {
+      throw new RuntimeException("Failed to read certificate " + serialNumber.toString(16) + " from database", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The expired certificates are selected by joining the revocations with the certificates table. The removed serial
+   * numbers are recorded, the revocation data is deleted, and the time before which expired certificates were removed
+   * is updated in one transaction.
+   * </p>
+   */
+  @Override
+  public synchronized List<BigInteger> removeExpiredRevocations(@Nonnull final Instant expiredBefore) {
+    final Instant cutoff = this.removedBefore == null || expiredBefore.isAfter(this.removedBefore)
+        ? Instant.ofEpochSecond(expiredBefore.getEpochSecond())
+        : this.removedBefore;
+    final List<BigInteger> expired = new ArrayList<>();
+    try (Connection connection = this.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT r.serial FROM revocations r "
+            + "JOIN certificates c ON c.serial = r.serial WHERE c.not_after < ? ORDER BY r.serial")) {
+          statement.setLong(1, expiredBefore.getEpochSecond());
+          try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+              expired.add(resultSet.getBigDecimal(1).toBigIntegerExact());
+            }
+          }
+        }
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM revocations WHERE serial = ?")) {
+          for (final BigInteger serial : expired) {
+            statement.setBigDecimal(1, new BigDecimal(serial));
+            statement.addBatch();
+          }
+          statement.executeBatch();
+        }
+        this.mergeRemoved(connection, expired, cutoff);
+        this.commit(connection);
+      }
+      catch (final SQLException e) {
+        rollbackQuietly(connection);
+        throw e;
+      }
+    }
+    catch (final SQLException e) {
+      log.error("Failed to record removal of expired revocation data - No revocation data was removed", e);
+      return new ArrayList<>();
+    }
+    final Set<BigInteger> allRemoved = new HashSet<>(this.removedSerials);
+    allRemoved.addAll(expired);
+    this.removedSerials = Collections.unmodifiableSet(allRemoved);
+    this.removedBefore = cutoff;
+    for (final BigInteger serial : expired) {
+      this.revokedBySerial.remove(serial);
+      this.sortedRevoked.remove(serial);
+    }
+    return expired;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Instant getExpiredRevocationsRemovedBefore() {
+    return this.removedBefore;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isRevocationDataRemoved(@Nonnull final BigInteger serialNumber) {
+    return this.removedSerials.contains(serialNumber);
+  }
+
+  /**
+   * Closes this storage after all pending certificates have been stored.
+   */
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    try {
+      this.writerThread.join();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      this.writerConnection.close();
+    }
+    catch (final SQLException e) {
+      throw new IOException("Failed to close database " + this.databaseFile, e);
+    }
+  }
+
+  /**
+   * Adds or replaces revocation data with one batched statement.
+   */
+  private void mergeRevocations(final Connection connection, final Collection<RevokedCertificate> revokedCertificates)
+      throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(MERGE_REVOCATION)) {
+      for (final RevokedCertificate revokedCertificate : revokedCertificates) {
+        statement.setBigDecimal(1, new BigDecimal(revokedCertificate.getCertificateSerialNumber()));
+        statement.setLong(2, revokedCertificate.getRevocationTime().toInstant().getEpochSecond());
+        statement.setInt(3, revokedCertificate.getReason());
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    }
+  }
+
+  /**
+   * Records the serial numbers of certificates whose revocation data was removed with one batched statement, and moves
+   * the time before which expired certificates were removed forward.
+   */
+  private void mergeRemoved(final Connection connection, final Collection<BigInteger> serials,
+      @Nullable final Instant removedBefore) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(MERGE_REMOVED_REVOCATION)) {
+      for (final BigInteger serial : serials) {
+        statement.setBigDecimal(1, new BigDecimal(serial));
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    }
+    if (removedBefore != null && (this.removedBefore == null || removedBefore.isAfter(this.removedBefore))) {
+      try (PreparedStatement statement = connection.prepareStatement(MERGE_PROPERTY)) {
+        statement.setString(1, REMOVED_BEFORE_PROPERTY);
+        statement.setString(2, Long.toString(removedBefore.getEpochSecond()));
+        statement.executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * Replaces the revocation data held in memory with the revocation data of the database.
+   */
+  private void loadRevocationData(final Connection connection) throws SQLException {
+    final Map<BigInteger, RevokedCertificate> loaded = new ConcurrentHashMap<>();
+    final Set<BigInteger> removed = new HashSet<>();
+    Instant loadedRemovedBefore = null;
+    try (Statement statement = connection.createStatement()) {
+      try (ResultSet resultSet = statement.executeQuery("SELECT serial, revocation_time, reason FROM revocations")) {
+        while (resultSet.next()) {
+          final BigInteger serial = resultSet.getBigDecimal(1).toBigIntegerExact();
+          loaded.put(serial, new RevokedCertificate(serial, new Date(resultSet.getLong(2) * 1000L),
+              resultSet.getInt(3)));
+        }
+      }
+      try (ResultSet resultSet = statement.executeQuery("SELECT serial FROM removed_revocations")) {
+        while (resultSet.next()) {
+          removed.add(resultSet.getBigDecimal(1).toBigIntegerExact());
+        }
+      }
+    }
+    try (PreparedStatement statement =
+        connection.prepareStatement("SELECT property_value FROM storage_properties WHERE property_name = ?")) {
+      statement.setString(1, REMOVED_BEFORE_PROPERTY);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        if (resultSet.next()) {
+          loadedRemovedBefore = Instant.ofEpochSecond(Long.parseLong(resultSet.getString(1)));
+        }
+      }
+    }
+    connection.commit();
+    this.revokedBySerial.keySet().retainAll(loaded.keySet());
+    this.sortedRevoked.keySet().retainAll(loaded.keySet());
+    this.revokedBySerial.putAll(loaded);
+    this.sortedRevoked.putAll(loaded);
+    this.removedSerials = Collections.unmodifiableSet(removed);
+    this.removedBefore = loadedRemovedBefore;
+  }
+
+  /**
+   * Commits a transaction and forces it to disk unless the durability policy is {@link StorageDurability#NONE}.
+   */
+  private void commit(final Connection connection) throws SQLException {
+    connection.commit();
+    if (this.durability != StorageDurability.NONE) {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("CHECKPOINT SYNC");
+      }
+    }
+  }
+
+  private Connection getConnection() throws SQLException {
+    return DriverManager.getConnection(this.url, DATABASE_USER, "");
+  }
+
+  private static void rollbackQuietly(final Connection connection) {
+    try {
+      connection.rollback();
+    }
+    catch (final SQLException e) {
+      log.warn("Failed to roll back database transaction", e);
+    }
+  }
+
+  private static void closeQuietly(@Nullable final Connection connection) {
+    if (connection == null) {
+      return;
+    }
+    try {
+      connection.close();
+    }
+    catch (final SQLException e) {
+      log.warn("Failed to close database connection", e);
+    }
+  }
+
+  /**
+   * Setter of the parameters of a query.
+   */
+  @FunctionalInterface
+  private interface QueryParameters {
+    void set(PreparedStatement statement) throws SQLException;
+  }
+
+  /**
+   * A certificate record waiting to be inserted.
+   *
+   * @param record the certificate record
+   * @param result future completed when the record has been committed and forced to disk
+   */
+  private record PendingInsert(SegmentRecord record, CompletableFuture<Void> result) {
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.SegmentFile;
+import se.swedenconnect.ca.signservice.ca.storage.SegmentFileConverter;
+import se.swedenconnect.ca.signservice.ca.storage.StorageFileReader;
+import se.swedenconnect.ca.signservice.ca.storage.data.SegmentRecord;
+
+/**
+ * Migration of file certificate storage to a {@link DatabaseCARepoStorage}.
+ *
+ * <p>
+ * The records of all storage files of a storage directory, including compressed segments, are read in storage order
+ * and stored in the database in batches of {@link DatabaseCARepoStorage#MAX_BATCH_SIZE} records, so that the last
+ * stored record of a certificate is kept as in the certificate index. Encrypted ids and certificates are copied in
+ * their encrypted form, so no decryption keys are needed for the migration. The revocation data of the revocation
+ * file and its journal, including the serial numbers of certificates whose revocation data was removed after they
+ * expired, is then stored in the database in one transaction.
+ * </p>
+ *
+ * <p>
+ * The migration must be made while the service is stopped. It may be run again, e.g. after an interrupted migration,
+ * since migrated certificates and revocation data replace the data already stored in the database.
+ * </p>
+ */
+@Slf4j
+public final class DatabaseStorageMigration {
+
+  private DatabaseStorageMigration() {
+  }
+
+  /**
+   * Migrates file certificate storage to a database. Usage:
+   *
+   * <pre>
+   * DatabaseStorageMigration &lt;storage directory&gt; &lt;json|segment&gt; &lt;revocation file&gt; [database file]
+   * </pre>
+   *
+   * <p>
+   * The database file defaults to {@value DatabaseCARepoStorage#DATABASE_NAME} in the storage directory, which is the
+   * database used by the service with the storage format {@code database}.
+   * </p>
+   *
+   * @param args the storage directory, the storage format, the revocation file and the optional database file
+   * @throws IOException error reading the file storage or writing the database
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 3 || args.length > 4) {
+      System.err.println("Usage: DatabaseStorageMigration <storage directory> <json|segment> <revocation file> "
+          + "[database file]");
+      System.exit(1);
+      return;
+    }
+    final File storageDirectory = new File(args[0]);
+    final StorageFormat storageFormat = StorageFormat.valueOf(args[1].toUpperCase(Locale.ROOT));
+    final File revocationFile = new File(args[2]);
+    final File databaseFile = args.length == 4
+        ? new File(args[3])
+        : new File(storageDirectory, DatabaseCARepoStorage.DATABASE_NAME);
+    try (DatabaseCARepoStorage database = new DatabaseCARepoStorage(databaseFile, null)) {
+      migrate(storageDirectory, storageFormat, revocationFile, database);
+    }
+  }
+
+  /**
+   * Migrates the certificates of a storage directory and the revocation data of a revocation file to a database.
+   *
+   * @param storageDirectory the directory of the storage files
+   * @param storageFormat the format of the storage files
+   * @param revocationFile the revocation file, which is not required to exist if no certificate has been revoked
+   * @param database the database storage
+   * @return the number of migrated certificate records
+   * @throws IOException error reading the file storage or writing the database
+   */
+  public static int migrate(@Nonnull final File storageDirectory, @Nonnull final StorageFormat storageFormat,
+      @Nonnull final File revocationFile, @Nonnull final DatabaseCARepoStorage database) throws IOException {
+    Objects.requireNonNull(database, "database must not be null");
+    if (storageFormat == StorageFormat.DATABASE) {
+      throw new IllegalArgumentException("Storage format must be a file storage format");
+    }
+    final String storageFilePrefix = storageFormat == StorageFormat.SEGMENT
+        ? SegmentFile.SEGMENT_FILE_PREFIX
+        : CertificateIndex.STORAGE_FILE_PREFIX;
+    final File[] storageFiles = storageDirectory.listFiles(
+        file -> file.isFile() && file.getName().startsWith(storageFilePrefix) && !file.getName().endsWith(".tmp"));
+    if (storageFiles == null) {
+      throw new IOException("Storage directory " + storageDirectory.getAbsolutePath() + " does not exist");
+    }
+    Arrays.sort(storageFiles, CertificateIndex.STORAGE_ORDER);
+    int migrated = 0;
+    for (final File storageFile : storageFiles) {
+      if (!storageFile.getName().endsWith(StorageManifest.COMPRESSED_FILE_EXTENSION)) {
+        migrated += migrateStorageFile(storageFile, storageFormat, database);
+        continue;
+      }
+      final File decompressed = File.createTempFile(storageFile.getName(), ".tmp");
+      try {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(storageFile), 65536)) {
+          Files.copy(in, decompressed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        migrated += migrateStorageFile(decompressed, storageFormat, database);
+      }
+      finally {
+        Files.deleteIfExists(decompressed.toPath());
+      }
+    }
+    log.info("Migrated {} certificate records from {} to {}", migrated, storageDirectory, database.getDatabaseFile());
+
+    // The revocation data may be held by the journal of the revocation file only
+    final RevocationRegistry revocationRegistry = new RevocationRegistry(revocationFile);
+    database.storeRevocationData(revocationRegistry.getRevokedCertificates(), revocationRegistry.getRemovedSerials(),
+        revocationRegistry.getRemovedBefore());
+    log.info("Migrated {} revoked certificates and {} removed revocations from {} to {}", revocationRegistry.size(),
+        revocationRegistry.getRemovedSerials().size(), revocationFile, database.getDatabaseFile());
+    return migrated;
+  }
+
+  /**
+   * Stores the records of a storage file in the database in batches.
+   *
+   * @param storageFile the storage file, which is not compressed
+   * @param storageFormat the format of the storage file
+   * @param database the database storage
+   * @return the number of stored records
+   * @throws IOException error reading the storage file or writing the database
+   */
+  private static int migrateStorageFile(final File storageFile, final StorageFormat storageFormat,
+      final DatabaseCARepoStorage database) throws IOException {
+    final List<SegmentRecord> batch = new ArrayList<>(DatabaseCARepoStorage.MAX_BATCH_SIZE);
+    final int[] migrated = { 0 };
+    final SegmentFile.RecordHandler handler = (record, offset) -> {
+      batch.add(record);
+      if (batch.size() == DatabaseCARepoStorage.MAX_BATCH_SIZE) {
+        database.storeRecords(batch);
+        migrated[0] += batch.size();
+        batch.clear();
+      }
+    };
+    if (storageFormat == StorageFormat.SEGMENT) {
+      SegmentFile.readRecords(storageFile, handler);
+    }
+    else {
+      try (StorageFileReader reader = new StorageFileReader(storageFile)) {
+        final Iterator<SegmentRecord> records =
+            reader.records(false).map(SegmentFileConverter::toSegmentRecord).iterator();
+        while (records.hasNext()) {
+          handler.handle(records.next(), 0L);
+        }
+      }
+    }
+    database.storeRecords(batch);
+    migrated[0] += batch.size();
+    log.debug("Migrated {} certificate records from {}", migrated[0], storageFile);
+    return migrated[0];
+  }
+
+}
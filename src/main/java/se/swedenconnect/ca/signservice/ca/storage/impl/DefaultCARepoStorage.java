@@ -16,58 +16,33 @@
 package se.swedenconnect.ca.signservice.ca.storage.impl;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.text.ParseException;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.util.encoders.Base64;
 
-
-import lombok.Getter;
-import lombok.Setter;
-import lombok.extern.slf4j.Slf4j;
-import se.swedenconnect.ca.engine.ca.attribute.CertAttributes;
-import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
-import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
-import se.swedenconnect.ca.signservice.ca.storage.CARepoStorage;
-import se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException;
 import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
-import se.swedenconnect.ca.signservice.ca.storage.data.RevocationRecord;
+import se.swedenconnect.ca.signservice.ca.storage.StoredCertificateIterator;
 import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
-import se.swedenconnect.ca.signservice.utils.CertNameUtils;
-import se.swedenconnect.ca.service.base.configuration.keys.BasicX509Utils;
-import tools.jackson.core.type.TypeReference;
 import tools.jackson.databind.ObjectMapper;
 
 /**
  * This is the default implementation of a CA repository storage service.
  *
  * <p>
- * The purpose of this service is to act as a storage diode to which it is possible to incrementally add new
- * certificates and optionally information about revocation, but where there is not way to read out any issued
- * certificates using this implementation.
+ * The purpose of this service is to provide high volume storage to which new certificates and optionally information
+ * about revocation are added incrementally. Stored certificates are read back by serial number, in pages ordered by
+ * serial number or issue date, or by iterating over a daily storage file with {@link #getStoredCertificates(File)}.
  * </p>
  *
  * <p>
@@ -79,44 +54,46 @@ import tools.jackson.databind.ObjectMapper;
  * </p>
  *
  * <p>
- * Another difference is that there is no way to obtain information about stored certificates. This allows effective
- * incremental storage without the need to provide indexation and possibilities to search the database. This design is
- * intentional to allow for effective high volume storage.
+ * Another difference is that stored certificates can not be searched by their content. The only index maintained is a
+ * {@link CertificateIndex} mapping the serial number of each stored certificate to the location of its storage record
+ * and its validity period, which allows a stored certificate to be retrieved by serial number and pages of
+ * certificates to be listed without scanning the storage files. The index is updated incrementally as certificates are
+ * stored and can be rebuilt from the storage files. This design is intentional to allow for effective high volume
+ * storage.
  * </p>
  *
  * <p>
- * Certificate storage is done in daily certificate storage files tagged with its date in the file name.
+ * Certificate storage is done in daily certificate storage files tagged with its date in the file name, holding one
+ * JSON storage record per line. Storage records are written by a {@link GroupCommitStorageWriter} which allows
+ * concurrent storage requests to share one disk write and force operation. Unless the {@link StorageDurability} policy
+ * is set to NONE, a storage request returns only after its record has been forced to disk. When storage is divided
+ * into storage shards, each shard has its own writer and daily storage file with the shard number as suffix. Daily
+ * storage files may further be divided into segments according to a {@link StorageRollover} policy.
  * </p>
  */
-@Slf4j
-public class DefaultCARepoStorage implements CARepoStorage {
-
-  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-  private static final DateTimeFormatter CERT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
-  private static final DateTimeFormatter REV_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+public class DefaultCARepoStorage extends AbstractCARepoStorage {
 
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
-  /** optional encryption handler to encrypt and decrypt data */
-  private final StorageEncryption encryption;
-
-  private final File storageDirectory;
+  /** Storage record encoders, one for each storing thread */
+  private static final ThreadLocal<StorageRecordEncoder> RECORD_ENCODER =
+      ThreadLocal.withInitial(() -> new StorageRecordEncoder(OBJECT_MAPPER));
 
-  private final File revocationFile;
+  /** Executor decrypting records for the stored certificate iterators of this storage, or null without encryption */
+  private final ExecutorService decryptionExecutor;
 
   /**
-   * This is a second line defense preventing this CA from keep issuing certificates if there has been a critical error
-   * writing issued certificates to the file storage. The primary defence is to throw the
-   * {@link se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException} that should allow the application to
-   * shut down gracefully. However, in case this is not properly implemented, this boolean ensures that this storage
-   * module will re-throw the exception instead of allowing any more certificate to be stored.
+   * Constructor where each batch of stored certificates is forced to disk without delay.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @throws IOException error instantiating this storage service
    */
-  @Getter
-  private boolean criticalStorageError = false;
-
-  /** The attribute used to extract the id of the certificate subject */
-  @Setter
-  private ASN1ObjectIdentifier idAttribute = CertAttributes.SERIALNUMBER;
+  public DefaultCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption) throws IOException {
+    this(storageDirectory, revocationFile, encryption, StorageDurability.BATCH, Duration.ZERO);
+  }
 
   /**
    * Constructor.
@@ -124,213 +101,135 @@ public class DefaultCARepoStorage implements CARepoStorage {
    * @param storageDirectory directory for storing data
    * @param revocationFile the revocation file
    * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
    * @throws IOException error instantiating this storage service
    */
   public DefaultCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
-      @Nullable final StorageEncryption encryption) throws IOException {
-    this.encryption = encryption;
-    this.storageDirectory = Objects.requireNonNull(storageDirectory, "storageDirectory must not be null");
-    if (!storageDirectory.exists()) {
-      throw new IOException("Storage directory " + storageDirectory.getAbsolutePath() + " does not exist");
-    }
-    log.info("Initiated certificate storage at: {}", storageDirectory);
-    this.revocationFile = Objects.requireNonNull(revocationFile, "revocationFile must not be null");
-    log.info("Revocation info file: {}", revocationFile);
-    log.info("Initiated storage with {} revoked certificates", this.getRevocationData().size());
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay) throws IOException {
+    this(storageDirectory, revocationFile, encryption, durability, maxForceDelay, 1);
   }
 
-  /** {@inheritDoc} */
-  @Override
-  public synchronized void storeCertificate(@Nonnull final byte[] certificateBytes)
-      throws IOException, CertificateStorageException {
-    Objects.requireNonNull(certificateBytes, "Certificate bytes must not be null");
-
-    if (this.criticalStorageError) {
-      // There has been a critical storage error on previous storage attempts. This must be fixed
-      // and system must be restarted
-      throw new CertificateStorageException(
-          "Storage rejected due to previous storage failure. System must be restarted");
-    }
-
-    X509Certificate certificate;
-    try {
-      certificate = BasicX509Utils.getCertificate(certificateBytes);
-    }
-    catch (final CertificateException ex) {
-      throw new IOException(ex);
-    }
-
-    final File storageFile = new File(this.storageDirectory, "certStore-" + LocalDateTime.now().format(DATE_FORMAT));
-    final byte[] storageRecordData = this.getStorageRecordData(certificate);
+  /**
+   * Constructor for storage divided into storage shards, each storing certificates in its own daily storage file.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @param storageShards the number of storage shards, where 1 stores all certificates in one daily storage file
+   * @throws IOException error instantiating this storage service
+   */
+  public DefaultCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay, final int storageShards) throws IOException {
+    this(storageDirectory, revocationFile, encryption, durability, maxForceDelay, storageShards, null);
+  }
 
-    // Append file
-    try (FileOutputStream fos = new FileOutputStream(storageFile, true)) {
-      fos.write(storageRecordData);
-    }
-    catch (final IOException e) {
-      // In case of file write error, this is considered an irrecoverable error as it would lead to a certificate being
-      // issued without being stored.
-      this.criticalStorageError = true;
-      throw new CertificateStorageException(e);
-    }
+  /**
+   * Constructor for storage divided into storage shards and storage segments.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @param storageShards the number of storage shards, where 1 stores all certificates in one daily storage file
+   * @param rollover the policy for moving on to a new storage segment, or null to store all certificates of a day
+   *          in one storage file
+   * @throws IOException error instantiating this storage service
+   */
+  public DefaultCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay, final int storageShards, @Nullable final StorageRollover rollover)
+      throws IOException {
+    super(storageDirectory, revocationFile, encryption, durability, maxForceDelay, storageShards, rollover,
+        CertificateIndex.INDEX_FILE_NAME, CertificateIndex.STORAGE_FILE_PREFIX, CertificateIndex::scanStorageFile);
+    this.decryptionExecutor = encryption != null
+        ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+          final Thread thread = new Thread(runnable, "certStore-decrypt-" + storageDirectory.getName());
+          thread.setDaemon(true);
+          return thread;
+        })
+        : null;
+  }
 
+  /**
+   * Gets an iterator over the storage records of a daily storage file of this storage. Encrypted records are decrypted
+   * with the encryption and decryption key map of this storage, in parallel by a decryption executor with one thread
+   * per available processor. The executor is shared by all iterators of this storage and is shut down when this
+   * storage is closed, so an iterator that is not closed holds no threads.
+   *
+   * @param storageFile the daily storage file
+   * @return iterator over the storage records of the daily storage file
+   * @throws FileNotFoundException if no storage file holds records of the daily storage file
+   */
+  public StoredCertificateIterator getStoredCertificates(@Nonnull final File storageFile)
+      throws FileNotFoundException {
+    return StoredCertificateIterator.getInstance(storageFile, this.encryption, this.decryptionKeyMap,
+        this.decryptionExecutor);
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Closes this storage and shuts down the decryption executor of its stored certificate iterators.
+   */
   @Override
-  public synchronized void revokeCertificate(final RevokedCertificate revokedCertificate)
-      throws CertificateRevocationException {
-
-    if (revokedCertificate.getReason() > CRLReason.aACompromise) {
-      throw new CertificateRevocationException("Illegal reason code");
+  public void close() throws IOException {
+    try {
+      super.close();
     }
-
-    List<RevocationRecord> revocationData = new ArrayList<>(this.getRevocationData());
-
-    boolean modified = false;
-    final List<String> deleteList = new ArrayList<>();
-    for (final RevocationRecord record : revocationData) {
-      if (record.getSerial().equalsIgnoreCase(revokedCertificate.getCertificateSerialNumber().toString(16))) {
-        if (record.getReason() == CRLReason.certificateHold) {
-          if (revokedCertificate.getReason() == CRLReason.removeFromCRL) {
-            // remove this certificate from certificateHold status
-            log.debug("Removing certificate from certificateHold");
-            deleteList.add(record.getSerial());
-            modified = true;
-            break;
-          }
-          log.debug("Modifying revoked certificate from certificateHold to reason {}", revokedCertificate.getReason());
-          record.setReason(revokedCertificate.getReason());
-          modified = true;
-          break;
-        }
-        else {
-          if (CRLReason.removeFromCRL == revokedCertificate.getReason()) {
-            log.debug("Revocation removal request denied since certificate has already been permanently revoked");
-            throw new CertificateRevocationException(
-                "Revocation removal request denied since certificate has already been permanently revoked");
-          }
-          log.debug("Certificate is already revoked with reason other than certificate hold");
-          throw new CertificateRevocationException(
-              "Revocation request denied since certificate is already revoked with reason other than certificate hold");
-        }
+    finally {
+      if (this.decryptionExecutor != null) {
+        this.decryptionExecutor.shutdownNow();
       }
     }
+  }
 
-    if (modified && !deleteList.isEmpty()) {
-      // Delete all certificates on delete list
-      revocationData = revocationData.stream()
-          .filter(revocationRecord -> !deleteList.contains(revocationRecord.getSerial()))
-          .collect(Collectors.toList());
-    }
-
-    if (!modified) {
-      // No existing revocation record was modified. Add a new record.
-      if (revokedCertificate.getReason() < 0) {
-        throw new CertificateRevocationException("Revocation of new certificate must hav a non negative reason code");
-      }
-      if (revokedCertificate.getReason() == CRLReason.removeFromCRL) {
-        throw new CertificateRevocationException("Removal request for a certificate that has not been revoked");
-      }
-      final RevocationRecord newRevokedRecord = RevocationRecord.builder()
-          .serial(revokedCertificate.getCertificateSerialNumber().toString(16))
-          .time(this.getDateString(revokedCertificate.getRevocationTime(), REV_TIME_FORMAT))
-          .reason(revokedCertificate.getReason())
-          .build();
-      revocationData.add(newRevokedRecord);
+  /** {@inheritDoc} */
+  @Override
+  protected byte[] getCertificate(@Nonnull final byte[] recordData, @Nonnull final BigInteger serialNumber)
+      throws IOException {
+    final StorageRecord record = OBJECT_MAPPER.readValue(recordData, StorageRecord.class);
+    if (record.getCert() != null) {
+      return Base64.decode(record.getCert());
     }
-
-    try {
-      FileUtils.writeByteArrayToFile(this.revocationFile,
-          OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(revocationData));
+    if (record.getECert() == null) {
+      throw new IOException("Storage record for certificate " + serialNumber.toString(16) + " holds no certificate");
     }
-    catch (final IOException e) {
-      throw new RuntimeException(e);
+    if (this.encryption == null) {
+      throw new IOException("Certificate " + serialNumber.toString(16) + " is encrypted but no decryption is available");
     }
+    return this.encryption.decryptData(Base64.decode(record.getECert()), true, this.decryptionKeyMap);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The storage record is encoded by a {@link StorageRecordEncoder} held by the storing thread.
+   * </p>
+   */
   @Override
-  public List<RevokedCertificate> getRevokedCertificates() {
-
-    final List<RevocationRecord> revocationData = this.getRevocationData();
-    final List<RevokedCertificate> revokedCertificates = new ArrayList<>();
-
-    for (final RevocationRecord record : revocationData) {
-      try {
-        revokedCertificates.add(this.getRevokedCertificateData(record));
-      }
-      catch (final ParseException e) {
-        throw new IllegalArgumentException(e);
-      }
-    }
-    return revokedCertificates;
-  }
-
-  private RevokedCertificate getRevokedCertificateData(final RevocationRecord record) throws ParseException {
-    final BigInteger certSerial = new BigInteger(record.getSerial(), 16);
-    final LocalDateTime revocationDt = LocalDateTime.parse(record.getTime(), REV_TIME_FORMAT);
-    final Date revDate = Date.from(revocationDt.atZone(ZoneId.systemDefault()).toInstant());
-    return new RevokedCertificate(certSerial, revDate, record.getReason());
-  }
-
-  private byte[] getStorageRecordData(final X509Certificate certificate) throws IOException {
-
-    final Map<ASN1ObjectIdentifier, String> subjectAttributes = CertNameUtils.getSubjectAttributes(certificate);
-    if (!subjectAttributes.containsKey(this.idAttribute)) {
-      throw new IOException("Required subject ID attribute is not present in the certificate");
-    }
-
-    byte[] certBytes;
-    try {
-      certBytes = certificate.getEncoded();
-    }
-    catch (final CertificateEncodingException e) {
-      throw new IOException(e);
-    }
+  protected byte[] getStorageRecordData(@Nonnull final X509CertificateHolder certificate,
+      @Nonnull final byte[] certBytes) throws IOException {
 
-    final StorageRecord.StorageRecordBuilder recordBuilder = StorageRecord.builder();
+    final String idString = this.getSubjectId(certificate);
+    final long notBefore = certificate.getNotBefore().toInstant().getEpochSecond();
+    final long notAfter = certificate.getNotAfter().toInstant().getEpochSecond();
+    final StorageRecordEncoder recordEncoder = RECORD_ENCODER.get();
 
-    final String idString = subjectAttributes.get(this.idAttribute);
-    if (StringUtils.isBlank(idString)) {
-      throw new IOException("Required subject ID attribute must not be empty");
-    }
     if (this.encryption != null) {
-      recordBuilder.eId(
-          Base64.toBase64String(this.encryption.encryptData(idString.getBytes(StandardCharsets.UTF_8), false)));
-      recordBuilder.eCert(Base64.toBase64String(this.encryption.encryptData(certBytes, true)));
+      return recordEncoder.encode(notBefore, notAfter, certificate.getSerialNumber(), null,
+          this.encryption.encryptData(idString.getBytes(StandardCharsets.UTF_8), false), null,
+          this.encryption.encryptData(certBytes, true));
     }
-    else {
-      recordBuilder.id(URLEncoder.encode(idString, StandardCharsets.UTF_8));
-      recordBuilder.cert(Base64.toBase64String(certBytes));
-    }
-
-    final StorageRecord record = recordBuilder
-        .it(this.getDateString(certificate.getNotBefore(), CERT_TIME_FORMAT))
-        .et(this.getDateString(certificate.getNotAfter(), CERT_TIME_FORMAT))
-        .serial(certificate.getSerialNumber().toString(16))
-        .build();
-
-    return (OBJECT_MAPPER.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
-  }
-
-  private List<RevocationRecord> getRevocationData() throws RuntimeException {
-    if (!this.revocationFile.exists()) {
-      return new ArrayList<>();
-    }
-    try {
-      final byte[] revDataBytes = FileUtils.readFileToByteArray(this.revocationFile);
-      return OBJECT_MAPPER.readValue(revDataBytes,
-          new TypeReference<>() {
-          });
-    }
-    catch (final IOException e) {
-      throw new IllegalArgumentException(e);
-    }
-  }
-
-  private String getDateString(final Date date, final DateTimeFormatter formatter) {
-    final LocalDateTime revocationDt = LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
-    return revocationDt.format(formatter);
+    return recordEncoder.encode(notBefore, notAfter, certificate.getSerialNumber(),
+        URLEncoder.encode(idString, StandardCharsets.UTF_8), null, certBytes, null);
   }
 
 }
@@ -18,6 +18,7 @@ package se.swedenconnect.ca.signservice.ca.storage.impl;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -25,6 +26,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.KeySpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -36,11 +39,14 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.StorageCompression;
 import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
 import se.swedenconnect.ca.signservice.ca.storage.data.EncryptedData;
 import tools.jackson.core.JacksonException;
@@ -48,11 +54,59 @@ import tools.jackson.databind.ObjectMapper;
 
 /**
  * Implementation of storage encryption.
+ *
+ * <p>
+ * Data is encrypted using AES-CBC in a JSON envelope. Decryption also supports the binary AES-GCM envelope written by
+ * {@link GcmStorageEncryption}, so that data encrypted using AES-GCM stays readable if encryption is set back to
+ * AES-CBC.
+ * </p>
+ *
+ * <p>
+ * Keys derived from the passwords of non default key identifiers are cached, since deriving a key is far more costly
+ * than decrypting a record. The salt, iteration count and key length are fixed for each instance of this class, so
+ * cached keys are identified by key identifier and password. The number of cached keys is bounded, and the least
+ * recently used key is evicted when the bound is reached.
+ * </p>
  */
 @Slf4j
 public class DefaultStorageEncryption implements StorageEncryption {
 
+  /** The default maximum number of cached derived keys */
+  public static final int DEFAULT_MAX_CACHED_KEYS = 64;
+
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+  /** Cipher instance reused by each thread since cipher lookup is costly when processing many records */
+  private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+    try {
+      return Cipher.getInstance(CIPHER_ALGORITHM);
+    }
+    catch (final NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  /** The version of the binary AES-GCM envelope */
+  static final byte GCM_ENVELOPE_VERSION = 1;
+
+  /** The length of the nonce of the binary AES-GCM envelope */
+  static final int GCM_NONCE_LENGTH = 12;
+
+  /** The length of the authentication tag of the binary AES-GCM envelope */
+  static final int GCM_TAG_LENGTH_BITS = 128;
+
+  /** AES-GCM cipher instance reused by each thread */
+  static final ThreadLocal<Cipher> GCM_CIPHER = ThreadLocal.withInitial(() -> {
+    try {
+      return Cipher.getInstance("AES/GCM/NoPadding");
+    }
+    catch (final NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
   private final char[] password;
   private final String kid;
   private final byte[] salt;
@@ -61,6 +115,30 @@ public class DefaultStorageEncryption implements StorageEncryption {
 
   private final SecretKey encryptionKey;
 
+  /**
+   * Optional compression used instead of GZIP when compression is requested. GZIP compressed data is always
+   * decompressed using GZIP.
+   */
+  @Setter
+  private StorageCompression compression;
+
+  /**
+   * Optional dictionary compression used to decompress dictionary compressed data, regardless of the compression used
+   * for new data. If not set, dictionary compressed data is decompressed by the compression if it is a dictionary
+   * compression.
+   */
+  @Setter
+  private DictionaryStorageCompression dictionaryDecompression;
+
+  /** Cache of keys derived for non default key identifiers */
+  private final Map<DerivedKeyId, SecretKey> derivedKeyCache = Collections.synchronizedMap(
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<DerivedKeyId, SecretKey> eldest) {
+          return this.size() > DEFAULT_MAX_CACHED_KEYS;
+        }
+      });
+
   /**
    * Constructor specifying all parameters.
    *
@@ -106,6 +184,25 @@ public class DefaultStorageEncryption implements StorageEncryption {
     this(password, kid, salt, keylength, 65536);
   }
 
+  /**
+   * Derives and caches the keys of a key map in advance, so that decryption of data encrypted under these keys does not
+   * have to wait for key derivation.
+   *
+   * @param keyMap map of key passwords under their kid
+   * @throws NoSuchAlgorithmException if the key derivation algorithm is not supported
+   * @throws InvalidKeySpecException if a key can not be derived
+   */
+  public void preloadKeys(@Nullable final Map<String, String> keyMap)
+      throws NoSuchAlgorithmException, InvalidKeySpecException {
+    if (keyMap == null) {
+      return;
+    }
+    for (final String keyId : keyMap.keySet()) {
+      this.getKey(keyId, keyMap);
+    }
+    log.info("Preloaded {} decryption keys", keyMap.size());
+  }
+
   /** {@inheritDoc} */
   @Override
   public byte[] encryptData(final byte[] dataToBeEncrypted, final boolean compress) throws IOException {
@@ -118,20 +215,42 @@ public class DefaultStorageEncryption implements StorageEncryption {
     }
   }
 
-  /** {@inheritDoc} */
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * Data in a JSON envelope is decrypted using AES-CBC, and data in a binary envelope using AES-GCM.
+   * </p>
+   */
   @Override
   public byte[] decryptData(final byte[] encData, final boolean compressed, final Map<String, String> keyMap)
       throws IOException {
     try {
-      final byte[] decrypt = this.decrypt(encData, keyMap);
+      final byte[] decrypt = encData.length > 0 && encData[0] == '{'
+          ? this.decrypt(encData, keyMap)
+          : this.decryptGcm(encData, keyMap);
       return this.getResultFromSerializedData(decrypt, compressed);
     }
+    catch (final IOException e) {
+      throw e;
+    }
     catch (final Exception e) {
       throw new IOException(e);
     }
   }
 
-  private byte[] getSerializedData(final byte[] toBeEncryptedBytes, final boolean compress) throws IOException {
+  /**
+   * Compresses data to be encrypted if compression is requested.
+   *
+   * @param toBeEncryptedBytes data to be encrypted
+   * @param compress true to compress the data
+   * @return the data to encrypt
+   * @throws IOException error compressing data
+   */
+  byte[] getSerializedData(final byte[] toBeEncryptedBytes, final boolean compress) throws IOException {
+    if (compress && this.compression != null) {
+      return this.compression.compress(toBeEncryptedBytes);
+    }
     if (compress) {
       final ByteArrayOutputStream baos = new ByteArrayOutputStream();
       try (final GZIPOutputStream gzipOut = new GZIPOutputStream(baos)) {
@@ -143,7 +262,30 @@ public class DefaultStorageEncryption implements StorageEncryption {
     return toBeEncryptedBytes;
   }
 
-  private byte[] getResultFromSerializedData(byte[] data, final boolean compressed) throws Exception {
+  /**
+   * Decompresses decrypted data if the data is compressed.
+   *
+   * @param data decrypted data
+   * @param compressed true if the data is compressed
+   * @return the decompressed data
+   * @throws Exception error decompressing data
+   */
+  byte[] getResultFromSerializedData(byte[] data, final boolean compressed) throws Exception {
+    if (compressed && DictionaryStorageCompression.isDictionaryCompressed(data)) {
+      final StorageCompression decompression = this.dictionaryDecompression != null
+          ? this.dictionaryDecompression
+          : this.compression instanceof DictionaryStorageCompression ? this.compression : null;
+      if (decompression == null) {
+        throw new IOException("Data is compressed with a dictionary but no compression dictionaries are available");
+      }
+      return decompression.decompress(data);
+    }
+    if (compressed && !isGzip(data)) {
+      if (this.compression == null) {
+        throw new IOException("Data is not GZIP compressed and no other storage compression is configured");
+      }
+      return this.compression.decompress(data);
+    }
     if (compressed) {
       final ByteArrayInputStream bais = new ByteArrayInputStream(data);
       final GZIPInputStream gzipIn = new GZIPInputStream(bais);
@@ -156,7 +298,7 @@ public class DefaultStorageEncryption implements StorageEncryption {
       NoSuchPaddingException, InvalidKeySpecException, InvalidKeyException,
       InvalidParameterSpecException, IllegalBlockSizeException, BadPaddingException,
       JacksonException {
-    final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    final Cipher cipher = CIPHER.get();
     cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey);
     final AlgorithmParameters params = cipher.getParameters();
     final byte[] iv = params.getParameterSpec(IvParameterSpec.class).getIV();
@@ -171,16 +313,64 @@ public class DefaultStorageEncryption implements StorageEncryption {
       InvalidKeySpecException, IllegalBlockSizeException,
       BadPaddingException, IOException {
     final EncryptedData encDataObj = OBJECT_MAPPER.readValue(encryptedData, EncryptedData.class);
-    final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    final Cipher cipher = CIPHER.get();
     cipher.init(Cipher.DECRYPT_MODE, this.getKey(encDataObj.getKid(), keyMap), new IvParameterSpec(encDataObj.getIv()));
     return cipher.doFinal(encDataObj.getCiphertext());
   }
 
+  /**
+   * Decrypts data in the binary AES-GCM envelope.
+   *
+   * @param encData the binary envelope
+   * @param keyMap map of key passwords under their kid
+   * @return the decrypted data
+   * @throws Exception error decrypting the data
+   */
+  private byte[] decryptGcm(final byte[] encData, final Map<String, String> keyMap) throws Exception {
+    if (encData.length < 2 || encData[0] != GCM_ENVELOPE_VERSION) {
+      throw new IOException("Unsupported encrypted data envelope");
+    }
+    final int headerLength = 2 + (encData[1] & 0xff);
+    final int ciphertextOffset = headerLength + GCM_NONCE_LENGTH;
+    if (encData.length < ciphertextOffset + GCM_TAG_LENGTH_BITS / 8) {
+      throw new IOException("Encrypted data envelope is truncated");
+    }
+    final String keyId = new String(encData, 2, headerLength - 2, StandardCharsets.UTF_8);
+    final Cipher cipher = GCM_CIPHER.get();
+    cipher.init(Cipher.DECRYPT_MODE, this.getKey(keyId, keyMap),
+        new GCMParameterSpec(GCM_TAG_LENGTH_BITS, encData, headerLength, GCM_NONCE_LENGTH));
+    cipher.updateAAD(encData, 0, headerLength);
+    return cipher.doFinal(encData, ciphertextOffset, encData.length - ciphertextOffset);
+  }
+
+  private static boolean isGzip(final byte[] data) {
+    return data.length > 1 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b;
+  }
+
+  /**
+   * Gets the key identifier of the default key.
+   *
+   * @return key identifier
+   */
+  String getKid() {
+    return this.kid;
+  }
+
   private SecretKey getKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
     return this.getKey(null, null);
   }
 
-  private SecretKey getKey(final @Nullable String keyId, final @Nullable Map<String, String> keyMap)
+  /**
+   * Gets the key for a key identifier. The default key is returned if the key identifier is null or matches the key
+   * identifier of this instance. Other keys are derived from their password in the key map.
+   *
+   * @param keyId the key identifier
+   * @param keyMap map of key passwords under their kid
+   * @return the key
+   * @throws NoSuchAlgorithmException if the key derivation algorithm is not supported
+   * @throws InvalidKeySpecException if the key can not be derived
+   */
+  SecretKey getKey(final @Nullable String keyId, final @Nullable Map<String, String> keyMap)
       throws NoSuchAlgorithmException, InvalidKeySpecException {
     char[] encPassword;
     if (keyId == null || keyId.equalsIgnoreCase(this.kid)) {
@@ -197,12 +387,33 @@ public class DefaultStorageEncryption implements StorageEncryption {
         throw new IllegalArgumentException("Key ID provided by no corresponding key was provided");
       }
       log.debug("Decrypting with provided key: {}", keyId);
-      encPassword = keyMap.get(keyId).toCharArray();
+      final DerivedKeyId derivedKeyId = new DerivedKeyId(keyId, keyMap.get(keyId));
+      final SecretKey cachedKey = this.derivedKeyCache.get(derivedKeyId);
+      if (cachedKey != null) {
+        return cachedKey;
+      }
+      // The key is derived outside the cache lock. Concurrent derivation of the same key yields the same key.
+      final SecretKey derivedKey = this.deriveKey(derivedKeyId.password().toCharArray());
+      this.derivedKeyCache.put(derivedKeyId, derivedKey);
+      return derivedKey;
     }
+    return this.deriveKey(encPassword);
+  }
+
+  private SecretKey deriveKey(final char[] encPassword) throws NoSuchAlgorithmException, InvalidKeySpecException {
     final SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
     final KeySpec spec = new PBEKeySpec(encPassword, this.salt, this.iterations, this.keylength);
     final SecretKey tmp = factory.generateSecret(spec);
     return new SecretKeySpec(tmp.getEncoded(), "AES");
   }
 
+  /**
+   * Identifies a key derived for a non default key identifier.
+   *
+   * @param kid the key identifier
+   * @param password the password the key is derived from
+   */
+  private record DerivedKeyId(String kid, String password) {
+  }
+
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.StorageCompression;
+
+/**
+ * Storage compression using deflate with a preset dictionary.
+ *
+ * <p>
+ * Certificates issued by the same CA share a large part of their content, such as the issuer name, the authority key
+ * identifier and certificate policies, but each certificate is too small for regular compression to benefit from this.
+ * This compression uses a preset dictionary built from sample certificates, typically the CA certificate chain, so that
+ * content shared with the samples is compressed even in the first bytes of a certificate.
+ * </p>
+ *
+ * <p>
+ * Data is compressed to the zlib format, where the Adler-32 checksum of the dictionary is recorded in the header of
+ * each compressed record. Dictionaries are saved in a dictionary directory under the name of their checksum, so that
+ * data compressed with a previous dictionary, e.g. before the CA certificate was renewed, can still be decompressed.
+ * Dictionary compressed data is recognized from its zlib header using {@link #isDictionaryCompressed(byte[])}, so it
+ * can be decompressed also when dictionary compression is no longer used to compress new data.
+ * </p>
+ */
+@Slf4j
+public class DictionaryStorageCompression implements StorageCompression {
+
+  /** The maximum size of a dictionary, being the size of the deflate window */
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  private static final String DICTIONARY_FILE_SUFFIX = ".dict";
+
+  /** The dictionary used for compression */
+  private final byte[] dictionary;
+
+  /** The Adler-32 checksum identifying the dictionary used for compression */
+  @Getter
+  private final int dictionaryId;
+
+  /** All known dictionaries by their Adler-32 checksum */
+  private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param dictionary the dictionary used for compression
+   * @param knownDictionaries dictionaries used to decompress data compressed with previous dictionaries
+   */
+  public DictionaryStorageCompression(@Nonnull final byte[] dictionary, @Nonnull final List<byte[]> knownDictionaries) {
+    this.dictionary = Objects.requireNonNull(dictionary, "dictionary must not be null");
+    this.dictionaryId = getDictionaryId(dictionary);
+    knownDictionaries.forEach(known -> this.dictionaries.put(getDictionaryId(known), known));
+    this.dictionaries.put(this.dictionaryId, dictionary);
+  }
+
+  /**
+   * Creates a dictionary compression using a dictionary built from sample data. The dictionary is saved in the
+   * dictionary directory, and all dictionaries in the dictionary directory are made available for decompression. If no
+   * samples are provided, the most recently saved dictionary is used for compression.
+   *
+   * @param samples sample data ordered with the most representative sample last
+   * @param dictionaryDirectory the directory holding dictionaries
+   * @return dictionary compression or null if no samples are provided and no dictionary has been saved
+   * @throws IOException error reading or writing dictionaries
+   */
+  @Nullable
+  public static DictionaryStorageCompression create(@Nonnull final List<byte[]> samples,
+      @Nonnull final File dictionaryDirectory) throws IOException {
+    final List<byte[]> knownDictionaries = loadDictionaries(dictionaryDirectory);
+    if (samples.isEmpty()) {
+      return knownDictionaries.isEmpty()
+          ? null
+          : new DictionaryStorageCompression(knownDictionaries.get(knownDictionaries.size() - 1), knownDictionaries);
+    }
+    final byte[] dictionary = buildDictionary(samples);
+    final File dictionaryFile = new File(dictionaryDirectory, toFileName(getDictionaryId(dictionary)));
+    if (!dictionaryFile.exists()) {
+      Files.write(dictionaryFile.toPath(), dictionary);
+      log.info("Saved new compression dictionary {}", dictionaryFile);
+    }
+    return new DictionaryStorageCompression(dictionary, knownDictionaries);
+  }
+
+  /**
+   * Loads all dictionaries in a dictionary directory. The directory is created if it does not exist.
+   *
+   * @param dictionaryDirectory the directory holding dictionaries
+   * @return list of dictionaries in the order they were saved
+   * @throws IOException error reading dictionaries
+   */
+  public static List<byte[]> loadDictionaries(@Nonnull final File dictionaryDirectory) throws IOException {
+    if (!dictionaryDirectory.exists() && !dictionaryDirectory.mkdirs()) {
+      throw new IOException("Unable to create dictionary directory " + dictionaryDirectory);
+    }
+    final File[] dictionaryFiles =
+        dictionaryDirectory.listFiles((dir, name) -> name.endsWith(DICTIONARY_FILE_SUFFIX));
+    if (dictionaryFiles == null) {
+      return List.of();
+    }
+    Arrays.sort(dictionaryFiles, Comparator.comparingLong(File::lastModified));
+    final List<byte[]> dictionaries = new ArrayList<>();
+    for (final File dictionaryFile : dictionaryFiles) {
+      dictionaries.add(Files.readAllBytes(dictionaryFile.toPath()));
+    }
+    return dictionaries;
+  }
+
+  /**
+   * Builds a dictionary from sample data. Deflate gives the shortest encoding to matches closest to the end of the
+   * dictionary, so samples should be ordered with the most representative sample last. If the samples exceed the
+   * maximum dictionary size, the first part of the samples is discarded.
+   *
+   * @param samples sample data
+   * @return dictionary
+   */
+  public static byte[] buildDictionary(@Nonnull final List<byte[]> samples) {
+    final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    samples.forEach(dictionary::writeBytes);
+    final byte[] dictionaryBytes = dictionary.toByteArray();
+    return dictionaryBytes.length <= MAX_DICTIONARY_SIZE
+        ? dictionaryBytes
+        : Arrays.copyOfRange(dictionaryBytes, dictionaryBytes.length - MAX_DICTIONARY_SIZE, dictionaryBytes.length);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] compress(final byte[] data) throws IOException {
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setDictionary(this.dictionary);
+      deflater.setInput(data);
+      deflater.finish();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+      final byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] decompress(final byte[] compressedData) throws IOException {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressedData);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(compressedData.length * 2);
+      final byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        final int inflated = inflater.inflate(buffer);
+        if (inflated == 0) {
+          if (inflater.needsDictionary()) {
+            final byte[] recordDictionary = this.dictionaries.get(inflater.getAdler());
+            if (recordDictionary == null) {
+              throw new IOException(
+                  "Compression dictionary " + Integer.toHexString(inflater.getAdler()) + " is not available");
+            }
+            inflater.setDictionary(recordDictionary);
+          }
+          else if (inflater.needsInput()) {
+            throw new IOException("Compressed data is truncated");
+          }
+        }
+        out.write(buffer, 0, inflated);
+      }
+      return out.toByteArray();
+    }
+    catch (final DataFormatException e) {
+      throw new IOException("Invalid compressed data", e);
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Tests if data is compressed with a preset dictionary, i.e. starts with a zlib header holding a dictionary id.
+   *
+   * @param data the data to test
+   * @return true if the data is compressed with a preset dictionary
+   */
+  public static boolean isDictionaryCompressed(@Nonnull final byte[] data) {
+    if (data.length < 6) {
+      return false;
+    }
+    final int cmf = data[0] & 0xff;
+    final int flg = data[1] & 0xff;
+    // Deflate with a window of at most 32K, a valid header check and the preset dictionary flag set
+    return (cmf & 0x0f) == Deflater.DEFLATED && cmf >> 4 <= 7 && (cmf << 8 | flg) % 31 == 0 && (flg & 0x20) != 0;
+  }
+
+  private static int getDictionaryId(final byte[] dictionary) {
+    final Adler32 adler32 = new Adler32();
+    adler32.update(dictionary);
+    return (int) adler32.getValue();
+  }
+
+  private static String toFileName(final int dictionaryId) {
+    return String.format("%08x", dictionaryId) + DICTIONARY_FILE_SUFFIX;
+  }
+
+}
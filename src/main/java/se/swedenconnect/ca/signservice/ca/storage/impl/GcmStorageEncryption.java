@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Storage encryption using AES-GCM with a compact binary envelope.
+ *
+ * <p>
+ * Encrypted data is represented by the following binary envelope:
+ * </p>
+ *
+ * <pre>
+ * version (1 byte) | kid length (1 byte) | kid (UTF-8) | nonce (12 bytes) | ciphertext and authentication tag
+ * </pre>
+ *
+ * <p>
+ * The version, kid length and kid are authenticated as additional data. Keys are derived from passwords in the same
+ * way as for {@link DefaultStorageEncryption}. Decryption is inherited from {@link DefaultStorageEncryption}, which
+ * decrypts both this envelope and the AES-CBC JSON envelope. A random nonce is used for each encryption, so the key
+ * should be rotated well before 2^32 records have been encrypted under the same key.
+ * </p>
+ */
+public class GcmStorageEncryption extends DefaultStorageEncryption {
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /** The envelope header up to the nonce for data encrypted by this instance */
+  private final byte[] header;
+
+  /**
+   * Constructor specifying all parameters.
+   *
+   * @param password encryption password key
+   * @param kid key identifier used to identify the specified password key
+   * @param salt salt
+   * @param keylength key length
+   * @param iterations the number of times that the password is hashed during the derivation of the symmetric key
+   */
+  public GcmStorageEncryption(final char[] password, final String kid, final byte[] salt, final int keylength,
+      final int iterations) throws NoSuchAlgorithmException, InvalidKeySpecException {
+    super(password, kid, salt, keylength, iterations);
+    final byte[] kidBytes = kid.getBytes(StandardCharsets.UTF_8);
+    if (kidBytes.length > 255) {
+      throw new IllegalArgumentException("Key identifier must not be longer than 255 bytes");
+    }
+    this.header = new byte[2 + kidBytes.length];
+    this.header[0] = GCM_ENVELOPE_VERSION;
+    this.header[1] = (byte) kidBytes.length;
+    System.arraycopy(kidBytes, 0, this.header, 2, kidBytes.length);
+  }
+
+  /**
+   * Constructor with default iteration count set to 65536 and key length set to 128
+   *
+   * @param password encryption password
+   * @param kid key identifier used to identify the specified password key
+   * @param salt salt
+   */
+  public GcmStorageEncryption(final char[] password, final String kid, final byte[] salt)
+      throws NoSuchAlgorithmException, InvalidKeySpecException {
+    this(password, kid, salt, 128, 65536);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] encryptData(final byte[] dataToBeEncrypted, final boolean compress) throws IOException {
+    try {
+      final byte[] toBeEncrypted = this.getSerializedData(dataToBeEncrypted, compress);
+      final Cipher cipher = GCM_CIPHER.get();
+      final byte[] nonce = new byte[GCM_NONCE_LENGTH];
+      RANDOM.nextBytes(nonce);
+      cipher.init(Cipher.ENCRYPT_MODE, this.getKey(null, null), new GCMParameterSpec(GCM_TAG_LENGTH_BITS, nonce));
+      cipher.updateAAD(this.header);
+
+      final int ciphertextOffset = this.header.length + GCM_NONCE_LENGTH;
+      final byte[] envelope = new byte[ciphertextOffset + cipher.getOutputSize(toBeEncrypted.length)];
+      System.arraycopy(this.header, 0, envelope, 0, this.header.length);
+      System.arraycopy(nonce, 0, envelope, this.header.length, GCM_NONCE_LENGTH);
+      final int written = cipher.doFinal(toBeEncrypted, 0, toBeEncrypted.length, envelope, ciphertextOffset);
+      return ciphertextOffset + written == envelope.length
+          ? envelope
+          : Arrays.copyOf(envelope, ciphertextOffset + written);
+    }
+    catch (final IOException e) {
+      throw e;
+    }
+    catch (final Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+}
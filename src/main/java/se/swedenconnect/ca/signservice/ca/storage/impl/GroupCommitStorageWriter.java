@@ -0,0 +1,513 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writer appending storage records to storage files using group commit.
+ *
+ * <p>
+ * Threads storing certificates submit their storage record to a queue and wait for the returned future. A single
+ * writer thread takes all queued records as one batch, appends them to the storage file through a file channel that is
+ * kept open until the storage file changes, forces the written data to disk and then completes the future of each
+ * record in the batch. Unless the durability policy is {@link StorageDurability#NONE}, a future is only completed
+ * normally once its record has been forced to disk. If writing or forcing fails, the futures of all records in the
+ * batch that are not yet completed are completed exceptionally.
+ * </p>
+ *
+ * <p>
+ * How written records are forced to disk is determined by the {@link StorageDurability} policy. With the policy
+ * {@link StorageDurability#BATCH}, a maximum force delay may be set, in which case the writer waits up to this time for
+ * further records to arrive before the batch is written and forced. The time spent forcing data to disk is recorded in
+ * the {@link StorageWriteStatistics} of this writer.
+ * </p>
+ *
+ * <p>
+ * If a {@link CertificateIndex} is provided, each written record that carries certificate data is added to the index
+ * with its location in the storage file before its future is completed. If a {@link StorageFileSealer} is provided,
+ * the sealing data it provides, such as a footer indexing the records of the storage file, is appended to a storage
+ * file when the writer moves on to the next storage file and when the writer is closed. Sealing data at the end of a
+ * storage file that the writer opens again is removed before records are appended, so that it is replaced rather than
+ * followed by the sealing data appended when the storage file is sealed again. The records of a batch are written in
+ * runs of records of the same storage file, so that all records of a storage file have been indexed when the storage
+ * file is sealed.
+ * </p>
+ */
+@Slf4j
+public class GroupCommitStorageWriter implements Closeable {
+
+  /** The default maximum number of records written in one batch */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+
+  /** The directory where storage files are located */
+  private final File storageDirectory;
+
+  /** The maximum number of records written in one batch */
+  private final int maxBatchSize;
+
+  /** The policy for forcing written records to disk */
+  private final StorageDurability durability;
+
+  /** The maximum time to wait for more records before a batch is written. Only used with batch durability */
+  private final long maxForceDelayNanos;
+
+  /** Optional index of stored certificates updated with each written record */
+  private final CertificateIndex certificateIndex;
+
+  /** Optional sealer providing data appended to a storage file before it is closed */
+  private final StorageFileSealer storageFileSealer;
+
+  /** Write and force statistics */
+  @Getter
+  private final StorageWriteStatistics statistics = new StorageWriteStatistics();
+
+  /** Records waiting to be written */
+  private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+  /** Lock making the closed check and queueing of a record atomic with respect to the final draining of the queue */
+  private final Object submitLock = new Object();
+
+  /** The writer thread */
+  private final Thread writerThread;
+
+  /** Set when this writer is closed */
+  private volatile boolean closed = false;
+
+  /** The channel of the storage file currently written to */
+  private FileChannel channel;
+
+  /** The name of the storage file currently written to */
+  private String channelFileName;
+
+  /** The position in the storage file currently written to where the next record is appended */
+  private long channelPosition;
+
+  /**
+   * Constructor starting the writer thread without a certificate index.
+   *
+   * @param storageDirectory the directory where storage files are located
+   * @param maxBatchSize the maximum number of records written in one batch
+   * @param durability the policy for forcing written records to disk
+   * @param maxForceDelay the maximum time to wait for more records before a batch is written and forced, only used
+   *          with the durability policy {@link StorageDurability#BATCH}
+   */
+  public GroupCommitStorageWriter(@Nonnull final File storageDirectory, final int maxBatchSize,
+      @Nonnull final StorageDurability durability, @Nonnull final Duration maxForceDelay) {
+    this(storageDirectory, maxBatchSize, durability, maxForceDelay, null);
+  }
+
+  /**
+   * Constructor starting the writer thread.
+   *
+   * @param storageDirectory the directory where storage files are located
+   * @param maxBatchSize the maximum number of records written in one batch
+   * @param durability the policy for forcing written records to disk
+   * @param maxForceDelay the maximum time to wait for more records before a batch is written and forced, only used
+   *          with the durability policy {@link StorageDurability#BATCH}
+   * @param certificateIndex optional index of stored certificates updated with each written record
+   */
+  public GroupCommitStorageWriter(@Nonnull final File storageDirectory, final int maxBatchSize,
+      @Nonnull final StorageDurability durability, @Nonnull final Duration maxForceDelay,
+      @Nullable final CertificateIndex certificateIndex) {
+    this(storageDirectory, maxBatchSize, durability, maxForceDelay, certificateIndex, null);
+  }
+
+  /**
+   * Constructor starting the writer thread with a sealer of storage files.
+   *
+   * @param storageDirectory the directory where storage files are located
+   * @param maxBatchSize the maximum number of records written in one batch
+   * @param durability the policy for forcing written records to disk
+   * @param maxForceDelay the maximum time to wait for more records before a batch is written and forced, only used
+   *          with the durability policy {@link StorageDurability#BATCH}
+   * @param certificateIndex optional index of stored certificates updated with each written record
+   * @param storageFileSealer optional sealer providing data appended to a storage file before it is closed
+   */
+  public GroupCommitStorageWriter(@Nonnull final File storageDirectory, final int maxBatchSize,
+      @Nonnull final StorageDurability durability, @Nonnull final Duration maxForceDelay,
+      @Nullable final CertificateIndex certificateIndex, @Nullable final StorageFileSealer storageFileSealer) {
+    this.certificateIndex = certificateIndex;
+    this.storageFileSealer = storageFileSealer;
+    this.storageDirectory = Objects.requireNonNull(storageDirectory, "storageDirectory must not be null");
+    this.maxBatchSize = maxBatchSize;
+    this.durability = Objects.requireNonNull(durability, "durability must not be null");
+    this.maxForceDelayNanos = durability == StorageDurability.BATCH
+        ? Objects.requireNonNull(maxForceDelay, "maxForceDelay must not be null").toNanos()
+        : 0L;
+    this.writerThread = new Thread(this::processQueue, "certStore-writer-" + storageDirectory.getName());
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Submits a storage record to be appended to a storage file.
+   *
+   * @param fileName the name of the storage file in the storage directory
+   * @param data the storage record data
+   * @return future completed when the data has been written and forced to disk
+   */
+  public CompletableFuture<Void> submit(@Nonnull final String fileName, @Nonnull final byte[] data) {
+    return this.submit(fileName, data, null, 0L, 0L);
+  }
+
+  /**
+   * Submits a storage record holding a certificate to be appended to a storage file and added to the certificate
+   * index.
+   *
+   * @param fileName the name of the storage file in the storage directory
+   * @param data the storage record data
+   * @param serialNumber the serial number of the stored certificate or null if the record is not to be indexed
+   * @param notBefore the start of the certificate validity period in epoch seconds
+   * @param notAfter the end of the certificate validity period in epoch seconds
+   * @return future completed when the data has been written and forced to disk
+   */
+  public CompletableFuture<Void> submit(@Nonnull final String fileName, @Nonnull final byte[] data,
+      @Nullable final BigInteger serialNumber, final long notBefore, final long notAfter) {
+    final PendingWrite pendingWrite =
+        new PendingWrite(fileName, data, serialNumber, notBefore, notAfter, new CompletableFuture<>());
+    synchronized (this.submitLock) {
+      if (this.closed) {
+        pendingWrite.result().completeExceptionally(new IOException("Storage writer is closed"));
+        return pendingWrite.result();
+      }
+      this.queue.add(pendingWrite);
+    }
+    return pendingWrite.result();
+  }
+
+  /**
+   * Closes this writer after all submitted records have been processed.
+   */
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    try {
+      this.writerThread.join();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes batches of queued records until this writer is closed. If the writer thread is interrupted, the records
+   * already taken from the queue are written and the writer is closed, so that no submitted record is left without
+   * being completed.
+   */
+  private void processQueue() {
+    final List<PendingWrite> batch = new ArrayList<>();
+    boolean interrupted = false;
+    while (!this.closed || !this.queue.isEmpty()) {
+      try {
+        final PendingWrite first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        this.queue.drainTo(batch, this.maxBatchSize - 1);
+        if (this.maxForceDelayNanos > 0) {
+          this.awaitMoreRecords(batch);
+        }
+        this.writeBatch(batch);
+      }
+      catch (final InterruptedException e) {
+        log.warn("Storage writer thread interrupted - Closing storage writer for {}", this.storageDirectory);
+        this.closed = true;
+        interrupted = true;
+        // The interrupt status is cleared, so the channel is not closed by the interruption while the batch is written
+        try {
+          this.writeBatch(batch);
+        }
+        catch (final RuntimeException ex) {
+          log.error("Unexpected error in storage writer thread", ex);
+          batch.forEach(pendingWrite -> pendingWrite.result().completeExceptionally(ex));
+        }
+        break;
+      }
+      catch (final RuntimeException e) {
+        log.error("Unexpected error in storage writer thread", e);
+        batch.forEach(pendingWrite -> pendingWrite.result().completeExceptionally(e));
+      }
+      finally {
+        batch.clear();
+      }
+    }
+    this.sealChannel();
+    this.closeChannel();
+    log.info("Storage writer for {} closed - {}", this.storageDirectory, this.statistics);
+    // Fail records submitted concurrently with closing this writer. Records submitted after this are failed by submit
+    synchronized (this.submitLock) {
+      this.closed = true;
+      PendingWrite pendingWrite;
+      while ((pendingWrite = this.queue.poll()) != null) {
+        pendingWrite.result().completeExceptionally(new IOException("Storage writer is closed"));
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits until the batch is full or the maximum force delay has passed, adding records as they arrive.
+   */
+  private void awaitMoreRecords(final List<PendingWrite> batch) throws InterruptedException {
+    final long deadline = System.nanoTime() + this.maxForceDelayNanos;
+    long remaining = this.maxForceDelayNanos;
+    while (batch.size() < this.maxBatchSize && remaining > 0) {
+      final PendingWrite next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        return;
+      }
+      batch.add(next);
+      this.queue.drainTo(batch, this.maxBatchSize - batch.size());
+      remaining = deadline - System.nanoTime();
+    }
+  }
+
+  private void writeBatch(final List<PendingWrite> batch) {
+    int start = 0;
+    while (start < batch.size()) {
+      final String fileName = batch.get(start).fileName();
+      int end = start + 1;
+      while (end < batch.size() && batch.get(end).fileName().equals(fileName)) {
+        end++;
+      }
+      this.writeRun(batch.subList(start, end));
+      start = end;
+    }
+  }
+
+  /**
+   * Writes a run of records to the same storage file.
+   */
+  private void writeRun(final List<PendingWrite> batch) {
+    final long[] offsets = new long[batch.size()];
+    int completed = 0;
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        final PendingWrite pendingWrite = batch.get(i);
+        final FileChannel fileChannel = this.getChannel(pendingWrite.fileName());
+        offsets[i] = this.channelPosition;
+        final ByteBuffer buffer = ByteBuffer.wrap(pendingWrite.data());
+        while (buffer.hasRemaining()) {
+          this.channelPosition += fileChannel.write(buffer);
+        }
+        if (this.durability == StorageDurability.RECORD) {
+          this.force();
+          this.index(pendingWrite, offsets[i]);
+          this.flushIndex();
+          pendingWrite.result().complete(null);
+          completed++;
+        }
+      }
+      if (this.durability == StorageDurability.BATCH) {
+        this.force();
+      }
+    }
+    catch (final IOException e) {
+      log.error("Failed to write {} storage records", batch.size() - completed, e);
+      this.closeChannel();
+      batch.subList(completed, batch.size()).forEach(pendingWrite -> pendingWrite.result().completeExceptionally(e));
+      return;
+    }
+    this.statistics.recordBatch(batch.size());
+    for (int i = completed; i < batch.size(); i++) {
+      this.index(batch.get(i), offsets[i]);
+    }
+    this.flushIndex();
+    batch.subList(completed, batch.size()).forEach(pendingWrite -> pendingWrite.result().complete(null));
+  }
+
+  /**
+   * Adds a written record to the certificate index. A failure to update the index file is logged but not considered a
+   * storage error since the index can be rebuilt from the storage files.
+   */
+  private void index(final PendingWrite pendingWrite, final long offset) {
+    if (this.certificateIndex == null || pendingWrite.serialNumber() == null) {
+      return;
+    }
+    try {
+      this.certificateIndex.add(new CertificateIndex.IndexEntry(pendingWrite.serialNumber(), pendingWrite.fileName(),
+          offset, pendingWrite.data().length, pendingWrite.notBefore(), pendingWrite.notAfter()));
+    }
+    catch (final IOException e) {
+      log.error("Failed to add certificate {} to certificate index", pendingWrite.serialNumber().toString(16), e);
+    }
+  }
+
+  private void flushIndex() {
+    if (this.certificateIndex == null) {
+      return;
+    }
+    try {
+      this.certificateIndex.flush();
+    }
+    catch (final IOException e) {
+      log.error("Failed to write certificate index", e);
+    }
+  }
+
+  private void force() throws IOException {
+    final long start = System.nanoTime();
+    this.channel.force(false);
+    this.statistics.recordForce(System.nanoTime() - start);
+  }
+
+  /**
+   * Gets the channel for a storage file. If another storage file is currently open, it is forced and closed first.
+   */
+  private FileChannel getChannel(final String fileName) throws IOException {
+    if (this.channel != null && fileName.equals(this.channelFileName)) {
+      return this.channel;
+    }
+    if (this.channel != null) {
+      if (this.durability != StorageDurability.NONE) {
+        this.force();
+      }
+      this.sealChannel();
+      this.closeChannel();
+    }
+    final File storageFile = new File(this.storageDirectory, fileName);
+    this.channel = FileChannel.open(storageFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    this.channelFileName = fileName;
+    this.channelPosition = this.channel.size();
+    if (this.storageFileSealer != null && this.channelPosition > 0) {
+      final long sealingDataOffset = this.storageFileSealer.getSealingDataOffset(storageFile);
+      if (sealingDataOffset < this.channelPosition) {
+        this.channel.truncate(sealingDataOffset);
+        this.channelPosition = sealingDataOffset;
+        log.debug("Removed sealing data at offset {} of storage file {}", sealingDataOffset, fileName);
+      }
+    }
+    log.debug("Opened storage file {}", fileName);
+    return this.channel;
+  }
+
+  /**
+   * Appends the sealing data of the storage file currently written to and forces it to disk. A failure to seal a
+   * storage file is logged but not considered a storage error since the records of the storage file are not affected.
+   * Any partially written sealing data is removed.
+   */
+  private void sealChannel() {
+    if (this.channel == null || this.storageFileSealer == null) {
+      return;
+    }
+    final long sealOffset = this.channelPosition;
+    try {
+      final byte[] sealingData = this.storageFileSealer.getSealingData(this.channelFileName, sealOffset);
+      if (sealingData == null) {
+        return;
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(sealingData);
+      while (buffer.hasRemaining()) {
+        this.channelPosition += this.channel.write(buffer);
+      }
+      this.channel.force(false);
+      log.debug("Sealed storage file {}", this.channelFileName);
+    }
+    catch (final IOException e) {
+      log.error("Failed to seal storage file {}", this.channelFileName, e);
+      try {
+        this.channel.truncate(sealOffset);
+        this.channelPosition = sealOffset;
+      }
+      catch (final IOException ex) {
+        log.error("Failed to remove sealing data from storage file {}", this.channelFileName, ex);
+      }
+    }
+  }
+
+  private void closeChannel() {
+    if (this.channel != null) {
+      try {
+        this.channel.close();
+      }
+      catch (final IOException e) {
+        log.warn("Failed to close storage file {}", this.channelFileName, e);
+      }
+    }
+    this.channel = null;
+    this.channelFileName = null;
+  }
+
+  /**
+   * Sealer providing data appended to a storage file before the writer closes it.
+   */
+  @FunctionalInterface
+  public interface StorageFileSealer {
+
+    /**
+     * Gets the data to append to a storage file before it is closed.
+     *
+     * @param fileName the name of the storage file
+     * @param offset the offset in the storage file where the data is appended
+     * @return the data to append or null if no data is to be appended
+     * @throws IOException error creating the data
+     */
+    @Nullable
+    byte[] getSealingData(String fileName, long offset) throws IOException;
+
+    /**
+     * Gets the offset of the sealing data at the end of a storage file that is opened for appending records. The
+     * sealing data is removed before any record is appended. The default implementation reports no sealing data.
+     *
+     * @param storageFile the storage file
+     * @return the offset of the sealing data, or the length of the storage file if it does not end with sealing data
+     * @throws IOException error reading the storage file
+     */
+    default long getSealingDataOffset(final File storageFile) throws IOException {
+      return storageFile.length();
+    }
+  }
+
+  /**
+   * A storage record waiting to be written.
+   *
+   * @param fileName the name of the storage file
+   * @param data the storage record data
+   * @param serialNumber the serial number of the stored certificate or null if the record is not indexed
+   * @param notBefore the start of the certificate validity period in epoch seconds
+   * @param notAfter the end of the certificate validity period in epoch seconds
+   * @param result future completed when the data is written and forced to disk
+   */
+  private record PendingWrite(String fileName, byte[] data, BigInteger serialNumber, long notBefore, long notAfter,
+      CompletableFuture<Void> result) {
+  }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.data.RemovedRevocations;
+import se.swedenconnect.ca.signservice.ca.storage.data.RevocationRecord;
+import tools.jackson.core.JacksonException;
+import tools.jackson.core.type.TypeReference;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Journaled storage of revocation data.
+ *
+ * <p>
+ * The revocation state is held in a snapshot file (the revocation file) and a journal file located next to it with
+ * the extension ".journal". Each revocation event is appended to the journal as one compact JSON line and forced to
+ * disk, which keeps the cost of a revocation constant regardless of the number of revoked certificates. A journal
+ * record holds the complete new state of a revoked certificate. A record with the reason code removeFromCRL means that
+ * the certificate is removed from the revocation list. Replaying the journal over the snapshot is therefore
+ * idempotent.
+ * </p>
+ *
+ * <p>
+ * When the journal has grown beyond the compaction threshold, the current revocation state is written to a new
+ * snapshot file that atomically replaces the old one, after which the journal is removed.
+ * </p>
+ *
+ * <p>
+ * Revocation data removed for expired certificates is recorded in a removal file located next to the snapshot file with
+ * the extension ".removed", holding the time before which expired certificates were removed and the serial numbers of
+ * the removed certificates. The removal file atomically replaces the previous removal file before the revocation data
+ * is removed from the snapshot, so a removal is never undone by a journal or snapshot that still holds the removed
+ * revocation data.
+ * </p>
+ */
+@Slf4j
+public class RevocationJournal {
+
+  /** The default number of journal records that triggers compaction */
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 1000;
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** The snapshot file holding the revocation state at the last compaction */
+  @Getter
+  private final File snapshotFile;
+
+  /** The journal file holding revocation events since the last compaction */
+  @Getter
+  private final File journalFile;
+
+  /** The removal file holding the revocation data removed for expired certificates */
+  @Getter
+  private final File removedFile;
+
+  /** The number of journal records that triggers compaction */
+  @Setter
+  private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+  /** The number of records currently in the journal */
+  private int journalRecordCount;
+
+  /** File size and modification time of snapshot, journal and removal file when last read or written */
+  private long[] fileStamp = new long[6];
+
+  /**
+   * Constructor.
+   *
+   * @param snapshotFile the revocation snapshot file
+   */
+  public RevocationJournal(@Nonnull final File snapshotFile) {
+    this.snapshotFile = Objects.requireNonNull(snapshotFile, "snapshotFile must not be null");
+    this.journalFile = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".journal");
+    this.removedFile = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".removed");
+  }
+
+  /**
+   * Reads the revocation snapshot.
+   *
+   * @return revocation records of the snapshot
+   */
+  public synchronized List<RevocationRecord> readSnapshot() {
+    final List<RevocationRecord> snapshot;
+    if (!this.snapshotFile.exists()) {
+      snapshot = new ArrayList<>();
+    }
+    else {
+      try {
+        snapshot = OBJECT_MAPPER.readValue(FileUtils.readFileToByteArray(this.snapshotFile), new TypeReference<>() {
+        });
+      }
+      catch (final IOException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+    this.recordFileStamp();
+    return snapshot;
+  }
+
+  /**
+   * Reads the revocation events recorded in the journal since the last compaction, in the order they were recorded.
+   * An incomplete last line, caused by an interrupted write, is removed from the journal so that the next record is
+   * appended on a line of its own.
+   *
+   * @return journal records
+   */
+  public synchronized List<RevocationRecord> readJournal() {
+    final List<RevocationRecord> journal = new ArrayList<>();
+    if (this.journalFile.exists()) {
+      final String[] lines;
+      try {
+        final byte[] journalData = FileUtils.readFileToByteArray(this.journalFile);
+        final int completeLength = this.getCompleteLength(journalData);
+        if (completeLength < journalData.length) {
+          log.warn("Removing incomplete last record in revocation journal {}", this.journalFile);
+          try (FileChannel channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(completeLength);
+            channel.force(false);
+          }
+        }
+        lines = new String(journalData, 0, completeLength, StandardCharsets.UTF_8).split("\n");
+      }
+      catch (final IOException e) {
+        throw new IllegalArgumentException(e);
+      }
+      for (int i = 0; i < lines.length; i++) {
+        if (lines[i].isBlank()) {
+          continue;
+        }
+        try {
+          journal.add(OBJECT_MAPPER.readValue(lines[i], RevocationRecord.class));
+        }
+        catch (final JacksonException e) {
+          throw new IllegalArgumentException("Corrupt revocation journal record at line " + (i + 1), e);
+        }
+      }
+    }
+    this.journalRecordCount = journal.size();
+    this.recordFileStamp();
+    return journal;
+  }
+
+  /**
+   * Reads the record of revocation data removed for expired certificates.
+   *
+   * @return the removed revocation data or null if no revocation data has been removed
+   */
+  @Nullable
+  public synchronized RemovedRevocations readRemoved() {
+    if (!this.removedFile.exists()) {
+      return null;
+    }
+    final RemovedRevocations removed;
+    try {
+      removed = OBJECT_MAPPER.readValue(FileUtils.readFileToByteArray(this.removedFile), RemovedRevocations.class);
+    }
+    catch (final IOException | JacksonException e) {
+      throw new IllegalArgumentException("Unable to read removed revocation data from " + this.removedFile, e);
+    }
+    this.recordFileStamp();
+    return removed;
+  }
+
+  /**
+   * Writes the record of revocation data removed for expired certificates, atomically replacing the previous record.
+   *
+   * @param removed all revocation data removed for expired certificates
+   * @throws IOException error writing the removal file
+   */
+  public synchronized void writeRemoved(@Nonnull final RemovedRevocations removed) throws IOException {
+    writeAtomically(this.removedFile, OBJECT_MAPPER.writeValueAsBytes(removed));
+    this.recordFileStamp();
+  }
+
+  /**
+   * Appends a revocation event to the journal and forces it to disk.
+   *
+   * @param record the revocation record holding the new state of the revoked certificate
+   * @throws IOException error writing to the journal
+   */
+  public synchronized void append(@Nonnull final RevocationRecord record) throws IOException {
+    final byte[] line = (OBJECT_MAPPER.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+    try (FileChannel channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      final ByteBuffer buffer = ByteBuffer.wrap(line);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+    this.journalRecordCount++;
+    this.recordFileStamp();
+  }
+
+  /**
+   * Tells if the journal has reached the compaction threshold.
+   *
+   * @return true if the journal should be compacted
+   */
+  public synchronized boolean isCompactionDue() {
+    return this.journalRecordCount >= this.compactionThreshold;
+  }
+
+  /**
+   * Tells if the journal holds any records.
+   *
+   * @return true if the journal is not empty
+   */
+  public synchronized boolean hasJournalRecords() {
+    return this.journalRecordCount > 0;
+  }
+
+  /**
+   * Writes the provided revocation state as a new snapshot replacing the current snapshot, and then removes the
+   * journal.
+   *
+   * @param records the complete current revocation state
+   * @throws IOException error writing the snapshot
+   */
+  public synchronized void compact(@Nonnull final Collection<RevocationRecord> records) throws IOException {
+    writeAtomically(this.snapshotFile, OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(records));
+    // A crash at this point leaves a journal that is replayed over the new snapshot, which is harmless
+    Files.deleteIfExists(this.journalFile.toPath());
+    log.debug("Compacted {} revocation journal records into snapshot {}", this.journalRecordCount, this.snapshotFile);
+    this.journalRecordCount = 0;
+    this.recordFileStamp();
+  }
+
+  /**
+   * Tells if the snapshot, the journal or the removal file has been modified by someone else since they were last read
+   * or written through this object.
+   *
+   * @return true if any of the files has been modified
+   */
+  public synchronized boolean isModified() {
+    final long[] current = this.getCurrentFileStamp();
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] != this.fileStamp[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the length of the journal data up to and including the line feed of the last complete record. Each record is
+   * appended together with its line feed, so any data after the last line feed is an interrupted write.
+   */
+  private int getCompleteLength(final byte[] journalData) {
+    int length = journalData.length;
+    while (length > 0 && journalData[length - 1] != '\n') {
+      length--;
+    }
+    return length;
+  }
+
+  /**
+   * Writes data to a temporary file that is forced to disk and then atomically replaces the provided file.
+   */
+  private static void writeAtomically(final File file, final byte[] data) throws IOException {
+    final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void recordFileStamp() {
+    this.fileStamp = this.getCurrentFileStamp();
+  }
+
+  private long[] getCurrentFileStamp() {
+    return new long[] { this.snapshotFile.lastModified(), this.snapshotFile.length(),
+        this.journalFile.lastModified(), this.journalFile.length(), this.removedFile.lastModified(),
+        this.removedFile.length() };
+  }
+
+}
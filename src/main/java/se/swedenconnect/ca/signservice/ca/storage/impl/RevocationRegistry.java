@@ -0,0 +1,482 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.asn1.x509.CRLReason;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.signservice.ca.storage.data.RemovedRevocations;
+import se.swedenconnect.ca.signservice.ca.storage.data.RevocationRecord;
+
+/**
+ * In memory registry of revoked certificates backed by the revocation file and its revocation journal.
+ *
+ * <p>
+ * The revocation file and the journal are parsed once when the registry is created and the parsed revocation entries
+ * are kept in a hash map indexed by serial number for fast status lookup, and in a sorted map providing an ordered view
+ * for CRL generation. Every revocation made through this registry is appended to the journal before the in memory
+ * state is updated. See {@link RevocationJournal}.
+ * </p>
+ *
+ * <p>
+ * The revocation file may still be updated manually, or by another server sharing the same revocation file. The
+ * registry detects such updates by comparing the size and modification time of the revocation file and the journal
+ * with the values recorded at the last load or write, and reloads the revocation data when a difference is detected.
+ * This check is done when the full list of revoked certificates is requested. When looking up the status of a single
+ * certificate, the check is done at most once per modification check interval, so that status lookups are still served
+ * from memory. Each reload caused by a modification increments the generation of the registry, which allows caches
+ * derived from the revocation data to detect that they are outdated.
+ * </p>
+ *
+ * <p>
+ * The revocation data of expired certificates may be removed. The removal is recorded in the removal file of the
+ * journal before the remaining revocation data is compacted into the revocation file, so the removal survives a
+ * restart even if the compaction fails. The registry keeps the serial numbers of all certificates whose revocation
+ * data was removed, which tells certificates whose revocation data is no longer known apart from certificates that
+ * were never revoked. A certificate whose revocation data was removed can not be revoked again.
+ * </p>
+ */
+@Slf4j
+public class RevocationRegistry {
+
+  /** The default minimum time between checks for modifications when looking up the status of single certificates */
+  public static final Duration DEFAULT_MODIFICATION_CHECK_INTERVAL = Duration.ofSeconds(1);
+
+  private static final DateTimeFormatter REV_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  /** The journaled revocation file */
+  private final RevocationJournal journal;
+
+  /** Revoked certificates indexed by serial number */
+  private final Map<BigInteger, RevokedCertificate> revokedBySerial = new ConcurrentHashMap<>();
+
+  /** Revoked certificates sorted by serial number */
+  private final NavigableMap<BigInteger, RevokedCertificate> sortedRevoked = new ConcurrentSkipListMap<>();
+
+  /** The serial numbers of the certificates whose revocation data was removed after they expired */
+  private volatile Set<BigInteger> removedSerials = Collections.emptySet();
+
+  /** The time before which expired certificates were removed from the revocation data, or null if never removed */
+  @Getter
+  private volatile Instant removedBefore;
+
+  /** The minimum time between checks for modifications when looking up the status of single certificates */
+  private Duration modificationCheckInterval = DEFAULT_MODIFICATION_CHECK_INTERVAL;
+
+  /** The time in epoch milliseconds when the next check for modifications is due on status lookups */
+  private volatile long nextModificationCheck;
+
+  /** The number of times the revocation data has been reloaded due to modifications made outside of this registry */
+  @Getter
+  private volatile long generation;
+
+  /**
+   * Constructor loading the current content of the revocation file and its journal using the default compaction
+   * threshold.
+   *
+   * @param revocationFile the revocation file
+   */
+  public RevocationRegistry(@Nonnull final File revocationFile) {
+    this(revocationFile, RevocationJournal.DEFAULT_COMPACTION_THRESHOLD);
+  }
+
+  /**
+   * Constructor loading the current content of the revocation file and its journal. If the journal holds any records,
+   * these are compacted into the revocation file so that the revocation file reflects the current state on startup.
+   *
+   * @param revocationFile the revocation file
+   * @param compactionThreshold the number of journal records that triggers compaction into the revocation file
+   */
+  public RevocationRegistry(@Nonnull final File revocationFile, final int compactionThreshold) {
+    this.journal = new RevocationJournal(Objects.requireNonNull(revocationFile, "revocationFile must not be null"));
+    this.journal.setCompactionThreshold(compactionThreshold);
+    this.reload();
+    if (this.journal.hasJournalRecords()) {
+      this.compact();
+    }
+  }
+
+  /**
+   * Gets the revocation data for a single certificate. This lookup is served from memory, apart from a check for
+   * modifications of the revocation file at most once per modification check interval.
+   *
+   * @param serialNumber certificate serial number
+   * @return revoked certificate data or null if the certificate is not revoked
+   */
+  @Nullable
+  public RevokedCertificate getRevokedCertificate(@Nonnull final BigInteger serialNumber) {
+    this.refreshIfCheckDue();
+    return this.revokedBySerial.get(serialNumber);
+  }
+
+  /**
+   * Gets all revoked certificates sorted by serial number. The revocation file is reloaded before the list is
+   * assembled if it has been modified outside of this registry.
+   *
+   * @return list of revoked certificates
+   */
+  @Nonnull
+  public List<RevokedCertificate> getRevokedCertificates() {
+    this.refreshIfModified();
+    return new ArrayList<>(this.sortedRevoked.values());
+  }
+
+  /**
+   * Gets the serial numbers of all revoked certificates held by this registry. This is served from memory only.
+   *
+   * @return unmodifiable view of the serial numbers of revoked certificates
+   */
+  @Nonnull
+  public Set<BigInteger> getRevokedSerials() {
+    return Collections.unmodifiableSet(this.revokedBySerial.keySet());
+  }
+
+  /**
+   * Tests if the revocation data of a certificate has been removed after the certificate expired. This is served from
+   * memory, apart from a check for modifications at most once per modification check interval.
+   *
+   * @param serialNumber certificate serial number
+   * @return true if the revocation data of the certificate has been removed
+   */
+  public boolean isRemoved(@Nonnull final BigInteger serialNumber) {
+    this.refreshIfCheckDue();
+    return this.removedSerials.contains(serialNumber);
+  }
+
+  /**
+   * Gets the serial numbers of the certificates whose revocation data was removed after they expired. This is served
+   * from memory only.
+   *
+   * @return unmodifiable set of the serial numbers of certificates whose revocation data was removed
+   */
+  @Nonnull
+  public Set<BigInteger> getRemovedSerials() {
+    return this.removedSerials;
+  }
+
+  /**
+   * Gets the number of revoked certificates held by this registry.
+   *
+   * @return number of revoked certificates
+   */
+  public int size() {
+    return this.revokedBySerial.size();
+  }
+
+  /**
+   * Reloads the revocation file if it has been modified since it was last read or written by this registry.
+   */
+  public synchronized void refreshIfModified() {
+    if (this.journal.isModified()) {
+      log.info("Revocation file {} has been modified. Reloading revocation data", this.journal.getSnapshotFile());
+      this.reload();
+      this.generation++;
+    }
+  }
+
+  /**
+   * Sets the minimum time between checks for modifications when looking up the status of single certificates. The
+   * next status lookup makes a new check.
+   *
+   * @param modificationCheckInterval the modification check interval
+   */
+  public void setModificationCheckInterval(@Nonnull final Duration modificationCheckInterval) {
+    this.modificationCheckInterval =
+        Objects.requireNonNull(modificationCheckInterval, "modificationCheckInterval must not be null");
+    this.nextModificationCheck = 0L;
+  }
+
+  /**
+   * Reloads the revocation file if it has been modified and the modification check interval has passed since the last
+   * check made by this method.
+   */
+  public void refreshIfCheckDue() {
+    final long now = System.currentTimeMillis();
+    if (now >= this.nextModificationCheck) {
+      this.nextModificationCheck = now + this.modificationCheckInterval.toMillis();
+      this.refreshIfModified();
+    }
+  }
+
+  /**
+   * Revoke a certificate, or update the revocation status of a certificate on certificate hold.
+   *
+   * <p>
+   * A certificate can only be revoked once unless the reason i certificateHold. In such case the certificate can be
+   * revoked again with an updated reason code, or removed from the revocation list using the reason removeFromCRL.
+   * </p>
+   *
+   * @param revokedCertificate information about the certificate to be revoked
+   * @throws CertificateRevocationException if the revocation request is not allowed
+   */
+  public synchronized void revoke(@Nonnull final RevokedCertificate revokedCertificate)
+      throws CertificateRevocationException {
+    this.refreshIfModified();
+    final BigInteger serial = revokedCertificate.getCertificateSerialNumber();
+    this.update(serial, getUpdatedRevocation(this.revokedBySerial.get(serial), this.removedSerials.contains(serial),
+        revokedCertificate));
+  }
+
+  /**
+   * Gets the revocation data of a certificate resulting from a revocation request, following the rules described for
+   * {@link #revoke(RevokedCertificate)}. A certificate whose revocation data was removed after it expired can not be
+   * revoked again. The revocation time of a new revocation is truncated to seconds, the precision of stored revocation
+   * data.
+   *
+   * @param existing the current revocation data of the certificate or null if the certificate is not revoked
+   * @param removed true if the revocation data of the certificate has been removed after it expired
+   * @param revokedCertificate information about the certificate to be revoked
+   * @return the new revocation data or null if the certificate is removed from certificate hold
+   * @throws CertificateRevocationException if the revocation request is not allowed
+   */
+  @Nullable
+  static RevokedCertificate getUpdatedRevocation(@Nullable final RevokedCertificate existing, final boolean removed,
+      @Nonnull final RevokedCertificate revokedCertificate) throws CertificateRevocationException {
+
+    if (revokedCertificate.getReason() > CRLReason.aACompromise) {
+      throw new CertificateRevocationException("Illegal reason code");
+    }
+    final BigInteger serial = revokedCertificate.getCertificateSerialNumber();
+    if (existing == null && removed) {
+      throw new CertificateRevocationException(
+          "Revocation request denied since the revocation data of the expired certificate has been removed");
+    }
+    if (existing != null) {
+      if (existing.getReason() == CRLReason.certificateHold) {
+        if (revokedCertificate.getReason() == CRLReason.removeFromCRL) {
+          // remove this certificate from certificateHold status
+          log.debug("Removing certificate from certificateHold");
+          return null;
+        }
+        log.debug("Modifying revoked certificate from certificateHold to reason {}", revokedCertificate.getReason());
+        return new RevokedCertificate(serial, existing.getRevocationTime(), revokedCertificate.getReason());
+      }
+      if (CRLReason.removeFromCRL == revokedCertificate.getReason()) {
+        log.debug("Revocation removal request denied since certificate has already been permanently revoked");
+        throw new CertificateRevocationException(
+            "Revocation removal request denied since certificate has already been permanently revoked");
+      }
+      log.debug("Certificate is already revoked with reason other than certificate hold");
+      throw new CertificateRevocationException(
+          "Revocation request denied since certificate is already revoked with reason other than certificate hold");
+    }
+
+    // No existing revocation record. Add a new record.
+    if (revokedCertificate.getReason() < 0) {
+      throw new CertificateRevocationException("Revocation of new certificate must hav a non negative reason code");
+    }
+    if (revokedCertificate.getReason() == CRLReason.removeFromCRL) {
+      throw new CertificateRevocationException("Removal request for a certificate that has not been revoked");
+    }
+    // The revocation time is stored with second precision. Normalize it so that memory and storage agree.
+    final Date revocationTime = revokedCertificate.getRevocationTime() == null
+        ? new Date()
+        : revokedCertificate.getRevocationTime();
+    return new RevokedCertificate(serial, parseTime(formatTime(revocationTime)), revokedCertificate.getReason());
+  }
+
+  /**
+   * Removes the revocation data of a set of expired certificates. The removed serial numbers and the time before which
+   * expired certificates were removed are first written to the removal file of the journal, and the remaining
+   * revocation data is then written to the revocation file in a single compaction. If the removal can not be recorded,
+   * no revocation data is removed.
+   *
+   * @param serialNumbers the serial numbers of the certificates to remove
+   * @param removedBefore the time before which the removed certificates expired
+   * @return the serial numbers of the certificates that were removed
+   * @throws IOException error recording the removal, in which case no revocation data was removed
+   */
+  @Nonnull
+  public synchronized List<BigInteger> remove(@Nonnull final Collection<BigInteger> serialNumbers,
+      @Nonnull final Instant removedBefore) throws IOException {
+    this.refreshIfModified();
+    final List<BigInteger> removed = new ArrayList<>();
+    for (final BigInteger serial : serialNumbers) {
+      if (this.revokedBySerial.containsKey(serial)) {
+        removed.add(serial);
+      }
+    }
+    final Set<BigInteger> allRemoved = new HashSet<>(this.removedSerials);
+    allRemoved.addAll(removed);
+    final Instant cutoff = this.removedBefore == null || removedBefore.isAfter(this.removedBefore)
+        ? Instant.ofEpochSecond(removedBefore.getEpochSecond())
+        : this.removedBefore;
+    this.journal.writeRemoved(RemovedRevocations.builder()
+        .removedBefore(cutoff.getEpochSecond())
+        .serials(allRemoved.stream().map(serial -> serial.toString(16)).sorted().toList())
+        .build());
+    this.removedSerials = Collections.unmodifiableSet(allRemoved);
+    this.removedBefore = cutoff;
+    for (final BigInteger serial : removed) {
+      this.revokedBySerial.remove(serial);
+      this.sortedRevoked.remove(serial);
+    }
+    if (!removed.isEmpty()) {
+      this.compact();
+    }
+    return removed;
+  }
+
+  /**
+   * Appends the provided change to the revocation journal and then applies the same change to memory.
+   *
+   * @param serial the serial number of the changed certificate
+   * @param revokedCertificate the new revocation data or null to remove the certificate from the registry
+   */
+  private void update(final BigInteger serial, final RevokedCertificate revokedCertificate) {
+    final RevocationRecord journalRecord = revokedCertificate == null
+        ? toRecord(new RevokedCertificate(serial, new Date(), CRLReason.removeFromCRL))
+        : toRecord(revokedCertificate);
+    try {
+      this.journal.append(journalRecord);
+    }
+    catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+    this.apply(journalRecord);
+    if (this.journal.isCompactionDue()) {
+      this.compact();
+    }
+  }
+
+  /**
+   * Applies a revocation record to the in memory state.
+   *
+   * @param record revocation record where the reason removeFromCRL removes the certificate
+   */
+  private void apply(final RevocationRecord record) {
+    final RevokedCertificate revokedCertificate = toRevokedCertificate(record);
+    final BigInteger serial = revokedCertificate.getCertificateSerialNumber();
+    if (record.getReason() == CRLReason.removeFromCRL) {
+      this.revokedBySerial.remove(serial);
+      this.sortedRevoked.remove(serial);
+    }
+    else {
+      this.revokedBySerial.put(serial, revokedCertificate);
+      this.sortedRevoked.put(serial, revokedCertificate);
+    }
+  }
+
+  /**
+   * Writes the current in memory state to the revocation file and clears the journal. A failure to compact is logged
+   * but not considered an error since all revocation data is still held by the journal and the removal file.
+   */
+  private synchronized void compact() {
+    final List<RevocationRecord> revocationData = new ArrayList<>(this.sortedRevoked.size());
+    this.sortedRevoked.values().forEach(revoked -> revocationData.add(toRecord(revoked)));
+    try {
+      this.journal.compact(revocationData);
+    }
+    catch (final IOException e) {
+      log.error("Failed to compact revocation journal into {}", this.journal.getSnapshotFile(), e);
+    }
+  }
+
+  /**
+   * Replaces the in memory state with the content of the revocation file with the journal replayed on top of it, and
+   * the revocation data recorded as removed left out.
+   */
+  private synchronized void reload() {
+    final Map<BigInteger, RevokedCertificate> loaded = new ConcurrentHashMap<>();
+    for (final RevocationRecord record : this.journal.readSnapshot()) {
+      final RevokedCertificate revokedCertificate = toRevokedCertificate(record);
+      loaded.put(revokedCertificate.getCertificateSerialNumber(), revokedCertificate);
+    }
+    for (final RevocationRecord record : this.journal.readJournal()) {
+      final RevokedCertificate revokedCertificate = toRevokedCertificate(record);
+      if (record.getReason() == CRLReason.removeFromCRL) {
+        loaded.remove(revokedCertificate.getCertificateSerialNumber());
+      }
+      else {
+        loaded.put(revokedCertificate.getCertificateSerialNumber(), revokedCertificate);
+      }
+    }
+    final RemovedRevocations removed = this.journal.readRemoved();
+    if (removed != null) {
+      final Set<BigInteger> serials = new HashSet<>();
+      removed.getSerials().forEach(serial -> serials.add(new BigInteger(serial, 16)));
+      loaded.keySet().removeAll(serials);
+      this.removedSerials = Collections.unmodifiableSet(serials);
+      this.removedBefore = Instant.ofEpochSecond(removed.getRemovedBefore());
+    }
+    this.revokedBySerial.keySet().retainAll(loaded.keySet());
+    this.sortedRevoked.keySet().retainAll(loaded.keySet());
+    this.revokedBySerial.putAll(loaded);
+    this.sortedRevoked.putAll(loaded);
+  }
+
+  /**
+   * Converts a revocation record to revoked certificate data.
+   *
+   * @param record revocation record
+   * @return revoked certificate data
+   */
+  static RevokedCertificate toRevokedCertificate(final RevocationRecord record) {
+    return new RevokedCertificate(new BigInteger(record.getSerial(), 16), parseTime(record.getTime()),
+        record.getReason());
+  }
+
+  /**
+   * Converts revoked certificate data to a revocation record.
+   *
+   * @param revokedCertificate revoked certificate data
+   * @return revocation record
+   */
+  static RevocationRecord toRecord(final RevokedCertificate revokedCertificate) {
+    return RevocationRecord.builder()
+        .serial(revokedCertificate.getCertificateSerialNumber().toString(16))
+        .time(formatTime(revokedCertificate.getRevocationTime()))
+        .reason(revokedCertificate.getReason())
+        .build();
+  }
+
+  private static Date parseTime(final String time) {
+    final LocalDateTime revocationDt = LocalDateTime.parse(time, REV_TIME_FORMAT);
+    return Date.from(revocationDt.atZone(ZoneId.systemDefault()).toInstant());
+  }
+
+  private static String formatTime(final Date date) {
+    return LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault()).format(REV_TIME_FORMAT);
+  }
+
+}
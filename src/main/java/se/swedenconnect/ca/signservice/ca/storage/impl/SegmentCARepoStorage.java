@@ -0,0 +1,236 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.SegmentFile;
+import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.data.SegmentRecord;
+
+/**
+ * CA repository storage service storing certificates as binary records in daily segment files.
+ *
+ * <p>
+ * This storage service provides the same functions as {@link DefaultCARepoStorage}, but stores each certificate as a
+ * length prefixed and CRC checked binary record holding the serial number, the validity period in epoch seconds, the
+ * subject id and the DER encoded certificate, as defined by {@link SegmentFile}. Compared to JSON lines storage files,
+ * this avoids Base64 and JSON encoding of stored certificates, which makes both storage and scanning of storage files
+ * considerably cheaper.
+ * </p>
+ *
+ * <p>
+ * When the storage writer moves on to the next daily segment file, and when this storage is closed, a footer listing
+ * the location of all records is appended to the segment file. The certificate index of a sealed segment file can
+ * therefore be rebuilt by reading its footer only. When more records are appended to a sealed segment file, e.g. after
+ * a restart during the day, its footer is removed first and replaced by a new footer when the file is sealed again.
+ * On startup, invalid or incomplete data at the end of a segment file, which is the result of an interrupted write, is
+ * removed before any new records are appended.
+ * </p>
+ *
+ * <p>
+ * Existing JSON lines storage files can be converted to segment files using
+ * {@link se.swedenconnect.ca.signservice.ca.storage.SegmentFileConverter}.
+ * </p>
+ */
+@Slf4j
+public class SegmentCARepoStorage extends AbstractCARepoStorage {
+
+  /** The name of the certificate index file */
+  public static final String INDEX_FILE_NAME = "certSegment.idx";
+
+  /**
+   * Constructor where each batch of stored certificates is forced to disk without delay.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @throws IOException error instantiating this storage service
+   */
+  public SegmentCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption) throws IOException {
+    this(storageDirectory, revocationFile, encryption, StorageDurability.BATCH, Duration.ZERO);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @throws IOException error instantiating this storage service
+   */
+  public SegmentCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay) throws IOException {
+    this(storageDirectory, revocationFile, encryption, durability, maxForceDelay, 1);
+  }
+
+  /**
+   * Constructor for storage divided into storage shards, each storing certificates in its own daily storage file.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @param storageShards the number of storage shards, where 1 stores all certificates in one daily storage file
+   * @throws IOException error instantiating this storage service
+   */
+  public SegmentCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay, final int storageShards) throws IOException {
+    this(storageDirectory, revocationFile, encryption, durability, maxForceDelay, storageShards, null);
+  }
+
+  /**
+   * Constructor for storage divided into storage shards and storage segments.
+   *
+   * @param storageDirectory directory for storing data
+   * @param revocationFile the revocation file
+   * @param encryption optional encrypter for encrypting data
+   * @param durability the policy for forcing stored certificates to disk
+   * @param maxForceDelay the maximum time to wait for more certificates to store before a batch is forced to disk,
+   *          only used with the durability policy {@link StorageDurability#BATCH}
+   * @param storageShards the number of storage shards, where 1 stores all certificates in one daily storage file
+   * @param rollover the policy for moving on to a new storage segment, or null to store all certificates of a day
+   *          in one storage file
+   * @throws IOException error instantiating this storage service
+   */
+  public SegmentCARepoStorage(@Nonnull final File storageDirectory, @Nonnull final File revocationFile,
+      @Nullable final StorageEncryption encryption, @Nonnull final StorageDurability durability,
+      @Nonnull final Duration maxForceDelay, final int storageShards, @Nullable final StorageRollover rollover)
+      throws IOException {
+    // Segment files are repaired before they are indexed and opened for writing
+    super(repairSegmentFiles(storageDirectory), revocationFile, encryption, durability, maxForceDelay, storageShards,
+        rollover, INDEX_FILE_NAME, SegmentFile.SEGMENT_FILE_PREFIX, SegmentCARepoStorage::scanSegmentFile);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected byte[] getStorageRecordData(@Nonnull final X509CertificateHolder certificate,
+      @Nonnull final byte[] certBytes) throws IOException {
+    final byte[] id = this.getSubjectId(certificate).getBytes(StandardCharsets.UTF_8);
+    final SegmentRecord.SegmentRecordBuilder recordBuilder = SegmentRecord.builder()
+        .serial(certificate.getSerialNumber())
+        .notBefore(certificate.getNotBefore().toInstant().getEpochSecond())
+        .notAfter(certificate.getNotAfter().toInstant().getEpochSecond());
+    if (this.encryption != null) {
+      recordBuilder.encrypted(true)
+          .id(this.encryption.encryptData(id, false))
+          .cert(this.encryption.encryptData(certBytes, true));
+    }
+    else {
+      recordBuilder.id(id).cert(certBytes);
+    }
+    return SegmentFile.encodeRecord(recordBuilder.build());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected byte[] getCertificate(@Nonnull final byte[] recordData, @Nonnull final BigInteger serialNumber)
+      throws IOException {
+    final SegmentRecord record = SegmentFile.decodeRecord(recordData);
+    if (!record.isEncrypted()) {
+      return record.getCert();
+    }
+    if (this.encryption == null) {
+      throw new IOException("Certificate " + serialNumber.toString(16) + " is encrypted but no decryption is available");
+    }
+    return this.encryption.decryptData(record.getCert(), true, this.decryptionKeyMap);
+  }
+
+  /**
+   * Appends a footer listing the location of all records in the segment file.
+   */
+  @Override
+  protected byte[] getSealingData(@Nonnull final String fileName, final long offset) {
+    final List<SegmentFile.RecordLocation> locations = new ArrayList<>();
+    for (final CertificateIndex.IndexEntry entry : this.certificateIndex.getEntries(fileName)) {
+      locations.add(new SegmentFile.RecordLocation(entry.serial(), entry.offset(), entry.length(), entry.notBefore(),
+          entry.notAfter()));
+    }
+    return SegmentFile.encodeFooter(locations, offset);
+  }
+
+  /**
+   * Gets the offset of the footer of a sealed segment file, which is removed before records are appended.
+   */
+  @Override
+  protected long getSealingDataOffset(@Nonnull final File storageFile) throws IOException {
+    final Long footerOffset = SegmentFile.getFooterOffset(storageFile);
+    return footerOffset != null ? footerOffset : storageFile.length();
+  }
+
+  private static List<CertificateIndex.IndexEntry> scanSegmentFile(final File segmentFile, final long start)
+      throws IOException {
+    final List<CertificateIndex.IndexEntry> entries = new ArrayList<>();
+    for (final SegmentFile.RecordLocation location : SegmentFile.scan(segmentFile, start).locations()) {
+      entries.add(new CertificateIndex.IndexEntry(location.serial(), segmentFile.getName(), location.offset(),
+          location.length(), location.notBefore(), location.notAfter()));
+    }
+    return entries;
+  }
+
+  /**
+   * Removes invalid or incomplete data at the end of the segment files in the storage directory.
+   *
+   * @param storageDirectory the storage directory
+   * @return the storage directory
+   * @throws IOException error reading or truncating a segment file
+   */
+  private static File repairSegmentFiles(final File storageDirectory) throws IOException {
+    final File[] segmentFiles = storageDirectory.listFiles(
+        (dir, name) -> name.startsWith(SegmentFile.SEGMENT_FILE_PREFIX) && !name.equals(INDEX_FILE_NAME)
+            && !name.endsWith(StorageManifest.COMPRESSED_FILE_EXTENSION) && !name.endsWith(".tmp"));
+    if (segmentFiles == null) {
+      return storageDirectory;
+    }
+    for (final File segmentFile : segmentFiles) {
+      if (SegmentFile.readFooter(segmentFile) != null) {
+        continue;
+      }
+      final long validLength = SegmentFile.scan(segmentFile, 0L).validLength();
+      if (validLength < segmentFile.length()) {
+        log.warn("Removing {} bytes of incomplete data at the end of segment file {}",
+            segmentFile.length() - validLength, segmentFile);
+        try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.WRITE)) {
+          channel.truncate(validLength);
+        }
+      }
+    }
+    return storageDirectory;
+  }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+/**
+ * Policy for forcing written storage records to disk.
+ */
+public enum StorageDurability {
+
+  /**
+   * Written records are not explicitly forced to disk. A storage request returns when the record has been handed to
+   * the operating system, which means that records may be lost if the server crashes.
+   */
+  NONE,
+
+  /**
+   * Each written record is forced to disk before its storage request returns.
+   */
+  RECORD,
+
+  /**
+   * Records written together in one batch are forced to disk once before their storage requests return. The writer may
+   * be configured to wait a bounded time for more records to arrive before forcing the batch.
+   */
+  BATCH
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+/**
+ * The format of certificate storage.
+ */
+public enum StorageFormat {
+
+  /**
+   * Daily storage files holding one JSON storage record per line, stored by {@link DefaultCARepoStorage}.
+   */
+  JSON,
+
+  /**
+   * Daily segment files holding length prefixed and CRC checked binary records, stored by
+   * {@link SegmentCARepoStorage}.
+   */
+  SEGMENT,
+
+  /**
+   * Tables of an embedded H2 database holding certificates and revocation data, stored by
+   * {@link DatabaseCARepoStorage}.
+   */
+  DATABASE
+
+}
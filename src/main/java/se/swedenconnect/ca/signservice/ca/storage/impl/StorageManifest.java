@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageSegment;
+import tools.jackson.core.JacksonException;
+import tools.jackson.core.type.TypeReference;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Manifest of the sealed segments of a certificate storage.
+ *
+ * <p>
+ * A storage segment is a storage file that is no longer written to, because the storage has moved on to a later
+ * storage file. The manifest lists each sealed segment with its number of certificates, its size, whether it is
+ * compressed, and the range of serial numbers and issue times of its certificates. A storage file listed in the
+ * manifest is never written to again, even if storage is restarted on the same day.
+ * </p>
+ *
+ * <p>
+ * The manifest is held in memory and written as a JSON file that atomically replaces the previous manifest file each
+ * time a segment is added or updated. The manifest only holds data derived from the storage files and the certificate
+ * index, so a lost or corrupt manifest file is recreated as the storage seals its storage files.
+ * </p>
+ */
+@Slf4j
+public class StorageManifest {
+
+  /** The file name extension of compressed storage files */
+  public static final String COMPRESSED_FILE_EXTENSION = ".gz";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** The manifest file */
+  @Getter
+  private final File manifestFile;
+
+  /** The sealed segments by storage file name */
+  private final Map<String, StorageSegment> segments = new TreeMap<>();
+
+  /**
+   * Constructor loading the manifest file if present.
+   *
+   * @param manifestFile the manifest file
+   */
+  public StorageManifest(@Nonnull final File manifestFile) {
+    this.manifestFile = Objects.requireNonNull(manifestFile, "manifestFile must not be null");
+    if (!manifestFile.exists()) {
+      return;
+    }
+    try {
+      final List<StorageSegment> loaded =
+          OBJECT_MAPPER.readValue(FileUtils.readFileToByteArray(manifestFile), new TypeReference<>() {
+          });
+      loaded.forEach(segment -> this.segments.put(segment.getFileName(), segment));
+    }
+    catch (final IOException | JacksonException e) {
+      log.warn("Failed to read storage manifest {}. Sealed segments are added again as they are found", manifestFile,
+          e);
+    }
+  }
+
+  /**
+   * Gets a sealed segment.
+   *
+   * @param fileName the name of the storage file of the segment
+   * @return the segment or null if no sealed segment is listed for the storage file
+   */
+  @Nullable
+  public synchronized StorageSegment get(@Nonnull final String fileName) {
+    return this.segments.get(fileName);
+  }
+
+  /**
+   * Gets all sealed segments ordered by storage file name.
+   *
+   * @return list of sealed segments
+   */
+  @Nonnull
+  public synchronized List<StorageSegment> getSegments() {
+    return new ArrayList<>(this.segments.values());
+  }
+
+  /**
+   * Adds or replaces a sealed segment and writes the manifest file.
+   *
+   * @param segment the sealed segment
+   * @throws IOException error writing the manifest file
+   */
+  public synchronized void put(@Nonnull final StorageSegment segment) throws IOException {
+    this.putAll(List.of(segment));
+  }
+
+  /**
+   * Adds or replaces sealed segments and writes the manifest file once.
+   *
+   * @param segments the sealed segments
+   * @throws IOException error writing the manifest file
+   */
+  public synchronized void putAll(@Nonnull final Collection<StorageSegment> segments) throws IOException {
+    if (segments.isEmpty()) {
+      return;
+    }
+    segments.forEach(segment -> this.segments.put(segment.getFileName(), segment));
+    this.write();
+  }
+
+  private void write() throws IOException {
+    final File tempFile = new File(this.manifestFile.getParentFile(), this.manifestFile.getName() + ".tmp");
+    final byte[] manifest = OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(this.segments.values());
+    try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer buffer = ByteBuffer.wrap(manifest);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(tempFile.toPath(), this.manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+}
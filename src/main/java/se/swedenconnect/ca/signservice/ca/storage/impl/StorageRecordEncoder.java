@@ -0,0 +1,267 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.util.encoders.Base64Encoder;
+
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+import tools.jackson.core.type.TypeReference;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Encoder of the JSON lines storage records of {@link DefaultCARepoStorage}.
+ *
+ * <p>
+ * Each storage record is written directly into a reusable buffer, with the certificate and encrypted data Base64
+ * encoded in place and the time stamps formatted without a date formatter, and is then copied once into the returned
+ * record bytes. This avoids the intermediate objects, strings and byte arrays of serializing a {@link StorageRecord}
+ * through Jackson.
+ * </p>
+ *
+ * <p>
+ * The JSON member names and their order are obtained from the object mapper used to read storage records, so that the
+ * encoded records are identical to records serialized by the object mapper. An encoder is not thread safe and is
+ * intended to be used by one thread at a time.
+ * </p>
+ */
+public class StorageRecordEncoder {
+
+  /** The initial size of the record buffer, fitting a typical certificate */
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+
+  private static final Base64Encoder BASE64 = new Base64Encoder();
+
+  /** The record fields in the order they are written */
+  private final Field[] fields;
+
+  /** The bytes written before the value of each field, being the quoted member name and the opening value quote */
+  private final byte[][] memberPrefixes;
+
+  /** The time zone of time stamps */
+  private final ZoneId zoneId;
+
+  /** The last formatted issue time */
+  private final TimeCache issueTime = new TimeCache();
+
+  /** The last formatted expiry time */
+  private final TimeCache expiryTime = new TimeCache();
+
+  /** The record buffer */
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+  /** The number of bytes written to the record buffer */
+  private int length;
+
+  /** The number of members written to the current record */
+  private int members;
+
+  /**
+   * Constructor.
+   *
+   * @param objectMapper the object mapper used to read storage records
+   */
+  public StorageRecordEncoder(@Nonnull final ObjectMapper objectMapper) {
+    this(objectMapper, ZoneId.systemDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param objectMapper the object mapper used to read storage records
+   * @param zoneId the time zone of time stamps
+   */
+  public StorageRecordEncoder(@Nonnull final ObjectMapper objectMapper, @Nonnull final ZoneId zoneId) {
+    this.zoneId = zoneId;
+    // Serialize a record holding the name of each field to learn the member names and order of the object mapper
+    final StorageRecord sample = new StorageRecord(Field.IT.name(), Field.ET.name(), Field.SERIAL.name(),
+        Field.ID.name(), Field.E_ID.name(), Field.CERT.name(), Field.E_CERT.name());
+    final LinkedHashMap<String, String> members =
+        objectMapper.readValue(objectMapper.writeValueAsBytes(sample), new TypeReference<>() {
+        });
+    final List<Field> fieldOrder = new ArrayList<>();
+    final List<byte[]> prefixes = new ArrayList<>();
+    members.forEach((name, field) -> {
+      fieldOrder.add(Field.valueOf(field));
+      prefixes.add(("\"" + name + "\":\"").getBytes(StandardCharsets.UTF_8));
+    });
+    this.fields = fieldOrder.toArray(Field[]::new);
+    this.memberPrefixes = prefixes.toArray(byte[][]::new);
+  }
+
+  /**
+   * Encodes a storage record including the terminating newline. Members with null values are left out.
+   *
+   * @param notBefore the issue time of the certificate in epoch seconds
+   * @param notAfter the expiry time of the certificate in epoch seconds
+   * @param serialNumber the serial number of the certificate
+   * @param id the URL encoded subject id, or null if the subject id is encrypted
+   * @param encryptedId the encrypted subject id, or null if the subject id is not encrypted
+   * @param certificate the certificate, or null if the certificate is encrypted
+   * @param encryptedCertificate the encrypted certificate, or null if the certificate is not encrypted
+   * @return the storage record bytes
+   * @throws IOException if a value can not be represented in a storage record
+   */
+  @Nonnull
+  public byte[] encode(final long notBefore, final long notAfter, @Nonnull final BigInteger serialNumber,
+      @Nullable final String id, @Nullable final byte[] encryptedId, @Nullable final byte[] certificate,
+      @Nullable final byte[] encryptedCertificate) throws IOException {
+    this.length = 0;
+    this.members = 0;
+    this.writeByte('{');
+    for (int i = 0; i < this.fields.length; i++) {
+      switch (this.fields[i]) {
+      case IT -> this.writeTime(i, this.issueTime, notBefore);
+      case ET -> this.writeTime(i, this.expiryTime, notAfter);
+      case SERIAL -> this.writeString(i, serialNumber.toString(16));
+      case ID -> this.writeString(i, id);
+      case E_ID -> this.writeBase64(i, encryptedId);
+      case CERT -> this.writeBase64(i, certificate);
+      case E_CERT -> this.writeBase64(i, encryptedCertificate);
+      }
+    }
+    this.writeByte('}');
+    this.writeByte('\n');
+    return Arrays.copyOf(this.buffer, this.length);
+  }
+
+  private void writeMemberPrefix(final int index) {
+    if (this.members++ > 0) {
+      this.writeByte(',');
+    }
+    final byte[] prefix = this.memberPrefixes[index];
+    this.ensureCapacity(prefix.length);
+    System.arraycopy(prefix, 0, this.buffer, this.length, prefix.length);
+    this.length += prefix.length;
+  }
+
+  private void writeTime(final int index, final TimeCache cache, final long epochSecond) {
+    this.writeMemberPrefix(index);
+    final byte[] formatted = cache.get(epochSecond, this.zoneId);
+    this.ensureCapacity(formatted.length + 1);
+    System.arraycopy(formatted, 0, this.buffer, this.length, formatted.length);
+    this.length += formatted.length;
+    this.buffer[this.length++] = '"';
+  }
+
+  private void writeString(final int index, final String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    this.writeMemberPrefix(index);
+    this.ensureCapacity(value.length() + 1);
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      // Values are hex or URL encoded, which never needs escaping in JSON
+      if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+        throw new IOException("Unsupported character in storage record value");
+      }
+      this.buffer[this.length++] = (byte) c;
+    }
+    this.buffer[this.length++] = '"';
+  }
+
+  private void writeBase64(final int index, final byte[] value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    this.writeMemberPrefix(index);
+    this.ensureCapacity((value.length + 2) / 3 * 4 + 1);
+    this.length += BASE64.encode(value, 0, value.length, this.buffer, this.length);
+    this.buffer[this.length++] = '"';
+  }
+
+  private void writeByte(final char c) {
+    this.ensureCapacity(1);
+    this.buffer[this.length++] = (byte) c;
+  }
+
+  private void ensureCapacity(final int additional) {
+    if (this.length + additional > this.buffer.length) {
+      this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + additional));
+    }
+  }
+
+  /** The fields of a storage record */
+  private enum Field {
+    IT, ET, SERIAL, ID, E_ID, CERT, E_CERT
+  }
+
+  /**
+   * Holds the last formatted time stamp in the form yyyy-MM-dd'T'HH:mm:ss. Certificates issued close in time share
+   * their issue time, and usually their expiry time, so the time stamp is only formatted when the time changes.
+   */
+  private static class TimeCache {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    private byte[] formatted = new byte[19];
+
+    private long epochSecond = Long.MIN_VALUE;
+
+    private byte[] get(final long epochSecond, final ZoneId zoneId) {
+      if (epochSecond != this.epochSecond) {
+        final ZoneOffset offset = zoneId.getRules().getOffset(Instant.ofEpochSecond(epochSecond));
+        final LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, offset);
+        if (time.getYear() < 0 || time.getYear() > 9999) {
+          // Years that do not fit in four digits are formatted by the date formatter
+          this.formatted = time.format(TIME_FORMAT).getBytes(StandardCharsets.US_ASCII);
+        }
+        else {
+          if (this.formatted.length != 19) {
+            this.formatted = new byte[19];
+          }
+          writeDigits(this.formatted, 0, time.getYear(), 4);
+          this.formatted[4] = '-';
+          writeDigits(this.formatted, 5, time.getMonthValue(), 2);
+          this.formatted[7] = '-';
+          writeDigits(this.formatted, 8, time.getDayOfMonth(), 2);
+          this.formatted[10] = 'T';
+          writeDigits(this.formatted, 11, time.getHour(), 2);
+          this.formatted[13] = ':';
+          writeDigits(this.formatted, 14, time.getMinute(), 2);
+          this.formatted[16] = ':';
+          writeDigits(this.formatted, 17, time.getSecond(), 2);
+        }
+        this.epochSecond = epochSecond;
+      }
+      return this.formatted;
+    }
+
+    private static void writeDigits(final byte[] target, final int offset, int value, final int digits) {
+      for (int i = offset + digits - 1; i >= offset; i--) {
+        target[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.time.Duration;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+/**
+ * Policy for moving on from one storage file, or segment, to the next.
+ *
+ * <p>
+ * Storage always moves on to a new storage file when the date changes. In addition, storage moves on to a new segment
+ * of the same day when the current segment reaches the maximum size, the maximum number of records or the maximum age
+ * of this policy. The default policy, with no limits set, stores all certificates of a day in one storage file.
+ * </p>
+ */
+@Getter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class StorageRollover {
+
+  /** The maximum size of a storage file in bytes, or 0 for no limit */
+  private long maxSegmentSize;
+
+  /** The maximum number of records in a storage file, or 0 for no limit */
+  private int maxSegmentRecords;
+
+  /** The maximum time certificates are stored in the same storage file, or null for no limit */
+  private Duration maxSegmentAge;
+
+  /** Set to true to compress storage files once they are sealed */
+  private boolean compressSealedSegments;
+
+  /**
+   * Tells whether this is the default policy, with no limits set and no compression of sealed storage files. Storage
+   * does not keep a manifest of sealed segments under the default policy.
+   *
+   * @return true if no limit is set and sealed storage files are not compressed
+   */
+  public boolean isDefault() {
+    return this.maxSegmentSize <= 0 && this.maxSegmentRecords <= 0 && this.maxSegmentAge == null
+        && !this.compressSealedSegments;
+  }
+
+}
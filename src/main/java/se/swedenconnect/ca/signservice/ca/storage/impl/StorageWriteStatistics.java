@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Statistics about storage writes and the latency of forcing written records to disk.
+ */
+public class StorageWriteStatistics {
+
+  private final AtomicLong recordCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong forceCount = new AtomicLong();
+  private final AtomicLong totalForceNanos = new AtomicLong();
+  private final LongAccumulator maxForceNanos = new LongAccumulator(Math::max, 0L);
+
+  /**
+   * Combines the statistics of several storage writers.
+   *
+   * @param statistics the statistics to combine
+   * @return combined statistics
+   */
+  static StorageWriteStatistics combine(final Collection<StorageWriteStatistics> statistics) {
+    final StorageWriteStatistics combined = new StorageWriteStatistics();
+    for (final StorageWriteStatistics writerStatistics : statistics) {
+      combined.recordCount.addAndGet(writerStatistics.recordCount.get());
+      combined.batchCount.addAndGet(writerStatistics.batchCount.get());
+      combined.forceCount.addAndGet(writerStatistics.forceCount.get());
+      combined.totalForceNanos.addAndGet(writerStatistics.totalForceNanos.get());
+      combined.maxForceNanos.accumulate(writerStatistics.maxForceNanos.get());
+    }
+    return combined;
+  }
+
+  /**
+   * Records that a batch of records has been written.
+   *
+   * @param records the number of records in the batch
+   */
+  void recordBatch(final int records) {
+    this.batchCount.incrementAndGet();
+    this.recordCount.addAndGet(records);
+  }
+
+  /**
+   * Records the time it took to force written data to disk.
+   *
+   * @param nanos the duration of the force operation in nanoseconds
+   */
+  void recordForce(final long nanos) {
+    this.forceCount.incrementAndGet();
+    this.totalForceNanos.addAndGet(nanos);
+    this.maxForceNanos.accumulate(nanos);
+  }
+
+  /**
+   * Gets the number of written records.
+   *
+   * @return number of written records
+   */
+  public long getRecordCount() {
+    return this.recordCount.get();
+  }
+
+  /**
+   * Gets the number of written batches.
+   *
+   * @return number of written batches
+   */
+  public long getBatchCount() {
+    return this.batchCount.get();
+  }
+
+  /**
+   * Gets the number of force operations.
+   *
+   * @return number of force operations
+   */
+  public long getForceCount() {
+    return this.forceCount.get();
+  }
+
+  /**
+   * Gets the average duration of a force operation.
+   *
+   * @return average force duration in microseconds
+   */
+  public long getAverageForceMicros() {
+    final long count = this.forceCount.get();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.totalForceNanos.get() / count);
+  }
+
+  /**
+   * Gets the longest duration of a force operation.
+   *
+   * @return maximum force duration in microseconds
+   */
+  public long getMaxForceMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(this.maxForceNanos.get());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("records=%d, batches=%d, forces=%d, avgForce=%dus, maxForce=%dus",
+        this.getRecordCount(), this.getBatchCount(), this.getForceCount(), this.getAverageForceMicros(),
+        this.getMaxForceMicros());
+  }
+
+}
@@ -16,12 +16,20 @@
 package se.swedenconnect.ca.signservice.configuration;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
@@ -38,10 +46,20 @@ import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.ca.engine.ca.repository.CARepository;
 import se.swedenconnect.ca.signservice.ca.SignServiceCAInstances;
 import se.swedenconnect.ca.signservice.ca.StorageOnlyCARepository;
+import se.swedenconnect.ca.signservice.ca.ocsp.OCSPResponseCache;
 import se.swedenconnect.ca.signservice.ca.storage.CARepoStorage;
+import se.swedenconnect.ca.signservice.ca.storage.StorageCompression;
 import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.impl.AbstractCARepoStorage;
+import se.swedenconnect.ca.signservice.ca.storage.impl.DatabaseCARepoStorage;
 import se.swedenconnect.ca.signservice.ca.storage.impl.DefaultCARepoStorage;
 import se.swedenconnect.ca.signservice.ca.storage.impl.DefaultStorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.impl.DictionaryStorageCompression;
+import se.swedenconnect.ca.signservice.ca.storage.impl.GcmStorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.impl.SegmentCARepoStorage;
+import se.swedenconnect.ca.signservice.ca.storage.impl.StorageDurability;
+import se.swedenconnect.ca.signservice.ca.storage.impl.StorageFormat;
+import se.swedenconnect.ca.signservice.ca.storage.impl.StorageRollover;
 import se.swedenconnect.ca.service.base.configuration.BasicServiceConfig;
 import se.swedenconnect.ca.service.base.ca.CAServices;
 import se.swedenconnect.ca.service.base.configuration.instance.InstanceConfiguration;
@@ -90,6 +108,8 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
    *
    * @param basicServiceConfig basic service configuration
    * @param instanceConfiguration configuration properties for each instance
+   * @param cryptoConfiguration storage encryption configuration
+   * @param repositoryConfiguration repository configuration
    * @return map of {@link CARepository} for each instance
    * @throws IOException error parsing data
    */
@@ -98,7 +118,8 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
   Map<String, CARepository> fileCaRepositoryMap(
       final BasicServiceConfig basicServiceConfig,
       final InstanceConfiguration instanceConfiguration,
-      final StorageCryptoConfiguration cryptoConfiguration)
+      final StorageCryptoConfiguration cryptoConfiguration,
+      final RepositoryConfiguration repositoryConfiguration)
       throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
     final Map<String, CAConfigData> instanceConfigMap = instanceConfiguration.getInstanceConfigMap();
     final Set<String> instances = instanceConfigMap.keySet();
@@ -117,14 +138,123 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
       }
       final File crlFile = new File(repositoryDir, instance + ".crl");
       final StorageEncryption encryption = this.getStorageEncryption(cryptoConfiguration, instance);
-      final CARepoStorage storage =
-          new DefaultCARepoStorage(certStorageDir, new File(repositoryDir, "revoked.json"), encryption);
-      final CARepository caRepository = new StorageOnlyCARepository(storage, crlFile);
+      final RepositoryConfiguration.InstanceRepositoryConfig repositoryConfig =
+          repositoryConfiguration.getInstanceConfig(instance);
+      final StorageDurability durability =
+          Optional.ofNullable(repositoryConfig.getStorageDurability()).orElse(StorageDurability.BATCH);
+      final Duration maxForceDelay =
+          Duration.ofMillis(Optional.ofNullable(repositoryConfig.getStorageMaxForceDelayMillis()).orElse(0));
+      final int storageShards = Optional.ofNullable(repositoryConfig.getStorageShards()).orElse(1);
+      final StorageRollover rollover = StorageRollover.builder()
+          .maxSegmentSize(
+              Optional.ofNullable(repositoryConfig.getStorageSegmentMaxMegabytes()).orElse(0) * 1024L * 1024L)
+          .maxSegmentRecords(Optional.ofNullable(repositoryConfig.getStorageSegmentMaxRecords()).orElse(0))
+          .maxSegmentAge(Optional.ofNullable(repositoryConfig.getStorageSegmentMaxAgeMinutes())
+              .map(Duration::ofMinutes)
+              .orElse(null))
+          .compressSealedSegments(Boolean.TRUE.equals(repositoryConfig.getStorageCompressSealedSegments()))
+          .build();
+      final Map<String, String> decryptionKeyMap = this.getDecryptionKeyMap(cryptoConfiguration, instance);
+      if (encryption instanceof DefaultStorageEncryption defaultStorageEncryption) {
+        defaultStorageEncryption.preloadKeys(decryptionKeyMap);
+        defaultStorageEncryption.setCompression(this.getStorageCompression(cryptoConfiguration, instance,
+            new File(basicServiceConfig.getDataStoreLocation(), "instances/" + instance), certStorageDir));
+        // Certificates compressed with a dictionary stay readable if dictionary compression is turned off
+        final File dictionaryDir = new File(certStorageDir, "dictionaries");
+        if (dictionaryDir.exists()) {
+          defaultStorageEncryption.setDictionaryDecompression(
+              DictionaryStorageCompression.create(List.of(), dictionaryDir));
+        }
+      }
+      final CARepoStorage storage;
+      if (repositoryConfig.getStorageFormat() == StorageFormat.DATABASE) {
+        final DatabaseCARepoStorage databaseStorage = new DatabaseCARepoStorage(
+            new File(certStorageDir, DatabaseCARepoStorage.DATABASE_NAME), encryption, durability);
+        databaseStorage.setDecryptionKeyMap(decryptionKeyMap);
+        storage = databaseStorage;
+      }
+      else {
+        final AbstractCARepoStorage fileStorage = repositoryConfig.getStorageFormat() == StorageFormat.SEGMENT
+            ? new SegmentCARepoStorage(certStorageDir, new File(repositoryDir, "revoked.json"), encryption,
+                durability, maxForceDelay, storageShards, rollover)
+            : new DefaultCARepoStorage(certStorageDir, new File(repositoryDir, "revoked.json"), encryption,
+                durability, maxForceDelay, storageShards, rollover);
+        fileStorage.setDecryptionKeyMap(decryptionKeyMap);
+        storage = fileStorage;
+      }
+      final StorageOnlyCARepository caRepository = new StorageOnlyCARepository(storage, crlFile);
+      caRepository.setOcspResponseCache(this.getOcspResponseCache(repositoryConfig, instance));
+      caRepository.setIncrementalCrl(Boolean.TRUE.equals(repositoryConfig.getIncrementalCrl()));
+      caRepository.setCrlSignerProvider(repositoryConfig.getCrlSignerProvider());
+      caRepository.setDeltaCrl(Boolean.TRUE.equals(repositoryConfig.getDeltaCrl()));
+      Optional.ofNullable(repositoryConfig.getDeltaCrlMaxEntries()).ifPresent(caRepository::setDeltaCrlMaxEntries);
+      Optional.ofNullable(repositoryConfig.getDeltaCrlValidityMinutes())
+          .ifPresent(minutes -> caRepository.setDeltaCrlValidity(Duration.ofMinutes(minutes)));
+      Optional.ofNullable(repositoryConfig.getCrlPartitions()).ifPresent(caRepository::setCrlPartitions);
+      caRepository.setExpiredCertsOnCrl(Boolean.TRUE.equals(repositoryConfig.getExpiredCertsOnCrl()));
+      caRepository.setOcspUnknownForUnissued(Boolean.TRUE.equals(repositoryConfig.getOcspUnknownForUnissued()));
       caRepositoryMap.put(instance, caRepository);
     }
     return caRepositoryMap;
   }
 
+  private OCSPResponseCache getOcspResponseCache(
+      final @Nonnull RepositoryConfiguration.InstanceRepositoryConfig repositoryConfig, final String instance) {
+    final Integer cacheSeconds = repositoryConfig.getOcspCacheSeconds();
+    if (cacheSeconds == null || cacheSeconds <= 0) {
+      log.info("OCSP response cache disabled for instance {}", instance);
+      return null;
+    }
+    final boolean ignoreNonce = Boolean.TRUE.equals(repositoryConfig.getOcspCacheIgnoreNonce());
+    final int maxEntries = repositoryConfig.getOcspCacheMaxEntries() == null
+        ? OCSPResponseCache.DEFAULT_MAX_ENTRIES
+        : repositoryConfig.getOcspCacheMaxEntries();
+    log.info("OCSP response cache for instance {} enabled with validity={}s, ignore nonce={}, max entries={}",
+        instance, cacheSeconds, ignoreNonce, maxEntries);
+    return new OCSPResponseCache(Duration.ofSeconds(cacheSeconds), ignoreNonce, maxEntries);
+  }
+
+  private StorageCompression getStorageCompression(final @Nonnull StorageCryptoConfiguration cryptoConfiguration,
+      final String instance, final File instanceDir, final File certStorageDir) throws IOException {
+    final StorageCryptoConfiguration.InstanceStorageCryptoConfig instanceCryptoConfig =
+        cryptoConfiguration.getStorageCrypto().get(instance);
+    if (!Boolean.TRUE.equals(instanceCryptoConfig.getCompressionDictionary())) {
+      return null;
+    }
+    // The CA certificate is placed last in the dictionary as it shares most content with issued certificates
+    final List<byte[]> samples = new ArrayList<>();
+    final File caChainFile = new File(instanceDir, "certs/ca-chain.pem");
+    if (caChainFile.exists()) {
+      try (InputStream in = new FileInputStream(caChainFile)) {
+        for (final Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+          samples.add(0, certificate.getEncoded());
+        }
+      }
+      catch (final CertificateException e) {
+        throw new IOException("Unable to read CA certificate chain " + caChainFile, e);
+      }
+    }
+    final StorageCompression compression =
+        DictionaryStorageCompression.create(samples, new File(certStorageDir, "dictionaries"));
+    if (compression == null) {
+      log.info("No CA certificate chain available for instance {}. Using GZIP compression", instance);
+    }
+    else {
+      log.info("Compression dictionary enabled for instance {}", instance);
+    }
+    return compression;
+  }
+
+  private Map<String, String> getDecryptionKeyMap(final @Nonnull StorageCryptoConfiguration cryptoConfiguration,
+      final String instance) {
+    final Map<String, StorageCryptoConfiguration.InstanceStorageCryptoConfig> instanceCrypto =
+        cryptoConfiguration.getStorageCrypto();
+    if (instanceCrypto == null || !instanceCrypto.containsKey(instance)) {
+      return null;
+    }
+    return instanceCrypto.get(instance).getKeyStore();
+  }
+
   private StorageEncryption getStorageEncryption(final @Nonnull StorageCryptoConfiguration cryptoConfiguration,
       final String instance) throws NoSuchAlgorithmException, InvalidKeySpecException {
     log.info("Setting up storage encryption for instance {}", instance);
@@ -143,6 +273,18 @@ public class CAServiceConfiguration implements ApplicationEventPublisherAware {
     final boolean hasKeyLen = instanceCryptoConfig.getKeyLength() != null;
     final boolean hasIterations = instanceCryptoConfig.getIterations() != null;
 
+    if (StorageCryptoConfiguration.MODE_GCM.equalsIgnoreCase(instanceCryptoConfig.getMode())) {
+      final int keyLength = hasKeyLen ? instanceCryptoConfig.getKeyLength() : 128;
+      final int iterations = hasIterations ? instanceCryptoConfig.getIterations() : 65536;
+      log.info("Setting up AES-GCM encryption with key size={} and iterations={}", keyLength, iterations);
+      return new GcmStorageEncryption(
+          instanceCryptoConfig.getKey().toCharArray(),
+          instanceCryptoConfig.getKid(),
+          Base64.decode(instanceCryptoConfig.getSalt()),
+          keyLength,
+          iterations);
+    }
+
     if (hasKeyLen && hasIterations) {
       log.info("Setting up encryption with custom key size={} and custom iterations={}",
           instanceCryptoConfig.getKeyLength(), instanceCryptoConfig.getIterations());
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.configuration;
+
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import se.swedenconnect.ca.signservice.ca.storage.impl.StorageDurability;
+import se.swedenconnect.ca.signservice.ca.storage.impl.StorageFormat;
+
+/**
+ * Dataclass for CA repository configuration.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "ca-service")
+@Data
+public class RepositoryConfiguration {
+
+  /** The key of the repository configuration applied to instances that have no configuration of their own */
+  public static final String DEFAULT_INSTANCE = "default";
+
+  /**
+   * A map indexed by the instance id containing repository configuration properties. The configuration under the key
+   * "default" applies to all instances that have no configuration of their own.
+   */
+  private Map<String, InstanceRepositoryConfig> repository;
+
+  /**
+   * Gets the repository configuration for an instance.
+   *
+   * @param instance the instance id
+   * @return the configuration of the instance, the default configuration or an empty configuration
+   */
+  public InstanceRepositoryConfig getInstanceConfig(final String instance) {
+    if (this.repository == null) {
+      return new InstanceRepositoryConfig();
+    }
+    if (this.repository.containsKey(instance)) {
+      return this.repository.get(instance);
+    }
+    if (this.repository.containsKey(DEFAULT_INSTANCE)) {
+      return this.repository.get(DEFAULT_INSTANCE);
+    }
+    return new InstanceRepositoryConfig();
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  public static class InstanceRepositoryConfig {
+
+    /** The number of seconds a signed OCSP response is cached. Default 0 which disables the cache */
+    private Integer ocspCacheSeconds;
+
+    /** Set to true to answer OCSP requests with a nonce from the cache with a response without nonce */
+    private Boolean ocspCacheIgnoreNonce;
+
+    /** The maximum number of cached OCSP responses. Default 10000 */
+    private Integer ocspCacheMaxEntries;
+
+    /** The policy for forcing stored certificates to disk (none, record or batch). Default batch */
+    private StorageDurability storageDurability;
+
+    /**
+     * The maximum number of milliseconds to wait for more certificates to store before a batch is forced to disk. Only
+     * applicable to batch durability. Default 0
+     */
+    private Integer storageMaxForceDelayMillis;
+
+    /** The format of certificate storage (json, segment or database). Default json */
+    private StorageFormat storageFormat;
+
+    /** The number of storage shards, each with its own writer and daily storage file. Default 1 */
+    private Integer storageShards;
+
+    /** The maximum size of a storage segment in megabytes. Default 0 which sets no limit */
+    private Integer storageSegmentMaxMegabytes;
+
+    /** The maximum number of certificates in a storage segment. Default 0 which sets no limit */
+    private Integer storageSegmentMaxRecords;
+
+    /** The maximum number of minutes certificates are stored in the same storage segment. Default no limit */
+    private Integer storageSegmentMaxAgeMinutes;
+
+    /** Set to true to compress storage segments once they are sealed. Default false */
+    private Boolean storageCompressSealedSegments;
+
+    /**
+     * Set to true to build new CRLs from cached encoded CRL entries using the current CRL as template. Default false
+     */
+    private Boolean incrementalCrl;
+
+    /**
+     * The name of the JCA provider used to sign CRLs built from cached encoded CRL entries. Default is the first provider
+     * supporting the CA key
+     */
+    private String crlSignerProvider;
+
+    /** Set to true to issue delta CRLs listing the revocations since the current base CRL. Default false */
+    private Boolean deltaCrl;
+
+    /** The maximum number of revocations since the base CRL before a new base CRL is issued. Default 1000 */
+    private Integer deltaCrlMaxEntries;
+
+    /** The number of minutes a delta CRL is valid, limited by the next update of the base CRL. Default 60 */
+    private Integer deltaCrlValidityMinutes;
+
+    /** The number of CRL partitions. Default 0 which disables partitioned CRLs */
+    private Integer crlPartitions;
+
+    /**
+     * Set to true to include an ExpiredCertsOnCRL extension in new CRLs when revocation data of expired certificates is
+     * removed. Default false
+     */
+    private Boolean expiredCertsOnCrl;
+
+    /**
+     * Set to true to have the OCSP responder answer status unknown for certificates that are not stored in the
+     * repository. Default false
+     */
+    private Boolean ocspUnknownForUnissued;
+
+  }
+}
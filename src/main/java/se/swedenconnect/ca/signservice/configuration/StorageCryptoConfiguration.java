@@ -32,6 +32,9 @@ import lombok.NoArgsConstructor;
 @Data
 public class StorageCryptoConfiguration {
 
+  /** Encryption mode value selecting AES-GCM storage encryption */
+  public static final String MODE_GCM = "gcm";
+
   /** A map indexed by the instance id containing crypto configuration properties for encrypting stored data */
   private Map<String, InstanceStorageCryptoConfig> storageCrypto;
 
@@ -58,6 +61,18 @@ public class StorageCryptoConfiguration {
     /** The number of iterations the key is hashed to form the encryption key. Default 65536 */
     private Integer iterations;
 
+    /**
+     * The encryption mode. "cbc" for AES-CBC with a JSON envelope or "gcm" for AES-GCM with a compact binary envelope.
+     * Both modes decrypt data encrypted using AES-CBC. Default "cbc"
+     */
+    private String mode;
+
+    /**
+     * Set to true to compress encrypted certificates using a dictionary built from the CA certificate chain of the
+     * instance. Default false
+     */
+    private Boolean compressionDictionary;
+
     /** An optional map of keys mapped under their kid, providing the decryption keys this encryptor may use to decrypt data */
     private Map<String, String> keyStore;
 
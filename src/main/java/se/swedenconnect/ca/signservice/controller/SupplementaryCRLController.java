@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.controller;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.bouncycastle.cert.X509CRLHolder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.engine.ca.repository.CARepository;
+import se.swedenconnect.ca.signservice.ca.StorageOnlyCARepository;
+
+/**
+ * Controller providing the delta CRLs and partition CRLs of CA instances configured to issue them. Delta CRLs are
+ * available next to the CRL of the instance with the suffix {@value StorageOnlyCARepository#DELTA_CRL_SUFFIX}, and
+ * partition CRLs with the suffix {@code -p<partition>.crl}.
+ */
+@Slf4j
+@RestController
+public class SupplementaryCRLController {
+
+  /** The media type of CRLs */
+  private static final MediaType CRL_MEDIA_TYPE = MediaType.parseMediaType("application/pkix-crl");
+
+  private final Map<String, CARepository> caRepositoryMap;
+
+  @Autowired
+  public SupplementaryCRLController(final Map<String, CARepository> caRepositoryMap) {
+    this.caRepositoryMap = caRepositoryMap;
+  }
+
+  @GetMapping("/crl/{instance}" + StorageOnlyCARepository.DELTA_CRL_SUFFIX)
+  public ResponseEntity<byte[]> getDeltaCrl(@PathVariable("instance") final String instance) throws IOException {
+    if (!(this.caRepositoryMap.get(instance) instanceof final StorageOnlyCARepository repository)
+        || !repository.isDeltaCrl()) {
+      log.debug("Delta CRL requested for instance {} not issuing delta CRLs", instance);
+      return ResponseEntity.notFound().build();
+    }
+    return this.getCrlResponse(repository.getCurrentDeltaCrl());
+  }
+
+  @GetMapping("/crl/{instance}-p{partition:\\d+}.crl")
+  public ResponseEntity<byte[]> getPartitionCrl(@PathVariable("instance") final String instance,
+      @PathVariable("partition") final int partition) throws IOException {
+    if (!(this.caRepositoryMap.get(instance) instanceof final StorageOnlyCARepository repository)) {
+      log.debug("Partition CRL requested for unknown instance {}", instance);
+      return ResponseEntity.notFound().build();
+    }
+    return this.getCrlResponse(repository.getCurrentPartitionCrl(partition));
+  }
+
+  private ResponseEntity<byte[]> getCrlResponse(final X509CRLHolder crl) throws IOException {
+    if (crl == null) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok()
+        .contentType(CRL_MEDIA_TYPE)
+        .body(crl.getEncoded());
+  }
+
+}
@@ -30,6 +30,9 @@ import org.bouncycastle.asn1.ASN1Set;
 import org.bouncycastle.asn1.ASN1TaggedObject;
 import org.bouncycastle.asn1.DERPrintableString;
 import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.x500.AttributeTypeAndValue;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.cert.X509CertificateHolder;
 
 public class CertNameUtils {
 
@@ -60,6 +63,22 @@ public class CertNameUtils {
     }
   }
 
+  /**
+   * Gets a map of subject DN attributes from the parsed subject name of a certificate.
+   *
+   * @param cert X.509 certificate
+   * @return subject DN attribute map
+   */
+  public static Map<ASN1ObjectIdentifier, String> getSubjectAttributes(final X509CertificateHolder cert) {
+    final Map<ASN1ObjectIdentifier, String> subjectDnAttributeMap = new HashMap<>();
+    for (final RDN rdn : cert.getSubject().getRDNs()) {
+      for (final AttributeTypeAndValue typeAndValue : rdn.getTypesAndValues()) {
+        subjectDnAttributeMap.put(typeAndValue.getType(), getStringValue(typeAndValue.getValue()));
+      }
+    }
+    return subjectDnAttributeMap;
+  }
+
   /**
    * Gets a map of recognized subject DN attributes.
    *
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for partitioned CRL support functions.
+ */
+class CRLPartitionsTest {
+
+  @Test
+  void partitions() throws Exception {
+    assertEquals("https://example.com/ca/crl/ca01-p3.crl",
+      CRLPartitions.getPartitionName("https://example.com/ca/crl/ca01.crl", 3));
+    assertEquals("ca01-p0.crl", CRLPartitions.getPartitionName("ca01.crl", 0));
+
+    KeyPair keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+    int partition = CRLPartitions.getPartition(keyPair.getPublic(), 8);
+    assertTrue(partition >= 0 && partition < 8);
+    assertEquals(partition, CRLPartitions.getPartition(keyPair.getPublic(), 8));
+
+    // The partition of an issued certificate is obtained from its CRL distribution point
+    assertEquals(12, CRLPartitions.getPartition(this.createCertificate(keyPair,
+      "https://example.com/ca/crl/ca01-p12.crl")));
+    assertEquals(CRLPartitions.NO_PARTITION, CRLPartitions.getPartition(this.createCertificate(keyPair,
+      "https://example.com/ca/crl/ca01.crl")));
+    assertEquals(CRLPartitions.NO_PARTITION, CRLPartitions.getPartition(this.createCertificate(keyPair, null)));
+
+    Extension idp = CRLPartitions.getIssuingDistributionPointExtension(
+      List.of("https://example.com/ca/crl/ca01.crl"), 5);
+    assertTrue(idp.isCritical());
+    GeneralName[] names = GeneralNames.getInstance(
+      IssuingDistributionPoint.getInstance(idp.getParsedValue()).getDistributionPoint().getName()).getNames();
+    assertEquals(1, names.length);
+    assertEquals("https://example.com/ca/crl/ca01-p5.crl", names[0].getName().toString());
+    assertNull(CRLPartitions.getIssuingDistributionPointExtension(List.of(), 5));
+  }
+
+  private X509CertificateHolder createCertificate(KeyPair keyPair, String crlUrl) throws Exception {
+    Date notBefore = new Date();
+    JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name("CN=Test"), BigInteger.TEN,
+      notBefore, new Date(notBefore.getTime() + 3600000), new X500Name("CN=Test"), keyPair.getPublic());
+    if (crlUrl != null) {
+      builder.addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[] {
+        new DistributionPoint(new DistributionPointName(new GeneralNames(
+          new GeneralName(GeneralName.uniformResourceIdentifier, crlUrl))), null, null) }));
+    }
+    return builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate()));
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the cached CRL file.
+ */
+class CachedCRLFileTest {
+
+  @Test
+  void cachedCrl() throws Exception {
+    File dir = new File(System.getProperty("user.dir"), "target/test-data/crl-cache");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    File file = new File(dir, "ca01.crl");
+    CachedCRLFile cachedCrlFile = new CachedCRLFile(file);
+    assertNull(cachedCrlFile.get());
+
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withECDSA").build(
+      KeyPairGenerator.getInstance("EC").generateKeyPair().getPrivate());
+    X509CRLHolder crl = this.createCrl(signer, BigInteger.ONE);
+    CachedCRLFile.Snapshot written = cachedCrlFile.write(crl);
+    assertEquals(BigInteger.ONE, written.crlNumber());
+    assertEquals(Set.of(BigInteger.TEN), written.revokedSerials());
+    assertFalse(new File(dir, "ca01.crl.tmp").exists());
+
+    // The parsed CRL is reused until the file is modified
+    assertSame(written, cachedCrlFile.get());
+    assertEquals(crl, new CachedCRLFile(file).get().crl());
+
+    FileUtils.writeByteArrayToFile(file, this.createCrl(signer, BigInteger.TWO).getEncoded());
+    file.setLastModified(written.lastModified() + 2000);
+    CachedCRLFile.Snapshot reloaded = cachedCrlFile.get();
+    assertNotSame(written, reloaded);
+    assertEquals(BigInteger.TWO, reloaded.crlNumber());
+
+    FileUtils.forceDelete(file);
+    assertNull(cachedCrlFile.get());
+  }
+
+  private X509CRLHolder createCrl(ContentSigner signer, BigInteger crlNumber) throws Exception {
+    Date thisUpdate = new Date();
+    X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), thisUpdate);
+    builder.setNextUpdate(new Date(thisUpdate.getTime() + 3600000));
+    builder.addCRLEntry(BigInteger.TEN, thisUpdate, CRLReason.keyCompromise);
+    builder.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+    return builder.build(signer);
+  }
+
+}
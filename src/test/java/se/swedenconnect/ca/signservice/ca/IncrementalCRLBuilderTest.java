@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+
+/**
+ * Tests for building CRLs from cached encoded CRL entries.
+ */
+class IncrementalCRLBuilderTest {
+
+  @Test
+  void buildCrl() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keyPair = generator.generateKeyPair();
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate());
+
+    Date revocationTime = new Date((System.currentTimeMillis() / 1000) * 1000);
+    List<RevokedCertificate> revokedCertificates = List.of(
+      new RevokedCertificate(BigInteger.valueOf(1001), revocationTime, CRLReason.unspecified),
+      new RevokedCertificate(BigInteger.valueOf(1002), revocationTime, CRLReason.keyCompromise));
+
+    // Template and reference CRL issued by BouncyCastle
+    Date thisUpdate = new Date(revocationTime.getTime() + 60000);
+    X509CRLHolder template = this.createCrl(signer, List.of(), BigInteger.ONE, revocationTime);
+    X509CRLHolder reference = this.createCrl(signer, revokedCertificates, BigInteger.TWO, thisUpdate);
+
+    EncodedCRLEntryCache cache = new EncodedCRLEntryCache();
+    cache.update(revokedCertificates.get(1));
+    byte[] encodedEntries = cache.getEncodedEntries(revokedCertificates);
+    assertEquals(2, cache.size());
+
+    X509CRLHolder crl = new IncrementalCRLBuilder().build(template, BigInteger.TWO, encodedEntries, thisUpdate, signer);
+    assertTrue(crl.isSignatureValid(new JcaContentVerifierProviderBuilder().build(keyPair.getPublic())));
+    assertEquals(BigInteger.TWO, CRLNumber.getInstance(crl.getExtension(Extension.cRLNumber).getParsedValue())
+      .getCRLNumber());
+    assertEquals(reference.getNextUpdate(), crl.getNextUpdate());
+    assertEquals(2, crl.getRevokedCertificates().size());
+    assertArrayEquals(reference.toASN1Structure().getTBSCertList().getEncoded(),
+      crl.toASN1Structure().getTBSCertList().getEncoded());
+
+    // Entries of certificates that are no longer revoked are dropped, and an empty CRL has no revoked certificates
+    assertEquals(0, cache.getEncodedEntries(List.of()).length);
+    assertEquals(0, cache.size());
+    X509CRLHolder emptyCrl = new IncrementalCRLBuilder().build(crl, BigInteger.valueOf(3), new byte[0], thisUpdate,
+      signer);
+    Enumeration<?> entries = emptyCrl.toASN1Structure().getTBSCertList().getRevokedCertificateEnumeration();
+    assertFalse(entries.hasMoreElements());
+    assertArrayEquals(template.getIssuer().getEncoded(), emptyCrl.getIssuer().getEncoded());
+  }
+
+  @Test
+  void buildDeltaCrl() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    KeyPair keyPair = generator.generateKeyPair();
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withECDSA").build(keyPair.getPrivate());
+    Date thisUpdate = new Date((System.currentTimeMillis() / 1000) * 1000);
+    X509CRLHolder base = this.createCrl(signer, List.of(), BigInteger.valueOf(5), thisUpdate);
+
+    RevokedCertificate revoked = new RevokedCertificate(BigInteger.valueOf(1003), thisUpdate, CRLReason.superseded);
+    Date nextUpdate = new Date(thisUpdate.getTime() + 600000);
+    Map<ASN1ObjectIdentifier, Extension> extensionUpdates = new LinkedHashMap<>();
+    extensionUpdates.put(Extension.cRLNumber, IncrementalCRLBuilder.getCrlNumberExtension(BigInteger.valueOf(6)));
+    extensionUpdates.put(Extension.deltaCRLIndicator,
+      IncrementalCRLBuilder.getExtension(Extension.deltaCRLIndicator, true, new CRLNumber(BigInteger.valueOf(5))));
+    X509CRLHolder deltaCrl = new IncrementalCRLBuilder().build(base, EncodedCRLEntryCache.encodeEntry(revoked),
+      thisUpdate, nextUpdate, signer, extensionUpdates);
+
+    assertTrue(deltaCrl.isSignatureValid(new JcaContentVerifierProviderBuilder().build(keyPair.getPublic())));
+    assertEquals(nextUpdate, deltaCrl.getNextUpdate());
+    assertEquals(List.of(Extension.cRLNumber, Extension.deltaCRLIndicator),
+      List.of(deltaCrl.getExtensions().getExtensionOIDs()));
+    assertTrue(deltaCrl.getExtension(Extension.deltaCRLIndicator).isCritical());
+    assertEquals(BigInteger.valueOf(5),
+      CRLNumber.getInstance(deltaCrl.getExtension(Extension.deltaCRLIndicator).getParsedValue()).getCRLNumber());
+    assertEquals(CRLReason.lookup(CRLReason.superseded), CRLReason.getInstance(
+      deltaCrl.getRevokedCertificate(BigInteger.valueOf(1003)).getExtension(Extension.reasonCode).getParsedValue()));
+
+    // An extension mapped to null is removed
+    extensionUpdates.put(Extension.deltaCRLIndicator, null);
+    X509CRLHolder crl = new IncrementalCRLBuilder().build(deltaCrl, new byte[0], thisUpdate, null, signer,
+      extensionUpdates);
+    assertEquals(List.of(Extension.cRLNumber), List.of(crl.getExtensions().getExtensionOIDs()));
+    assertNull(crl.getNextUpdate());
+  }
+
+  private X509CRLHolder createCrl(ContentSigner signer, List<RevokedCertificate> revokedCertificates,
+    BigInteger crlNumber, Date thisUpdate) throws Exception {
+    X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA,O=Test,C=SE"), thisUpdate);
+    builder.setNextUpdate(new Date(thisUpdate.getTime() + 3600000));
+    for (RevokedCertificate revokedCertificate : revokedCertificates) {
+      builder.addCRLEntry(revokedCertificate.getCertificateSerialNumber(), revokedCertificate.getRevocationTime(),
+        revokedCertificate.getReason());
+    }
+    builder.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+    return builder.build(signer);
+  }
+
+}
@@ -15,28 +15,57 @@
  */
 package se.swedenconnect.ca.signservice.ca;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
 import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v2CRLBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.cryptacular.util.CertUtil;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import se.swedenconnect.ca.engine.ca.repository.CertificateRecord;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.crl.CRLMetadata;
 import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
 import se.swedenconnect.ca.signservice.TestData;
+import se.swedenconnect.ca.signservice.ca.ocsp.OCSPResponseCache;
 import se.swedenconnect.ca.signservice.ca.storage.impl.DefaultCARepoStorage;
 import se.swedenconnect.ca.signservice.ca.storage.impl.DefaultStorageEncryption;
+import se.swedenconnect.ca.signservice.ca.storage.impl.RevocationRegistry;
 
 /**
  * Tests for the main CA repository implementation.
@@ -81,6 +110,200 @@ class StorageOnlyCARepositoryTest {
     LocalDateTime parsedRevLdt = LocalDateTime.parse(dateStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
     Date paredRevDate = Date.from(parsedRevLdt.atZone(ZoneId.systemDefault()).toInstant());
     assertEquals(paredRevDate, revokedCertificates.get(0).getRevocationTime());
+
+    assertEquals(paredRevDate, caRepository.getRevokedCertificate(cert1.getSerialNumber()).getRevocationTime());
+    assertNull(caRepository.getRevokedCertificate(cert2.getSerialNumber()));
+
+    // Stored certificates are available through the certificate index
+    assertEquals(2, caRepository.getAllCertificates().size());
+    assertEquals(2, caRepository.getCertificateCount(false));
+    assertEquals(1, caRepository.getCertificateCount(true));
+    CertificateRecord certificateRecord = caRepository.getCertificate(cert1.getSerialNumber());
+    assertArrayEquals(cert1.getEncoded(), certificateRecord.getCertificate());
+    assertTrue(certificateRecord.isRevoked());
+    assertFalse(caRepository.getCertificate(cert2.getSerialNumber()).isRevoked());
+    assertNull(caRepository.getCertificate(BigInteger.TEN));
+    assertTrue(caRepository.isCertificateIssued(cert1.getSerialNumber()));
+    assertFalse(caRepository.isCertificateIssued(BigInteger.TEN));
+
+    BigInteger lowSerial = cert1.getSerialNumber().min(cert2.getSerialNumber());
+    BigInteger highSerial = cert1.getSerialNumber().max(cert2.getSerialNumber());
+    assertEquals(lowSerial,
+      caRepository.getCertificateRange(0, 1, false, SortBy.serialNumber, false).get(0).getSerialNumber());
+    assertEquals(highSerial,
+      caRepository.getCertificateRange(1, 1, false, SortBy.serialNumber, false).get(0).getSerialNumber());
+    assertEquals(highSerial,
+      caRepository.getCertificateRange(0, 1, false, SortBy.serialNumber, true).get(0).getSerialNumber());
+    assertEquals(0, caRepository.getCertificateRange(2, 1, false, SortBy.serialNumber, false).size());
+    List<CertificateRecord> notRevoked = caRepository.getCertificateRange(0, 10, true, SortBy.issueDate, false);
+    assertEquals(1, notRevoked.size());
+    assertEquals(cert2.getSerialNumber(), notRevoked.get(0).getSerialNumber());
+  }
+
+  @Test
+  void deltaCrl() throws Exception {
+
+    File repoDir = createDir("repo-delta");
+    File crlFile = new File(repoDir, "ca01.crl");
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(repoDir, new File(repoDir, "revoked.json"),
+      new DefaultStorageEncryption("s3cr3t".toCharArray(), "01", "salt".getBytes()));
+    StorageOnlyCARepository caRepository = new StorageOnlyCARepository(storage, crlFile);
+    caRepository.setDeltaCrl(true);
+    caRepository.addCertificate(new JcaX509CertificateHolder(cert1));
+    caRepository.addCertificate(new JcaX509CertificateHolder(cert2));
+    caRepository.revokeCertificate(cert1.getSerialNumber(), CRLReason.keyCompromise, new Date());
+
+    // The base CRL lists the first revoked certificate
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withECDSA").build(generator.generateKeyPair()
+      .getPrivate());
+    Date thisUpdate = new Date();
+    X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), thisUpdate);
+    crlBuilder.setNextUpdate(new Date(thisUpdate.getTime() + 3600000));
+    crlBuilder.addCRLEntry(cert1.getSerialNumber(), thisUpdate, CRLReason.keyCompromise);
+    crlBuilder.addExtension(Extension.cRLNumber, false, new CRLNumber(caRepository.getNextCrlNumber()));
+    caRepository.publishNewCrl(crlBuilder.build(signer));
+    assertEquals(BigInteger.ONE, caRepository.getBaseCrlNumber());
+    assertTrue(caRepository.getDeltaRevokedCertificates().isEmpty());
+
+    // Revocations since the base CRL are listed by the delta CRL
+    caRepository.revokeCertificate(cert2.getSerialNumber(), CRLReason.unspecified, new Date());
+    List<RevokedCertificate> deltaRevoked = caRepository.getDeltaRevokedCertificates();
+    assertEquals(1, deltaRevoked.size());
+    assertEquals(cert2.getSerialNumber(), deltaRevoked.get(0).getCertificateSerialNumber());
+    Map<ASN1ObjectIdentifier, Extension> extensionUpdates = new LinkedHashMap<>();
+    extensionUpdates.put(Extension.cRLNumber,
+      IncrementalCRLBuilder.getCrlNumberExtension(caRepository.getNextCrlNumber()));
+    extensionUpdates.put(Extension.deltaCRLIndicator, IncrementalCRLBuilder.getExtension(Extension.deltaCRLIndicator,
+      true, new CRLNumber(caRepository.getBaseCrlNumber())));
+    caRepository.publishNewDeltaCrl(new IncrementalCRLBuilder().build(caRepository.getCurrentCrl(),
+      caRepository.getEncodedDeltaRevokedEntries(), thisUpdate, new Date(thisUpdate.getTime() + 600000), signer,
+      extensionUpdates));
+    assertTrue(new File(repoDir, "ca01-delta.crl").exists());
+    assertEquals(1, caRepository.getCurrentDeltaCrl().getRevokedCertificates().size());
+    CRLMetadata metadata = caRepository.getCurrentCRLMetadata();
+    assertEquals(2, metadata.getRevokedCertCount());
+    assertEquals(BigInteger.TWO, metadata.getCrlNumber());
+    storage.close();
+
+    // Base and delta CRLs share the CRL number sequence after restart
+    DefaultCARepoStorage restartedStorage = new DefaultCARepoStorage(repoDir, new File(repoDir, "revoked.json"),
+      new DefaultStorageEncryption("s3cr3t".toCharArray(), "01", "salt".getBytes()));
+    StorageOnlyCARepository restarted = new StorageOnlyCARepository(restartedStorage, crlFile);
+    assertEquals(BigInteger.ONE, restarted.getBaseCrlNumber());
+    assertEquals(BigInteger.valueOf(3), restarted.getNextCrlNumber());
+    assertEquals(1, restarted.getDeltaRevokedCertificates().size());
+    restartedStorage.close();
+  }
+
+  @Test
+  void removeExpiredCerts() throws Exception {
+
+    File repoDir = createDir("repo-expired");
+    File crlFile = new File(repoDir, "ca01.crl");
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(repoDir, new File(repoDir, "revoked.json"), null);
+    StorageOnlyCARepository caRepository = new StorageOnlyCARepository(storage, crlFile);
+    caRepository.addCertificate(new JcaX509CertificateHolder(cert1));
+    caRepository.addCertificate(new JcaX509CertificateHolder(cert2));
+    caRepository.revokeCertificate(cert1.getSerialNumber(), CRLReason.keyCompromise, new Date());
+    caRepository.revokeCertificate(cert2.getSerialNumber(), CRLReason.keyCompromise, new Date());
+    assertEquals(cert1.getNotAfter().toInstant(), storage.getCertificateNotAfter(cert1.getSerialNumber()));
+
+    // Publish a CRL listing both revoked certificates
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withECDSA").build(KeyPairGenerator.getInstance("EC")
+      .generateKeyPair().getPrivate());
+    Date thisUpdate = new Date();
+    X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), thisUpdate);
+    crlBuilder.setNextUpdate(new Date(thisUpdate.getTime() + 3600000));
+    crlBuilder.addCRLEntry(cert1.getSerialNumber(), thisUpdate, CRLReason.keyCompromise);
+    crlBuilder.addCRLEntry(cert2.getSerialNumber(), thisUpdate, CRLReason.keyCompromise);
+    crlBuilder.addExtension(Extension.cRLNumber, false, new CRLNumber(caRepository.getNextCrlNumber()));
+    caRepository.publishNewCrl(crlBuilder.build(signer));
+    assertFalse(caRepository.isBaseCrlOutdated());
+    assertFalse(caRepository.isRevocationDataRemoved(cert1.getSerialNumber()));
+
+    // The test certificates expired about a minute apart. Only remove the revocation of the first certificate
+    int gracePeriodSeconds = (int) ((System.currentTimeMillis() - cert1.getNotAfter().getTime()) / 1000) - 30;
+    assertEquals(List.of(cert1.getSerialNumber()), caRepository.removeExpiredCerts(gracePeriodSeconds));
+    assertNull(caRepository.getRevokedCertificate(cert1.getSerialNumber()));
+    assertTrue(caRepository.isRevocationDataRemoved(cert1.getSerialNumber()));
+    assertFalse(caRepository.isRevocationDataRemoved(cert2.getSerialNumber()));
+    assertFalse(caRepository.isRevocationDataRemoved(BigInteger.TEN));
+    assertTrue(caRepository.isBaseCrlOutdated());
+    assertEquals(1, caRepository.getCurrentCRLMetadata().getRevokedCertCount());
+
+    // The ExpiredCertsOnCRL time is only provided when enabled
+    assertNull(caRepository.getExpiredCertsOnCrlDate());
+    caRepository.setExpiredCertsOnCrl(true);
+    Date expiredCertsOnCrl = caRepository.getExpiredCertsOnCrlDate();
+    assertTrue(expiredCertsOnCrl.after(cert1.getNotAfter()) && expiredCertsOnCrl.before(cert2.getNotAfter()));
+    storage.close();
+
+    // The removal is persisted in the revocation file
+    DefaultCARepoStorage restartedStorage = new DefaultCARepoStorage(repoDir, new File(repoDir, "revoked.json"), null);
+    List<RevokedCertificate> revokedCertificates = restartedStorage.getRevokedCertificates();
+    assertEquals(1, revokedCertificates.size());
+    assertEquals(cert2.getSerialNumber(), revokedCertificates.get(0).getCertificateSerialNumber());
+    assertTrue(restartedStorage.isRevocationDataRemoved(cert1.getSerialNumber()));
+    assertEquals(expiredCertsOnCrl.toInstant(), restartedStorage.getExpiredRevocationsRemovedBefore());
+    assertTrue(restartedStorage.removeExpiredRevocations(cert2.getNotAfter().toInstant()).isEmpty());
+    assertFalse(restartedStorage.isRevocationDataRemoved(cert2.getSerialNumber()));
+    restartedStorage.close();
+  }
+
+  @Test
+  void partitionRevokedEntries() throws Exception {
+    File repoDir = createDir("repo-partitions");
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(repoDir, new File(repoDir, "revoked.json"), null);
+    StorageOnlyCARepository caRepository = new StorageOnlyCARepository(storage, new File(repoDir, "ca01.crl"));
+    caRepository.setCrlPartitions(2);
+    caRepository.addCertificate(new JcaX509CertificateHolder(cert1));
+    caRepository.addCertificate(new JcaX509CertificateHolder(cert2));
+
+    // The test certificates have no partitioned CRL distribution points, so their partitions are assigned here
+    @SuppressWarnings("unchecked")
+    Map<BigInteger, Integer> crlPartitionMap =
+      (Map<BigInteger, Integer>) ReflectionTestUtils.getField(caRepository, "crlPartitionMap");
+    crlPartitionMap.put(cert1.getSerialNumber(), 0);
+    crlPartitionMap.put(cert2.getSerialNumber(), 1);
+    caRepository.revokeCertificate(cert1.getSerialNumber(), CRLReason.keyCompromise, new Date());
+    byte[] cert1Entry = EncodedCRLEntryCache.encodeEntry(storage.getRevokedCertificate(cert1.getSerialNumber()));
+    assertArrayEquals(cert1Entry, caRepository.getEncodedRevokedEntries(0));
+    assertEquals(0, caRepository.getEncodedRevokedEntries(1).length);
+
+    // The grouping is renewed when revocation data is updated
+    caRepository.revokeCertificate(cert2.getSerialNumber(), CRLReason.keyCompromise, new Date());
+    assertArrayEquals(cert1Entry, caRepository.getEncodedRevokedEntries(0));
+    assertArrayEquals(EncodedCRLEntryCache.encodeEntry(storage.getRevokedCertificate(cert2.getSerialNumber())),
+      caRepository.getEncodedRevokedEntries(1));
+    storage.close();
+  }
+
+  @Test
+  void manualRevocationFileUpdate() throws Exception {
+    File repoDir = createDir("repo-manual");
+    File revocationFile = new File(repoDir, "revoked.json");
+    StorageOnlyCARepository caRepository = new StorageOnlyCARepository(
+      new DefaultCARepoStorage(repoDir, revocationFile, null), new File(repoDir, "crl"));
+    OCSPResponseCache cache = new OCSPResponseCache(Duration.ofMinutes(10), false, 10);
+    caRepository.setOcspResponseCache(cache);
+    CertificateID certId = new CertificateID(
+      new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+      new JcaX509CertificateHolder(cert1), cert2.getSerialNumber());
+    cache.put(certId, new OCSPResp(new OCSPResponse(new OCSPResponseStatus(OCSPResp.SUCCESSFUL), null)),
+      cache.getGeneration());
+
+    // Unmodified revocation data leaves cached responses in place
+    caRepository.refreshOcspResponseCache();
+    assertNotNull(cache.get(certId));
+
+    // A manual update of the revocation file invalidates all cached responses once it is detected
+    FileUtils.writeStringToFile(revocationFile, "[{\"serial\":\"" + cert2.getSerialNumber().toString(16)
+      + "\",\"time\":\"2024-01-01 12:00:00\",\"reason\":1}]", StandardCharsets.UTF_8);
+    Thread.sleep(RevocationRegistry.DEFAULT_MODIFICATION_CHECK_INTERVAL.toMillis() + 100);
+    caRepository.refreshOcspResponseCache();
+    assertNull(cache.get(certId));
+    assertNotNull(caRepository.getRevokedCertificate(cert2.getSerialNumber()));
   }
 
   private File createDir(String name) throws Exception {
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.ocsp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.math.BigInteger;
+import java.time.Duration;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.ca.signservice.TestData;
+
+/**
+ * Tests for the OCSP response cache.
+ */
+class OCSPResponseCacheTest {
+
+  @Test
+  void cacheAndInvalidate() throws Exception {
+    final X509CertificateHolder issuer = new X509CertificateHolder(TestData.getCertBytes(TestData.CERT_1));
+    final CertificateID certId = new CertificateID(
+      new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), issuer, BigInteger.TEN);
+    final OCSPResp response = new OCSPResp(new OCSPResponse(new OCSPResponseStatus(OCSPResp.SUCCESSFUL), null));
+
+    final OCSPResponseCache cache = new OCSPResponseCache(Duration.ofMinutes(1), false, 10);
+
+    // Requests with nonce are not cacheable unless nonces are ignored
+    final OCSPReq nonceRequest = new OCSPReqBuilder().addRequest(certId)
+      .setRequestExtensions(new Extensions(new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false,
+        new DEROctetString(new byte[] { 1, 2, 3 }))))
+      .build();
+    assertNull(cache.getCacheableCertificateId(nonceRequest));
+    assertNotNull(new OCSPResponseCache(Duration.ofMinutes(1), true, 10).getCacheableCertificateId(nonceRequest));
+
+    final OCSPReq request = new OCSPReqBuilder().addRequest(certId).build();
+    final CertificateID cacheableId = cache.getCacheableCertificateId(request);
+    assertEquals(certId, cacheableId);
+
+    long generation = cache.getGeneration();
+    cache.put(cacheableId, response, generation);
+    assertNotNull(cache.get(certId));
+
+    // Revocation of another certificate leaves the cached response in place
+    cache.invalidate(BigInteger.ONE);
+    assertNotNull(cache.get(certId));
+    cache.invalidate(BigInteger.TEN);
+    assertNull(cache.get(certId));
+
+    // A response produced before an invalidation is not cached
+    generation = cache.getGeneration();
+    cache.invalidate(BigInteger.TEN);
+    cache.put(cacheableId, response, generation);
+    assertNull(cache.get(certId));
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.ocsp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.cryptacular.util.CertUtil;
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.ca.engine.revocation.ocsp.OCSPModel;
+import se.swedenconnect.ca.signservice.TestData;
+import se.swedenconnect.ca.signservice.ca.StorageOnlyCARepository;
+import se.swedenconnect.ca.signservice.ca.storage.impl.DefaultCARepoStorage;
+import se.swedenconnect.security.credential.BasicCredential;
+
+/**
+ * Tests for the storage only OCSP responder.
+ */
+class StorageOnlyOCSPResponderTest {
+
+  @Test
+  void unissuedCertificateStatus() throws Exception {
+    File repoDir = new File(System.getProperty("user.dir"), "target/test-data/storage/ocsp-unissued");
+    if (repoDir.exists()) {
+      FileUtils.forceDelete(repoDir);
+    }
+    repoDir.mkdirs();
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(repoDir, new File(repoDir, "revoked.json"), null);
+    StorageOnlyCARepository caRepository = new StorageOnlyCARepository(storage, new File(repoDir, "ca01.crl"));
+    X509Certificate issued = CertUtil.decodeCertificate(TestData.getCertBytes(TestData.CERT_1));
+    caRepository.addCertificate(new JcaX509CertificateHolder(issued));
+
+    // Self signed OCSP issuer acting as the issuer of the requested certificates
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keyPair = generator.generateKeyPair();
+    X500Name issuerName = new X500Name("CN=Test CA");
+    Date notBefore = new Date();
+    X509CertificateHolder issuer = new JcaX509v3CertificateBuilder(issuerName, BigInteger.ONE, notBefore,
+      new Date(notBefore.getTime() + 3600000), issuerName, keyPair.getPublic())
+      .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate()));
+    BasicCredential credential = new BasicCredential(new JcaX509CertificateConverter().getCertificate(issuer),
+      keyPair.getPrivate());
+    StorageOnlyOCSPResponder responder = new StorageOnlyOCSPResponder(credential,
+      new OCSPModel(issuer, "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"), caRepository);
+
+    // A serial number never issued by this CA is reported as good unless unknown status is enabled
+    BigInteger unissuedSerial = issued.getSerialNumber().add(BigInteger.ONE);
+    assertNull(getStatus(responder, issuer, unissuedSerial));
+    assertNull(getStatus(responder, issuer, issued.getSerialNumber()));
+
+    caRepository.setOcspUnknownForUnissued(true);
+    assertInstanceOf(UnknownStatus.class, getStatus(responder, issuer, unissuedSerial));
+    assertNull(getStatus(responder, issuer, issued.getSerialNumber()));
+    storage.close();
+  }
+
+  private static CertificateStatus getStatus(StorageOnlyOCSPResponder responder, X509CertificateHolder issuer,
+    BigInteger serialNumber) throws Exception {
+    CertificateID certId = new CertificateID(
+      new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), issuer, serialNumber);
+    OCSPResp response = responder.handleRequest(new OCSPReqBuilder().addRequest(certId).build());
+    assertEquals(OCSPResp.SUCCESSFUL, response.getStatus());
+    BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+    assertEquals(serialNumber, basicResponse.getResponses()[0].getCertID().getSerialNumber());
+    return basicResponse.getResponses()[0].getCertStatus();
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Tests for the storage file reader.
+ */
+class StorageFileReaderTest {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Test
+  void readRecords() throws Exception {
+    File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/reader");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    File storageFile = new File(dir, "certStore-2024-01-01");
+
+    // Write enough records to have the file split, followed by an incomplete record
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      content.append(OBJECT_MAPPER.writeValueAsString(StorageRecord.builder()
+        .serial(BigInteger.valueOf(i).toString(16))
+        .it("2024-01-01T10:00:00")
+        .et("2025-01-01T10:00:00")
+        .id("id-" + i)
+        .cert("Y2VydGlmaWNhdGUgZGF0YSBwbGFjZWhvbGRlciBmb3IgcmVhZGVyIHRlc3Q=")
+        .build())).append("\n");
+    }
+    content.append("{\"serial\":\"ff");
+    FileUtils.writeStringToFile(storageFile, content.toString(), StandardCharsets.UTF_8);
+
+    try (StorageFileReader reader = new StorageFileReader(storageFile)) {
+      List<StorageRecord> sequential = reader.records(false).toList();
+      List<StorageRecord> parallel = reader.records(true).toList();
+      assertEquals(3000, sequential.size());
+      assertEquals(sequential, parallel);
+      assertEquals("bb7", parallel.get(2999).getSerial());
+
+      // Offsets provided to a record mapper point to the start of each record
+      List<Long> offsets = reader.records((record, offset) -> offset, true).toList();
+      assertEquals(0L, offsets.get(0));
+      assertEquals(sequential.size(), offsets.size());
+      long secondOffset = offsets.get(1);
+      try (StorageFileReader offsetReader = new StorageFileReader(storageFile, secondOffset)) {
+        assertEquals("1", offsetReader.records(false).findFirst().orElseThrow().getSerial());
+      }
+    }
+  }
+
+}
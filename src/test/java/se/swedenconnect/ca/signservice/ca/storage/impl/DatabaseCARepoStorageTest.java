@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.cryptacular.util.CertUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+import se.swedenconnect.ca.signservice.TestData;
+import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
+
+/**
+ * Tests for the embedded database certificate storage.
+ */
+class DatabaseCARepoStorageTest {
+
+  private static File storageDataDir;
+  private static StorageEncryption encryption;
+
+  @BeforeAll
+  static void init() throws Exception {
+    storageDataDir = new File(System.getProperty("user.dir"), "target/test-data/database-storage");
+    encryption = new DefaultStorageEncryption("s3cr3t".toCharArray(), "key01", "salt".getBytes());
+  }
+
+  @Test
+  void storeCertificate() throws Exception {
+    for (StorageEncryption storageEncryption : new StorageEncryption[] { null, encryption }) {
+      File databaseFile = new File(createDir(storageEncryption == null ? "noCrypt" : "crypt"),
+        DatabaseCARepoStorage.DATABASE_NAME);
+      DatabaseCARepoStorage storage = new DatabaseCARepoStorage(databaseFile, storageEncryption);
+      storage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+      storage.storeCertificate(TestData.getCertBytes(TestData.CERT_2));
+      // Storing a certificate again replaces the stored certificate
+      storage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+      assertNull(storage.getCertificate(BigInteger.TEN));
+      assertTrue(storage.isCertificateStored(getSerial(TestData.CERT_2)));
+      assertFalse(storage.isCertificateStored(BigInteger.TEN));
+      assertEquals(getCertificate(TestData.CERT_2).getNotAfter().toInstant().getEpochSecond(),
+        storage.getCertificateNotAfter(getSerial(TestData.CERT_2)).getEpochSecond());
+      storage.close();
+
+      storage = new DatabaseCARepoStorage(databaseFile, storageEncryption);
+      assertEquals(2, storage.getCertificateCount(false));
+      assertEquals(2, storage.getCertificateSerials().size());
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+      storage.close();
+    }
+  }
+
+  @Test
+  void certificateSerialPages() throws Exception {
+    DatabaseCARepoStorage storage = new DatabaseCARepoStorage(
+      new File(createDir("serial-pages"), DatabaseCARepoStorage.DATABASE_NAME), null);
+    storage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+    storage.storeCertificate(TestData.getCertBytes(TestData.CERT_2));
+    BigInteger serial1 = getSerial(TestData.CERT_1);
+    BigInteger serial2 = getSerial(TestData.CERT_2);
+    BigInteger lowSerial = serial1.min(serial2);
+    BigInteger highSerial = serial1.max(serial2);
+    BigInteger firstIssued = getCertificate(TestData.CERT_1).getNotBefore()
+      .before(getCertificate(TestData.CERT_2).getNotBefore()) ? serial1 : serial2;
+    BigInteger lastIssued = firstIssued.equals(serial1) ? serial2 : serial1;
+
+    assertEquals(List.of(lowSerial, highSerial), storage.getCertificateSerials(0, 2, false, null, false));
+    assertEquals(List.of(highSerial), storage.getCertificateSerials(0, 1, false, SortBy.serialNumber, true));
+    assertEquals(List.of(lowSerial), storage.getCertificateSerials(1, 1, false, SortBy.serialNumber, true));
+    assertEquals(List.of(firstIssued, lastIssued), storage.getCertificateSerials(0, 5, false, SortBy.issueDate, false));
+    assertEquals(List.of(firstIssued), storage.getCertificateSerials(1, 1, false, SortBy.issueDate, true));
+    assertEquals(0, storage.getCertificateSerials(2, 1, false, SortBy.issueDate, false).size());
+
+    // Revoked certificates are skipped before the offset of the page is applied
+    storage.revokeCertificate(new RevokedCertificate(firstIssued, new Date(), CRLReason.unspecified));
+    assertEquals(List.of(lastIssued), storage.getCertificateSerials(0, 1, true, SortBy.issueDate, false));
+    assertEquals(0, storage.getCertificateSerials(1, 1, true, SortBy.issueDate, false).size());
+    assertEquals(1, storage.getCertificateCount(true));
+    storage.close();
+  }
+
+  @Test
+  void revokeCertificate() throws Exception {
+    File databaseFile = new File(createDir("revoke"), DatabaseCARepoStorage.DATABASE_NAME);
+    DatabaseCARepoStorage storage = new DatabaseCARepoStorage(databaseFile, null);
+    storage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+    BigInteger serial1 = getSerial(TestData.CERT_1);
+    BigInteger serial2 = getSerial(TestData.CERT_2);
+    storage.revokeCertificate(new RevokedCertificate(serial1, new Date(), CRLReason.unspecified));
+    storage.revokeCertificate(new RevokedCertificate(serial2, new Date(), CRLReason.certificateHold));
+    assertThrows(CertificateRevocationException.class,
+      () -> storage.revokeCertificate(new RevokedCertificate(serial1, new Date(), CRLReason.keyCompromise)));
+    storage.revokeCertificate(new RevokedCertificate(serial2, new Date(), CRLReason.keyCompromise));
+    storage.close();
+
+    // Revocation data is loaded from the database
+    DatabaseCARepoStorage reopened = new DatabaseCARepoStorage(databaseFile, null);
+    assertEquals(2, reopened.getRevokedCertificateCount());
+    assertEquals(List.of(serial1.min(serial2), serial1.max(serial2)), reopened.getRevokedCertificates().stream()
+      .map(RevokedCertificate::getCertificateSerialNumber)
+      .toList());
+    assertEquals(CRLReason.keyCompromise, reopened.getRevokedCertificate(serial2).getReason());
+
+    // Only revocation data of stored certificates that have expired is removed
+    Instant expiredBefore = getCertificate(TestData.CERT_1).getNotAfter().toInstant().plusSeconds(1);
+    assertEquals(List.of(serial1), reopened.removeExpiredRevocations(expiredBefore));
+    assertNull(reopened.getRevokedCertificate(serial1));
+    assertNotNull(reopened.getRevokedCertificate(serial2));
+    assertThrows(CertificateRevocationException.class,
+      () -> reopened.revokeCertificate(new RevokedCertificate(serial1, new Date(), CRLReason.unspecified)));
+    reopened.close();
+
+    DatabaseCARepoStorage restarted = new DatabaseCARepoStorage(databaseFile, null);
+    assertTrue(restarted.isRevocationDataRemoved(serial1));
+    assertFalse(restarted.isRevocationDataRemoved(serial2));
+    assertEquals(expiredBefore.getEpochSecond(), restarted.getExpiredRevocationsRemovedBefore().getEpochSecond());
+    assertEquals(1, restarted.getRevokedCertificateCount());
+    restarted.close();
+  }
+
+  @Test
+  void migrateFileStorage() throws Exception {
+    for (StorageFormat storageFormat : new StorageFormat[] { StorageFormat.JSON, StorageFormat.SEGMENT }) {
+      File dir = createDir("migrate-" + storageFormat);
+      File revocationFile = new File(dir, "revoked.json");
+      AbstractCARepoStorage fileStorage = storageFormat == StorageFormat.SEGMENT
+        ? new SegmentCARepoStorage(dir, revocationFile, encryption)
+        : new DefaultCARepoStorage(dir, revocationFile, encryption);
+      fileStorage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+      fileStorage.storeCertificate(TestData.getCertBytes(TestData.CERT_2));
+      fileStorage.revokeCertificate(
+        new RevokedCertificate(getSerial(TestData.CERT_2), new Date(), CRLReason.certificateHold));
+      fileStorage.close();
+
+      File databaseFile = new File(dir, DatabaseCARepoStorage.DATABASE_NAME);
+      try (DatabaseCARepoStorage database = new DatabaseCARepoStorage(databaseFile, null)) {
+        assertEquals(2, DatabaseStorageMigration.migrate(dir, storageFormat, revocationFile, database));
+      }
+
+      // Encrypted certificates are migrated without decryption
+      DatabaseCARepoStorage storage = new DatabaseCARepoStorage(databaseFile, encryption);
+      assertEquals(2, storage.getCertificateCount(false));
+      assertEquals(1, storage.getCertificateCount(true));
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+      assertEquals(CRLReason.certificateHold, storage.getRevokedCertificate(getSerial(TestData.CERT_2)).getReason());
+      storage.close();
+    }
+  }
+
+  private X509Certificate getCertificate(String b64Cert) {
+    return CertUtil.decodeCertificate(TestData.getCertBytes(b64Cert));
+  }
+
+  private BigInteger getSerial(String b64Cert) {
+    return getCertificate(b64Cert).getSerialNumber();
+  }
+
+  private File createDir(String name) throws Exception {
+    File dir = new File(storageDataDir, name);
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    return dir;
+  }
+
+}
@@ -15,6 +15,7 @@
  */
 package se.swedenconnect.ca.signservice.ca.storage.impl;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
@@ -26,15 +27,22 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.util.encoders.Base64;
 import org.cryptacular.util.CertUtil;
 import org.junit.jupiter.api.BeforeAll;
@@ -43,6 +51,7 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import lombok.extern.slf4j.Slf4j;
 import se.swedenconnect.ca.engine.ca.attribute.CertAttributes;
+import se.swedenconnect.ca.engine.ca.repository.SortBy;
 import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
 import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
 import se.swedenconnect.ca.signservice.TestData;
@@ -51,6 +60,7 @@ import se.swedenconnect.ca.signservice.ca.storage.CertificateStorageException;
 import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
 import se.swedenconnect.ca.signservice.ca.storage.StoredCertificateIterator;
 import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageSegment;
 import se.swedenconnect.ca.signservice.utils.CertNameUtils;
 
 @Slf4j
@@ -183,6 +193,277 @@ public class DefaultCARepoStorageTest {
     storeCert("Storing cert to storage with critical error", storageNoCrypt, TestData.CERT_1, CertificateStorageException.class);
   }
 
+  @Test
+  void concurrentStorage() throws Exception {
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(createDir("concurrent"),
+      new File(new File(storageDataDir, "concurrent"), "revoked.json"), null);
+    byte[] certBytes = TestData.getCertBytes(TestData.CERT_1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> results = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      results.add(executor.submit(() -> {
+        storage.storeCertificate(certBytes);
+        return null;
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    executor.shutdown();
+    storage.close();
+
+    // Every stored record must be present and complete when storeCertificate has returned
+    List<String> lines = FileUtils.readLines(getStorageFile("concurrent"), StandardCharsets.UTF_8);
+    assertEquals(200, lines.size());
+    for (String line : lines) {
+      assertTrue(line.startsWith("{") && line.endsWith("}"));
+    }
+  }
+
+  @Test
+  void getCertificate() throws Exception {
+    File dir = createDir("index");
+    File revocationFile = new File(dir, "revoked.json");
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(dir, revocationFile, encrypt1);
+    storeCert("Storing cert 1 - index", storage, TestData.CERT_1, null);
+    // Certificates that have already been parsed are stored without being parsed again
+    X509CertificateHolder cert2 = new X509CertificateHolder(TestData.getCertBytes(TestData.CERT_2));
+    storage.storeCertificate(cert2);
+    assertEquals(cert2.getNotAfter().toInstant(), storage.getCertificateNotAfter(cert2.getSerialNumber()));
+    assertEquals(2, storage.getCertificateSerials().size());
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+    assertNull(storage.getCertificate(BigInteger.TEN));
+    assertTrue(storage.isCertificateStored(cert2.getSerialNumber()));
+    assertFalse(storage.isCertificateStored(BigInteger.TEN));
+    storage.close();
+
+    // A new storage instance using another default key loads the index and decrypts using the key map
+    storage = new DefaultCARepoStorage(dir, revocationFile, encrypt2);
+    storage.setDecryptionKeyMap(keyMap);
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+    storage.close();
+
+    // A lost index is recreated from the storage files
+    FileUtils.forceDelete(new File(dir, CertificateIndex.INDEX_FILE_NAME));
+    storage = new DefaultCARepoStorage(dir, revocationFile, encrypt1);
+    assertEquals(2, storage.getCertificateSerials().size());
+    assertTrue(storage.isCertificateStored(getSerial(TestData.CERT_1)));
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+    storage.rebuildCertificateIndex();
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+
+    // Stored certificates remain indexed while the index is rebuilt
+    DefaultCARepoStorage rebuiltStorage = storage;
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<?> rebuilds = executor.submit(() -> {
+      for (int i = 0; i < 20; i++) {
+        rebuiltStorage.rebuildCertificateIndex();
+      }
+      return null;
+    });
+    while (!rebuilds.isDone()) {
+      assertTrue(storage.isCertificateStored(getSerial(TestData.CERT_1)));
+      assertEquals(2, storage.getCertificateCount(false));
+    }
+    rebuilds.get();
+    executor.shutdown();
+    storage.close();
+  }
+
+  @Test
+  void certificateSerialPages() throws Exception {
+    File dir = createDir("serial-pages");
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(dir, new File(dir, "revoked.json"), null);
+    storeCert("Storing cert 1 - pages", storage, TestData.CERT_1, null);
+    storeCert("Storing cert 2 - pages", storage, TestData.CERT_2, null);
+    BigInteger serial1 = getSerial(TestData.CERT_1);
+    BigInteger serial2 = getSerial(TestData.CERT_2);
+    BigInteger lowSerial = serial1.min(serial2);
+    BigInteger highSerial = serial1.max(serial2);
+    X509Certificate cert1 = CertUtil.decodeCertificate(TestData.getCertBytes(TestData.CERT_1));
+    X509Certificate cert2 = CertUtil.decodeCertificate(TestData.getCertBytes(TestData.CERT_2));
+    BigInteger firstIssued = cert1.getNotBefore().before(cert2.getNotBefore()) ? serial1 : serial2;
+    BigInteger lastIssued = firstIssued.equals(serial1) ? serial2 : serial1;
+
+    // Rebuilding the index does not leave stale entries in the sorted views of the index
+    storage.rebuildCertificateIndex();
+    assertEquals(List.of(lowSerial, highSerial), storage.getCertificateSerials(0, 2, false, null, false));
+    assertEquals(List.of(highSerial), storage.getCertificateSerials(0, 1, false, SortBy.serialNumber, true));
+    assertEquals(List.of(lowSerial), storage.getCertificateSerials(1, 1, false, SortBy.serialNumber, true));
+    assertEquals(List.of(firstIssued, lastIssued), storage.getCertificateSerials(0, 5, false, SortBy.issueDate, false));
+    assertEquals(List.of(firstIssued), storage.getCertificateSerials(1, 1, false, SortBy.issueDate, true));
+    assertEquals(0, storage.getCertificateSerials(2, 1, false, SortBy.issueDate, false).size());
+
+    // Revoked certificates are skipped before the offset of the page is applied
+    revokeCert("Revoking cert - pages", storage, firstIssued, new Date(), CRLReason.unspecified, null);
+    assertEquals(List.of(lastIssued), storage.getCertificateSerials(0, 1, true, SortBy.issueDate, false));
+    assertEquals(0, storage.getCertificateSerials(1, 1, true, SortBy.issueDate, false).size());
+    storage.close();
+  }
+
+  @Test
+  void incompleteIndexEntry() throws Exception {
+    File dir = createDir("index-incomplete");
+    File revocationFile = new File(dir, "revoked.json");
+    File indexFile = new File(dir, CertificateIndex.INDEX_FILE_NAME);
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(dir, revocationFile, null);
+    storeCert("Storing cert 1 - incomplete index", storage, TestData.CERT_1, null);
+    storage.close();
+    long indexLength = indexFile.length();
+
+    // A single byte of an interrupted index write is removed when the index is loaded
+    FileUtils.writeByteArrayToFile(indexFile, new byte[] { 0 }, true);
+    storage = new DefaultCARepoStorage(dir, revocationFile, null);
+    assertEquals(indexLength, indexFile.length());
+    storeCert("Storing cert 2 - incomplete index", storage, TestData.CERT_2, null);
+    storage.close();
+
+    storage = new DefaultCARepoStorage(dir, revocationFile, null);
+    assertEquals(2, storage.getCertificateSerials().size());
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+    storage.close();
+  }
+
+  @Test
+  void storageShards() throws Exception {
+    File dir = createDir("shards");
+    File revocationFile = new File(dir, "revoked.json");
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(dir, revocationFile, null, StorageDurability.BATCH,
+      Duration.ZERO, 4);
+    for (int i = 0; i < 10; i++) {
+      storeCert("Storing cert " + i + " - storage shards", storage, i % 2 == 0 ? TestData.CERT_1 : TestData.CERT_2,
+        null);
+    }
+    assertEquals(10, storage.getWriteStatistics().getRecordCount());
+    storage.close();
+
+    // Each certificate is stored in the storage file of its shard
+    File storageFile = getStorageFile("shards");
+    assertFalse(storageFile.exists());
+    for (String cert : new String[] { TestData.CERT_1, TestData.CERT_2 }) {
+      File shardFile = new File(dir, storageFile.getName() + "-" + Math.floorMod(getSerial(cert).hashCode(), 4));
+      assertTrue(shardFile.exists());
+    }
+
+    // Storage without shards finds certificates stored in all shards, and stores new certificates in the daily file
+    FileUtils.forceDelete(new File(dir, CertificateIndex.INDEX_FILE_NAME));
+    storage = new DefaultCARepoStorage(dir, revocationFile, null);
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+    storeCert("Storing cert without shards", storage, TestData.CERT_1, null);
+    storage.close();
+    assertTrue(storageFile.exists());
+
+    // Storage without rollover limits does not seal the storage files of the shards
+    assertFalse(storage.getManifest().getManifestFile().exists());
+
+    // The iterator of the daily storage file reads the records of all shards
+    try (StoredCertificateIterator iterator = StoredCertificateIterator.getInstance(storageFile)) {
+      int cnt = 0;
+      while (iterator.hasNext()) {
+        iterator.next();
+        cnt++;
+      }
+      assertEquals(11, cnt);
+    }
+  }
+
+  @Test
+  void segmentRollover() throws Exception {
+    File dir = createDir("rollover");
+    File revocationFile = new File(dir, "revoked.json");
+    StorageRollover rollover = StorageRollover.builder().maxSegmentRecords(3).compressSealedSegments(true).build();
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(dir, revocationFile, null, StorageDurability.BATCH,
+      Duration.ZERO, 1, rollover);
+    for (int i = 0; i < 10; i++) {
+      storeCert("Storing cert " + i + " - segment rollover", storage, i % 2 == 0 ? TestData.CERT_1 : TestData.CERT_2,
+        null);
+    }
+    storage.close();
+
+    // Sealed segments are listed in the manifest and compressed, while the current segment is not
+    File storageFile = getStorageFile("rollover");
+    List<StorageSegment> segments = storage.getManifest().getSegments();
+    assertEquals(3, segments.size());
+    for (int sequence = 0; sequence < 3; sequence++) {
+      String fileName = storageFile.getName() + (sequence == 0 ? "" : "." + sequence);
+      StorageSegment segment = segments.get(sequence);
+      assertEquals(fileName, segment.getFileName());
+      assertEquals(3, segment.getRecords());
+      assertEquals(getSerial(TestData.CERT_1).min(getSerial(TestData.CERT_2)).toString(16), segment.getMinSerial());
+      assertEquals(getSerial(TestData.CERT_1).max(getSerial(TestData.CERT_2)).toString(16), segment.getMaxSerial());
+      assertTrue(segment.isCompressed());
+      assertFalse(new File(dir, fileName).exists());
+      assertTrue(new File(dir, fileName + StorageManifest.COMPRESSED_FILE_EXTENSION).exists());
+    }
+    assertTrue(new File(dir, storageFile.getName() + ".3").exists());
+
+    // Certificates in compressed segments are found through a rebuilt index, and storage continues in the last segment
+    FileUtils.forceDelete(new File(dir, CertificateIndex.INDEX_FILE_NAME));
+    storage = new DefaultCARepoStorage(dir, revocationFile, null, StorageDurability.BATCH, Duration.ZERO, 1, rollover);
+    assertEquals(storageFile.getName() + ".2",
+      storage.certificateIndex.get(getSerial(TestData.CERT_1)).fileName());
+    assertEquals(0, dir.list((d, name) -> name.endsWith(".tmp")).length);
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+    storeCert("Storing cert after restart - segment rollover", storage, TestData.CERT_1, null);
+    storage.close();
+    assertEquals(3, storage.getManifest().getSegments().size());
+    assertEquals(2, FileUtils.readLines(new File(dir, storageFile.getName() + ".3"), StandardCharsets.UTF_8).size());
+
+    // The iterator of the daily storage file reads the records of all segments
+    try (StoredCertificateIterator iterator = StoredCertificateIterator.getInstance(storageFile)) {
+      int cnt = 0;
+      while (iterator.hasNext()) {
+        iterator.next();
+        cnt++;
+      }
+      assertEquals(11, cnt);
+    }
+  }
+
+  @Test
+  void decryptingIterator() throws Exception {
+    DefaultCARepoStorage storage = new DefaultCARepoStorage(createDir("decrypt"),
+      new File(new File(storageDataDir, "decrypt"), "revoked.json"), encrypt1);
+    for (int i = 0; i < 40; i++) {
+      storeCert("Storing cert " + i + " - decrypting iterator", storage, i % 2 == 0 ? TestData.CERT_1 : TestData.CERT_2,
+        null);
+    }
+    storage.close();
+
+    // Records are decrypted in parallel by the executor of the storage but returned in file order
+    DefaultCARepoStorage decryptingStorage = new DefaultCARepoStorage(new File(storageDataDir, "decrypt"),
+      new File(new File(storageDataDir, "decrypt"), "revoked.json"), decrypter);
+    decryptingStorage.setDecryptionKeyMap(keyMap);
+    for (boolean parallel : new boolean[] { false, true }) {
+      try (StoredCertificateIterator iterator = parallel
+        ? decryptingStorage.getStoredCertificates(getStorageFile("decrypt"))
+        : StoredCertificateIterator.getInstance(getStorageFile("decrypt"), decrypter, keyMap)) {
+        int cnt = 0;
+        while (iterator.hasNext()) {
+          StorageRecord storageRecord = iterator.next();
+          assertNull(storageRecord.getECert());
+          assertNull(storageRecord.getEId());
+          X509Certificate certificate = CertUtil.decodeCertificate(Base64.decode(storageRecord.getCert()));
+          assertEquals(getSerial(cnt % 2 == 0 ? TestData.CERT_1 : TestData.CERT_2), certificate.getSerialNumber());
+          assertEquals(storageRecord.getId(), CertNameUtils.getSubjectAttributes(certificate).get(CertAttributes.SERIALNUMBER));
+          cnt++;
+        }
+        assertEquals(40, cnt);
+      }
+    }
+
+    // An abandoned iterator holds no threads once the storage is closed
+    StoredCertificateIterator abandoned = decryptingStorage.getStoredCertificates(getStorageFile("decrypt"));
+    assertTrue(abandoned.hasNext());
+    decryptingStorage.close();
+    ExecutorService decryptionExecutor =
+      (ExecutorService) ReflectionTestUtils.getField(decryptingStorage, "decryptionExecutor");
+    assertTrue(decryptionExecutor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
   private File getStorageFile(String dirName) {
     File storageDir = new File(storageDataDir, dirName);
     return new File(storageDir, "certStore-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd")));
@@ -224,7 +505,31 @@ public class DefaultCARepoStorageTest {
   }
 
   @Test
-  void revokeCertificate() {
+  void revokeCertificate() throws Exception {
+    File dir = createDir("revocation");
+    File revocationFile = new File(dir, "revoked.json");
+    CARepoStorage storage = new DefaultCARepoStorage(dir, revocationFile, null);
+
+    revokeCert("Revoking cert 1", storage, getSerial(TestData.CERT_1), new Date(), CRLReason.certificateHold, null);
+    assertEquals(CRLReason.certificateHold, storage.getRevokedCertificates().get(0).getReason());
+
+    // Update the revocation file manually and make sure that the change is picked up
+    FileUtils.writeStringToFile(revocationFile, "[{\"serial\":\"" + getSerial(TestData.CERT_1).toString(16)
+      + "\",\"time\":\"2022-08-20 10:00:00\",\"reason\":6},{\"serial\":\""
+      + getSerial(TestData.CERT_2).toString(16) + "\",\"time\":\"2022-08-20 10:00:00\",\"reason\":1}]",
+      StandardCharsets.UTF_8);
+    List<RevokedCertificate> revokedCertificates = storage.getRevokedCertificates();
+    assertEquals(2, revokedCertificates.size());
+    revokeCert("Revoking manually revoked cert 2", storage, getSerial(TestData.CERT_2), new Date(),
+      CRLReason.unspecified, CertificateRevocationException.class);
+
+    // A new storage instance reads the same revocation state
+    storage = new DefaultCARepoStorage(dir, revocationFile, null);
+    revokeCert("Removing cert 1 from hold", storage, getSerial(TestData.CERT_1), new Date(), CRLReason.removeFromCRL,
+      null);
+    revokedCertificates = storage.getRevokedCertificates();
+    assertEquals(1, revokedCertificates.size());
+    assertEquals(getSerial(TestData.CERT_2), revokedCertificates.get(0).getCertificateSerialNumber());
   }
 
   private File createDir(String name) throws Exception {
@@ -144,6 +144,30 @@ class DefaultStorageEncryptionTest {
 
   }
 
+  @Test
+  void cachedKeyTest() throws Exception {
+    Map<String, String> keyMap = new HashMap<>();
+    keyMap.put("key01", "sdfjIu98#%6&f");
+    keyMap.put("key02", "Jiurf487dfvn3#€");
+    byte[] salt = "salt01!#".getBytes(StandardCharsets.UTF_8);
+
+    DefaultStorageEncryption encryption01 = new DefaultStorageEncryption(keyMap.get("key01").toCharArray(), "key01", salt);
+    DefaultStorageEncryption encryption02 = new DefaultStorageEncryption(keyMap.get("key02").toCharArray(), "key02", salt);
+    encryption02.preloadKeys(keyMap);
+
+    byte[] data = "This data is encrypted".getBytes(StandardCharsets.UTF_8);
+    byte[] encData = encryption01.encryptData(data, false);
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(data, encryption02.decryptData(encData, false, keyMap));
+    }
+
+    // A cached key is only used for the password it was derived from
+    Map<String, String> wrongKeyMap = new HashMap<>();
+    wrongKeyMap.put("key01", "wrong password");
+    byte[] compressedEncData = encryption01.encryptData(data, true);
+    assertThrows(IOException.class, () -> encryption02.decryptData(compressedEncData, true, wrongKeyMap));
+  }
+
   void encryptTestWithKey(String message, StorageEncryption encryption, StorageEncryption decryption,
     Map<String, String> keyMap, String data, boolean compressEncrypt, boolean compressDecrypt,
     Class<? extends Exception> exceptionClass) throws IOException {
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.TestData;
+
+/**
+ * Tests for dictionary based storage compression.
+ */
+@Slf4j
+class DictionaryStorageCompressionTest {
+
+  @Test
+  void testCompression() throws Exception {
+    File dictionaryDir = new File(System.getProperty("user.dir"), "target/test-data/storage/dictionaries");
+    if (dictionaryDir.exists()) {
+      FileUtils.forceDelete(dictionaryDir);
+    }
+    byte[] cert1 = TestData.getCertBytes(TestData.CERT_1);
+    byte[] cert2 = TestData.getCertBytes(TestData.CERT_2);
+
+    assertNull(DictionaryStorageCompression.create(List.of(), dictionaryDir));
+    DictionaryStorageCompression compression = DictionaryStorageCompression.create(List.of(cert2), dictionaryDir);
+    byte[] compressed = compression.compress(cert1);
+    assertArrayEquals(cert1, compression.decompress(compressed));
+
+    // Compare with GZIP compression used without a dictionary
+    DefaultStorageEncryption encryption = new DefaultStorageEncryption("s3cr3t".toCharArray(), "key01",
+      "salt".getBytes(StandardCharsets.UTF_8));
+    byte[] gzipEncrypted = encryption.encryptData(cert1, true);
+    encryption.setCompression(compression);
+    byte[] dictionaryEncrypted = encryption.encryptData(cert1, true);
+    log.info("Certificate size: {}, encrypted with GZIP: {}, encrypted with dictionary: {}", cert1.length,
+      gzipEncrypted.length, dictionaryEncrypted.length);
+    assertTrue(dictionaryEncrypted.length < gzipEncrypted.length);
+
+    // Both GZIP and dictionary compressed data is decompressed
+    assertArrayEquals(cert1, encryption.decryptData(gzipEncrypted, true, null));
+    assertArrayEquals(cert1, encryption.decryptData(dictionaryEncrypted, true, null));
+
+    // Data compressed with a previous dictionary is decompressed using the saved dictionary
+    DictionaryStorageCompression newCompression =
+      DictionaryStorageCompression.create(List.of(cert2, cert1), dictionaryDir);
+    assertArrayEquals(cert1, newCompression.decompress(compressed));
+    DictionaryStorageCompression savedCompression = DictionaryStorageCompression.create(List.of(), dictionaryDir);
+    assertArrayEquals(cert1, savedCompression.decompress(newCompression.compress(cert1)));
+
+    // Dictionary compressed data is recognized when dictionary compression is no longer used for new data
+    DefaultStorageEncryption gzipEncryption = new DefaultStorageEncryption("s3cr3t".toCharArray(), "key01",
+      "salt".getBytes(StandardCharsets.UTF_8));
+    assertTrue(DictionaryStorageCompression.isDictionaryCompressed(compressed));
+    assertFalse(DictionaryStorageCompression.isDictionaryCompressed(encryption.getSerializedData(cert1, false)));
+    assertThrows(IOException.class, () -> gzipEncryption.decryptData(dictionaryEncrypted, true, null));
+    gzipEncryption.setDictionaryDecompression(DictionaryStorageCompression.create(List.of(), dictionaryDir));
+    assertArrayEquals(cert1, gzipEncryption.decryptData(dictionaryEncrypted, true, null));
+    assertArrayEquals(cert1, gzipEncryption.decryptData(gzipEncryption.encryptData(cert1, true), true, null));
+
+    // Data compressed with an unknown dictionary can not be decompressed
+    DictionaryStorageCompression unknown =
+      new DictionaryStorageCompression("other dictionary".getBytes(StandardCharsets.UTF_8), List.of());
+    assertThrows(IOException.class, () -> unknown.decompress(compressed));
+  }
+
+}
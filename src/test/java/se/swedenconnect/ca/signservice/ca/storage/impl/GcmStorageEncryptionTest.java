@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.TestData;
+
+/**
+ * Tests for the AES-GCM storage data encryption.
+ */
+@Slf4j
+class GcmStorageEncryptionTest {
+
+  @Test
+  void testEncryption() throws Exception {
+    byte[] salt = "salt01!#".getBytes(StandardCharsets.UTF_8);
+    Map<String, String> keyMap = new HashMap<>();
+    keyMap.put("key01", "sdfjIu98#%6&f");
+    keyMap.put("key02", "Jiurf487dfvn3#€");
+
+    GcmStorageEncryption gcm01 = new GcmStorageEncryption(keyMap.get("key01").toCharArray(), "key01", salt);
+    GcmStorageEncryption gcm02 = new GcmStorageEncryption(keyMap.get("key02").toCharArray(), "key02", salt);
+    DefaultStorageEncryption cbc01 = new DefaultStorageEncryption(keyMap.get("key01").toCharArray(), "key01", salt);
+    byte[] certBytes = TestData.getCertBytes(TestData.CERT_1);
+
+    // Round trip with and without compression
+    assertArrayEquals(certBytes, gcm01.decryptData(gcm01.encryptData(certBytes, true), true, null));
+    byte[] gcmEncrypted = gcm01.encryptData(certBytes, false);
+    assertArrayEquals(certBytes, gcm01.decryptData(gcmEncrypted, false, null));
+
+    // Decryption under another key and decryption of AES-CBC data
+    assertArrayEquals(certBytes, gcm02.decryptData(gcmEncrypted, false, keyMap));
+    byte[] cbcEncrypted = cbc01.encryptData(certBytes, false);
+    assertArrayEquals(certBytes, gcm01.decryptData(cbcEncrypted, false, null));
+    assertArrayEquals(certBytes, gcm02.decryptData(cbcEncrypted, false, keyMap));
+
+    // AES-GCM data stays readable when encryption is set back to AES-CBC
+    assertArrayEquals(certBytes, cbc01.decryptData(gcmEncrypted, false, null));
+    assertArrayEquals(certBytes, cbc01.decryptData(gcm02.encryptData(certBytes, true), true, keyMap));
+
+    log.info("Encrypted size AES-CBC JSON envelope: {}, AES-GCM binary envelope: {}", cbcEncrypted.length,
+      gcmEncrypted.length);
+    assertTrue(gcmEncrypted.length < cbcEncrypted.length);
+
+    // Modified data and a modified kid are rejected
+    byte[] modified = gcmEncrypted.clone();
+    modified[modified.length - 20] ^= 1;
+    assertThrows(IOException.class, () -> gcm01.decryptData(modified, false, null));
+    byte[] modifiedKid = gcmEncrypted.clone();
+    modifiedKid[6] = '2';
+    assertThrows(IOException.class, () -> gcm02.decryptData(modifiedKid, false, keyMap));
+  }
+
+}
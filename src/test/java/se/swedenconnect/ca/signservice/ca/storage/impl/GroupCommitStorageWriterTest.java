@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests for the group commit storage writer.
+ */
+class GroupCommitStorageWriterTest {
+
+  @Test
+  void interruptedWithPendingBatch() throws Exception {
+    final File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/writer-interrupt");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+
+    // The writer waits for more records before writing the batch holding the first record
+    final GroupCommitStorageWriter writer =
+        new GroupCommitStorageWriter(dir, 10, StorageDurability.BATCH, Duration.ofMinutes(1));
+    final CompletableFuture<Void> stored = writer.submit("storage", "record 1\n".getBytes(StandardCharsets.UTF_8));
+    Thread.sleep(500);
+
+    // The pending batch is written when the writer thread is interrupted, and the writer is closed
+    final Thread writerThread = (Thread) ReflectionTestUtils.getField(writer, "writerThread");
+    writerThread.interrupt();
+    stored.get(10, TimeUnit.SECONDS);
+    assertEquals("record 1\n", FileUtils.readFileToString(new File(dir, "storage"), StandardCharsets.UTF_8));
+    writerThread.join(10000);
+    assertFalse(writerThread.isAlive());
+
+    assertThrows(ExecutionException.class, () -> writer.submit("storage",
+        "record 2\n".getBytes(StandardCharsets.UTF_8)).get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void submitWhileClosing() throws Exception {
+    final File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/writer-close");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+
+    // Records are submitted by several threads while the writer is closed
+    final GroupCommitStorageWriter writer =
+        new GroupCommitStorageWriter(dir, 10, StorageDurability.BATCH, Duration.ZERO);
+    final List<CompletableFuture<Void>> results = new CopyOnWriteArrayList<>();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final List<Thread> submitters = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      final Thread submitter = new Thread(() -> {
+        while (!stop.get()) {
+          results.add(writer.submit("storage", "record\n".getBytes(StandardCharsets.UTF_8)));
+        }
+      });
+      submitter.start();
+      submitters.add(submitter);
+    }
+    Thread.sleep(200);
+    writer.close();
+    stop.set(true);
+    for (final Thread submitter : submitters) {
+      submitter.join(10000);
+    }
+
+    // Each record is either written or failed, none is left waiting
+    for (final CompletableFuture<Void> result : results) {
+      assertTrue(result.isDone());
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.junit.jupiter.api.Test;
+
+import se.swedenconnect.ca.engine.revocation.CertificateRevocationException;
+import se.swedenconnect.ca.engine.revocation.crl.RevokedCertificate;
+
+/**
+ * Tests for the revocation registry and its revocation journal.
+ */
+class RevocationRegistryTest {
+
+  @Test
+  void journalReplayAndCompaction() throws Exception {
+    final File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/journal");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    final File revocationFile = new File(dir, "revoked.json");
+    final File journalFile = new File(dir, "revoked.json.journal");
+
+    RevocationRegistry registry = new RevocationRegistry(revocationFile, 3);
+    registry.revoke(new RevokedCertificate(BigInteger.ONE, new Date(), CRLReason.certificateHold));
+    registry.revoke(new RevokedCertificate(BigInteger.TWO, new Date(), CRLReason.keyCompromise));
+    assertTrue(journalFile.exists());
+    assertFalse(revocationFile.exists());
+    assertEquals(2, FileUtils.readLines(journalFile, StandardCharsets.UTF_8).size());
+
+    // Simulate an interrupted append of a journal record
+    FileUtils.writeStringToFile(journalFile, "{\"serial\":\"3\",\"ti", StandardCharsets.UTF_8, true);
+
+    // A new registry replays the journal and compacts it into the revocation file
+    registry = new RevocationRegistry(revocationFile, 3);
+    assertEquals(2, registry.size());
+    assertFalse(journalFile.exists());
+    assertTrue(revocationFile.exists());
+    assertNotNull(registry.getRevokedCertificate(BigInteger.ONE));
+
+    // Reaching the compaction threshold compacts the journal
+    registry.revoke(new RevokedCertificate(BigInteger.ONE, new Date(), CRLReason.removeFromCRL));
+    registry.revoke(new RevokedCertificate(BigInteger.TEN, new Date(), CRLReason.unspecified));
+    assertTrue(journalFile.exists());
+    registry.revoke(new RevokedCertificate(BigInteger.ONE, new Date(), CRLReason.certificateHold));
+    assertFalse(journalFile.exists());
+
+    registry = new RevocationRegistry(revocationFile, 3);
+    assertEquals(3, registry.getRevokedCertificates().size());
+    assertEquals(CRLReason.certificateHold, registry.getRevokedCertificate(BigInteger.ONE).getReason());
+    assertNull(registry.getRevokedCertificate(BigInteger.valueOf(3)));
+  }
+
+  @Test
+  void removalOfExpiredRevocations() throws Exception {
+    final File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/journal-removal");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    final File revocationFile = new File(dir, "revoked.json");
+    final Instant removedBefore = Instant.now();
+
+    RevocationRegistry registry = new RevocationRegistry(revocationFile);
+    registry.revoke(new RevokedCertificate(BigInteger.ONE, new Date(), CRLReason.keyCompromise));
+    registry.revoke(new RevokedCertificate(BigInteger.TWO, new Date(), CRLReason.keyCompromise));
+
+    // No revocation data is removed if the removal can not be recorded
+    final File removedTempFile = new File(dir, "revoked.json.removed.tmp");
+    removedTempFile.mkdirs();
+    final RevocationRegistry failingRegistry = registry;
+    assertThrows(IOException.class, () -> failingRegistry.remove(List.of(BigInteger.ONE), removedBefore));
+    assertNotNull(registry.getRevokedCertificate(BigInteger.ONE));
+    assertFalse(registry.isRemoved(BigInteger.ONE));
+    assertNull(registry.getRemovedBefore());
+    FileUtils.forceDelete(removedTempFile);
+
+    // A recorded removal survives a restart even if the revocation file could not be compacted
+    final File snapshotTempFile = new File(dir, "revoked.json.tmp");
+    snapshotTempFile.mkdirs();
+    assertEquals(List.of(BigInteger.ONE), registry.remove(List.of(BigInteger.ONE, BigInteger.TEN), removedBefore));
+    assertNull(registry.getRevokedCertificate(BigInteger.ONE));
+    FileUtils.forceDelete(snapshotTempFile);
+
+    final RevocationRegistry restarted = new RevocationRegistry(revocationFile);
+    assertNull(restarted.getRevokedCertificate(BigInteger.ONE));
+    assertNotNull(restarted.getRevokedCertificate(BigInteger.TWO));
+    assertTrue(restarted.isRemoved(BigInteger.ONE));
+    assertFalse(restarted.isRemoved(BigInteger.TWO));
+    assertFalse(restarted.isRemoved(BigInteger.TEN));
+    assertEquals(removedBefore.getEpochSecond(), restarted.getRemovedBefore().getEpochSecond());
+
+    // A certificate whose revocation data was removed can not be revoked again
+    assertThrows(CertificateRevocationException.class,
+        () -> restarted.revoke(new RevokedCertificate(BigInteger.ONE, new Date(), CRLReason.keyCompromise)));
+  }
+
+  @Test
+  void manualUpdateOfRevocationFile() throws Exception {
+    final File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/journal-manual");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    final File revocationFile = new File(dir, "revoked.json");
+
+    RevocationRegistry registry = new RevocationRegistry(revocationFile);
+    registry.revoke(new RevokedCertificate(BigInteger.ONE, new Date(), CRLReason.keyCompromise));
+    registry = new RevocationRegistry(revocationFile);
+    assertNotNull(registry.getRevokedCertificate(BigInteger.ONE));
+    assertEquals(0, registry.getGeneration());
+
+    // Status lookups detect a manual update once the modification check interval has passed
+    registry.setModificationCheckInterval(Duration.ofHours(1));
+    assertNotNull(registry.getRevokedCertificate(BigInteger.ONE));
+    FileUtils.writeStringToFile(revocationFile,
+        "[{\"serial\":\"a\",\"time\":\"2024-01-01 12:00:00\",\"reason\":1}]", StandardCharsets.UTF_8);
+    assertNotNull(registry.getRevokedCertificate(BigInteger.ONE));
+    assertEquals(0, registry.getGeneration());
+
+    registry.setModificationCheckInterval(Duration.ZERO);
+    assertNull(registry.getRevokedCertificate(BigInteger.ONE));
+    assertEquals(CRLReason.keyCompromise, registry.getRevokedCertificate(BigInteger.TEN).getReason());
+    assertEquals(1, registry.getGeneration());
+  }
+
+  @Test
+  void incompleteJournalRecordOnly() throws Exception {
+    final File dir = new File(System.getProperty("user.dir"), "target/test-data/storage/journal-incomplete");
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    final File revocationFile = new File(dir, "revoked.json");
+    final File journalFile = new File(dir, "revoked.json.journal");
+
+    // A journal holding nothing but an interrupted append is truncated on startup
+    FileUtils.writeStringToFile(journalFile, "{\"serial\":\"3\",\"ti", StandardCharsets.UTF_8);
+    RevocationRegistry registry = new RevocationRegistry(revocationFile, 3);
+    assertEquals(0, registry.size());
+    assertEquals(0, journalFile.length());
+
+    // The next revocation is appended as a complete record and survives a restart
+    registry.revoke(new RevokedCertificate(BigInteger.TEN, new Date(), CRLReason.keyCompromise));
+    assertEquals(1, FileUtils.readLines(journalFile, StandardCharsets.UTF_8).size());
+    registry = new RevocationRegistry(revocationFile, 3);
+    assertEquals(1, registry.size());
+    assertEquals(CRLReason.keyCompromise, registry.getRevokedCertificate(BigInteger.TEN).getReason());
+  }
+
+}
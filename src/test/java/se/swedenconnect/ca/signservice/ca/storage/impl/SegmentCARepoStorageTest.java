@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.cryptacular.util.CertUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.TestData;
+import se.swedenconnect.ca.signservice.ca.storage.SegmentFile;
+import se.swedenconnect.ca.signservice.ca.storage.SegmentFileConverter;
+import se.swedenconnect.ca.signservice.ca.storage.StorageEncryption;
+
+/**
+ * Tests for the segment file certificate storage.
+ */
+@Slf4j
+class SegmentCARepoStorageTest {
+
+  private static File storageDataDir;
+  private static StorageEncryption encryption;
+
+  @BeforeAll
+  static void init() throws Exception {
+    storageDataDir = new File(System.getProperty("user.dir"), "target/test-data/segment-storage");
+    encryption = new DefaultStorageEncryption("s3cr3t".toCharArray(), "key01", "salt".getBytes());
+  }
+
+  @Test
+  void storeCertificate() throws Exception {
+    for (StorageEncryption storageEncryption : new StorageEncryption[] { null, encryption }) {
+      File dir = createDir(storageEncryption == null ? "noCrypt" : "crypt");
+      File revocationFile = new File(dir, "revoked.json");
+      SegmentCARepoStorage storage = new SegmentCARepoStorage(dir, revocationFile, storageEncryption);
+      storage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+      storage.storeCertificate(TestData.getCertBytes(TestData.CERT_2));
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+      assertNull(storage.getCertificate(BigInteger.TEN));
+      storage.close();
+
+      // The segment file is sealed with a footer when the storage is closed
+      File segmentFile = getSegmentFile(dir);
+      List<SegmentFile.RecordLocation> footer = SegmentFile.readFooter(segmentFile);
+      assertNotNull(footer);
+      assertEquals(2, footer.size());
+      long firstFooterOffset = SegmentFile.getFooterOffset(segmentFile);
+
+      // Records appended after the footer and an incomplete record at the end of the segment file
+      storage = new SegmentCARepoStorage(dir, revocationFile, storageEncryption);
+      storage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+      storage.close();
+      // The footer holds the latest record of each certificate and replaces the previous footer
+      footer = SegmentFile.readFooter(segmentFile);
+      assertEquals(2, footer.size());
+      SegmentFile.RecordLocation appended = footer.stream()
+        .filter(location -> location.serial().equals(getSerial(TestData.CERT_1)))
+        .findFirst()
+        .orElseThrow();
+      assertEquals(firstFooterOffset, appended.offset());
+      assertEquals(appended.offset() + appended.length(), SegmentFile.getFooterOffset(segmentFile));
+      long sealedLength = segmentFile.length();
+      Files.write(segmentFile.toPath(), new byte[] { SegmentFile.RECORD_FRAME, 0, 0, 1 }, StandardOpenOption.APPEND);
+
+      storage = new SegmentCARepoStorage(dir, revocationFile, storageEncryption);
+      assertEquals(sealedLength, segmentFile.length());
+      assertEquals(2, storage.getCertificateCount(false));
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+
+      // The index is rebuilt from the footer
+      Files.delete(new File(dir, SegmentCARepoStorage.INDEX_FILE_NAME).toPath());
+      storage.rebuildCertificateIndex();
+      assertEquals(2, storage.getCertificateSerials().size());
+      assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+      storage.close();
+    }
+  }
+
+  @Test
+  void convertStorageFiles() throws Exception {
+    File jsonDir = createDir("json");
+    DefaultCARepoStorage jsonStorage = new DefaultCARepoStorage(jsonDir, new File(jsonDir, "revoked.json"),
+      encryption);
+    jsonStorage.storeCertificate(TestData.getCertBytes(TestData.CERT_1));
+    jsonStorage.storeCertificate(TestData.getCertBytes(TestData.CERT_2));
+    jsonStorage.close();
+
+    File segmentDir = createDir("converted");
+    assertEquals(2, SegmentFileConverter.convertDirectory(jsonDir, segmentDir));
+    assertEquals(0, SegmentFileConverter.convertDirectory(jsonDir, segmentDir));
+    File segmentFile = getSegmentFile(segmentDir);
+    File jsonFile = new File(jsonDir, "certStore-" + getDate());
+    log.info("Storage file size JSON lines: {}, segment: {}", jsonFile.length(), segmentFile.length());
+
+    SegmentCARepoStorage storage = new SegmentCARepoStorage(segmentDir, new File(segmentDir, "revoked.json"),
+      encryption);
+    assertEquals(2, storage.getCertificateCount(false));
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_1), storage.getCertificate(getSerial(TestData.CERT_1)));
+    assertArrayEquals(TestData.getCertBytes(TestData.CERT_2), storage.getCertificate(getSerial(TestData.CERT_2)));
+    storage.close();
+  }
+
+  private File getSegmentFile(File dir) {
+    return new File(dir, SegmentFile.SEGMENT_FILE_PREFIX + getDate());
+  }
+
+  private String getDate() {
+    return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+  }
+
+  private BigInteger getSerial(String b64Cert) {
+    X509Certificate certificate = CertUtil.decodeCertificate(TestData.getCertBytes(b64Cert));
+    return certificate.getSerialNumber();
+  }
+
+  private File createDir(String name) throws Exception {
+    File dir = new File(storageDataDir, name);
+    if (dir.exists()) {
+      FileUtils.forceDelete(dir);
+    }
+    dir.mkdirs();
+    return dir;
+  }
+
+}
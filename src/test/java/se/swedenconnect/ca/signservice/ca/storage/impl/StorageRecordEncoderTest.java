@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024.  Agency for Digital Government (DIGG)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.ca.signservice.ca.storage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+import se.swedenconnect.ca.signservice.TestData;
+import se.swedenconnect.ca.signservice.ca.storage.data.StorageRecord;
+import tools.jackson.databind.ObjectMapper;
+
+/**
+ * Tests for encoding JSON lines storage records.
+ */
+@Slf4j
+class StorageRecordEncoderTest {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private static final DateTimeFormatter CERT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+  @Test
+  void encode() throws Exception {
+    X509CertificateHolder certificate = new X509CertificateHolder(TestData.getCertBytes(TestData.CERT_1));
+    byte[] certBytes = certificate.getEncoded();
+    BigInteger serial = certificate.getSerialNumber();
+    long notBefore = certificate.getNotBefore().toInstant().getEpochSecond();
+    long notAfter = certificate.getNotAfter().toInstant().getEpochSecond();
+    StorageRecordEncoder encoder = new StorageRecordEncoder(OBJECT_MAPPER);
+
+    // Records are identical to records serialized by the object mapper
+    String id = URLEncoder.encode("197001011234 Åsa", StandardCharsets.UTF_8);
+    StorageRecord plain = this.createRecord(notBefore, notAfter, serial).id(id)
+      .cert(Base64.toBase64String(certBytes)).build();
+    byte[] plainRecord = encoder.encode(notBefore, notAfter, serial, id, null, certBytes, null);
+    assertArrayEquals(this.toJsonLine(plain), plainRecord);
+
+    // Encrypted data larger than the initial buffer
+    byte[] encryptedId = { 1, 2, 3, 4, 5 };
+    byte[] encryptedCert = Arrays.copyOf(certBytes, 20001);
+    StorageRecord encrypted = this.createRecord(notBefore, notAfter, serial).eId(Base64.toBase64String(encryptedId))
+      .eCert(Base64.toBase64String(encryptedCert)).build();
+    assertArrayEquals(this.toJsonLine(encrypted),
+      encoder.encode(notBefore, notAfter, serial, null, encryptedId, null, encryptedCert));
+
+    // Encoded records are indexed
+    CertificateIndex.IndexEntry indexEntry = CertificateIndex.toIndexEntry(
+      Arrays.copyOf(plainRecord, plainRecord.length - 1), "certStore-2024-01-01", 0);
+    assertEquals(serial, indexEntry.serial());
+    assertEquals(notBefore, indexEntry.notBefore());
+    assertEquals(notAfter, indexEntry.notAfter());
+    assertEquals(plainRecord.length, indexEntry.length());
+
+    // Values that would need escaping are rejected
+    assertThrows(IOException.class, () -> encoder.encode(notBefore, notAfter, serial, "a\"b", null, certBytes, null));
+  }
+
+  @Test
+  void formatTime() throws Exception {
+    ZoneId zoneId = ZoneId.of("Europe/Stockholm");
+    StorageRecordEncoder encoder = new StorageRecordEncoder(OBJECT_MAPPER, zoneId);
+    // Times on both sides of daylight saving time changes, and repeated times served from the cache
+    long[] times = { 1711846799L, 1711846800L, 1711846800L, 1729990799L, 1729990800L, 0L, 253402300799L };
+    for (long time : times) {
+      StorageRecord expected = StorageRecord.builder()
+        .it(this.format(time, zoneId))
+        .et(this.format(time + 3600, zoneId))
+        .serial("1")
+        .cert("AA==")
+        .build();
+      assertArrayEquals(this.toJsonLine(expected),
+        encoder.encode(time, time + 3600, BigInteger.ONE, null, null, new byte[1], null));
+    }
+  }
+
+  @Test
+  void allocation() throws Exception {
+    com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    X509CertificateHolder certificate = new X509CertificateHolder(TestData.getCertBytes(TestData.CERT_2));
+    byte[] certBytes = certificate.getEncoded();
+    BigInteger serial = certificate.getSerialNumber();
+    long notBefore = certificate.getNotBefore().toInstant().getEpochSecond();
+    long notAfter = certificate.getNotAfter().toInstant().getEpochSecond();
+    StorageRecordEncoder encoder = new StorageRecordEncoder(OBJECT_MAPPER);
+    int records = 2000;
+
+    long serializerAllocation = 0;
+    long encoderAllocation = 0;
+    for (int round = 0; round < 2; round++) {
+      // The first round warms up both encodings
+      long start = threadBean.getCurrentThreadAllocatedBytes();
+      for (int i = 0; i < records; i++) {
+        StorageRecord record = this.createRecord(notBefore, notAfter, serial).id("id")
+          .cert(Base64.toBase64String(certBytes)).build();
+        this.toJsonLine(record);
+      }
+      serializerAllocation = threadBean.getCurrentThreadAllocatedBytes() - start;
+      start = threadBean.getCurrentThreadAllocatedBytes();
+      for (int i = 0; i < records; i++) {
+        encoder.encode(notBefore, notAfter, serial, "id", null, certBytes, null);
+      }
+      encoderAllocation = threadBean.getCurrentThreadAllocatedBytes() - start;
+    }
+    log.info("Allocation per storage record - Object mapper: {} bytes, encoder: {} bytes, record size: {} bytes",
+      serializerAllocation / records, encoderAllocation / records,
+      encoder.encode(notBefore, notAfter, serial, "id", null, certBytes, null).length);
+    assertTrue(encoderAllocation < serializerAllocation / 2);
+  }
+
+  private StorageRecord.StorageRecordBuilder createRecord(long notBefore, long notAfter, BigInteger serial) {
+    return StorageRecord.builder()
+      .it(this.format(notBefore, ZoneId.systemDefault()))
+      .et(this.format(notAfter, ZoneId.systemDefault()))
+      .serial(serial.toString(16));
+  }
+
+  private String format(long epochSecond, ZoneId zoneId) {
+    return LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), zoneId).format(CERT_TIME_FORMAT);
+  }
+
+  private byte[] toJsonLine(StorageRecord record) {
+    return (OBJECT_MAPPER.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+}